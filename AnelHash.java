@@ -0,0 +1,77 @@
+import java.util.Arrays;
+
+// Anel de hash consistente com nós virtuais, usado para escolher o nó dono de cada grupo. Cada nó ocupa
+// NOS_VIRTUAIS pontos do anel, e o dono de uma chave é o nó do primeiro ponto a partir do hash dela.
+// Quando um nó entra ou sai, só as chaves dos trechos dele mudam de dono (cerca de 1/N delas).
+//
+// O anel é imutável: entrar ou sair gera outro, que o servidor publica de uma vez. Cada ponto guarda o
+// id do nó nos 6 bits de baixo (até 64 nós), então o anel é um único vetor ordenado de long.
+public final class AnelHash {
+  public static final int NOS_VIRTUAIS = Integer.getInteger("chat.anel.nosVirtuais", 128);
+  private static final long MASCARA_NO = 63;
+
+  private final long nos; // Um bit por nó do anel.
+  private final long[] pontos;
+
+  // Construtor da classe AnelHash com os nós indicados (um bit por nó).
+  public AnelHash(long nos) {
+    this.nos = nos;
+    this.pontos = new long[Long.bitCount(nos) * NOS_VIRTUAIS];
+    int i = 0;
+    for (int no = 0; no < 64; no++) {
+      if ((nos & (1L << no)) != 0) {
+        for (int virtual = 0; virtual < NOS_VIRTUAIS; virtual++) {
+          pontos[i++] = (misturar(((long) no << 32) | virtual) & ~MASCARA_NO) | no;
+        }
+      }
+    }
+    Arrays.sort(pontos);
+  }
+
+  // Anel com o nó a mais, ou o mesmo anel se ele já está nele.
+  public AnelHash com(int no) {
+    return contem(no) ? this : new AnelHash(nos | (1L << no));
+  }
+
+  // Anel sem o nó, ou o mesmo anel se ele não está nele.
+  public AnelHash sem(int no) {
+    return contem(no) ? new AnelHash(nos & ~(1L << no)) : this;
+  }
+
+  // Nó dono da chave, ou -1 se o anel está vazio.
+  public int dono(String chave) {
+    if (pontos.length == 0) {
+      return -1;
+    }
+    int indice = Arrays.binarySearch(pontos, hash(chave));
+    if (indice < 0) {
+      indice = -indice - 1;
+    }
+    return (int) (pontos[indice == pontos.length ? 0 : indice] & MASCARA_NO);
+  }
+
+  public boolean contem(int no) {
+    return (nos & (1L << no)) != 0;
+  }
+
+  public int getQuantidadeNos() {
+    return Long.bitCount(nos);
+  }
+
+  // Hash de 64 bits da chave: FNV-1a sobre os caracteres, seguido de uma mistura final.
+  static long hash(String chave) {
+    long hash = 0xcbf29ce484222325L;
+    for (int i = 0; i < chave.length(); i++) {
+      hash ^= chave.charAt(i);
+      hash *= 0x100000001b3L;
+    }
+    return misturar(hash) & ~MASCARA_NO;
+  }
+
+  // Finalizador do SplitMix64: espalha bem os bits de valores próximos.
+  private static long misturar(long valor) {
+    valor = (valor ^ (valor >>> 30)) * 0xbf58476d1ce4e5b9L;
+    valor = (valor ^ (valor >>> 27)) * 0x94d049bb133111ebL;
+    return valor ^ (valor >>> 31);
+  }
+}
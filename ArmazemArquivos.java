@@ -0,0 +1,249 @@
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+
+// Armazém de arquivos endereçado pelo conteúdo: cada conteúdo é guardado uma única vez em
+// objetos/<2 primeiros dígitos>/<sha256>, e cada nome enviado por um usuário aponta para um objeto.
+// Reenviar o mesmo conteúdo só cria uma referência; um objeto é apagado quando nenhum nome aponta
+// mais para ele. O índice fica em memória e é reconstruído na partida a partir do diário (nomes.log),
+// que é compactado a cada partida.
+public class ArmazemArquivos {
+  private static final String NOME_DIARIO = "nomes.log";
+
+  private final Path diretorio;
+  private final Path caminhoDiario;
+  private final Map<String, ObjetoArquivo> objetos; // hash -> objeto.
+  private final Map<String, String> nomes; // remetente + TAB + nome do arquivo -> hash.
+  private BufferedWriter diario;
+  private long reutilizacoes; // Envios atendidos sem receber o conteúdo de novo.
+
+  // Construtor da classe ArmazemArquivos; carrega o índice do diretório indicado.
+  public ArmazemArquivos(Path diretorio) throws IOException {
+    this.diretorio = diretorio;
+    this.caminhoDiario = diretorio.resolve(NOME_DIARIO);
+    this.objetos = new HashMap<>();
+    this.nomes = new HashMap<>();
+    Files.createDirectories(diretorio);
+    carregar();
+  }
+
+  // Procura o conteúdo pelo hash e, se existir, registra o nome do remetente apontando para ele.
+  public synchronized ObjetoArquivo reutilizar(String hash, long tamanho, String remetente, String nomeArquivo)
+      throws IOException {
+    ObjetoArquivo objeto = hash != null ? objetos.get(hash) : null;
+    if (objeto == null || objeto.getTamanho() != tamanho) {
+      return null;
+    }
+    registrarNome(remetente, nomeArquivo, objeto);
+    reutilizacoes++;
+    return objeto;
+  }
+
+  // Guarda um arquivo já conferido: move-o para o armazém ou, se o conteúdo já existe, apaga a cópia.
+  public synchronized ObjetoArquivo guardar(Path arquivo, String hash, long tamanho, long checksum,
+      String remetente, String nomeArquivo) throws IOException {
+    ObjetoArquivo objeto = objetos.get(hash);
+    if (objeto == null) {
+      Path caminho = caminhoDe(hash);
+      Files.createDirectories(caminho.getParent());
+      Files.move(arquivo, caminho, StandardCopyOption.REPLACE_EXISTING);
+      objeto = new ObjetoArquivo(hash, tamanho, checksum, caminho);
+      objetos.put(hash, objeto);
+      escreverDiario("OBJETO\t" + hash + "\t" + tamanho + "\t" + checksum);
+    } else {
+      Files.deleteIfExists(arquivo);
+    }
+    registrarNome(remetente, nomeArquivo, objeto);
+    return objeto;
+  }
+
+  // Guarda o conteúdo de um arquivo recebido numa única mensagem (clientes antigos).
+  public ObjetoArquivo guardar(byte[] dados, String remetente, String nomeArquivo) throws IOException {
+    MessageDigest sha = novoSha256();
+    sha.update(dados);
+    String hash = hexadecimal(sha.digest());
+    ObjetoArquivo existente = reutilizar(hash, dados.length, remetente, nomeArquivo);
+    if (existente != null) {
+      return existente;
+    }
+    CRC32 crc = new CRC32();
+    crc.update(dados);
+    Path temporario = Files.createTempFile(diretorio, "tmp-", ".parcial");
+    try {
+      Files.write(temporario, dados);
+      return guardar(temporario, hash, dados.length, crc.getValue(), remetente, nomeArquivo);
+    } finally {
+      Files.deleteIfExists(temporario);
+    }
+  }
+
+  // Faz o nome apontar para o objeto, liberando o objeto para o qual ele apontava antes.
+  private void registrarNome(String remetente, String nomeArquivo, ObjetoArquivo objeto) throws IOException {
+    String remetenteLimpo = limpar(remetente);
+    String nomeLimpo = limpar(nomeArquivo);
+    String anterior = nomes.put(remetenteLimpo + "\t" + nomeLimpo, objeto.getHash());
+    if (objeto.getHash().equals(anterior)) {
+      return;
+    }
+    objeto.setReferencias(objeto.getReferencias() + 1);
+    escreverDiario("NOME\t" + objeto.getHash() + "\t" + remetenteLimpo + "\t" + nomeLimpo);
+    if (anterior != null) {
+      liberar(objetos.get(anterior));
+    }
+  }
+
+  // Remove uma referência do objeto, apagando o conteúdo quando não sobra nenhuma.
+  // Envios em andamento mantêm o arquivo aberto e continuam lendo normalmente.
+  private void liberar(ObjetoArquivo objeto) throws IOException {
+    if (objeto == null) {
+      return;
+    }
+    objeto.setReferencias(objeto.getReferencias() - 1);
+    if (objeto.getReferencias() <= 0) {
+      objetos.remove(objeto.getHash());
+      Files.deleteIfExists(objeto.getCaminho());
+    }
+  }
+
+  // Reconstrói o índice a partir do diário e dos objetos presentes no disco.
+  private void carregar() throws IOException {
+    Map<String, long[]> registrados = new HashMap<>(); // hash -> {tamanho, checksum}
+    Map<String, String> nomesRegistrados = new HashMap<>();
+    if (Files.exists(caminhoDiario)) {
+      try (BufferedReader leitor = Files.newBufferedReader(caminhoDiario, StandardCharsets.UTF_8)) {
+        String linha;
+        while ((linha = leitor.readLine()) != null) {
+          String[] campos = linha.split("\t", 4);
+          if (campos.length == 4 && campos[0].equals("OBJETO")) {
+            try {
+              registrados.put(campos[1], new long[] {Long.parseLong(campos[2]), Long.parseLong(campos[3])});
+            } catch (NumberFormatException e) {
+              // Linha incompleta no fim do diário (queda durante a escrita).
+            }
+          } else if (campos.length == 4 && campos[0].equals("NOME")) {
+            nomesRegistrados.put(campos[2] + "\t" + campos[3], campos[1]);
+          }
+        }
+      }
+    }
+
+    // Objetos registrados que ainda estão no disco com o tamanho esperado.
+    for (Map.Entry<String, long[]> registro : registrados.entrySet()) {
+      Path caminho = caminhoDe(registro.getKey());
+      if (Files.isRegularFile(caminho) && Files.size(caminho) == registro.getValue()[0]) {
+        objetos.put(registro.getKey(),
+            new ObjetoArquivo(registro.getKey(), registro.getValue()[0], registro.getValue()[1], caminho));
+      }
+    }
+    for (Map.Entry<String, String> nome : nomesRegistrados.entrySet()) {
+      ObjetoArquivo objeto = objetos.get(nome.getValue());
+      if (objeto != null) {
+        nomes.put(nome.getKey(), nome.getValue());
+        objeto.setReferencias(objeto.getReferencias() + 1);
+      }
+    }
+    objetos.values().removeIf(objeto -> objeto.getReferencias() == 0);
+
+    removerArquivosSemReferencia();
+    compactarDiario();
+    diario = Files.newBufferedWriter(caminhoDiario, StandardCharsets.UTF_8, StandardOpenOption.CREATE,
+        StandardOpenOption.APPEND);
+  }
+
+  // Apaga arquivos temporários e objetos que não estão no índice.
+  private void removerArquivosSemReferencia() throws IOException {
+    try (Stream<Path> entradas = Files.list(diretorio)) {
+      for (Path entrada : (Iterable<Path>) entradas::iterator) {
+        if (Files.isDirectory(entrada)) {
+          try (Stream<Path> arquivos = Files.list(entrada)) {
+            for (Path arquivo : (Iterable<Path>) arquivos::iterator) {
+              if (!objetos.containsKey(arquivo.getFileName().toString())) {
+                Files.deleteIfExists(arquivo);
+              }
+            }
+          }
+        } else if (entrada.getFileName().toString().startsWith("tmp-")) {
+          Files.deleteIfExists(entrada);
+        }
+      }
+    }
+  }
+
+  // Reescreve o diário só com o estado atual e troca o antigo de forma atômica.
+  private void compactarDiario() throws IOException {
+    Path temporario = diretorio.resolve(NOME_DIARIO + ".novo");
+    try (BufferedWriter escritor = Files.newBufferedWriter(temporario, StandardCharsets.UTF_8)) {
+      for (ObjetoArquivo objeto : objetos.values()) {
+        escritor.write("OBJETO\t" + objeto.getHash() + "\t" + objeto.getTamanho() + "\t" + objeto.getChecksum());
+        escritor.newLine();
+      }
+      for (Map.Entry<String, String> nome : nomes.entrySet()) {
+        escritor.write("NOME\t" + nome.getValue() + "\t" + nome.getKey());
+        escritor.newLine();
+      }
+    }
+    Files.move(temporario, caminhoDiario, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+  }
+
+  // Acrescenta uma linha ao diário.
+  private void escreverDiario(String linha) throws IOException {
+    diario.write(linha);
+    diario.newLine();
+    diario.flush();
+  }
+
+  // Caminho do objeto com o hash dado.
+  private Path caminhoDe(String hash) {
+    return diretorio.resolve(hash.substring(0, 2)).resolve(hash);
+  }
+
+  // Troca separadores de linha e de campo, que quebrariam o diário.
+  private static String limpar(String valor) {
+    return valor == null ? "" : valor.replaceAll("[\\t\\r\\n]", "_");
+  }
+
+  // Cria um MessageDigest SHA-256.
+  public static MessageDigest novoSha256() {
+    try {
+      return MessageDigest.getInstance("SHA-256");
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException("SHA-256 indisponivel", e);
+    }
+  }
+
+  // Converte o resumo em hexadecimal minúsculo.
+  public static String hexadecimal(byte[] resumo) {
+    return HexFormat.of().formatHex(resumo);
+  }
+
+  // Verifica se o texto é um SHA-256 em hexadecimal minúsculo.
+  public static boolean hashValido(String hash) {
+    return hash != null && hash.matches("[0-9a-f]{64}");
+  }
+
+  // Fecha o diário.
+  public synchronized void fechar() {
+    try {
+      diario.close();
+    } catch (IOException e) {
+      LogConsole.erro("Erro ao fechar diario do armazem: ", e.getMessage());
+    }
+  }
+
+  // Resumo do armazém para o relatório do servidor.
+  public synchronized String resumo() {
+    long bytes = 0;
+    for (ObjetoArquivo objeto : objetos.values()) {
+      bytes += objeto.getTamanho();
+    }
+    return "objetos=" + objetos.size() + " (" + bytes + " bytes), nomes=" + nomes.size()
+        + ", reutilizacoes=" + reutilizacoes;
+  }
+}
@@ -0,0 +1,44 @@
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Canal de arquivo compartilhado por contagem de referências: a transferência que grava o arquivo e
+// cada fila de escrita que ainda vai enviar um trecho dele guardam uma referência. O canal é
+// fechado quando a última referência é liberada.
+public final class ArquivoCompartilhado {
+  private final FileChannel canal;
+  private final AtomicInteger referencias;
+
+  // Construtor da classe ArquivoCompartilhado; o criador recebe a primeira referência.
+  public ArquivoCompartilhado(FileChannel canal) {
+    this.canal = canal;
+    this.referencias = new AtomicInteger(1);
+  }
+
+  // Adiciona uma referência ao arquivo.
+  public ArquivoCompartilhado reter() {
+    if (referencias.getAndIncrement() <= 0) {
+      referencias.getAndDecrement();
+      throw new IllegalStateException("Arquivo já liberado");
+    }
+    return this;
+  }
+
+  // Remove uma referência, fechando o canal na última.
+  public void liberar() {
+    int restantes = referencias.decrementAndGet();
+    if (restantes == 0) {
+      try {
+        canal.close();
+      } catch (IOException e) {
+        LogConsole.erro("Erro ao fechar arquivo compartilhado: ", e.getMessage());
+      }
+    } else if (restantes < 0) {
+      throw new IllegalStateException("Arquivo liberado mais vezes que retido");
+    }
+  }
+
+  public FileChannel getCanal() {
+    return canal;
+  }
+}
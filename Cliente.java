@@ -1,27 +1,68 @@
 import java.io.*;
 import java.net.InetSocketAddress;
 import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
 import java.nio.channels.SocketChannel;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.security.MessageDigest;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Queue;
 import java.util.Scanner;
-import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
 
 // CLasse responsável pelo cliente do chat distribuído.
 public class Cliente {
-  private static final String ENDERECO_SERVIDOR = "ec2-3-17-128-71.us-east-2.compute.amazonaws.com";
-  private static final int PORTA_SERVIDOR = 8080;
+  public static final String ENDERECO_SERVIDOR =
+      System.getProperty("chat.servidor", "ec2-3-17-128-71.us-east-2.compute.amazonaws.com");
+  public static final int PORTA_SERVIDOR = Integer.getInteger("chat.porta", 8080);
+  private static final long TEMPO_CONSULTA_MS = 10000; // Espera máxima pela resposta de ARQUIVO_CONSULTA.
+  private static final int MAX_GUARDADOS = 128; // Quadros enviados guardados para o reenvio na retomada.
+  private static final int TEMPO_CONEXAO_MS = 5000; // Espera máxima para abrir a conexão.
+  private static final int MAX_LOTE = 64; // Quadros juntados numa única escrita.
+  // Sem nada do servidor por este tempo, a conexão é dada como caída (o servidor manda PING bem antes).
+  private static final long TEMPO_SEM_SERVIDOR_MS = Long.getLong("chat.cliente.tempoSemServidorMs", 90000);
+  private static final DateTimeFormatter FORMATO_HORA =
+      DateTimeFormatter.ofPattern("dd/MM HH:mm").withZone(ZoneId.systemDefault()); // Data dos itens do histórico.
 
   private SocketChannel socketChannel;
   private String nomeUsuario;
   private boolean conectado;
   private Scanner scanner;
   private Thread threadLeitura;
+  private Thread threadRede; // Única thread que lê e escreve no socket.
+  private Selector seletor; // Acorda a thread de rede com dados do servidor, espaço no socket ou envios novos.
+  private Queue<Envio> filaSaida; // Quadros esperando a thread de rede, na ordem de envio.
+  private AtomicBoolean acordado; // Evita chamadas redundantes de seletor.wakeup().
+  private ByteBuffer[] loteEscrita; // Quadros de uma escrita em lote (só a thread de rede usa).
   private BlockingQueue<Mensagem> filaMensagens;
   private ByteBuffer bufferLeitura;
   private int tamanhoMensagemEsperado = -1;
+  private Map<String, Transferencia> recebimentos; // Arquivos sendo recebidos em partes (remetente#id).
+  private Transferencia parteEmAndamento; // Recebimento cujos bytes brutos estão chegando agora.
+  private long bytesIgnorados; // Bytes brutos de uma parte que não pode ser gravada.
+  private AtomicLong proximaTransferencia; // Gerador de ids das transferências enviadas.
+  private Map<Long, CompletableFuture<Boolean>> consultas; // Consultas de arquivo aguardando resposta (por id).
+  private volatile long sessao; // Token da sessão retomável (0 sem sessão).
+  private long recebidos; // Quadros repetíveis recebidos na sessão (só a thread de leitura usa).
+  private long enviados; // Quadros repetíveis enviados na sessão (protegido pelo monitor do cliente).
+  private ArrayDeque<ByteBuffer> guardados; // Últimos quadros enviados, para o reenvio na retomada.
+  private volatile boolean reconectando; // Ligação caiu: as mensagens só são guardadas até a retomada.
+  private volatile boolean saindo;
+  private volatile int geracao; // Muda a cada reconexão; envios de arquivo da conexão anterior param.
 
   // Construtor da classe Cliente.
   public Cliente() {
@@ -29,19 +70,54 @@ public class Cliente {
     conectado = false;
     filaMensagens = new LinkedBlockingQueue<>();
     bufferLeitura = ByteBuffer.allocate(8192);
+    recebimentos = new HashMap<>();
+    proximaTransferencia = new AtomicLong(System.currentTimeMillis());
+    consultas = new ConcurrentHashMap<>();
+    guardados = new ArrayDeque<>();
+    filaSaida = new ConcurrentLinkedQueue<>();
+    acordado = new AtomicBoolean(false);
+    loteEscrita = new ByteBuffer[MAX_LOTE];
+  }
+
+  // Item da fila de saída: um quadro e, nas partes de arquivo, o trecho do arquivo que vai logo depois dele.
+  // Quem envia uma parte espera a conclusão, que é false se a ligação caiu antes da parte ser escrita.
+  private static final class Envio {
+    private final ByteBuffer quadro;
+    private final FileChannel arquivo;
+    private long posicao;
+    private long restante;
+    private final CompletableFuture<Boolean> conclusao;
+
+    Envio(ByteBuffer quadro) {
+      this.quadro = quadro;
+      this.arquivo = null;
+      this.conclusao = null;
+    }
+
+    Envio(ByteBuffer quadro, FileChannel arquivo, long posicao, long tamanho) {
+      this.quadro = quadro;
+      this.arquivo = arquivo;
+      this.posicao = posicao;
+      this.restante = tamanho;
+      this.conclusao = new CompletableFuture<>();
+    }
+
+    boolean isConcluido() {
+      return !quadro.hasRemaining() && restante == 0;
+    }
+
+    void concluir(boolean escrito) {
+      if (conclusao != null) {
+        conclusao.complete(escrito);
+      }
+    }
   }
 
   // Inicia o cliente, conectando ao servidor e iniciando as threads de leitura e menu.
   public void iniciar() {
     try {
-      socketChannel = SocketChannel.open();
-      socketChannel.configureBlocking(false);
-      socketChannel.connect(new InetSocketAddress(ENDERECO_SERVIDOR, PORTA_SERVIDOR));
-
-      // Aguardar conexão.
-      while (!socketChannel.finishConnect()) {
-        Thread.sleep(100);
-      }
+      socketChannel = abrirConexao();
+      seletor = Selector.open();
 
       conectado = true;
       System.out.println("Chat Distribuido com Comunicacao via Socket");
@@ -54,53 +130,350 @@ public class Cliente {
       threadLeitura = new Thread(this::processarMensagens);
       threadLeitura.start();
 
-      // Thread para ler dados do socket.
-      Thread threadSocket = new Thread(this::lerDoSocket);
-      threadSocket.start();
+      // Thread de rede: lê e escreve no socket.
+      threadRede = new Thread(this::executarRede, "rede");
+      threadRede.start();
 
       // Menu principal.
       mostrarMenu();
 
-    } catch (IOException | InterruptedException e) {
+    } catch (IOException e) {
       System.err.println("Erro ao conectar ao servidor: " + e.getMessage());
     } finally {
       desconectar();
     }
   }
 
-  // Lê dados do socket e adiciona à fila de mensagens.
-  private void lerDoSocket() {
+  // Abre a conexão com o servidor e a deixa não bloqueante, para a thread de rede.
+  private SocketChannel abrirConexao() throws IOException {
+    SocketChannel canal = SocketChannel.open();
+    try {
+      canal.socket().connect(new InetSocketAddress(ENDERECO_SERVIDOR, PORTA_SERVIDOR), TEMPO_CONEXAO_MS);
+      canal.socket().setTcpNoDelay(true); // Quadros pequenos saem na hora.
+      canal.configureBlocking(false);
+      return canal;
+    } catch (IOException e) {
+      canal.close();
+      throw e;
+    }
+  }
+
+  // Loop da thread de rede: espera no selector por dados do servidor, por espaço no socket ou por envios
+  // novos na fila de saída, sem espera ativa. As mensagens lidas são tratadas aqui mesmo ou passadas para
+  // a thread de processamento.
+  private void executarRede() {
     ByteBuffer buffer = ByteBuffer.allocate(8192);
+    long ultimaLeitura = System.currentTimeMillis();
+    SelectionKey chave = null;
 
-    while (conectado && socketChannel.isOpen()) {
-      try {
-        buffer.clear();
-        int bytesRead = socketChannel.read(buffer);
+    try {
+      chave = socketChannel.register(seletor, SelectionKey.OP_READ);
+      while (conectado) {
+        seletor.select(Math.max(1, ultimaLeitura + TEMPO_SEM_SERVIDOR_MS - System.currentTimeMillis()));
+        acordado.set(false);
+        boolean pronta = seletor.selectedKeys().remove(chave);
+
+        boolean caiu;
+        try {
+          long lidos = pronta && chave.isReadable() ? lerDoSocket(buffer) : 0;
+          long agora = System.currentTimeMillis();
+          if (lidos != 0) {
+            ultimaLeitura = agora;
+          } else if (agora - ultimaLeitura > TEMPO_SEM_SERVIDOR_MS) {
+            lidos = -1; // Ligação meio aberta: nem o PING do servidor chegou.
+          }
+          caiu = lidos < 0 || (conectado && !escreverPendentes(chave));
+        } catch (IOException e) {
+          if (sessao == 0 && conectado) {
+            System.err.println("Erro na conexao com o servidor: " + e.getMessage());
+          }
+          caiu = true;
+        }
 
-        if (bytesRead == -1) {
-          // Servidor fechou a conexão.
-          conectado = false;
-          break;
-        } else if (bytesRead > 0) {
-          buffer.flip();
-          adicionarDados(buffer);
-
-          // Tentar processar mensagens completas.
-          Mensagem mensagem;
-          while ((mensagem = lerMensagem()) != null) {
-            filaMensagens.offer(mensagem);
+        if (caiu) {
+          // Tentar retomar a sessão numa conexão nova.
+          if (!reconectar()) {
+            conectado = false;
+            break;
           }
+          ultimaLeitura = System.currentTimeMillis();
+          chave = socketChannel.register(seletor, SelectionKey.OP_READ | SelectionKey.OP_WRITE);
         }
+      }
+    } catch (IOException e) {
+      if (conectado) {
+        System.err.println("Erro na thread de rede: " + e.getMessage());
+        conectado = false;
+      }
+    } finally {
+      encerrarRede(chave);
+    }
+  }
 
-        Thread.sleep(10); // Pequena pausa para nao sobrecarregar CPU
+  // Lê do socket: os bytes brutos de uma parte de arquivo vão direto para o arquivo, o resto para o buffer
+  // de leitura. Retorna os bytes lidos, ou -1 se o servidor fechou a conexão.
+  private long lerDoSocket(ByteBuffer buffer) throws IOException {
+    // Parte de arquivo em andamento e nada no buffer: copiar direto do socket para o arquivo.
+    if (parteEmAndamento != null && bufferLeitura.position() == 0) {
+      long copiados = parteEmAndamento.receberDoCanal(socketChannel);
+      if (!parteEmAndamento.isParteEmAndamento()) {
+        parteEmAndamento = null;
+      }
+      if (copiados > 0) {
+        return copiados;
+      }
+    }
 
-      } catch (IOException | InterruptedException e) {
-        if (conectado) {
-          System.err.println("Erro ao ler do socket: " + e.getMessage());
-          conectado = false;
+    buffer.clear();
+    int bytesRead = socketChannel.read(buffer);
+    if (bytesRead > 0) {
+      buffer.flip();
+      adicionarDados(buffer);
+      processarDadosLidos();
+    }
+    return bytesRead;
+  }
+
+  // Escreve a fila de saída até ela esvaziar ou o socket encher; com o socket cheio, liga o OP_WRITE para
+  // continuar quando houver espaço. Quadros seguidos vão numa única escrita (gathering). Retorna false se
+  // a conexão está fechada.
+  private boolean escreverPendentes(SelectionKey chave) throws IOException {
+    if (!chave.isValid()) {
+      return false;
+    }
+    Envio envio;
+    while ((envio = filaSaida.peek()) != null) {
+      if (envio.quadro.hasRemaining()) {
+        int quantidade = 0;
+        for (Envio proximo : filaSaida) {
+          if (quantidade == loteEscrita.length) {
+            break;
+          }
+          loteEscrita[quantidade++] = proximo.quadro;
+          if (proximo.arquivo != null) {
+            break; // O trecho do arquivo vai logo depois deste quadro.
+          }
+        }
+        try {
+          socketChannel.write(loteEscrita, 0, quantidade);
+        } finally {
+          Arrays.fill(loteEscrita, 0, quantidade, null);
+        }
+      }
+      if (envio.arquivo != null && !envio.quadro.hasRemaining() && envio.restante > 0) {
+        long escritos = envio.arquivo.transferTo(envio.posicao, envio.restante, socketChannel);
+        envio.posicao += escritos;
+        envio.restante -= escritos;
+      }
+
+      boolean avancou = false;
+      while ((envio = filaSaida.peek()) != null && envio.isConcluido()) {
+        filaSaida.poll();
+        envio.concluir(true);
+        avancou = true;
+      }
+      if (!avancou) {
+        chave.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+        return true;
+      }
+    }
+    chave.interestOps(SelectionKey.OP_READ);
+    return true;
+  }
+
+  // Fim da thread de rede. Na saída, tenta mandar o que ainda está na fila (o LOGOUT) antes de fechar.
+  private void encerrarRede(SelectionKey chave) {
+    try {
+      if (saindo && chave != null) {
+        escreverPendentes(chave);
+      }
+    } catch (IOException e) {
+      // A conexão já caiu: o servidor trata como desconexão.
+    }
+    synchronized (this) {
+      descartarFila();
+    }
+    try {
+      socketChannel.close();
+      seletor.close();
+    } catch (IOException e) {
+      System.err.println("Erro ao fechar conexao: " + e.getMessage());
+    }
+  }
+
+  // Coloca o envio na fila de saída e acorda a thread de rede, se é outra thread que está enviando.
+  private void enfileirar(Envio envio) {
+    filaSaida.offer(envio);
+    if (Thread.currentThread() != threadRede && acordado.compareAndSet(false, true)) {
+      seletor.wakeup();
+    }
+  }
+
+  // Descarta os envios ainda na fila; quem espera uma parte de arquivo é avisado de que ela não foi escrita.
+  private void descartarFila() {
+    Envio envio;
+    while ((envio = filaSaida.poll()) != null) {
+      envio.concluir(false);
+    }
+  }
+
+  // Tenta reconectar durante a janela da sessão e pede a retomada, informando quantos quadros recebeu.
+  // Retorna false se não há sessão, se o usuário está saindo ou se o servidor não voltou a tempo.
+  private boolean reconectar() {
+    if (!conectado || saindo || sessao == 0) {
+      return false;
+    }
+    synchronized (this) {
+      // Daqui até a resposta da retomada, as mensagens novas só são guardadas.
+      reconectando = true;
+      geracao++;
+      descartarFila();
+    }
+    try {
+      socketChannel.close();
+    } catch (IOException e) {
+      // A conexão já está inválida.
+    }
+    descartarLeitura();
+    System.out.println("\nConexao perdida. Tentando reconectar...");
+    long limite = System.currentTimeMillis() + Sessao.JANELA_MS;
+    long espera = 100;
+    try {
+      while (!saindo && System.currentTimeMillis() < limite) {
+        try {
+          SocketChannel canal = abrirConexao();
+          Mensagem retomada = new Mensagem(Mensagem.TipoMensagem.LOGIN, nomeUsuario);
+          retomada.setSessao(sessao);
+          retomada.setSequencia(recebidos);
+          synchronized (this) {
+            socketChannel = canal;
+            enfileirar(new Envio(CodecMensagem.codificarQuadro(retomada, CodecMensagem.Formato.BINARIO)));
+          }
+          return true;
+        } catch (IOException e) {
+          Thread.sleep(espera);
+          espera = Math.min(espera * 2, 2000);
         }
-        break;
       }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    reconectando = false;
+    return false;
+  }
+
+  // Descarta o que foi lido da conexão que caiu: quadros incompletos e arquivos sendo recebidos, que o
+  // servidor cancela quando a ligação cai.
+  private void descartarLeitura() {
+    bufferLeitura.clear();
+    tamanhoMensagemEsperado = -1;
+    parteEmAndamento = null;
+    bytesIgnorados = 0;
+    for (Transferencia transferencia : recebimentos.values()) {
+      transferencia.abortar();
+    }
+    recebimentos.clear();
+  }
+
+  // Resposta de um LOGIN com o token da sessão. Numa retomada, reenvia o que o servidor não processou;
+  // se a sessão expirou, faz um LOGIN normal e as mensagens guardadas se perdem.
+  private void tratarSessao(Mensagem msg) {
+    if (msg.isSucesso()) {
+      if (reconectando) {
+        reenviarGuardados(msg.getSequencia());
+      }
+      sessao = msg.getSessao();
+      return;
+    }
+    sessao = 0;
+    recebidos = 0;
+    synchronized (this) {
+      reconectando = false;
+      enviados = 0;
+      guardados.clear();
+      enviarMensagem(new Mensagem(Mensagem.TipoMensagem.LOGIN, nomeUsuario));
+    }
+  }
+
+  // Reenvia os quadros guardados que o servidor não chegou a processar, antes de qualquer mensagem nova.
+  private synchronized void reenviarGuardados(long processados) {
+    long numero = enviados - guardados.size(); // Número do quadro anterior ao primeiro guardado.
+    if (processados < numero) {
+      System.out.println("\nAlgumas mensagens enviadas antes da queda se perderam.");
+    }
+    reconectando = false;
+    for (ByteBuffer quadro : guardados) {
+      if (++numero > processados) {
+        enfileirar(new Envio(quadro.duplicate()));
+      }
+    }
+  }
+
+  // Processa as mensagens completas e os bytes brutos de partes de arquivo já lidos.
+  // As mensagens de arquivo são tratadas aqui mesmo, pois indicam quantos bytes brutos vêm em seguida.
+  private void processarDadosLidos() {
+    while (consumirBytesBrutos()) {
+      Mensagem mensagem = lerMensagem();
+      if (mensagem == null) {
+        return;
+      }
+      if (Sessao.repetivel(mensagem.getTipo())) {
+        recebidos++;
+      }
+      if (mensagem.getSessao() != 0) {
+        tratarSessao(mensagem);
+      }
+      switch (mensagem.getTipo()) {
+        case ARQUIVO_INICIO:
+        case ARQUIVO_PARTE:
+        case ARQUIVO_FIM:
+          receberParteArquivo(mensagem);
+          break;
+        case PING:
+          enviarMensagem(new Mensagem(Mensagem.TipoMensagem.PONG, nomeUsuario));
+          break;
+        case PONG:
+          break;
+        case ARQUIVO_CONSULTA:
+          CompletableFuture<Boolean> consulta = consultas.remove(mensagem.getIdTransferencia());
+          if (consulta != null) {
+            consulta.complete(mensagem.isSucesso());
+          }
+          break;
+        default:
+          filaMensagens.offer(mensagem);
+          break;
+      }
+    }
+  }
+
+  // Grava (ou ignora) os bytes brutos da parte em andamento; retorna true quando não falta nenhum.
+  private boolean consumirBytesBrutos() {
+    if (parteEmAndamento == null && bytesIgnorados == 0) {
+      return true;
+    }
+    bufferLeitura.flip();
+    try {
+      if (bytesIgnorados > 0) {
+        int ignorar = (int) Math.min(bytesIgnorados, bufferLeitura.remaining());
+        bufferLeitura.position(bufferLeitura.position() + ignorar);
+        bytesIgnorados -= ignorar;
+      } else {
+        try {
+          parteEmAndamento.escreverBruto(bufferLeitura);
+        } catch (IOException e) {
+          System.err.println("Erro ao salvar arquivo: " + e.getMessage());
+          bytesIgnorados = parteEmAndamento.getRestanteParte();
+          recebimentos.values().remove(parteEmAndamento);
+          parteEmAndamento.abortar();
+        }
+        if (bytesIgnorados > 0 || !parteEmAndamento.isParteEmAndamento()) {
+          parteEmAndamento = null;
+        }
+      }
+      return parteEmAndamento == null && bytesIgnorados == 0;
+    } finally {
+      bufferLeitura.compact();
     }
   }
 
@@ -139,25 +512,23 @@ public class Cliente {
         return null;
       }
 
-      // Ler a mensagem.
-      byte[] dadosMensagem = new byte[tamanhoMensagemEsperado];
-      bufferLeitura.get(dadosMensagem);
+      // Decodificar a mensagem direto do buffer.
+      ByteBuffer payload = bufferLeitura.slice();
+      payload.limit(tamanhoMensagemEsperado);
+      bufferLeitura.position(bufferLeitura.position() + tamanhoMensagemEsperado);
 
       // Resetar para próxima mensagem.
       tamanhoMensagemEsperado = -1;
 
-      // Compactar buffer.
-      bufferLeitura.compact();
-
-      // Deserializar mensagem.
-      try (ByteArrayInputStream bais = new ByteArrayInputStream(dadosMensagem);
-          ObjectInputStream ois = new ObjectInputStream(bais)) {
-        return (Mensagem) ois.readObject();
+      try {
+        return CodecMensagem.decodificar(payload);
+      } finally {
+        // Compactar buffer.
+        bufferLeitura.compact();
       }
 
-    } catch (IOException | ClassNotFoundException e) {
+    } catch (IOException e) {
       System.err.println("Erro ao deserializar mensagem: " + e.getMessage());
-      bufferLeitura.compact();
       return null;
     }
   }
@@ -183,7 +554,7 @@ public class Cliente {
     nomeUsuario = scanner.nextLine().trim();
 
     Mensagem loginMsg = new Mensagem(Mensagem.TipoMensagem.LOGIN, nomeUsuario);
-    enviarMensagem(loginMsg);
+    enviarMensagem(loginMsg); // A numeração dos quadros enviados começa depois do LOGIN.
   }
 
   // Trata uma mensagem recebida do servidor.
@@ -195,9 +566,18 @@ public class Cliente {
       case MENSAGEM_GRUPO:
         System.out.println("\n" + msg.getRemetente() + " (" + msg.getNomeGrupo() + "): " + msg.getConteudo());
         break;
+      case HISTORICO:
+      case BUSCA:
+        mostrarItemPagina(msg); // O STATUS no fim da página mostra o prompt.
+        return;
       case TRANSFERENCIA_ARQUIVO:
         receberArquivo(msg);
         break;
+      case ARQUIVO_INICIO:
+      case ARQUIVO_PARTE:
+      case ARQUIVO_FIM:
+        receberParteArquivo(msg);
+        return;
       case SUCESSO:
         System.out.println("\n✓ " + msg.getConteudo());
         break;
@@ -214,6 +594,13 @@ public class Cliente {
     }
   }
 
+  // Mostra uma mensagem de uma página do histórico ou da busca.
+  private void mostrarItemPagina(Mensagem msg) {
+    String conversa = msg.getNomeGrupo() != null ? msg.getNomeGrupo() : "privado";
+    System.out.println(FORMATO_HORA.format(Instant.ofEpochMilli(msg.getCarimboTempo())) + " "
+        + msg.getRemetente() + " (" + conversa + "): " + msg.getConteudo());
+  }
+
   // Recebe um arquivo e o salva localmente.
   private void receberArquivo(Mensagem msg) {
     try {
@@ -232,6 +619,55 @@ public class Cliente {
     }
   }
 
+  // Recebe um arquivo enviado em partes, gravando cada parte direto no disco.
+  // Chamado pela thread que lê o socket: após um ARQUIVO_PARTE os próximos bytes são o conteúdo da parte.
+  private void receberParteArquivo(Mensagem msg) {
+    String chave = msg.getRemetente() + "#" + msg.getIdTransferencia();
+    try {
+      switch (msg.getTipo()) {
+        case ARQUIVO_INICIO:
+          recebimentos.put(chave, Transferencia.abrir(msg, Paths.get("downloads_cliente", nomeUsuario)));
+          break;
+        case ARQUIVO_PARTE:
+          Transferencia transferencia = recebimentos.get(chave);
+          if (transferencia == null) {
+            bytesIgnorados = msg.getTamanhoDados();
+          } else {
+            transferencia.iniciarParte(msg);
+            parteEmAndamento = transferencia;
+          }
+          break;
+        case ARQUIVO_FIM:
+          Transferencia concluida = recebimentos.remove(chave);
+          if (concluida == null) {
+            break;
+          }
+          if (!msg.isSucesso()) {
+            concluida.abortar();
+            System.out.println("\n✗ Transferencia de " + msg.getRemetente() + " cancelada: " + concluida.getNomeArquivo());
+          } else if (concluida.concluir(msg.getChecksum())) {
+            System.out.println("\n📎 Arquivo recebido de " + msg.getRemetente() + ": " + concluida.getNomeArquivo()
+                + " (salvo em: " + concluida.getCaminhoFinal() + ")");
+          } else {
+            System.out.println("\n✗ Arquivo recebido de " + msg.getRemetente() + " veio corrompido: " + concluida.getNomeArquivo());
+          }
+          System.out.print("> ");
+          break;
+        default:
+          break;
+      }
+    } catch (IOException e) {
+      Transferencia falha = recebimentos.remove(chave);
+      if (falha != null) {
+        falha.abortar();
+      }
+      if (msg.getTipo() == Mensagem.TipoMensagem.ARQUIVO_PARTE) {
+        bytesIgnorados = msg.getTamanhoDados();
+      }
+      System.err.println("Erro ao salvar arquivo: " + e.getMessage());
+    }
+  }
+
   // Mostra o menu principal e envia para o método que corresponde s opção do usuário.
   private void mostrarMenu() {
     System.out.println("\nMENU");
@@ -241,6 +677,8 @@ public class Cliente {
     System.out.println("4 = Enviar arquivo para grupo");
     System.out.println("5 = Criar grupo");
     System.out.println("6 = Entrar em grupo");
+    System.out.println("7 = Ver historico");
+    System.out.println("8 = Buscar mensagens");
     System.out.println("0 = Sair");
 
     while (conectado) {
@@ -254,6 +692,8 @@ public class Cliente {
         case "4": enviarArquivoGrupo(); break;
         case "5": criarGrupo(); break;
         case "6": entrarGrupo(); break;
+        case "7": verHistorico(); break;
+        case "8": buscarMensagens(); break;
         case "0": sair(); return;
         case "menu":
         case "ajuda": mostrarMenu(); break;
@@ -326,26 +766,103 @@ public class Cliente {
       }
 
       long tamanho = Files.size(path);
-      if (tamanho > 50 * 1024 * 1024) {
-        System.out.println("Arquivo muito grande (o tamanho máximo é 50MB)");
+      if (tamanho > Transferencia.TAMANHO_MAXIMO_ARQUIVO) {
+        System.out.println("Arquivo muito grande (o tamanho máximo é "
+            + Transferencia.TAMANHO_MAXIMO_ARQUIVO / (1024 * 1024) + "MB)");
         return;
       }
 
-      byte[] dados = Files.readAllBytes(path);
       String nomeArquivo = path.getFileName().toString();
+      System.out.println("Enviando arquivo: " + nomeArquivo);
 
-      Mensagem msg = new Mensagem(Mensagem.TipoMensagem.TRANSFERENCIA_ARQUIVO, nomeUsuario);
-      msg.setDestinatario(destinatario);
-      msg.setNomeGrupo(nomeGrupo);
-      msg.setNomeArquivo(nomeArquivo);
-      msg.setDadosArquivo(dados);
+      // Enviar em partes numa thread própria, para o menu e as mensagens de chat não esperarem o arquivo.
+      Thread threadEnvio = new Thread(() -> enviarPartesArquivo(destinatario, nomeGrupo, path, tamanho));
+      threadEnvio.setDaemon(true);
+      threadEnvio.start();
 
-      enviarMensagem(msg);
+    } catch (IOException e) {
+      System.err.println("Erro ao processar arquivo: " + e.getMessage());
+    }
+  }
 
-      System.out.println("Enviando arquivo: " + nomeArquivo);
+  // Envia o arquivo: primeiro pergunta ao servidor se ele já tem o conteúdo (pelo SHA-256) e, se não tiver,
+  // envia ARQUIVO_INICIO, partes de tamanho fixo e ARQUIVO_FIM com o CRC32 do conteúdo.
+  // Cada parte é um quadro de cabeçalho seguido dos bytes brutos, enviados do arquivo com transferTo.
+  private void enviarPartesArquivo(String destinatario, String nomeGrupo, Path path, long tamanho) {
+    long id = proximaTransferencia.incrementAndGet();
+    int geracaoEnvio = geracao;
+    String nomeArquivo = path.getFileName().toString();
+
+    try (FileChannel arquivo = FileChannel.open(path)) {
+      // CRC32 e SHA-256 calculados numa única passada sobre o arquivo mapeado.
+      CRC32 crc = new CRC32();
+      MessageDigest sha = ArmazemArquivos.novoSha256();
+      for (long posicao = 0; posicao < tamanho; posicao += Transferencia.TAMANHO_PARTE) {
+        MappedByteBuffer mapa = arquivo.map(FileChannel.MapMode.READ_ONLY, posicao,
+            Math.min(Transferencia.TAMANHO_PARTE, tamanho - posicao));
+        sha.update(mapa.duplicate());
+        crc.update(mapa);
+      }
 
+      Mensagem consulta = new Mensagem(Mensagem.TipoMensagem.ARQUIVO_CONSULTA, nomeUsuario);
+      consulta.setIdTransferencia(id);
+      consulta.setDestinatario(destinatario);
+      consulta.setNomeGrupo(nomeGrupo);
+      consulta.setNomeArquivo(nomeArquivo);
+      consulta.setTamanhoArquivo(tamanho);
+      consulta.setHashArquivo(ArmazemArquivos.hexadecimal(sha.digest()));
+      if (servidorJaTem(consulta)) {
+        return;
+      }
+
+      Mensagem inicio = new Mensagem(Mensagem.TipoMensagem.ARQUIVO_INICIO, nomeUsuario);
+      inicio.setIdTransferencia(id);
+      inicio.setDestinatario(destinatario);
+      inicio.setNomeGrupo(nomeGrupo);
+      inicio.setNomeArquivo(nomeArquivo);
+      inicio.setTamanhoArquivo(tamanho);
+      enviarMensagem(inicio);
+
+      long deslocamento = 0;
+      while (conectado && geracao == geracaoEnvio && deslocamento < tamanho) {
+        long tamanhoParte = Math.min(Transferencia.TAMANHO_PARTE, tamanho - deslocamento);
+        Mensagem parte = new Mensagem(Mensagem.TipoMensagem.ARQUIVO_PARTE, nomeUsuario);
+        parte.setIdTransferencia(id);
+        parte.setDeslocamento(deslocamento);
+        parte.setTamanhoDados(tamanhoParte);
+        enviarParte(parte, arquivo, deslocamento, tamanhoParte, geracaoEnvio);
+        deslocamento += tamanhoParte;
+      }
+      if (geracao != geracaoEnvio) {
+        System.out.println("\nEnvio de " + nomeArquivo + " cancelado: a conexao caiu.");
+        return;
+      }
+
+      Mensagem fim = new Mensagem(Mensagem.TipoMensagem.ARQUIVO_FIM, nomeUsuario);
+      fim.setIdTransferencia(id);
+      fim.setNomeArquivo(nomeArquivo);
+      fim.setTamanhoArquivo(deslocamento);
+      fim.setChecksum(crc.getValue());
+      enviarMensagem(fim);
     } catch (IOException e) {
-      System.err.println("Erro ao processar arquivo: " + e.getMessage());
+      System.err.println("Erro ao ler arquivo: " + e.getMessage());
+    }
+  }
+
+  // Envia a consulta e espera a resposta; sem resposta a tempo, o arquivo é enviado normalmente.
+  private boolean servidorJaTem(Mensagem consulta) {
+    CompletableFuture<Boolean> resposta = new CompletableFuture<>();
+    consultas.put(consulta.getIdTransferencia(), resposta);
+    enviarMensagem(consulta);
+    try {
+      return resposta.get(TEMPO_CONSULTA_MS, TimeUnit.MILLISECONDS);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      return false;
+    } catch (ExecutionException | TimeoutException e) {
+      return false;
+    } finally {
+      consultas.remove(consulta.getIdTransferencia());
     }
   }
 
@@ -373,71 +890,143 @@ public class Cliente {
     }
   }
 
+  // Pede uma página do histórico de um grupo ou de uma conversa privada.
+  private void verHistorico() {
+    System.out.print("Nome do grupo (vazio para conversa privada): ");
+    String nomeGrupo = scanner.nextLine().trim();
+    String destinatario = "";
+    if (nomeGrupo.isEmpty()) {
+      System.out.print("Usuario: ");
+      destinatario = scanner.nextLine().trim();
+    }
+    System.out.print("Cursor (vazio para as mensagens mais recentes): ");
+    String cursor = scanner.nextLine().trim();
+
+    if (nomeGrupo.isEmpty() && destinatario.isEmpty()) {
+      return;
+    }
+    Mensagem msg = new Mensagem(Mensagem.TipoMensagem.HISTORICO, nomeUsuario);
+    if (!nomeGrupo.isEmpty()) {
+      msg.setNomeGrupo(nomeGrupo);
+    } else {
+      msg.setDestinatario(destinatario);
+    }
+    try {
+      msg.setCursor(cursor.isEmpty() ? 0 : Long.parseLong(cursor));
+    } catch (NumberFormatException e) {
+      System.out.println("Cursor invalido!");
+      return;
+    }
+    enviarMensagem(msg);
+  }
+
+  // Busca um texto nas mensagens dos grupos e conversas privadas do usuário.
+  private void buscarMensagens() {
+    System.out.print("Texto: ");
+    String texto = scanner.nextLine().trim();
+    System.out.print("Cursor (vazio para os resultados mais recentes): ");
+    String cursor = scanner.nextLine().trim();
+
+    if (!texto.isEmpty()) {
+      Mensagem msg = new Mensagem(Mensagem.TipoMensagem.BUSCA, nomeUsuario);
+      msg.setConteudo(texto);
+      try {
+        msg.setCursor(cursor.isEmpty() ? 0 : Long.parseLong(cursor));
+      } catch (NumberFormatException e) {
+        System.out.println("Cursor invalido!");
+        return;
+      }
+      enviarMensagem(msg);
+    }
+  }
+
   // Sai do chat, enviando uma mensagem de logout ao servidor.
   private void sair() {
+    saindo = true;
     Mensagem msg = new Mensagem(Mensagem.TipoMensagem.LOGOUT, nomeUsuario);
     enviarMensagem(msg);
     desconectar();
   }
 
-  // Envia uma mensagem de verificação de conexão ao servidor.
-  private void enviarMensagem(Mensagem msg) {
+  // Envia uma mensagem ao servidor: o quadro vai para a fila de saída e a thread de rede o escreve.
+  // Sincronizado para a ordem da fila ser a mesma da numeração dos quadros. As mensagens repetíveis ficam
+  // guardadas para o reenvio se a ligação cair; durante a reconexão elas só são guardadas.
+  private synchronized void enviarMensagem(Mensagem msg) {
     try {
-      if (!conectado || !socketChannel.isOpen()) {
+      if (!conectado || (!reconectando && !socketChannel.isOpen())) {
         System.err.println("Nao conectado ao servidor");
         return;
       }
 
-      // Serializar mensagem.
-      ByteArrayOutputStream baos = new ByteArrayOutputStream();
-      ObjectOutputStream oos = new ObjectOutputStream(baos);
-      oos.writeObject(msg);
-      oos.flush();
-
-      byte[] dados = baos.toByteArray();
-      ByteBuffer buffer = ByteBuffer.allocate(4 + dados.length);
-      buffer.putInt(dados.length);
-      buffer.put(dados);
-      buffer.flip();
-
-      // Enviar dados
-      while (buffer.hasRemaining()) {
-        int bytesWritten = socketChannel.write(buffer);
-        if (bytesWritten == 0) {
-          Thread.sleep(10);
+      // Codificar mensagem no formato binário.
+      ByteBuffer buffer = CodecMensagem.codificarQuadro(msg, CodecMensagem.Formato.BINARIO);
+      if (Sessao.repetivel(msg.getTipo())) {
+        enviados++;
+        guardados.addLast(buffer.duplicate());
+        if (guardados.size() > MAX_GUARDADOS) {
+          guardados.pollFirst();
         }
       }
+      if (!reconectando) {
+        enfileirar(new Envio(buffer));
+      }
 
-    } catch (IOException | InterruptedException e) {
+    } catch (IOException e) {
       System.err.println("Erro ao enviar mensagem: " + e.getMessage());
-      conectado = false;
     }
   }
 
-  // Desconecta do servidor, fechando o socket e interrompendo threads.
+  // Envia o cabeçalho de uma parte e, em seguida, os bytes do arquivo, sem outra mensagem no meio, e espera
+  // a thread de rede escrever a parte: as mensagens de chat enviadas enquanto isso passam antes da próxima.
+  private void enviarParte(Mensagem cabecalho, FileChannel arquivo, long posicao, long tamanho,
+      int geracaoEnvio) throws IOException {
+    Envio envio;
+    synchronized (this) {
+      if (!conectado || reconectando || geracao != geracaoEnvio) {
+        return; // A conexão caiu: o servidor já cancelou esta transferência.
+      }
+      envio = new Envio(CodecMensagem.codificarQuadro(cabecalho, CodecMensagem.Formato.BINARIO), arquivo,
+          posicao, tamanho);
+      enfileirar(envio);
+    }
+    try {
+      envio.conclusao.get(); // false se a ligação caiu: quem chamou confere a geração.
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException("Envio interrompido");
+    } catch (ExecutionException e) {
+      throw new IOException("Envio interrompido", e.getCause());
+    }
+  }
+
+  // Desconecta do servidor: a thread de rede manda o que falta na fila e fecha o socket.
   private void desconectar() {
     if (conectado) {
       conectado = false;
+      seletor.wakeup();
 
       try {
-        if (socketChannel != null && socketChannel.isOpen()) {
-          socketChannel.close();
-        }
-
-        if (threadLeitura != null && threadLeitura.isAlive()) {
-          threadLeitura.interrupt();
+        if (threadRede != null) {
+          threadRede.join(1000);
         }
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
 
-      } catch (IOException e) {
-        System.err.println("Erro ao fechar conexao: " + e.getMessage());
+      if (threadLeitura != null && threadLeitura.isAlive()) {
+        threadLeitura.interrupt();
       }
 
       System.out.println("Desconectado do servidor.");
     }
   }
 
-  // Ponto de entrada do programa.
+  // Ponto de entrada do programa. Com --carga, roda o gerador de carga no lugar do menu.
   public static void main(String[] args) {
+    if (args.length > 0 && args[0].equals("--carga")) {
+      GeradorCarga.main(args);
+      return;
+    }
     Cliente cliente = new Cliente();
     cliente.iniciar();
   }
@@ -1,46 +1,135 @@
 import java.io.*;
 import java.nio.ByteBuffer;
 import java.nio.channels.SocketChannel;
-import java.util.LinkedList;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
 import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 // Classe para armazenar informações do cliente.
 public class ClienteService {
+  // Maior quadro aceito de um cliente. O tamanho vem antes do quadro e é conferido antes de qualquer buffer
+  // ser pedido ao pool, para que um cabeçalho sozinho não force uma alocação de até 2 GB.
+  public static final int TAMANHO_MAXIMO_QUADRO = Integer.getInteger("chat.quadro.tamanhoMaximo", 8 * 1024 * 1024);
+
   private SocketChannel channel;
-  private String nomeUsuario;
-  private boolean conectado;
-  private ByteBuffer bufferLeitura;
-  private Queue<ByteBuffer> filaEscrita;
-  private ByteBuffer bufferEscritaAtual;
+  private Reator reator; // Reator dono desta conexão.
+  private volatile Usuario usuario; // Definido no LOGIN.
+  private volatile Sessao sessao; // Sessão retomável do usuário (definida no LOGIN).
+  private volatile boolean conectado;
+  private ByteBuffer bufferLeitura; // Buffer de acumulação, emprestado do pool apenas enquanto há dados.
+  private Queue<EscritaPendente> filaEscrita; // Fila lock-free: vários produtores, o reator consome.
+  private ArrayDeque<EscritaPendente> emEscrita; // Itens já retirados da fila e ainda não escritos por completo.
   private int tamanhoMensagemEsperado = -1;
+  private int tamanhoQuadroLido; // Bytes (com o tamanho) do último quadro lido.
+  private CodecMensagem.Formato formatoRecebido; // Formato do último quadro lido.
+  private volatile CodecMensagem.Formato formato = CodecMensagem.Formato.JAVA; // Formato negociado no LOGIN.
+  private final AtomicBoolean escritaPendente = new AtomicBoolean(false);
+
+  // Prazos da conexão (acessados só pelo reator).
+  private final RodaTemporizadores.Temporizador temporizador;
+  private long ultimaLeitura; // Momento da última leitura com dados.
+  private long ultimaEscrita; // Momento da última escrita que avançou, ou em que a fila deixou de estar vazia.
+  private boolean aguardandoEscrita; // Há bytes na fila de saída esperando o socket.
+  private boolean pingPendente; // PING enviado e nada lido desde então.
+
+  // Controle de fluxo da fila de saída.
+  private final AtomicLong bytesPendentes = new AtomicLong(); // Bytes enfileirados e ainda não escritos.
+  private final AtomicLong quadrosDescartados = new AtomicLong();
+  private final AtomicLong bytesDescartados = new AtomicLong();
+  private final AtomicInteger pausasLeitura = new AtomicInteger(); // Destinos lentos que pausaram esta conexão.
+  private final Set<ClienteService> remetentesPausados = ConcurrentHashMap.newKeySet();
+  private final AtomicBoolean desconexaoPorAtraso = new AtomicBoolean(false);
+
+  // Transferências de arquivo em partes enviadas por este cliente (acessadas só pelo reator).
+  private final Map<Long, Transferencia> transferencias = new HashMap<>();
+  private Transferencia parteEmAndamento; // Transferência cujos bytes brutos estão chegando agora.
 
   // Construtor da classe ClienteInfo.
-  public ClienteService(SocketChannel channel) {
+  public ClienteService(SocketChannel channel, Reator reator) {
     this.channel = channel;
+    this.reator = reator;
     this.conectado = true;
-    this.bufferLeitura = ByteBuffer.allocate(8192);
-    this.filaEscrita = new LinkedList<>();
+    this.filaEscrita = new ConcurrentLinkedQueue<>();
+    this.emEscrita = new ArrayDeque<>();
+    this.temporizador = new RodaTemporizadores.Temporizador(() -> reator.verificarConexao(this));
   }
 
-  // Adiciona dados recebidos ao buffer de leitura.
-  public void adicionarDados(ByteBuffer novosDados) {
-    if (bufferLeitura.remaining() < novosDados.remaining()) {
-      int novaCapacidade = bufferLeitura.capacity() + novosDados.remaining();
-      ByteBuffer novoBuffer = ByteBuffer.allocate(novaCapacidade);
+  // Obtém o buffer onde o próximo read do canal deve escrever, emprestando um do pool se necessário.
+  public ByteBuffer prepararBufferLeitura() {
+    if (bufferLeitura == null) {
+      bufferLeitura = reator.getPoolBuffers().obter(PoolBuffers.TAMANHO_INICIAL);
+    }
+    return bufferLeitura;
+  }
 
-      bufferLeitura.flip();
-      novoBuffer.put(bufferLeitura);
-      bufferLeitura = novoBuffer;
+  // Devolve o buffer ao pool quando está vazio ou troca por um menor quando um quadro grande
+  // já foi consumido. Conexões ociosas ficam sem buffer.
+  public void ajustarBufferLeitura() {
+    if (bufferLeitura == null) {
+      return;
     }
+    PoolBuffers pool = reator.getPoolBuffers();
+    if (bufferLeitura.position() == 0) {
+      pool.devolver(bufferLeitura);
+      bufferLeitura = null;
+    } else if (bufferLeitura.capacity() > PoolBuffers.TAMANHO_INICIAL
+        && bufferLeitura.position() <= PoolBuffers.TAMANHO_INICIAL
+        && tamanhoMensagemEsperado <= PoolBuffers.TAMANHO_INICIAL) {
+      trocarBufferLeitura(pool.obter(PoolBuffers.TAMANHO_INICIAL));
+    }
+  }
 
-    bufferLeitura.put(novosDados);
+  // Devolve ao pool o buffer de leitura de uma conexão fechada.
+  private void devolverBufferLeitura() {
+    if (bufferLeitura != null) {
+      reator.getPoolBuffers().devolver(bufferLeitura);
+      bufferLeitura = null;
+    }
   }
 
-  // Lê uma mensagem completa do buffer de leitura, se disponível.
-  public Mensagem lerMensagem() {
+  // Move os dados pendentes para outro buffer e devolve o atual ao pool.
+  private void trocarBufferLeitura(ByteBuffer novoBuffer) {
     bufferLeitura.flip();
+    novoBuffer.put(bufferLeitura);
+    reator.getPoolBuffers().devolver(bufferLeitura);
+    bufferLeitura = novoBuffer;
+  }
+
+  // Verifica se há bytes lidos do socket ainda não processados.
+  public boolean temDadosLidos() {
+    return bufferLeitura != null && bufferLeitura.position() > 0;
+  }
 
+  // Grava no arquivo os bytes brutos da parte em andamento que já estão no buffer de leitura.
+  public void consumirParteDoBuffer() throws IOException {
+    if (bufferLeitura == null) {
+      return;
+    }
+    bufferLeitura.flip();
     try {
+      parteEmAndamento.escreverBruto(bufferLeitura);
+    } finally {
+      bufferLeitura.compact();
+    }
+  }
+
+  // Lê uma mensagem completa do buffer de leitura, se disponível. Um quadro que não decodifica é relatado
+  // e pulado, e a leitura segue com os quadros seguintes que já estão no buffer. Um tamanho fora de
+  // 0..TAMANHO_MAXIMO_QUADRO lança IOException, e quem chama fecha a conexão.
+  public Mensagem lerMensagem() throws IOException {
+    while (bufferLeitura != null) {
+      bufferLeitura.flip();
+
       // Se ainda não sabemos o tamanho da mensagem.
       if (tamanhoMensagemEsperado == -1) {
         if (bufferLeitura.remaining() < 4) {
@@ -48,72 +137,297 @@ public class ClienteService {
           bufferLeitura.compact();
           return null;
         }
-        tamanhoMensagemEsperado = bufferLeitura.getInt();
+        int tamanho = bufferLeitura.getInt();
+        if (tamanho < 0 || tamanho > TAMANHO_MAXIMO_QUADRO) {
+          bufferLeitura.clear();
+          throw new IOException("Quadro com tamanho invalido: " + tamanho);
+        }
+        tamanhoMensagemEsperado = tamanho;
       }
 
       // Verificar se temos a mensagem completa.
       if (bufferLeitura.remaining() < tamanhoMensagemEsperado) {
         // Mensagem incompleta
         bufferLeitura.compact();
+        if (bufferLeitura.capacity() < tamanhoMensagemEsperado) {
+          // Quadro maior que o buffer: trocar por um que comporte o quadro inteiro.
+          trocarBufferLeitura(reator.getPoolBuffers().obter(tamanhoMensagemEsperado));
+        }
         return null;
       }
 
-      // Ler a mensagem.
-      byte[] dadosMensagem = new byte[tamanhoMensagemEsperado];
-      bufferLeitura.get(dadosMensagem);
+      // Decodificar a mensagem direto do buffer, sem cópia intermediária.
+      ByteBuffer payload = bufferLeitura.slice();
+      payload.limit(tamanhoMensagemEsperado);
+      bufferLeitura.position(bufferLeitura.position() + tamanhoMensagemEsperado);
 
       // Resetar para próxima mensagem.
+      tamanhoQuadroLido = 4 + tamanhoMensagemEsperado;
       tamanhoMensagemEsperado = -1;
 
-      // Compactar buffer para proximas leituras.
-      bufferLeitura.compact();
+      formatoRecebido = CodecMensagem.formatoDe(payload);
+      try {
+        return CodecMensagem.decodificar(payload);
+      } catch (IOException e) {
+        LogConsole.erro("Erro ao desserializar mensagem: ", e.getMessage());
+      } finally {
+        // Compactar buffer para proximas leituras.
+        bufferLeitura.compact();
+      }
+    }
+    return null;
+  }
+
+  // Adiciona uma visão do quadro compartilhado à fila de escrita (seguro a partir de qualquer thread).
+  // O quadro de uma mensagem amostrada pelo rastreamento leva o momento em que entrou na fila.
+  public void adicionarParaEscrita(QuadroCodificado quadro) {
+    if (conectado) {
+      enfileirar(Rastreamento.ATIVO && quadro.getRastro() != null
+          ? new EscritaPendente.Rastreada(quadro, System.nanoTime())
+          : new EscritaPendente(quadro));
+    }
+  }
+
+  // Adiciona uma mensagem relida do log na entrega de pendências. Ela não é descartada pelo controle de
+  // fluxo; aposEnvio (opcional) roda na thread do reator quando o quadro termina de ser escrito.
+  public void adicionarEntregaDuravel(QuadroCodificado quadro, Runnable aposEnvio) {
+    if (conectado) {
+      enfileirar(new EscritaPendente(quadro, aposEnvio, true));
+    }
+  }
 
-      // Deserializar mensagem.
-      try (ByteArrayInputStream bais = new ByteArrayInputStream(dadosMensagem);
-          ObjectInputStream ois = new ObjectInputStream(bais)) {
-        return (Mensagem) ois.readObject();
+  // Adiciona um quadro seguido de um trecho de arquivo, que será enviado com transferTo.
+  public void adicionarParaEscrita(QuadroCodificado quadro, ArquivoCompartilhado arquivo, long posicao,
+      long tamanho) {
+    adicionarParaEscrita(quadro, arquivo, posicao, tamanho, null);
+  }
+
+  // Igual ao anterior; aposEnvio roda na thread do reator quando o trecho termina de ser escrito.
+  public void adicionarParaEscrita(QuadroCodificado quadro, ArquivoCompartilhado arquivo, long posicao,
+      long tamanho, Runnable aposEnvio) {
+    if (conectado) {
+      enfileirar(new EscritaPendente(quadro, arquivo.reter(), posicao, tamanho, aposEnvio));
+    }
+  }
+
+  // Adiciona os quadros reenviados na retomada da sessão, num único item; eles não são guardados de novo.
+  // aposEnvio roda na thread do reator quando a repetição termina de ser escrita.
+  public void adicionarRepeticao(QuadroCodificado quadro, Runnable aposEnvio) {
+    if (conectado) {
+      enfileirar(new EscritaPendente(quadro, true, aposEnvio));
+    }
+  }
+
+  // Coloca o item na fila compartilhada, contabilizando seus bytes.
+  private void enfileirar(EscritaPendente escrita) {
+    bytesPendentes.addAndGet(escrita.getTamanho());
+    filaEscrita.offer(escrita);
+    if (!conectado) {
+      // A conexão foi fechada durante o offer: descartar o que ficou na fila.
+      descartarFila();
+    }
+  }
+
+  // Preenche o lote com os próximos buffers a escrever e retorna quantos foram colocados.
+  // O lote para no primeiro item com trecho de arquivo, que é enviado separadamente com transferTo.
+  // Chamado apenas pela thread do reator.
+  public int prepararLote(ByteBuffer[] lote) {
+    EscritaPendente escrita;
+    while (emEscrita.size() < lote.length && (escrita = filaEscrita.poll()) != null) {
+      if (Rastreamento.ATIVO) {
+        escrita.marcarInicioEscrita();
+      }
+      emEscrita.addLast(escrita);
+    }
+    int quantidade = 0;
+    for (EscritaPendente pendente : emEscrita) {
+      if (quantidade == lote.length) {
+        break;
       }
+      if (pendente.getVisao().hasRemaining()) {
+        lote[quantidade++] = pendente.getVisao();
+      }
+      if (pendente.temRegiao()) {
+        break;
+      }
+    }
+    return quantidade;
+  }
 
-    } catch (IOException | ClassNotFoundException e) {
-      System.err.println("Erro ao desserializar mensagem: " + e.getMessage());
-      bufferLeitura.compact();
-      return null;
+  // Retorna o primeiro item se o seu quadro já foi escrito e falta enviar o trecho de arquivo.
+  public EscritaPendente getRegiaoPendente() {
+    EscritaPendente primeira = emEscrita.peekFirst();
+    return primeira != null && primeira.temRegiaoPendente() ? primeira : null;
+  }
+
+  // Libera os itens do início do lote que já foram escritos por completo.
+  public void concluirEscritos() {
+    while (!emEscrita.isEmpty() && emEscrita.peekFirst().isConcluida()) {
+      EscritaPendente escrita = emEscrita.pollFirst();
+      escrita.notificarEnvio();
+      reator.getMetricas().quadroEnviado(escrita.getQuadro().getTipo(), escrita.getTamanho());
+      if (Rastreamento.ATIVO) {
+        escrita.registrarRastro(reator.getMetricas());
+      }
+      Sessao atual = sessao;
+      if (atual != null && escrita.isRepetivel()) {
+        atual.registrarEnviado(escrita.getQuadro());
+      }
+      finalizar(escrita);
+    }
+  }
+
+  // Verifica se ainda há buffers aguardando escrita. Chamado apenas pela thread do reator.
+  public boolean temEscritaPendente() {
+    return !emEscrita.isEmpty() || !filaEscrita.isEmpty();
+  }
+
+  // Descarta tudo que ainda está na fila compartilhada.
+  private void descartarFila() {
+    EscritaPendente escrita;
+    while ((escrita = filaEscrita.poll()) != null) {
+      finalizar(escrita);
     }
   }
 
-  // Adiciona um buffer de escrita à fila.
-  public void adicionarParaEscrita(ByteBuffer buffer) {
-    synchronized (filaEscrita) {
-      filaEscrita.offer(buffer);
+  // Conclui um item da fila, descontando seus bytes e devolvendo a referência do trecho de arquivo.
+  private void finalizar(EscritaPendente escrita) {
+    bytesPendentes.addAndGet(-escrita.getTamanho());
+    escrita.concluir();
+  }
+
+  // Descarta as mensagens de chat mais antigas que ainda não começaram a ser escritas (exceto as relidas
+  // do log), até liberar pelo menos a quantidade de bytes pedida. Retorna quantos quadros foram descartados.
+  public int descartarMensagensAntigas(long bytesALiberar) {
+    int descartados = 0;
+    long liberados = 0;
+    Iterator<EscritaPendente> iterator = filaEscrita.iterator();
+    while (liberados < bytesALiberar && iterator.hasNext()) {
+      EscritaPendente escrita = iterator.next();
+      // remove(Object) só retorna true para quem de fato retirou o item, evitando corrida com o reator.
+      if (escrita.isDescartavel() && filaEscrita.remove(escrita)) {
+        liberados += escrita.getTamanho();
+        descartados++;
+        finalizar(escrita);
+      }
+    }
+    if (descartados > 0) {
+      registrarDescarte(descartados, liberados);
     }
+    return descartados;
+  }
+
+  // Contabiliza quadros descartados desta conexão.
+  public void registrarDescarte(int quadros, long bytes) {
+    quadrosDescartados.addAndGet(quadros);
+    bytesDescartados.addAndGet(bytes);
   }
 
-  // Obtém o próximo buffer de escrita, se disponível.
-  public ByteBuffer getBufferEscrita() {
-    synchronized (filaEscrita) {
-      if (bufferEscritaAtual == null || !bufferEscritaAtual.hasRemaining()) {
-        bufferEscritaAtual = filaEscrita.poll();
+  // Registra um remetente pausado por causa desta fila; retorna false se ele já estava registrado.
+  public boolean adicionarRemetentePausado(ClienteService remetente) {
+    return remetentesPausados.add(remetente);
+  }
+
+  // Retira e retorna os remetentes pausados por esta conexão.
+  public List<ClienteService> retirarRemetentesPausados() {
+    List<ClienteService> retirados = new ArrayList<>();
+    if (remetentesPausados.isEmpty()) {
+      return retirados;
+    }
+    for (ClienteService remetente : remetentesPausados) {
+      if (remetentesPausados.remove(remetente)) {
+        retirados.add(remetente);
       }
-      return bufferEscritaAtual;
     }
+    return retirados;
   }
 
-  // Limpa o buffer de escrita atual após o envio completo.
-  public void limparBufferEscrita() {
-    synchronized (filaEscrita) {
-      bufferEscritaAtual = null;
+  // Para de ler desta conexão até que todos os destinos lentos a liberem.
+  public void pausarLeitura() {
+    if (pausasLeitura.incrementAndGet() == 1) {
+      reator.atualizarLeitura(this);
     }
   }
 
-  // Fecha a conexão do cliente.
+  // Libera uma pausa de leitura; a leitura volta quando não há mais pausas.
+  public void retomarLeitura() {
+    if (pausasLeitura.decrementAndGet() == 0) {
+      reator.atualizarLeitura(this);
+    }
+  }
+
+  // Anota uma leitura com dados: a conexão não está ociosa e o PING pendente foi respondido.
+  public void registrarLeitura(long agora) {
+    ultimaLeitura = agora;
+    pingPendente = false;
+  }
+
+  // A fila de saída deixou de estar vazia: o prazo da escrita parada começa agora.
+  public void iniciarEscrita(long agora) {
+    if (!aguardandoEscrita) {
+      aguardandoEscrita = true;
+      ultimaEscrita = agora;
+    }
+  }
+
+  // Anota uma escrita que avançou; com a fila vazia não há mais o que esperar.
+  public void registrarEscrita(long agora, boolean filaVazia) {
+    ultimaEscrita = agora;
+    aguardandoEscrita = !filaVazia;
+  }
+
+  // Verifica se há bytes esperando e nenhuma escrita avançou há mais que o limite. Não basta olhar a
+  // última escrita parcial: a fila pode ter esvaziado com o socket cheio, e aí o OP_WRITE não volta.
+  public boolean isEscritaParada(long agora, long limiteMs) {
+    return aguardandoEscrita && agora - ultimaEscrita > limiteMs;
+  }
+
+  // Marca a conexão para desconexão por atraso; retorna false se já estava marcada.
+  public boolean marcarDesconexaoPorAtraso() {
+    return desconexaoPorAtraso.compareAndSet(false, true);
+  }
+
+  // Marca que há um pedido de escrita a caminho do reator; retorna false se já havia um.
+  public boolean marcarEscritaPendente() {
+    return escritaPendente.compareAndSet(false, true);
+  }
+
+  // Limpa a marca de escrita pendente, chamado pelo reator ao atender o pedido.
+  public void limparEscritaPendente() {
+    escritaPendente.set(false);
+  }
+
+  // Fecha a conexão do cliente. O buffer de leitura volta ao pool pela thread do reator, a única que usa o
+  // pool e o buffer.
   public void fechar() {
+    reator.executar(this::devolverBufferLeitura);
     conectado = false;
+    if (sessao != null) {
+      guardarNaSessao();
+    }
+    while (!emEscrita.isEmpty()) {
+      finalizar(emEscrita.pollFirst());
+    }
+    descartarFila();
     try {
       if (channel != null) {
         channel.close();
       }
     } catch (IOException e) {
-      System.err.println("Erro ao fechar canal do cliente: " + e.getMessage());
+      LogConsole.erro("Erro ao fechar canal do cliente: ", e.getMessage());
+    }
+  }
+
+  // Passa à sessão os quadros que não chegaram a ser escritos por inteiro, para a retomada entregá-los.
+  // A ação de envio de cada um fica com a sessão e só roda se a retomada os entregar: até lá o cursor de
+  // entrega das pendências do log não passa por eles.
+  private void guardarNaSessao() {
+    EscritaPendente escrita;
+    while ((escrita = emEscrita.pollFirst()) != null || (escrita = filaEscrita.poll()) != null) {
+      if (escrita.isRepetivel()) {
+        sessao.registrarNaoEscrito(escrita.getQuadro(), escrita.getAposEnvio());
+      }
+      finalizar(escrita);
     }
   }
 
@@ -122,12 +436,93 @@ public class ClienteService {
     return channel;
   }
 
+  public Reator getReator() {
+    return reator;
+  }
+
+  public Usuario getUsuario() {
+    return usuario;
+  }
+
   public String getNomeUsuario() {
-    return nomeUsuario;
+    Usuario atual = usuario;
+    return atual == null ? null : atual.getNome();
+  }
+
+  public void setUsuario(Usuario usuario) {
+    this.usuario = usuario;
+  }
+
+  public RodaTemporizadores.Temporizador getTemporizador() {
+    return temporizador;
+  }
+
+  public long getUltimaLeitura() {
+    return ultimaLeitura;
+  }
+
+  public boolean isPingPendente() {
+    return pingPendente;
+  }
+
+  public void setPingPendente(boolean pingPendente) {
+    this.pingPendente = pingPendente;
+  }
+
+  public Sessao getSessao() {
+    return sessao;
+  }
+
+  public void setSessao(Sessao sessao) {
+    this.sessao = sessao;
+  }
+
+  public int getTamanhoQuadroLido() {
+    return tamanhoQuadroLido;
+  }
+
+  public CodecMensagem.Formato getFormatoRecebido() {
+    return formatoRecebido;
+  }
+
+  public CodecMensagem.Formato getFormato() {
+    return formato;
+  }
+
+  public void setFormato(CodecMensagem.Formato formato) {
+    this.formato = formato;
+  }
+
+  public Map<Long, Transferencia> getTransferencias() {
+    return transferencias;
+  }
+
+  public Transferencia getParteEmAndamento() {
+    return parteEmAndamento;
+  }
+
+  public void setParteEmAndamento(Transferencia parteEmAndamento) {
+    this.parteEmAndamento = parteEmAndamento;
+  }
+
+  public long getBytesPendentes() {
+    return bytesPendentes.get();
+  }
+
+  public long getQuadrosDescartados() {
+    return quadrosDescartados.get();
+  }
+
+  public long getBytesDescartados() {
+    return bytesDescartados.get();
+  }
+
+  public boolean isLeituraPausada() {
+    return pausasLeitura.get() > 0;
   }
 
-  public void setNomeUsuario(String nomeUsuario) {
-    this.nomeUsuario = nomeUsuario;
+  public boolean temRemetentesPausados() {
+    return !remetentesPausados.isEmpty();
   }
 
   public boolean isConectado() {
@@ -0,0 +1,341 @@
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+// Ligações persistentes entre os nós do cluster. Cada par de nós tem uma única conexão TCP, por onde passam
+// os quadros binários de todas as conversas (multiplexados), na ordem em que foram enviados. O nó de id
+// maior disca para o de id menor e se apresenta com NO_OLA; se a ligação cai, ele disca de novo.
+//
+// Configuração: -Dchat.nos=host:porta,host:porta,... (o i-ésimo endereço é o do nó i, na porta entre nós)
+// e -Dchat.no=i (o id deste nó). Sem -Dchat.nos o servidor roda sozinho.
+public class Cluster {
+  private static final int TAMANHO_MAXIMO_QUADRO = 16 * 1024 * 1024;
+  private static final int MAX_NOS = 64; // O anel e o repasse de grupo guardam os nós num long (um bit cada).
+  private static final int CAPACIDADE_FILA = 100000; // Quadros aguardando escrita em cada ligação.
+  private static final int QUADROS_POR_ESCRITA = 64; // Quadros juntados numa escrita (gathering write).
+  private static final long INTERVALO_RECONEXAO_MS = 1000;
+
+  // Recebe os eventos das ligações; chamado pelas threads de leitura de cada ligação.
+  public interface Ouvinte {
+    // A ligação com o nó acabou de ser estabelecida (ou restabelecida).
+    void noConectado(int no);
+
+    // A ligação com o nó caiu.
+    void noDesconectado(int no);
+
+    // Chegou um quadro do nó; quadros de um mesmo nó chegam na ordem em que foram enviados.
+    void recebida(int no, Mensagem mensagem);
+  }
+
+  private final int id;
+  private final List<InetSocketAddress> enderecos;
+  private final AtomicReferenceArray<Ligacao> ligacoes;
+  private final AtomicLong quadrosEnviados = new AtomicLong();
+  private final AtomicLong quadrosRecebidos = new AtomicLong();
+  private final AtomicLong quadrosDescartados = new AtomicLong();
+  private Ouvinte ouvinte;
+  private ServerSocketChannel aceitador;
+  private volatile boolean executando;
+
+  // Construtor da classe Cluster.
+  public Cluster(int id, List<InetSocketAddress> enderecos) {
+    if (enderecos.size() > MAX_NOS) {
+      throw new IllegalArgumentException("chat.nos aceita no maximo " + MAX_NOS + " nos: " + enderecos.size());
+    }
+    if (id < 0 || id >= enderecos.size()) {
+      throw new IllegalArgumentException("Id de no invalido: " + id + " (" + enderecos.size() + " nos)");
+    }
+    this.id = id;
+    this.enderecos = enderecos;
+    this.ligacoes = new AtomicReferenceArray<>(enderecos.size());
+  }
+
+  // Lê a configuração das propriedades do sistema; retorna null se o servidor roda sozinho.
+  public static Cluster configurado() {
+    String nos = System.getProperty("chat.nos");
+    if (nos == null || nos.trim().isEmpty()) {
+      return null;
+    }
+    List<InetSocketAddress> enderecos = new ArrayList<>();
+    for (String no : nos.split(",")) {
+      int separador = no.lastIndexOf(':');
+      if (separador < 0) {
+        throw new IllegalArgumentException("Endereco de no invalido (use host:porta): " + no);
+      }
+      enderecos.add(new InetSocketAddress(no.substring(0, separador).trim(),
+          Integer.parseInt(no.substring(separador + 1).trim())));
+    }
+    return new Cluster(Integer.getInteger("chat.no", 0), enderecos);
+  }
+
+  // Abre a porta entre nós e começa a discar para os nós de id menor.
+  public void iniciar(Ouvinte ouvinte) throws IOException {
+    this.ouvinte = ouvinte;
+    aceitador = ServerSocketChannel.open();
+    aceitador.bind(new InetSocketAddress(enderecos.get(id).getPort()));
+    executando = true;
+
+    Thread aceitar = new Thread(this::aceitar, "cluster-aceitar");
+    aceitar.setDaemon(true);
+    aceitar.start();
+    for (int no = 0; no < id; no++) {
+      int destino = no;
+      Thread discar = new Thread(() -> discar(destino), "cluster-no-" + destino);
+      discar.setDaemon(true);
+      discar.start();
+    }
+  }
+
+  // Aceita as ligações dos nós de id maior; cada uma se apresenta com NO_OLA.
+  private void aceitar() {
+    while (executando) {
+      try {
+        SocketChannel canal = aceitador.accept();
+        Thread leitura = new Thread(() -> {
+          try {
+            Mensagem ola = lerQuadro(canal);
+            int no = ola.getTipo() == Mensagem.TipoMensagem.NO_OLA ? ola.getLimite() : -1;
+            if (no <= id || no >= enderecos.size()) {
+              throw new IOException("Apresentacao invalida de no: " + no);
+            }
+            atender(no, canal);
+          } catch (IOException e) {
+            fecharCanal(canal);
+          }
+        }, "cluster-leitura");
+        leitura.setDaemon(true);
+        leitura.start();
+      } catch (IOException e) {
+        if (executando) {
+          LogConsole.erro("Erro ao aceitar ligacao entre nos: ", e.getMessage());
+        }
+      }
+    }
+  }
+
+  // Mantém a ligação com um nó de id menor, discando de novo sempre que ela cai.
+  private void discar(int no) {
+    while (executando) {
+      try {
+        SocketChannel canal = SocketChannel.open(enderecos.get(no));
+        canal.socket().setTcpNoDelay(true);
+        Mensagem ola = new Mensagem(Mensagem.TipoMensagem.NO_OLA);
+        ola.setLimite(id);
+        escreverTudo(canal, CodecMensagem.codificarQuadro(ola, CodecMensagem.Formato.BINARIO));
+        atender(no, canal);
+      } catch (IOException e) {
+        // Nó fora do ar: tentar de novo depois do intervalo.
+      }
+      try {
+        Thread.sleep(INTERVALO_RECONEXAO_MS);
+      } catch (InterruptedException e) {
+        return;
+      }
+    }
+  }
+
+  // Registra a ligação e lê os quadros do nó nesta thread até a ligação cair.
+  private void atender(int no, SocketChannel canal) throws IOException {
+    Ligacao ligacao = new Ligacao(no, canal);
+    Ligacao anterior = ligacoes.getAndSet(no, ligacao);
+    if (anterior != null) {
+      anterior.fechar();
+    }
+    LogConsole.info("Ligacao com o no ", no, " estabelecida");
+    ligacao.iniciar();
+    ouvinte.noConectado(no);
+    try {
+      while (executando) {
+        Mensagem mensagem = lerQuadro(canal);
+        quadrosRecebidos.incrementAndGet();
+        ouvinte.recebida(no, mensagem);
+      }
+    } finally {
+      ligacao.fechar();
+      if (ligacoes.compareAndSet(no, ligacao, null)) {
+        LogConsole.info("Ligacao com o no ", no, " perdida");
+        ouvinte.noDesconectado(no);
+      }
+    }
+  }
+
+  // Codifica a mensagem num quadro binário, que pode ser enviado a vários nós.
+  public static ByteBuffer quadro(Mensagem mensagem) throws IOException {
+    return CodecMensagem.codificarQuadro(mensagem, CodecMensagem.Formato.BINARIO).asReadOnlyBuffer();
+  }
+
+  // Enfileira o quadro para o nó; retorna false se não há ligação com ele ou a fila está cheia.
+  public boolean enviar(int no, ByteBuffer quadro) {
+    Ligacao ligacao = ligacoes.get(no);
+    if (ligacao == null || !ligacao.fila.offer(quadro.duplicate())) {
+      quadrosDescartados.incrementAndGet();
+      return false;
+    }
+    quadrosEnviados.incrementAndGet();
+    return true;
+  }
+
+  // Como enviar, mas espera espaço na fila; usado ao sincronizar um nó, fora das threads de leitura.
+  public boolean enviarAguardando(int no, ByteBuffer quadro) throws InterruptedException {
+    Ligacao ligacao;
+    while ((ligacao = ligacoes.get(no)) != null) {
+      if (ligacao.fila.offer(quadro.duplicate(), 100, TimeUnit.MILLISECONDS)) {
+        quadrosEnviados.incrementAndGet();
+        return true;
+      }
+    }
+    quadrosDescartados.incrementAndGet();
+    return false;
+  }
+
+  // Enfileira a mensagem para todos os nós ligados.
+  public void enviarParaTodos(Mensagem mensagem) {
+    try {
+      ByteBuffer quadro = quadro(mensagem);
+      for (int no = 0; no < ligacoes.length(); no++) {
+        if (ligacoes.get(no) != null) {
+          enviar(no, quadro);
+        }
+      }
+    } catch (IOException e) {
+      LogConsole.erro("Erro ao codificar mensagem entre nos: ", e.getMessage());
+    }
+  }
+
+  // Lê um quadro completo (tamanho + payload) de um canal bloqueante.
+  private static Mensagem lerQuadro(SocketChannel canal) throws IOException {
+    ByteBuffer tamanho = ByteBuffer.allocate(4);
+    lerTudo(canal, tamanho);
+    int bytes = tamanho.getInt(0);
+    if (bytes <= 0 || bytes > TAMANHO_MAXIMO_QUADRO) {
+      throw new IOException("Quadro entre nos com tamanho invalido: " + bytes);
+    }
+    ByteBuffer payload = ByteBuffer.allocate(bytes);
+    lerTudo(canal, payload);
+    payload.flip();
+    return CodecMensagem.decodificar(payload);
+  }
+
+  private static void lerTudo(SocketChannel canal, ByteBuffer destino) throws IOException {
+    while (destino.hasRemaining()) {
+      if (canal.read(destino) < 0) {
+        throw new EOFException("Ligacao entre nos encerrada");
+      }
+    }
+  }
+
+  private static void escreverTudo(SocketChannel canal, ByteBuffer origem) throws IOException {
+    while (origem.hasRemaining()) {
+      canal.write(origem);
+    }
+  }
+
+  private static void fecharCanal(SocketChannel canal) {
+    try {
+      canal.close();
+    } catch (IOException e) {
+      // Já fechado.
+    }
+  }
+
+  // Encerra as ligações; os nós vizinhos percebem a queda e marcam os usuários deste nó como offline.
+  public void fechar() {
+    executando = false;
+    try {
+      if (aceitador != null) {
+        aceitador.close();
+      }
+    } catch (IOException e) {
+      LogConsole.erro("Erro ao fechar porta entre nos: ", e.getMessage());
+    }
+    for (int no = 0; no < ligacoes.length(); no++) {
+      Ligacao ligacao = ligacoes.getAndSet(no, null);
+      if (ligacao != null) {
+        ligacao.fechar();
+      }
+    }
+  }
+
+  // Verifica se há ligação com o nó.
+  public boolean ligado(int no) {
+    return ligacoes.get(no) != null;
+  }
+
+  // Resumo para o relatório periódico do servidor.
+  public String resumo() {
+    int ligados = 0;
+    for (int no = 0; no < ligacoes.length(); no++) {
+      if (ligacoes.get(no) != null) {
+        ligados++;
+      }
+    }
+    return "no=" + id + " ligados=" + ligados + "/" + (ligacoes.length() - 1) + " quadrosEnviados="
+        + quadrosEnviados.get() + " quadrosRecebidos=" + quadrosRecebidos.get() + " descartados="
+        + quadrosDescartados.get();
+  }
+
+  public int getId() {
+    return id;
+  }
+
+  public int getQuantidadeNos() {
+    return enderecos.size();
+  }
+
+  // Uma ligação com outro nó: a thread de escrita junta os quadros da fila em escritas maiores.
+  private final class Ligacao {
+    private final int no;
+    private final SocketChannel canal;
+    private final LinkedBlockingQueue<ByteBuffer> fila = new LinkedBlockingQueue<>(CAPACIDADE_FILA);
+    private Thread escrita;
+
+    Ligacao(int no, SocketChannel canal) throws IOException {
+      this.no = no;
+      this.canal = canal;
+      canal.socket().setTcpNoDelay(true);
+    }
+
+    void iniciar() {
+      escrita = new Thread(this::escrever, "cluster-escrita-" + no);
+      escrita.setDaemon(true);
+      escrita.start();
+    }
+
+    private void escrever() {
+      ByteBuffer[] lote = new ByteBuffer[QUADROS_POR_ESCRITA];
+      try {
+        while (canal.isOpen()) {
+          lote[0] = fila.take();
+          int quantidade = 1;
+          ByteBuffer proximo;
+          while (quantidade < lote.length && (proximo = fila.poll()) != null) {
+            lote[quantidade++] = proximo;
+          }
+          while (lote[quantidade - 1].hasRemaining()) {
+            canal.write(lote, 0, quantidade);
+          }
+          Arrays.fill(lote, null);
+        }
+      } catch (IOException | InterruptedException e) {
+        fecharCanal(canal); // A thread de leitura percebe a queda e avisa o ouvinte.
+      }
+    }
+
+    void fechar() {
+      fecharCanal(canal);
+      if (escrita != null) {
+        escrita.interrupt();
+      }
+    }
+  }
+}
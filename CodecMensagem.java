@@ -0,0 +1,446 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+// Codec binário versionado para Mensagem, usado no lugar da serialização Java.
+//
+// Layout do payload: MARCADOR, VERSAO, tipo (1 byte), flags (varint) e, na ordem das flags,
+// strings como varint(tamanho) + UTF-8, o arquivo como varint(tamanho) + bytes e os campos
+// numéricos como varlong (omitidos quando zero) e o hash do arquivo.
+// Um ARQUIVO_PARTE com tamanhoDados > 0 é seguido, fora do quadro, por esses bytes brutos do arquivo.
+// O quadro no socket continua sendo int(tamanho do payload) + payload.
+public final class CodecMensagem {
+  // Primeiro byte do payload binário. Streams de serialização Java sempre começam com 0xAC.
+  public static final byte MARCADOR = (byte) 0xC5;
+  // Sobe a cada mudança do layout. Tipos e campos novos só entram no fim, então um payload de uma versão
+  // anterior é lido igual; versões mais novas que esta são recusadas, para que um lado antigo não
+  // interprete errado um layout que não conhece.
+  public static final byte VERSAO = 11;
+
+  // Formato dos quadros de uma conexão, definido pelo quadro de LOGIN.
+  public enum Formato {
+    JAVA, BINARIO
+  }
+
+  // Flags dos campos presentes.
+  private static final int CAMPO_REMETENTE = 1;
+  private static final int CAMPO_DESTINATARIO = 1 << 1;
+  private static final int CAMPO_CONTEUDO = 1 << 2;
+  private static final int CAMPO_GRUPO = 1 << 3;
+  private static final int CAMPO_NOME_ARQUIVO = 1 << 4;
+  private static final int CAMPO_DADOS_ARQUIVO = 1 << 5;
+  private static final int FLAG_SUCESSO = 1 << 6;
+  private static final int CAMPO_ID_TRANSFERENCIA = 1 << 7;
+  private static final int CAMPO_DESLOCAMENTO = 1 << 8;
+  private static final int CAMPO_TAMANHO_ARQUIVO = 1 << 9;
+  private static final int CAMPO_CHECKSUM = 1 << 10;
+  private static final int CAMPO_TAMANHO_DADOS = 1 << 11;
+  private static final int CAMPO_HASH_ARQUIVO = 1 << 12;
+  private static final int CAMPO_CARIMBO_TEMPO = 1 << 13;
+  private static final int CAMPO_CURSOR = 1 << 14;
+  private static final int CAMPO_LIMITE = 1 << 15;
+  private static final int CAMPO_SESSAO = 1 << 16;
+  private static final int CAMPO_SEQUENCIA = 1 << 17;
+  private static final int CAMPOS_CONHECIDOS = (CAMPO_SEQUENCIA << 1) - 1; // Todas as flags acima.
+
+  private static final Mensagem.TipoMensagem[] TIPOS = Mensagem.TipoMensagem.values();
+
+  private CodecMensagem() {
+  }
+
+  // Codifica a mensagem em um quadro completo (tamanho + payload) pronto para escrita.
+  public static ByteBuffer codificarQuadro(Mensagem mensagem, Formato formato) throws IOException {
+    if (formato == Formato.JAVA) {
+      byte[] dados = serializarJava(mensagem);
+      ByteBuffer buffer = ByteBuffer.allocate(4 + dados.length);
+      buffer.putInt(dados.length);
+      buffer.put(dados);
+      buffer.flip();
+      return buffer;
+    }
+
+    int tamanho = tamanhoCodificado(mensagem);
+    ByteBuffer buffer = ByteBuffer.allocate(4 + tamanho);
+    buffer.putInt(tamanho);
+    codificar(mensagem, buffer);
+    buffer.flip();
+    return buffer;
+  }
+
+  // Calcula o tamanho exato do payload binário da mensagem.
+  public static int tamanhoCodificado(Mensagem mensagem) {
+    int tamanho = 3 + tamanhoVarint(flags(mensagem));
+    tamanho += tamanhoString(mensagem.getRemetente());
+    tamanho += tamanhoString(mensagem.getDestinatario());
+    tamanho += tamanhoString(mensagem.getConteudo());
+    tamanho += tamanhoString(mensagem.getNomeGrupo());
+    tamanho += tamanhoString(mensagem.getNomeArquivo());
+    byte[] dados = mensagem.getDadosArquivo();
+    if (dados != null) {
+      tamanho += tamanhoVarint(dados.length) + dados.length;
+    }
+    tamanho += tamanhoLongOpcional(mensagem.getIdTransferencia());
+    tamanho += tamanhoLongOpcional(mensagem.getDeslocamento());
+    tamanho += tamanhoLongOpcional(mensagem.getTamanhoArquivo());
+    tamanho += tamanhoLongOpcional(mensagem.getChecksum());
+    tamanho += tamanhoLongOpcional(mensagem.getTamanhoDados());
+    tamanho += tamanhoString(mensagem.getHashArquivo());
+    tamanho += tamanhoLongOpcional(mensagem.getCarimboTempo());
+    tamanho += tamanhoLongOpcional(mensagem.getCursor());
+    tamanho += tamanhoLongOpcional(mensagem.getLimite());
+    tamanho += tamanhoLongOpcional(mensagem.getSessao());
+    tamanho += tamanhoLongOpcional(mensagem.getSequencia());
+    return tamanho;
+  }
+
+  // Escreve o payload binário da mensagem diretamente no buffer de destino.
+  public static void codificar(Mensagem mensagem, ByteBuffer destino) {
+    destino.put(MARCADOR);
+    destino.put(VERSAO);
+    destino.put((byte) mensagem.getTipo().ordinal());
+    escreverVarint(destino, flags(mensagem));
+    escreverString(destino, mensagem.getRemetente());
+    escreverString(destino, mensagem.getDestinatario());
+    escreverString(destino, mensagem.getConteudo());
+    escreverString(destino, mensagem.getNomeGrupo());
+    escreverString(destino, mensagem.getNomeArquivo());
+    byte[] dados = mensagem.getDadosArquivo();
+    if (dados != null) {
+      escreverVarint(destino, dados.length);
+      destino.put(dados);
+    }
+    escreverLongOpcional(destino, mensagem.getIdTransferencia());
+    escreverLongOpcional(destino, mensagem.getDeslocamento());
+    escreverLongOpcional(destino, mensagem.getTamanhoArquivo());
+    escreverLongOpcional(destino, mensagem.getChecksum());
+    escreverLongOpcional(destino, mensagem.getTamanhoDados());
+    escreverString(destino, mensagem.getHashArquivo());
+    escreverLongOpcional(destino, mensagem.getCarimboTempo());
+    escreverLongOpcional(destino, mensagem.getCursor());
+    escreverLongOpcional(destino, mensagem.getLimite());
+    escreverLongOpcional(destino, mensagem.getSessao());
+    escreverLongOpcional(destino, mensagem.getSequencia());
+  }
+
+  // Identifica o formato de um payload pelo primeiro byte.
+  public static Formato formatoDe(ByteBuffer payload) {
+    return payload.hasRemaining() && payload.get(payload.position()) == MARCADOR
+        ? Formato.BINARIO : Formato.JAVA;
+  }
+
+  // Decodifica um payload completo (entre position e limit), em qualquer um dos formatos.
+  public static Mensagem decodificar(ByteBuffer payload) throws IOException {
+    if (formatoDe(payload) == Formato.JAVA) {
+      byte[] dados = new byte[payload.remaining()];
+      payload.get(dados);
+      return desserializarJava(dados);
+    }
+
+    try {
+      payload.get(); // MARCADOR
+      byte versao = payload.get();
+      if (versao < 1 || versao > VERSAO) {
+        throw new IOException("Versao de codec nao suportada: " + versao);
+      }
+      int ordinal = payload.get() & 0xFF;
+      if (ordinal >= TIPOS.length) {
+        throw new IOException("Tipo de mensagem desconhecido: " + ordinal);
+      }
+      int flags = lerVarint(payload);
+      if ((flags & ~CAMPOS_CONHECIDOS) != 0) {
+        throw new IOException("Campos desconhecidos no payload: " + Integer.toHexString(flags & ~CAMPOS_CONHECIDOS));
+      }
+
+      String remetente = (flags & CAMPO_REMETENTE) != 0 ? lerString(payload) : null;
+      Mensagem mensagem = new Mensagem(TIPOS[ordinal], remetente);
+      if ((flags & CAMPO_DESTINATARIO) != 0) {
+        mensagem.setDestinatario(lerString(payload));
+      }
+      if ((flags & CAMPO_CONTEUDO) != 0) {
+        mensagem.setConteudo(lerString(payload));
+      }
+      if ((flags & CAMPO_GRUPO) != 0) {
+        mensagem.setNomeGrupo(lerString(payload));
+      }
+      if ((flags & CAMPO_NOME_ARQUIVO) != 0) {
+        mensagem.setNomeArquivo(lerString(payload));
+      }
+      if ((flags & CAMPO_DADOS_ARQUIVO) != 0) {
+        byte[] dados = new byte[lerTamanho(payload)];
+        payload.get(dados);
+        mensagem.setDadosArquivo(dados);
+      }
+      if ((flags & CAMPO_ID_TRANSFERENCIA) != 0) {
+        mensagem.setIdTransferencia(lerVarlong(payload));
+      }
+      if ((flags & CAMPO_DESLOCAMENTO) != 0) {
+        mensagem.setDeslocamento(lerVarlong(payload));
+      }
+      if ((flags & CAMPO_TAMANHO_ARQUIVO) != 0) {
+        mensagem.setTamanhoArquivo(lerVarlong(payload));
+      }
+      if ((flags & CAMPO_CHECKSUM) != 0) {
+        mensagem.setChecksum(lerVarlong(payload));
+      }
+      if ((flags & CAMPO_TAMANHO_DADOS) != 0) {
+        mensagem.setTamanhoDados(lerVarlong(payload));
+      }
+      if ((flags & CAMPO_HASH_ARQUIVO) != 0) {
+        mensagem.setHashArquivo(lerString(payload));
+      }
+      if ((flags & CAMPO_CARIMBO_TEMPO) != 0) {
+        mensagem.setCarimboTempo(lerVarlong(payload));
+      }
+      if ((flags & CAMPO_CURSOR) != 0) {
+        mensagem.setCursor(lerVarlong(payload));
+      }
+      if ((flags & CAMPO_LIMITE) != 0) {
+        mensagem.setLimite((int) lerVarlong(payload));
+      }
+      if ((flags & CAMPO_SESSAO) != 0) {
+        mensagem.setSessao(lerVarlong(payload));
+      }
+      if ((flags & CAMPO_SEQUENCIA) != 0) {
+        mensagem.setSequencia(lerVarlong(payload));
+      }
+      mensagem.setSucesso((flags & FLAG_SUCESSO) != 0);
+      return mensagem;
+    } catch (java.nio.BufferUnderflowException e) {
+      throw new IOException("Quadro binario truncado");
+    }
+  }
+
+  // Serializa a mensagem com ObjectOutputStream (formato legado).
+  public static byte[] serializarJava(Mensagem mensagem) throws IOException {
+    ByteArrayOutputStream baos = new ByteArrayOutputStream();
+    try (ObjectOutputStream oos = new ObjectOutputStream(baos)) {
+      oos.writeObject(mensagem);
+    }
+    return baos.toByteArray();
+  }
+
+  // Desserializa uma mensagem no formato legado.
+  public static Mensagem desserializarJava(byte[] dados) throws IOException {
+    try (ByteArrayInputStream bais = new ByteArrayInputStream(dados);
+        ObjectInputStream ois = new ObjectInputStream(bais)) {
+      return (Mensagem) ois.readObject();
+    } catch (ClassNotFoundException | ClassCastException e) {
+      throw new IOException("Objeto serializado invalido: " + e.getMessage());
+    }
+  }
+
+  // Calcula as flags de campos presentes.
+  private static int flags(Mensagem mensagem) {
+    int flags = 0;
+    if (mensagem.getRemetente() != null) {
+      flags |= CAMPO_REMETENTE;
+    }
+    if (mensagem.getDestinatario() != null) {
+      flags |= CAMPO_DESTINATARIO;
+    }
+    if (mensagem.getConteudo() != null) {
+      flags |= CAMPO_CONTEUDO;
+    }
+    if (mensagem.getNomeGrupo() != null) {
+      flags |= CAMPO_GRUPO;
+    }
+    if (mensagem.getNomeArquivo() != null) {
+      flags |= CAMPO_NOME_ARQUIVO;
+    }
+    if (mensagem.getDadosArquivo() != null) {
+      flags |= CAMPO_DADOS_ARQUIVO;
+    }
+    if (mensagem.isSucesso()) {
+      flags |= FLAG_SUCESSO;
+    }
+    if (mensagem.getIdTransferencia() != 0) {
+      flags |= CAMPO_ID_TRANSFERENCIA;
+    }
+    if (mensagem.getDeslocamento() != 0) {
+      flags |= CAMPO_DESLOCAMENTO;
+    }
+    if (mensagem.getTamanhoArquivo() != 0) {
+      flags |= CAMPO_TAMANHO_ARQUIVO;
+    }
+    if (mensagem.getChecksum() != 0) {
+      flags |= CAMPO_CHECKSUM;
+    }
+    if (mensagem.getTamanhoDados() != 0) {
+      flags |= CAMPO_TAMANHO_DADOS;
+    }
+    if (mensagem.getHashArquivo() != null) {
+      flags |= CAMPO_HASH_ARQUIVO;
+    }
+    if (mensagem.getCarimboTempo() != 0) {
+      flags |= CAMPO_CARIMBO_TEMPO;
+    }
+    if (mensagem.getCursor() != 0) {
+      flags |= CAMPO_CURSOR;
+    }
+    if (mensagem.getLimite() != 0) {
+      flags |= CAMPO_LIMITE;
+    }
+    if (mensagem.getSessao() != 0) {
+      flags |= CAMPO_SESSAO;
+    }
+    if (mensagem.getSequencia() != 0) {
+      flags |= CAMPO_SEQUENCIA;
+    }
+    return flags;
+  }
+
+  // Tamanho de uma string opcional (0 quando ausente).
+  private static int tamanhoString(String valor) {
+    if (valor == null) {
+      return 0;
+    }
+    int bytes = tamanhoUtf8(valor);
+    return tamanhoVarint(bytes) + bytes;
+  }
+
+  // Conta os bytes UTF-8 de uma string sem alocar.
+  private static int tamanhoUtf8(String valor) {
+    int bytes = 0;
+    for (int i = 0; i < valor.length(); i++) {
+      char c = valor.charAt(i);
+      if (c < 0x80) {
+        bytes += 1;
+      } else if (c < 0x800) {
+        bytes += 2;
+      } else if (Character.isHighSurrogate(c) && i + 1 < valor.length()
+          && Character.isLowSurrogate(valor.charAt(i + 1))) {
+        bytes += 4;
+        i++;
+      } else if (Character.isSurrogate(c)) {
+        bytes += 1;
+      } else {
+        bytes += 3;
+      }
+    }
+    return bytes;
+  }
+
+  // Escreve uma string opcional em UTF-8 direto no buffer.
+  private static void escreverString(ByteBuffer destino, String valor) {
+    if (valor == null) {
+      return;
+    }
+    escreverVarint(destino, tamanhoUtf8(valor));
+    for (int i = 0; i < valor.length(); i++) {
+      char c = valor.charAt(i);
+      if (c < 0x80) {
+        destino.put((byte) c);
+      } else if (c < 0x800) {
+        destino.put((byte) (0xC0 | (c >> 6)));
+        destino.put((byte) (0x80 | (c & 0x3F)));
+      } else if (Character.isHighSurrogate(c) && i + 1 < valor.length()
+          && Character.isLowSurrogate(valor.charAt(i + 1))) {
+        int codePoint = Character.toCodePoint(c, valor.charAt(++i));
+        destino.put((byte) (0xF0 | (codePoint >> 18)));
+        destino.put((byte) (0x80 | ((codePoint >> 12) & 0x3F)));
+        destino.put((byte) (0x80 | ((codePoint >> 6) & 0x3F)));
+        destino.put((byte) (0x80 | (codePoint & 0x3F)));
+      } else if (Character.isSurrogate(c)) {
+        // Surrogates isolados viram '?', como em String.getBytes.
+        destino.put((byte) '?');
+      } else {
+        destino.put((byte) (0xE0 | (c >> 12)));
+        destino.put((byte) (0x80 | ((c >> 6) & 0x3F)));
+        destino.put((byte) (0x80 | (c & 0x3F)));
+      }
+    }
+  }
+
+  // Lê uma string UTF-8 precedida do tamanho.
+  private static String lerString(ByteBuffer origem) throws IOException {
+    int tamanho = lerTamanho(origem);
+    if (origem.hasArray()) {
+      String valor = new String(origem.array(), origem.arrayOffset() + origem.position(), tamanho,
+          StandardCharsets.UTF_8);
+      origem.position(origem.position() + tamanho);
+      return valor;
+    }
+    byte[] bytes = new byte[tamanho];
+    origem.get(bytes);
+    return new String(bytes, StandardCharsets.UTF_8);
+  }
+
+  // Lê um tamanho e valida contra os bytes restantes do payload.
+  private static int lerTamanho(ByteBuffer origem) throws IOException {
+    int tamanho = lerVarint(origem);
+    if (tamanho < 0 || tamanho > origem.remaining()) {
+      throw new IOException("Tamanho de campo invalido: " + tamanho);
+    }
+    return tamanho;
+  }
+
+  // Tamanho de um campo numérico opcional (0 quando o valor é zero).
+  private static int tamanhoLongOpcional(long valor) {
+    if (valor == 0) {
+      return 0;
+    }
+    int bytes = 1;
+    while ((valor & ~0x7FL) != 0) {
+      valor >>>= 7;
+      bytes++;
+    }
+    return bytes;
+  }
+
+  // Escreve um campo numérico opcional como varlong sem sinal.
+  private static void escreverLongOpcional(ByteBuffer destino, long valor) {
+    if (valor == 0) {
+      return;
+    }
+    while ((valor & ~0x7FL) != 0) {
+      destino.put((byte) ((valor & 0x7F) | 0x80));
+      valor >>>= 7;
+    }
+    destino.put((byte) valor);
+  }
+
+  // Lê um varlong sem sinal.
+  private static long lerVarlong(ByteBuffer origem) throws IOException {
+    long valor = 0;
+    for (int deslocamento = 0; deslocamento < 70; deslocamento += 7) {
+      byte b = origem.get();
+      valor |= (long) (b & 0x7F) << deslocamento;
+      if ((b & 0x80) == 0) {
+        return valor;
+      }
+    }
+    throw new IOException("Varlong malformado");
+  }
+
+  // Quantidade de bytes de um varint sem sinal.
+  static int tamanhoVarint(int valor) {
+    int bytes = 1;
+    while ((valor & ~0x7F) != 0) {
+      valor >>>= 7;
+      bytes++;
+    }
+    return bytes;
+  }
+
+  // Escreve um varint sem sinal (LEB128).
+  static void escreverVarint(ByteBuffer destino, int valor) {
+    while ((valor & ~0x7F) != 0) {
+      destino.put((byte) ((valor & 0x7F) | 0x80));
+      valor >>>= 7;
+    }
+    destino.put((byte) valor);
+  }
+
+  // Lê um varint sem sinal (LEB128).
+  static int lerVarint(ByteBuffer origem) throws IOException {
+    int valor = 0;
+    for (int deslocamento = 0; deslocamento < 35; deslocamento += 7) {
+      byte b = origem.get();
+      valor |= (b & 0x7F) << deslocamento;
+      if ((b & 0x80) == 0) {
+        return valor;
+      }
+    }
+    throw new IOException("Varint malformado");
+  }
+}
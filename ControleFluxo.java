@@ -0,0 +1,155 @@
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+
+// Controle de fluxo das filas de saída: limites em bytes por conexão e política para consumidores lentos.
+public class ControleFluxo {
+  // Política aplicada quando a fila de saída de um destinatário passa do limite alto.
+  public enum Politica {
+    DESCARTAR_ANTIGAS, // Descarta as mensagens de chat mais antigas ainda não enviadas.
+    PAUSAR_REMETENTES, // Para de ler de quem está enviando até a fila baixar do limite baixo.
+    DESCONECTAR // Desconecta o consumidor lento.
+  }
+
+  public static final long LIMITE_ALTO = Long.getLong("chat.fila.limiteAlto", 4L * 1024 * 1024);
+  public static final long LIMITE_BAIXO = Long.getLong("chat.fila.limiteBaixo", 1024L * 1024);
+  // Acima deste limite a conexão é derrubada em qualquer política.
+  public static final long LIMITE_MAXIMO = Long.getLong("chat.fila.limiteMaximo", 4 * LIMITE_ALTO);
+  public static final Politica POLITICA =
+      Politica.valueOf(System.getProperty("chat.fila.politica", Politica.DESCARTAR_ANTIGAS.name()));
+
+  // Contadores globais das decisões tomadas.
+  private final LongAdder quadrosDescartados = new LongAdder();
+  private final LongAdder bytesDescartados = new LongAdder();
+  private final LongAdder pausas = new LongAdder();
+  private final LongAdder retomadas = new LongAdder();
+  private final LongAdder desconexoes = new LongAdder();
+
+  // Decide se o quadro pode entrar na fila do destino, aplicando a política quando o limite alto
+  // é ultrapassado. A origem é a conexão que gerou o envio (pode ser nula).
+  public boolean admitir(QuadroCodificado quadro, ClienteService destino, ClienteService origem) {
+    return admitir(quadro, quadro.getTamanho(), destino, origem);
+  }
+
+  // Igual ao anterior, para um quadro seguido de um trecho de arquivo: o tamanho inclui o trecho.
+  public boolean admitir(QuadroCodificado quadro, long tamanho, ClienteService destino, ClienteService origem) {
+    long pendentes = destino.getBytesPendentes() + tamanho;
+    if (pendentes <= LIMITE_ALTO) {
+      return true;
+    }
+    if (pendentes > LIMITE_MAXIMO) {
+      desconectar(destino);
+      return false;
+    }
+    if (quadro.getTipo() == Mensagem.TipoMensagem.ARQUIVO_PARTE && origem != null && origem != destino) {
+      // Partes de arquivo nunca são descartadas: o remetente é pausado em qualquer política,
+      // mantendo a memória de cada transferência limitada.
+      pausarRemetente(destino, origem);
+      return true;
+    }
+
+    switch (POLITICA) {
+      case DESCARTAR_ANTIGAS:
+        long bytesAntes = destino.getBytesDescartados();
+        int descartados = destino.descartarMensagensAntigas(pendentes - LIMITE_BAIXO);
+        if (descartados > 0) {
+          registrarDescarte(descartados, destino.getBytesDescartados() - bytesAntes);
+        }
+        if (destino.getBytesPendentes() + tamanho > LIMITE_ALTO && ehMensagemChat(quadro)) {
+          // Não houve espaço: a própria mensagem nova é descartada.
+          destino.registrarDescarte(1, tamanho);
+          registrarDescarte(1, tamanho);
+          return false;
+        }
+        return true;
+      case PAUSAR_REMETENTES:
+        if (origem != null && origem != destino) {
+          pausarRemetente(destino, origem);
+        }
+        return true;
+      case DESCONECTAR:
+      default:
+        desconectar(destino);
+        return false;
+    }
+  }
+
+  // Pausa a leitura do remetente até a fila do destino baixar do limite baixo. O reator do destino pode ter
+  // esvaziado a fila (e passado por aposEscrita) entre a verificação do limite e o registro do remetente;
+  // por isso a fila é verificada de novo depois do registro, senão ninguém retomaria esse remetente.
+  private void pausarRemetente(ClienteService destino, ClienteService origem) {
+    if (destino.adicionarRemetentePausado(origem)) {
+      pausas.increment();
+      origem.pausarLeitura();
+      aposEscrita(destino);
+    }
+  }
+
+  // Chamado pelo reator após escrever: retoma os remetentes pausados quando a fila baixou do limite baixo.
+  public void aposEscrita(ClienteService destino) {
+    if (destino.getBytesPendentes() <= LIMITE_BAIXO) {
+      retomarRemetentes(destino);
+    }
+  }
+
+  // Retoma todos os remetentes pausados por este destino (também usado quando ele desconecta).
+  public void retomarRemetentes(ClienteService destino) {
+    for (ClienteService origem : destino.retirarRemetentesPausados()) {
+      retomadas.increment();
+      origem.retomarLeitura();
+    }
+  }
+
+  // Verifica se o quadro é de mensagem de chat (pode ser descartado sem quebrar o protocolo).
+  public static boolean ehMensagemChat(QuadroCodificado quadro) {
+    return quadro.getTipo() == Mensagem.TipoMensagem.MENSAGEM_PRIVADA
+        || quadro.getTipo() == Mensagem.TipoMensagem.MENSAGEM_GRUPO;
+  }
+
+  // Desconecta um consumidor lento pela thread do seu reator.
+  private void desconectar(ClienteService destino) {
+    if (destino.marcarDesconexaoPorAtraso()) {
+      desconexoes.increment();
+      destino.getReator().fecharConexao(destino);
+    }
+  }
+
+  // Contabiliza quadros descartados da fila de um destino.
+  private void registrarDescarte(int quadros, long bytes) {
+    quadrosDescartados.add(quadros);
+    bytesDescartados.add(bytes);
+  }
+
+  // Lista os clientes com fila acima do limite baixo ou que já tiveram mensagens descartadas.
+  public List<String> clientesAtrasados(Collection<ClienteService> clientes) {
+    List<String> atrasados = new ArrayList<>();
+    for (ClienteService cliente : clientes) {
+      if (cliente.getBytesPendentes() > LIMITE_BAIXO || cliente.getQuadrosDescartados() > 0) {
+        atrasados.add(cliente.getNomeUsuario() + " (fila=" + cliente.getBytesPendentes()
+            + " bytes, descartados=" + cliente.getQuadrosDescartados() + ")");
+      }
+    }
+    return atrasados;
+  }
+
+  // Resumo dos contadores globais.
+  public String resumo() {
+    return "politica=" + POLITICA + ", descartados=" + quadrosDescartados.sum()
+        + " (" + bytesDescartados.sum() + " bytes), pausas=" + pausas.sum()
+        + ", retomadas=" + retomadas.sum() + ", desconexoes=" + desconexoes.sum();
+  }
+
+  // Getters
+  public long getQuadrosDescartados() {
+    return quadrosDescartados.sum();
+  }
+
+  public long getPausas() {
+    return pausas.sum();
+  }
+
+  public long getDesconexoes() {
+    return desconexoes.sum();
+  }
+}
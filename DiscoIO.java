@@ -0,0 +1,106 @@
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BiConsumer;
+
+// Estágio de E/S de disco: executa gravações e operações lentas de arquivo fora das threads dos reatores
+// e devolve o resultado ao reator dono da conexão, para que um disco lento não trave o chat.
+public class DiscoIO {
+  private static final int NUM_THREADS = Integer.getInteger("chat.disco.threads", 2); // Threads de disco.
+
+  // Operação de disco que produz um resultado ou falha.
+  public interface Operacao<T> {
+    T executar() throws Exception;
+  }
+
+  private final ExecutorService executor;
+  private final AtomicInteger pendentes = new AtomicInteger(); // Operações na fila ou em execução.
+  private final LongAdder concluidas = new LongAdder();
+  private final LongAdder falhas = new LongAdder();
+  private final LongAdder latenciaTotalNanos = new LongAdder(); // Da submissão até o fim da operação.
+  private final AtomicLong latenciaMaximaNanos = new AtomicLong();
+
+  // Construtor da classe DiscoIO.
+  public DiscoIO() {
+    AtomicInteger contador = new AtomicInteger();
+    this.executor = Executors.newFixedThreadPool(NUM_THREADS, tarefa -> {
+      Thread thread = new Thread(tarefa, "disco-" + contador.incrementAndGet());
+      thread.setDaemon(true);
+      return thread;
+    });
+  }
+
+  // Executa a operação numa thread de disco e entrega o resultado (ou o erro) na thread do reator.
+  public <T> void executar(Operacao<T> operacao, Reator reator, BiConsumer<T, Exception> conclusao) {
+    long inicio = System.nanoTime();
+    pendentes.incrementAndGet();
+    try {
+      executor.execute(() -> {
+        T resultado = null;
+        Exception erro = null;
+        try {
+          resultado = operacao.executar();
+        } catch (Exception e) {
+          erro = e;
+          falhas.increment();
+        } finally {
+          registrarLatencia(System.nanoTime() - inicio);
+          pendentes.decrementAndGet();
+          concluidas.increment();
+        }
+        T resultadoFinal = resultado;
+        Exception erroFinal = erro;
+        reator.executar(() -> conclusao.accept(resultadoFinal, erroFinal));
+      });
+    } catch (RejectedExecutionException e) {
+      pendentes.decrementAndGet();
+      falhas.increment();
+      reator.executar(() -> conclusao.accept(null, e));
+    }
+  }
+
+  // Atualiza a soma e o máximo das latências.
+  private void registrarLatencia(long nanos) {
+    latenciaTotalNanos.add(nanos);
+    long maxima;
+    while (nanos > (maxima = latenciaMaximaNanos.get()) && !latenciaMaximaNanos.compareAndSet(maxima, nanos)) {
+      // Outra thread atualizou o máximo; tentar de novo.
+    }
+  }
+
+  // Resumo das métricas do estágio de disco.
+  public String resumo() {
+    long total = concluidas.sum();
+    long mediaMicros = total == 0 ? 0 : latenciaTotalNanos.sum() / total / 1000;
+    return "pendentes=" + pendentes.get() + ", concluidas=" + total + ", falhas=" + falhas.sum()
+        + ", latenciaMedia=" + mediaMicros + "us, latenciaMaxima=" + latenciaMaximaNanos.get() / 1000 + "us";
+  }
+
+  // Para de aceitar operações e aguarda as que estão em andamento.
+  public void parar() {
+    executor.shutdown();
+    try {
+      executor.awaitTermination(5, TimeUnit.SECONDS);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  // Getters
+  public int getPendentes() {
+    return pendentes.get();
+  }
+
+  public long getConcluidas() {
+    return concluidas.sum();
+  }
+
+  public long getFalhas() {
+    return falhas.sum();
+  }
+
+  public long getLatenciaMaximaNanos() {
+    return latenciaMaximaNanos.get();
+  }
+}
@@ -0,0 +1,203 @@
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+// Entrega ao usuário que acabou de entrar as mensagens gravadas no log enquanto ele estava fora do alcance
+// deste nó. As pendências são as mensagens das suas conversas (a caixa de entrada e os grupos de que este
+// nó é dono) que caem nos intervalos guardados pelo log para ele. As mensagens vão em lotes: cada lote é
+// procurado no índice e lido do log no estágio de disco, e entregue pelo destino: a conexão do usuário,
+// se ele entrou neste nó, ou o nó do cluster onde ele entrou. Quando o último quadro do lote é escrito no
+// socket, o cursor de entrega avança no log e o próximo lote é lido, de modo que a fila de saída nunca
+// recebe todas as pendências de uma vez.
+// Se a conexão cair no meio, o lote sem confirmação é entregue de novo no próximo login.
+public class EntregaPendentes {
+  private static final int TAMANHO_LOTE = 128; // Mensagens por lote.
+
+  // Para onde vão os lotes. Os métodos rodam na thread do reator do destino.
+  public interface Destino {
+    // Se o usuário ainda pode receber mensagens por este destino.
+    boolean isAlcancavel();
+
+    // Reator onde os lotes lidos são entregues.
+    Reator getReator();
+
+    // Enfileira as mensagens do lote para o usuário; aposLote roda quando a última for escrita no socket.
+    void entregar(List<Mensagem> mensagens, Runnable aposLote) throws IOException;
+  }
+
+  // Destino de um usuário conectado neste nó.
+  private static final class Conexao implements Destino {
+    private final ClienteService conexao;
+
+    Conexao(ClienteService conexao) {
+      this.conexao = conexao;
+    }
+
+    @Override
+    public boolean isAlcancavel() {
+      return conexao.isConectado();
+    }
+
+    @Override
+    public Reator getReator() {
+      return conexao.getReator();
+    }
+
+    @Override
+    public void entregar(List<Mensagem> mensagens, Runnable aposLote) throws IOException {
+      for (int i = 0; i < mensagens.size(); i++) {
+        QuadroCodificado quadro = QuadroCodificado.codificar(mensagens.get(i), conexao.getFormato());
+        // Os quadros do lote nunca são descartados pelo controle de fluxo: o lote já limita a fila.
+        conexao.adicionarEntregaDuravel(quadro, i == mensagens.size() - 1 ? aposLote : null);
+      }
+      conexao.getReator().solicitarEscrita(conexao);
+    }
+  }
+
+  // Lote lido no estágio de disco: as mensagens e a posição até onde ele cobre as pendências.
+  private static final class Lote {
+    final List<Mensagem> mensagens = new ArrayList<>();
+    long cobertura;
+  }
+
+  private final LogMensagens log;
+  private final IndiceHistorico historico;
+  private final DiscoIO discoIO;
+  private final Destino destino;
+  private final String usuario;
+  private final LogMensagens.Pendencias pendencias;
+  private final String[] chaves; // Conversas do usuário no índice: a caixa de entrada e os grupos.
+  private final long[] desde; // Posição a partir da qual cada conversa conta (a entrada no grupo).
+  private long ultimaEntregue = -1; // Posição no log até onde as pendências foram entregues.
+  private boolean avisado;
+
+  // Construtor da classe EntregaPendentes para um usuário conectado neste nó; grupos são os grupos do usuário
+  // cujas pendências estão neste nó.
+  public EntregaPendentes(LogMensagens log, IndiceHistorico historico, DiscoIO discoIO, ClienteService conexao,
+      List<String> grupos) {
+    this(log, historico, discoIO, conexao.getNomeUsuario(), new Conexao(conexao), grupos);
+  }
+
+  // Como acima, com as pendências indo para outro destino (o nó do cluster onde o usuário entrou).
+  public EntregaPendentes(LogMensagens log, IndiceHistorico historico, DiscoIO discoIO, String usuario,
+      Destino destino, List<String> grupos) {
+    this.log = log;
+    this.historico = historico;
+    this.discoIO = discoIO;
+    this.destino = destino;
+    this.usuario = usuario;
+    this.pendencias = log.pendenciasDe(usuario);
+    this.chaves = new String[grupos.size() + 1];
+    this.desde = new long[chaves.length];
+    chaves[0] = IndiceHistorico.chaveCaixa(usuario);
+    for (int i = 0; i < grupos.size(); i++) {
+      chaves[i + 1] = IndiceHistorico.chaveGrupo(grupos.get(i));
+      desde[i + 1] = Math.max(0, pendencias.getEntrada(grupos.get(i)));
+    }
+  }
+
+  // Começa a entrega pelo primeiro lote; retorna false se não há nada pendente neste nó.
+  public boolean iniciar() {
+    if (pendencias.getQuantidade() == 0) {
+      return false;
+    }
+    proximoLote();
+    return true;
+  }
+
+  // Lê o próximo lote no estágio de disco e o entrega pelo reator do destino.
+  private void proximoLote() {
+    if (!destino.isAlcancavel()) {
+      return;
+    }
+    long depoisDe = ultimaEntregue;
+    discoIO.executar(() -> lerLote(depoisDe), destino.getReator(), (lote, erro) -> {
+      if (erro != null) {
+        LogConsole.erro("Erro ao ler mensagens pendentes de ", usuario, ": ", erro.getMessage());
+        return;
+      }
+      enfileirarLote(lote);
+    });
+  }
+
+  // Procura as próximas posições pendentes depois da indicada, no primeiro intervalo fechado que ainda tem
+  // alguma, e lê as mensagens. Um intervalo sem mais posições fica coberto até o fim. As mensagens do
+  // próprio usuário e as apagadas pela retenção contam como entregues.
+  private Lote lerLote(long depoisDe) throws IOException {
+    Lote lote = new Lote();
+    lote.cobertura = depoisDe;
+    long inicioLog = log.getInicio();
+    int fechados = pendencias.getQuantidade() - (pendencias.isAberta() ? 1 : 0);
+    for (int i = 0; i < fechados; i++) {
+      long fim = pendencias.getFim(i);
+      if (fim - 1 <= depoisDe) {
+        continue;
+      }
+      long[] posicoes = proximasPosicoes(Math.max(Math.max(pendencias.getInicio(i), depoisDe + 1), inicioLog), fim);
+      lote.cobertura = posicoes.length == TAMANHO_LOTE ? posicoes[TAMANHO_LOTE - 1] : fim - 1;
+      for (long posicao : posicoes) {
+        try {
+          Mensagem mensagem = log.lerMensagem(posicao);
+          if (!usuario.equals(mensagem.getRemetente())) {
+            lote.mensagens.add(mensagem);
+          }
+        } catch (IOException e) {
+          LogConsole.erro("Mensagem pendente ilegivel na posicao ", posicao, ": ", e.getMessage());
+        }
+      }
+      if (posicoes.length > 0) {
+        break;
+      }
+    }
+    return lote;
+  }
+
+  // As TAMANHO_LOTE menores posições das conversas do usuário em [inicio, fim), em ordem.
+  private long[] proximasPosicoes(long inicio, long fim) throws IOException {
+    long[] todas = new long[0];
+    for (int i = 0; i < chaves.length; i++) {
+      long[] daConversa = historico.posicoes(chaves[i], Math.max(inicio, desde[i]), fim, TAMANHO_LOTE);
+      if (daConversa.length > 0) {
+        int anteriores = todas.length;
+        todas = Arrays.copyOf(todas, anteriores + daConversa.length);
+        System.arraycopy(daConversa, 0, todas, anteriores, daConversa.length);
+      }
+    }
+    Arrays.sort(todas);
+    return todas.length > TAMANHO_LOTE ? Arrays.copyOf(todas, TAMANHO_LOTE) : todas;
+  }
+
+  // Entrega o lote ao destino; o último quadro avisa quando foi escrito.
+  private void enfileirarLote(Lote lote) {
+    if (lote.cobertura <= ultimaEntregue) {
+      return; // Não há mais pendências.
+    }
+    if (lote.mensagens.isEmpty()) {
+      loteEnviado(lote.cobertura);
+      return;
+    }
+    if (!avisado) {
+      avisado = true;
+      Mensagem aviso = new Mensagem(Mensagem.TipoMensagem.STATUS);
+      aviso.setConteudo("Voce tem mensagens recebidas enquanto estava offline.");
+      lote.mensagens.add(0, aviso);
+    }
+    try {
+      destino.entregar(lote.mensagens, () -> loteEnviado(lote.cobertura));
+    } catch (IOException e) {
+      LogConsole.erro("Erro ao preparar mensagens pendentes de ", usuario, ": ", e.getMessage());
+    }
+  }
+
+  // Chamado quando o lote foi escrito: avança o cursor de entrega e segue para o próximo lote.
+  private void loteEnviado(long cobertura) {
+    ultimaEntregue = cobertura;
+    try {
+      log.registrarEntrega(usuario, cobertura);
+    } catch (IOException e) {
+      LogConsole.erro("Erro ao registrar entrega para ", usuario, ": ", e.getMessage());
+    }
+    proximoLote();
+  }
+}
@@ -0,0 +1,89 @@
+import java.io.IOException;
+
+// Envio de um arquivo do armazém para um destinatário, como uma transferência em partes
+// (ARQUIVO_INICIO, ARQUIVO_PARTE com trecho do arquivo, ARQUIVO_FIM), sem o remetente reenviar o conteúdo.
+// Mantém no máximo JANELA partes na fila do destino: cada parte escrita enfileira a próxima, de modo que
+// um arquivo grande não ocupa a fila inteira nem atrasa as mensagens de chat.
+// Todos os métodos rodam na thread do reator do destino.
+public class EnvioArmazenado {
+  private static final int JANELA = 2; // Partes enfileiradas ao mesmo tempo.
+
+  private final ClienteService destino;
+  private final ArquivoCompartilhado arquivo;
+  private final ObjetoArquivo objeto;
+  private final Mensagem inicio; // ARQUIVO_INICIO repassado ao destino; identifica a transferência.
+  private long proximaPosicao;
+
+  // Construtor da classe EnvioArmazenado; assume uma referência já retida do arquivo.
+  public EnvioArmazenado(ClienteService destino, ArquivoCompartilhado arquivo, ObjetoArquivo objeto,
+      Mensagem inicio) {
+    this.destino = destino;
+    this.arquivo = arquivo;
+    this.objeto = objeto;
+    this.inicio = inicio;
+  }
+
+  // Enfileira o início e as primeiras partes; a referência do envio é devolvida no fim, pois cada
+  // parte enfileirada retém a sua.
+  public void iniciar() {
+    try {
+      enfileirar(inicio, 0, 0);
+      if (objeto.getTamanho() == 0) {
+        enfileirarFim();
+      }
+      for (int i = 0; i < JANELA && proximaPosicao < objeto.getTamanho(); i++) {
+        enfileirarProxima();
+      }
+    } catch (IOException e) {
+      LogConsole.erro("Erro ao enviar arquivo armazenado: ", e.getMessage());
+    } finally {
+      arquivo.liberar();
+    }
+  }
+
+  // Enfileira a próxima parte e, se for a última, o ARQUIVO_FIM logo depois.
+  private void enfileirarProxima() throws IOException {
+    long tamanhoParte = Math.min(Transferencia.TAMANHO_PARTE, objeto.getTamanho() - proximaPosicao);
+    Mensagem parte = new Mensagem(Mensagem.TipoMensagem.ARQUIVO_PARTE, inicio.getRemetente());
+    parte.setIdTransferencia(inicio.getIdTransferencia());
+    parte.setDeslocamento(proximaPosicao);
+    parte.setTamanhoDados(tamanhoParte);
+    enfileirar(parte, proximaPosicao, tamanhoParte);
+    proximaPosicao += tamanhoParte;
+    if (proximaPosicao == objeto.getTamanho()) {
+      enfileirarFim();
+    }
+  }
+
+  // Enfileira o ARQUIVO_FIM com o CRC32 guardado no armazém.
+  private void enfileirarFim() throws IOException {
+    Mensagem fim = new Mensagem(Mensagem.TipoMensagem.ARQUIVO_FIM, inicio.getRemetente());
+    fim.setIdTransferencia(inicio.getIdTransferencia());
+    fim.setNomeArquivo(inicio.getNomeArquivo());
+    fim.setTamanhoArquivo(objeto.getTamanho());
+    fim.setChecksum(objeto.getChecksum());
+    enfileirar(fim, 0, 0);
+  }
+
+  // Codifica a mensagem no formato do destino e a coloca na fila, com o trecho do arquivo se houver.
+  private void enfileirar(Mensagem mensagem, long posicao, long tamanho) throws IOException {
+    QuadroCodificado quadro = QuadroCodificado.codificar(mensagem, destino.getFormato());
+    if (tamanho > 0) {
+      destino.adicionarParaEscrita(quadro, arquivo, posicao, tamanho, this::parteEnviada);
+    } else {
+      destino.adicionarParaEscrita(quadro);
+    }
+    destino.getReator().solicitarEscrita(destino);
+  }
+
+  // Chamado quando uma parte termina de ser escrita: abre espaço para a próxima.
+  private void parteEnviada() {
+    if (proximaPosicao < objeto.getTamanho()) {
+      try {
+        enfileirarProxima();
+      } catch (IOException e) {
+        LogConsole.erro("Erro ao enviar arquivo armazenado: ", e.getMessage());
+      }
+    }
+  }
+}
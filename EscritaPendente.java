@@ -0,0 +1,157 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+
+// Item da fila de escrita de uma conexão: uma visão própria de um quadro compartilhado e,
+// opcionalmente, um trecho de arquivo enviado logo após o quadro com FileChannel.transferTo.
+// Quadro e trecho ficam no mesmo item para que nenhum outro quadro seja intercalado entre eles.
+public class EscritaPendente {
+  private final QuadroCodificado quadro;
+  private final ByteBuffer visao;
+  private final ArquivoCompartilhado arquivo; // Nulo quando o item é só o quadro.
+  private final long tamanhoRegiao;
+  private final Runnable aposEnvio; // Chamado pelo reator quando o item termina de ser escrito (opcional).
+  private final boolean repeticao; // Quadros reenviados na retomada da sessão, já guardados nela.
+  private final boolean duravel; // Mensagem relida do log na entrega de pendências: nunca é descartada.
+  private long posicaoRegiao;
+  private long restanteRegiao;
+
+  // Construtor da classe EscritaPendente.
+  public EscritaPendente(QuadroCodificado quadro) {
+    this(quadro, null, 0, 0);
+  }
+
+  // Construtor para quadro seguido de um trecho de arquivo; assume uma referência já retida do arquivo.
+  public EscritaPendente(QuadroCodificado quadro, ArquivoCompartilhado arquivo, long posicao, long tamanho) {
+    this(quadro, arquivo, posicao, tamanho, null);
+  }
+
+  // Igual ao anterior, com uma ação executada quando o item termina de ser escrito no socket.
+  public EscritaPendente(QuadroCodificado quadro, ArquivoCompartilhado arquivo, long posicao, long tamanho,
+      Runnable aposEnvio) {
+    this(quadro, arquivo, posicao, tamanho, aposEnvio, false, false);
+  }
+
+  // Construtor para os quadros reenviados na retomada de uma sessão.
+  public EscritaPendente(QuadroCodificado quadro, boolean repeticao, Runnable aposEnvio) {
+    this(quadro, null, 0, 0, aposEnvio, repeticao, false);
+  }
+
+  // Construtor para as mensagens relidas do log na entrega de pendências; aposEnvio é opcional.
+  public EscritaPendente(QuadroCodificado quadro, Runnable aposEnvio, boolean duravel) {
+    this(quadro, null, 0, 0, aposEnvio, false, duravel);
+  }
+
+  private EscritaPendente(QuadroCodificado quadro, ArquivoCompartilhado arquivo, long posicao, long tamanho,
+      Runnable aposEnvio, boolean repeticao, boolean duravel) {
+    this.quadro = quadro;
+    this.visao = quadro.novaVisao();
+    this.arquivo = arquivo;
+    this.tamanhoRegiao = tamanho;
+    this.posicaoRegiao = posicao;
+    this.restanteRegiao = tamanho;
+    this.aposEnvio = aposEnvio;
+    this.repeticao = repeticao;
+    this.duravel = duravel;
+  }
+
+  // Envia o trecho de arquivo direto do page cache para o socket, sem passar pelo heap.
+  public long escreverRegiao(SocketChannel channel) throws IOException {
+    long escritos = arquivo.getCanal().transferTo(posicaoRegiao, restanteRegiao, channel);
+    posicaoRegiao += escritos;
+    restanteRegiao -= escritos;
+    return escritos;
+  }
+
+  // Verifica se o quadro já foi escrito e ainda falta o trecho de arquivo.
+  public boolean temRegiaoPendente() {
+    return !visao.hasRemaining() && restanteRegiao > 0;
+  }
+
+  // Verifica se o item tem trecho de arquivo ainda não enviado.
+  public boolean temRegiao() {
+    return restanteRegiao > 0;
+  }
+
+  // Verifica se o item foi escrito por completo.
+  public boolean isConcluida() {
+    return !visao.hasRemaining() && restanteRegiao == 0;
+  }
+
+  // Avisa que o item foi escrito por completo; não é chamado para itens descartados.
+  public void notificarEnvio() {
+    if (aposEnvio != null) {
+      aposEnvio.run();
+    }
+  }
+
+  // Verifica se o item conta na sequência da sessão: um quadro de tipo repetível, sem trecho de arquivo,
+  // que ainda não está guardado na sessão.
+  public boolean isRepetivel() {
+    return !repeticao && tamanhoRegiao == 0 && Sessao.repetivel(quadro.getTipo());
+  }
+
+  // Verifica se o item pode ser descartado pela política DESCARTAR_ANTIGAS: só mensagens de chat
+  // roteadas ao vivo. As relidas do log não, porque o cursor de entrega passaria por cima delas.
+  public boolean isDescartavel() {
+    return !duravel && ControleFluxo.ehMensagemChat(quadro);
+  }
+
+  // O reator tirou o item da fila para escrevê-lo (só com o rastreamento ativo).
+  void marcarInicioEscrita() {
+  }
+
+  // O item foi escrito por completo: registra as etapas, se for de uma mensagem amostrada.
+  void registrarRastro(Metricas metricas) {
+  }
+
+  // Devolve a referência do trecho de arquivo após o envio completo ou o descarte.
+  public void concluir() {
+    if (arquivo != null) {
+      arquivo.liberar();
+    }
+  }
+
+  // Getters
+  public QuadroCodificado getQuadro() {
+    return quadro;
+  }
+
+  public ByteBuffer getVisao() {
+    return visao;
+  }
+
+  public Runnable getAposEnvio() {
+    return aposEnvio;
+  }
+
+  public long getTamanho() {
+    return quadro.getTamanho() + tamanhoRegiao;
+  }
+
+  // Item de um quadro de mensagem amostrada: guarda quando entrou na fila e quando começou a ser escrito.
+  static final class Rastreada extends EscritaPendente {
+    private final long enfileirado;
+    private long inicioEscrita;
+
+    Rastreada(QuadroCodificado quadro, long enfileirado) {
+      super(quadro);
+      this.enfileirado = enfileirado;
+    }
+
+    @Override
+    void marcarInicioEscrita() {
+      inicioEscrita = System.nanoTime();
+    }
+
+    @Override
+    void registrarRastro(Metricas metricas) {
+      long escrito = System.nanoTime();
+      Rastreamento.Rastro rastro = getQuadro().getRastro();
+      metricas.etapa(Rastreamento.Etapa.ROTEAMENTO, enfileirado - rastro.getDespacho());
+      metricas.etapa(Rastreamento.Etapa.FILA, inicioEscrita - enfileirado);
+      metricas.etapa(Rastreamento.Etapa.ESCRITA, escrito - inicioEscrita);
+      metricas.etapa(Rastreamento.Etapa.TOTAL, escrito - rastro.getLeitura());
+    }
+  }
+}
@@ -0,0 +1,357 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+
+// Persistência dos grupos e das suas participações: um diário (write-ahead) com cada criação de grupo
+// e entrada, e fotografias binárias compactas do estado inteiro. Cada fotografia tem uma geração g e
+// representa o estado no início do diário g; na partida, a fotografia mais recente é mapeada em memória e
+// só os diários a partir da geração dela são reaplicados.
+//
+// O servidor altera o grupo em memória antes de registrar no diário. Assim uma fotografia, tirada do mapa
+// vivo logo depois de trocar de diário, já contém tudo o que ficou no diário anterior; e reaplicar o diário
+// novo por cima dela dá o mesmo resultado, pois cada registro só liga ou desliga uma participação.
+public class EstadoGrupos {
+  private static final int MAGICO = 0x47525053; // "GRPS"
+  private static final byte REGISTRO_CRIAR = 1; // grupo
+  private static final byte REGISTRO_ENTRAR = 2; // grupo + usuário
+  private static final byte REGISTRO_SAIR = 3; // grupo + usuário (só em diários antigos: saída ao desconectar)
+  private static final int CABECALHO_REGISTRO = 9; // tamanho + crc + tipo.
+  private static final int REGISTROS_POR_FOTOGRAFIA =
+      Integer.getInteger("chat.estado.registrosPorFotografia", 50000); // Registros no diário até a próxima fotografia.
+  private static final long INTERVALO_FSYNC_MS = 1000; // Intervalo de persistência do diário.
+
+  private final Path diretorio;
+  private final Map<String, Grupo> grupos; // Mapa vivo do servidor.
+  private final Usuarios usuarios; // Registro dos usuários, que guarda os grupos de cada um.
+  private FileChannel diario;
+  private long geracao; // Geração do diário atual.
+  private int registrosNoDiario;
+  private boolean diarioSujo;
+  private Thread threadFotografia;
+  private volatile boolean executando;
+
+  // Construtor da classe EstadoGrupos; os grupos recuperados são colocados no mapa indicado.
+  public EstadoGrupos(Path diretorio, Map<String, Grupo> grupos, Usuarios usuarios) {
+    this.diretorio = diretorio;
+    this.grupos = grupos;
+    this.usuarios = usuarios;
+  }
+
+  // Recupera o estado (fotografia mais recente + diários seguintes) e abre um diário novo.
+  // Retorna a quantidade de registros reaplicados dos diários.
+  public int carregar() throws IOException {
+    Files.createDirectories(diretorio);
+    TreeMap<Long, Path> fotografias = new TreeMap<>();
+    TreeMap<Long, Path> diarios = new TreeMap<>();
+    try (Stream<Path> lista = Files.list(diretorio)) {
+      for (Path arquivo : (Iterable<Path>) lista::iterator) {
+        String nome = arquivo.getFileName().toString();
+        if (nome.matches("estado-\\d{20}\\.snap")) {
+          fotografias.put(Long.parseLong(nome.substring(7, 27)), arquivo);
+        } else if (nome.matches("diario-\\d{20}\\.wal")) {
+          diarios.put(Long.parseLong(nome.substring(7, 27)), arquivo);
+        } else if (nome.endsWith(".novo")) {
+          Files.deleteIfExists(arquivo);
+        }
+      }
+    }
+
+    long inicio = 0;
+    for (Map.Entry<Long, Path> fotografia : fotografias.descendingMap().entrySet()) {
+      try {
+        lerFotografia(fotografia.getValue());
+        inicio = fotografia.getKey();
+        break;
+      } catch (IOException e) {
+        LogConsole.erro("Fotografia dos grupos ignorada: ", e.getMessage());
+        descartarGrupos();
+      }
+    }
+    int reaplicados = 0;
+    for (Map.Entry<Long, Path> arquivo : diarios.tailMap(inicio, true).entrySet()) {
+      reaplicados += reaplicar(arquivo.getValue());
+    }
+
+    geracao = Math.max(inicio, diarios.isEmpty() ? 0 : diarios.lastKey()) + 1;
+    diario = abrirDiario(geracao);
+    registrosNoDiario = reaplicados; // Força uma fotografia logo se houve muito a reaplicar.
+
+    executando = true;
+    threadFotografia = new Thread(this::executarFotografias, "estado-grupos");
+    threadFotografia.setDaemon(true);
+    threadFotografia.start();
+    return reaplicados;
+  }
+
+  // Lê uma fotografia mapeada em memória: [int MAGICO][long geração][int grupos], para cada grupo
+  // [texto nome][int membros][texto usuário...], e no fim o CRC32 de tudo o que vem antes.
+  private void lerFotografia(Path caminho) throws IOException {
+    MappedByteBuffer mapa;
+    try (FileChannel canal = FileChannel.open(caminho, StandardOpenOption.READ)) {
+      if (canal.size() < 20 || canal.size() > Integer.MAX_VALUE) {
+        throw new IOException("tamanho invalido: " + caminho);
+      }
+      mapa = canal.map(FileChannel.MapMode.READ_ONLY, 0, canal.size());
+    }
+    int fimDados = mapa.capacity() - 4;
+    CRC32 crc = new CRC32();
+    crc.update(mapa.slice(0, fimDados));
+    if ((int) crc.getValue() != mapa.getInt(fimDados) || mapa.getInt(0) != MAGICO) {
+      throw new IOException("fotografia corrompida: " + caminho);
+    }
+    ByteBuffer leitura = mapa.slice(0, fimDados);
+    leitura.position(12);
+    int quantidadeGrupos = leitura.getInt();
+    for (int i = 0; i < quantidadeGrupos; i++) {
+      Grupo grupo = new Grupo(lerTexto(leitura));
+      Usuario[] membros = new Usuario[leitura.getInt()];
+      for (int j = 0; j < membros.length; j++) {
+        membros[j] = usuarios.registrar(lerTexto(leitura));
+      }
+      grupo.adicionarMembros(membros);
+      grupos.put(grupo.getNome(), grupo);
+    }
+  }
+
+  // Desfaz o que uma fotografia corrompida chegou a carregar, inclusive os grupos de cada usuário.
+  private void descartarGrupos() {
+    for (Grupo grupo : grupos.values()) {
+      for (int membro : grupo.getMembros()) {
+        grupo.removerMembro(usuarios.porId(membro));
+      }
+    }
+    grupos.clear();
+  }
+
+  // Reaplica um diário; um registro incompleto ou corrompido no fim (queda durante a escrita) encerra a leitura.
+  private int reaplicar(Path caminho) throws IOException {
+    ByteBuffer conteudo = ByteBuffer.wrap(Files.readAllBytes(caminho));
+    int reaplicados = 0;
+    while (conteudo.remaining() >= CABECALHO_REGISTRO) {
+      int inicio = conteudo.position();
+      int tamanho = conteudo.getInt(inicio);
+      if (tamanho <= 0 || inicio + CABECALHO_REGISTRO + tamanho > conteudo.limit()) {
+        break;
+      }
+      ByteBuffer dados = conteudo.slice(inicio + CABECALHO_REGISTRO, tamanho);
+      CRC32 crc = new CRC32();
+      crc.update(conteudo.get(inicio + 8));
+      crc.update(dados.duplicate());
+      if ((int) crc.getValue() != conteudo.getInt(inicio + 4)) {
+        break;
+      }
+      aplicar(conteudo.get(inicio + 8), dados);
+      reaplicados++;
+      conteudo.position(inicio + CABECALHO_REGISTRO + tamanho);
+    }
+    return reaplicados;
+  }
+
+  // Aplica um registro do diário ao mapa de grupos.
+  private void aplicar(byte tipo, ByteBuffer dados) {
+    String nomeGrupo = lerTexto(dados);
+    switch (tipo) {
+      case REGISTRO_CRIAR:
+        grupos.putIfAbsent(nomeGrupo, new Grupo(nomeGrupo));
+        break;
+      case REGISTRO_ENTRAR:
+        grupos.computeIfAbsent(nomeGrupo, Grupo::new).adicionarMembro(usuarios.registrar(lerTexto(dados)));
+        break;
+      case REGISTRO_SAIR:
+        Grupo grupo = grupos.get(nomeGrupo);
+        if (grupo != null) {
+          grupo.removerMembro(usuarios.registrar(lerTexto(dados)));
+        }
+        break;
+      default:
+        break;
+    }
+  }
+
+  // Registra a criação de um grupo (depois de colocá-lo no mapa).
+  public void registrarCriacao(String nomeGrupo) {
+    registrar(REGISTRO_CRIAR, nomeGrupo, null);
+  }
+
+  // Registra a entrada de um usuário num grupo (depois de adicioná-lo ao grupo).
+  public void registrarEntrada(String nomeGrupo, String usuario) {
+    registrar(REGISTRO_ENTRAR, nomeGrupo, usuario);
+  }
+
+  // Acrescenta um registro ao diário. A escrita vai para o cache de páginas do sistema; a thread de
+  // fotografias a persiste a cada INTERVALO_FSYNC_MS.
+  private void registrar(byte tipo, String nomeGrupo, String usuario) {
+    byte[] grupo = nomeGrupo.getBytes(StandardCharsets.UTF_8);
+    byte[] membro = usuario == null ? new byte[0] : usuario.getBytes(StandardCharsets.UTF_8);
+    int tamanho = 2 + grupo.length + (usuario == null ? 0 : 2 + membro.length);
+    ByteBuffer registro = ByteBuffer.allocate(CABECALHO_REGISTRO + tamanho);
+    registro.position(CABECALHO_REGISTRO);
+    registro.putShort((short) grupo.length).put(grupo);
+    if (usuario != null) {
+      registro.putShort((short) membro.length).put(membro);
+    }
+    CRC32 crc = new CRC32();
+    crc.update(tipo);
+    crc.update(registro.array(), CABECALHO_REGISTRO, tamanho);
+    registro.putInt(0, tamanho).putInt(4, (int) crc.getValue()).put(8, tipo);
+    registro.flip();
+    synchronized (this) {
+      try {
+        while (registro.hasRemaining()) {
+          diario.write(registro);
+        }
+        registrosNoDiario++;
+        diarioSujo = true;
+      } catch (IOException e) {
+        LogConsole.erro("Erro ao gravar diario dos grupos: ", e.getMessage());
+      }
+    }
+  }
+
+  // Loop da thread de fotografias: persiste o diário e tira uma fotografia quando ele cresce.
+  private void executarFotografias() {
+    while (executando) {
+      boolean fotografar;
+      synchronized (this) {
+        try {
+          wait(INTERVALO_FSYNC_MS);
+        } catch (InterruptedException e) {
+          return;
+        }
+        fotografar = registrosNoDiario >= REGISTROS_POR_FOTOGRAFIA;
+        persistirDiario();
+      }
+      if (fotografar && executando) {
+        fotografar();
+      }
+    }
+  }
+
+  // Força o diário no disco se houve escrita (chamado com o lock).
+  private void persistirDiario() {
+    if (!diarioSujo) {
+      return;
+    }
+    try {
+      diario.force(false);
+      diarioSujo = false;
+    } catch (IOException e) {
+      LogConsole.erro("Erro ao persistir diario dos grupos: ", e.getMessage());
+    }
+  }
+
+  // Troca de diário e grava a fotografia do mapa vivo com a geração do diário novo; depois apaga
+  // as fotografias e os diários que ela substitui.
+  private void fotografar() {
+    long geracaoFotografia;
+    synchronized (this) {
+      try {
+        persistirDiario();
+        FileChannel novo = abrirDiario(geracao + 1);
+        diario.close();
+        diario = novo;
+        geracao++;
+        registrosNoDiario = 0;
+      } catch (IOException e) {
+        LogConsole.erro("Erro ao trocar diario dos grupos: ", e.getMessage());
+        return;
+      }
+      geracaoFotografia = geracao;
+    }
+
+    Path caminho = diretorio.resolve(String.format("estado-%020d.snap", geracaoFotografia));
+    Path temporario = diretorio.resolve(caminho.getFileName() + ".novo");
+    try {
+      try (FileChannel canal = FileChannel.open(temporario, StandardOpenOption.CREATE,
+          StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+        CRC32 crc = new CRC32();
+        DataOutputStream saida = new DataOutputStream(new CheckedOutputStream(
+            new BufferedOutputStream(Channels.newOutputStream(canal), 1 << 16), crc));
+        List<Grupo> copia = new ArrayList<>(grupos.values());
+        saida.writeInt(MAGICO);
+        saida.writeLong(geracaoFotografia);
+        saida.writeInt(copia.size());
+        for (Grupo grupo : copia) {
+          escreverTexto(saida, grupo.getNome());
+          int[] membros = grupo.getMembros();
+          saida.writeInt(membros.length);
+          for (int membro : membros) {
+            escreverTexto(saida, usuarios.porId(membro).getNome());
+          }
+        }
+        saida.flush();
+        new DataOutputStream(Channels.newOutputStream(canal)).writeInt((int) crc.getValue());
+        canal.force(true);
+      }
+      Files.move(temporario, caminho, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+      apagarAnteriores(geracaoFotografia);
+    } catch (IOException e) {
+      LogConsole.erro("Erro ao gravar fotografia dos grupos: ", e.getMessage());
+    }
+  }
+
+  // Apaga as fotografias e os diários anteriores à geração indicada.
+  private void apagarAnteriores(long geracaoFotografia) throws IOException {
+    try (Stream<Path> lista = Files.list(diretorio)) {
+      for (Path arquivo : (Iterable<Path>) lista::iterator) {
+        String nome = arquivo.getFileName().toString();
+        if ((nome.matches("estado-\\d{20}\\.snap") || nome.matches("diario-\\d{20}\\.wal"))
+            && Long.parseLong(nome.substring(7, 27)) < geracaoFotografia) {
+          Files.deleteIfExists(arquivo);
+        }
+      }
+    }
+  }
+
+  // Abre (criando) o diário da geração indicada para acréscimo.
+  private FileChannel abrirDiario(long geracaoDiario) throws IOException {
+    return FileChannel.open(diretorio.resolve(String.format("diario-%020d.wal", geracaoDiario)),
+        StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+  }
+
+  // Escreve um texto como short(tamanho) + UTF-8.
+  private static void escreverTexto(DataOutputStream saida, String texto) throws IOException {
+    byte[] bytes = texto.getBytes(StandardCharsets.UTF_8);
+    saida.writeShort(bytes.length);
+    saida.write(bytes);
+  }
+
+  // Lê um texto escrito como short(tamanho) + UTF-8.
+  private static String lerTexto(ByteBuffer origem) {
+    byte[] bytes = new byte[origem.getShort() & 0xFFFF];
+    origem.get(bytes);
+    return new String(bytes, StandardCharsets.UTF_8);
+  }
+
+  // Tira a fotografia final (a próxima partida não precisa reaplicar nada) e fecha o diário.
+  public void fechar() {
+    if (!executando) {
+      return;
+    }
+    executando = false;
+    synchronized (this) {
+      notifyAll();
+    }
+    try {
+      threadFotografia.join(2000);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    fotografar();
+    synchronized (this) {
+      try {
+        diario.close();
+      } catch (IOException e) {
+        LogConsole.erro("Erro ao fechar diario dos grupos: ", e.getMessage());
+      }
+    }
+  }
+}
@@ -0,0 +1,61 @@
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.function.Consumer;
+
+// Endpoint HTTP das métricas no formato de texto do Prometheus (GET /metrics). Escuta só no endereço de
+// loopback, numa thread própria do servidor HTTP do JDK: as threads dos reatores nunca o atendem.
+public class ExportadorMetricas {
+  private static final String TIPO_CONTEUDO = "text/plain; version=0.0.4; charset=utf-8";
+
+  private final HttpServer http;
+  private final Consumer<StringBuilder> fonte; // Escreve o texto das métricas.
+
+  // Construtor da classe ExportadorMetricas; a porta já fica reservada aqui.
+  public ExportadorMetricas(int porta, Consumer<StringBuilder> fonte) throws IOException {
+    this.fonte = fonte;
+    this.http = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), porta), 0);
+    http.createContext("/metrics", this::responder);
+  }
+
+  public void iniciar() {
+    http.start();
+  }
+
+  public void parar() {
+    http.stop(0);
+  }
+
+  // Atende um pedido: só GET (ou HEAD) de /metrics.
+  private void responder(HttpExchange troca) throws IOException {
+    try {
+      String metodo = troca.getRequestMethod();
+      if (!metodo.equals("GET") && !metodo.equals("HEAD")) {
+        troca.sendResponseHeaders(405, -1);
+        return;
+      }
+      StringBuilder texto = new StringBuilder(16 * 1024);
+      fonte.accept(texto);
+      byte[] corpo = texto.toString().getBytes(StandardCharsets.UTF_8);
+      troca.getResponseHeaders().set("Content-Type", TIPO_CONTEUDO);
+      if (metodo.equals("HEAD")) {
+        troca.sendResponseHeaders(200, -1);
+        return;
+      }
+      troca.sendResponseHeaders(200, corpo.length);
+      try (OutputStream saida = troca.getResponseBody()) {
+        saida.write(corpo);
+      }
+    } finally {
+      troca.close();
+    }
+  }
+
+  public int getPorta() {
+    return http.getAddress().getPort();
+  }
+}
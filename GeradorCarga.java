@@ -0,0 +1,632 @@
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.CRC32;
+
+// Gerador de carga sem interface: simula milhares de usuários com poucas threads, cada uma com um Selector
+// próprio e uma roda de temporizadores que agenda as ações dos seus usuários. Os quadros são os mesmos do
+// Cliente (CodecMensagem, formato binário). A latência é medida de ponta a ponta: a mensagem leva o momento
+// planejado do envio e quem a recebe registra a diferença. Medir a partir do momento planejado, e não do
+// envio de fato, evita esconder os atrasos do próprio gerador (omissão coordenada).
+//
+// Cenários (-Dcarga.cenario):
+// - PRIVADO: cada usuário manda mensagens privadas para outros usuários sorteados.
+// - GRUPO: os usuários são divididos em grupos de -Dcarga.tamanhoGrupo e cada um manda mensagens ao seu.
+// - ARQUIVO: cada usuário envia arquivos de -Dcarga.arquivoBytes ao usuário seguinte, um de cada vez.
+// - ROTATIVIDADE: os usuários entram, ficam conectados por um tempo sorteado, saem e voltam.
+//
+// Uso: java -Dchat.servidor=localhost -Dcarga.cenario=GRUPO -Dcarga.usuarios=2000 Cliente --carga
+public class GeradorCarga {
+  public enum Cenario {
+    PRIVADO,
+    GRUPO,
+    ARQUIVO,
+    ROTATIVIDADE
+  }
+
+  // Fases da execução: só as ações da MEDICAO contam; na DRENAGEM nada é enviado, mas as entregas ainda
+  // em trânsito são registradas.
+  private enum Fase {
+    PREPARO,
+    MEDICAO,
+    DRENAGEM,
+    FIM
+  }
+
+  private static final Cenario CENARIO = Cenario.valueOf(System.getProperty("carga.cenario", "PRIVADO"));
+  private static final int USUARIOS = Math.max(2, Integer.getInteger("carga.usuarios", 1000));
+  private static final int THREADS = Integer.getInteger("carga.threads", 4);
+  private static final long DURACAO_MS = Long.getLong("carga.duracaoS", 30) * 1000;
+  // Ações por segundo de cada usuário: mensagens, arquivos ou (na ROTATIVIDADE) nada.
+  private static final double TAXA = Double.parseDouble(System.getProperty("carga.taxa", "1"));
+  private static final int TAMANHO_MENSAGEM = Integer.getInteger("carga.tamanho", 100); // Caracteres.
+  private static final int TAMANHO_GRUPO = Integer.getInteger("carga.tamanhoGrupo", 20);
+  private static final int ARQUIVO_BYTES = Integer.getInteger("carga.arquivoBytes", 1024 * 1024);
+  private static final long PERMANENCIA_MS = Long.getLong("carga.permanenciaMs", 2000); // Média na ROTATIVIDADE.
+  private static final String PREFIXO = System.getProperty("carga.prefixo",
+      "c" + Long.toString(System.currentTimeMillis() % 100000000, 36)); // Nomes novos a cada execução.
+  private static final long PREPARO_MS = 60000; // Espera máxima pelos logins e grupos antes de medir.
+  private static final long DRENAGEM_MS = 2000;
+  private static final long TICK_MS = 1; // Resolução das rodas dos trabalhadores.
+
+  private final Trabalhador[] trabalhadores;
+  private final AtomicInteger prontos = new AtomicInteger(); // Usuários logados e com o preparo feito.
+  private volatile Fase fase = Fase.PREPARO;
+  private volatile long inicioMedicao; // System.nanoTime() do início da medição.
+  private final String preenchimento; // Completa o conteúdo das mensagens até TAMANHO_MENSAGEM.
+  private final ByteBuffer dadosArquivo; // Conteúdo enviado nos arquivos, compartilhado por todos.
+  private final long checksumArquivo;
+
+  // Contadores globais, mostrados a cada segundo.
+  private final LongAdder enviados = new LongAdder();
+  private final LongAdder entregues = new LongAdder();
+  private final LongAdder erros = new LongAdder();
+  private final LongAdder quedas = new LongAdder();
+
+  // Construtor da classe GeradorCarga.
+  public GeradorCarga() {
+    trabalhadores = new Trabalhador[Math.max(1, THREADS)];
+    preenchimento = "x".repeat(Math.max(0, TAMANHO_MENSAGEM - 21));
+    byte[] dados = new byte[CENARIO == Cenario.ARQUIVO ? ARQUIVO_BYTES : 0];
+    ThreadLocalRandom.current().nextBytes(dados);
+    CRC32 crc = new CRC32();
+    crc.update(dados);
+    checksumArquivo = crc.getValue();
+    dadosArquivo = ByteBuffer.allocateDirect(dados.length).put(dados).flip();
+  }
+
+  // Executa o cenário: prepara os usuários, mede por DURACAO_MS, espera as entregas em trânsito e
+  // mostra o relatório.
+  public void executar() throws IOException, InterruptedException {
+    System.out.println("Carga: cenario=" + CENARIO + ", usuarios=" + USUARIOS + ", threads=" + trabalhadores.length
+        + ", taxa=" + TAXA + "/s por usuario, servidor=" + Cliente.ENDERECO_SERVIDOR + ":" + Cliente.PORTA_SERVIDOR);
+    for (int i = 0; i < trabalhadores.length; i++) {
+      trabalhadores[i] = new Trabalhador(this, i);
+    }
+    for (int i = 0; i < USUARIOS; i++) {
+      trabalhadores[i % trabalhadores.length].adicionar(i);
+    }
+    for (Trabalhador trabalhador : trabalhadores) {
+      trabalhador.iniciar();
+    }
+
+    long inicio = System.nanoTime();
+    long limite = inicio + PREPARO_MS * 1_000_000;
+    while (prontos.get() < USUARIOS && System.nanoTime() < limite) {
+      Thread.sleep(10);
+    }
+    System.out.println("Preparo: " + prontos.get() + "/" + USUARIOS + " usuarios prontos em "
+        + (System.nanoTime() - inicio) / 1_000_000 + " ms");
+
+    inicioMedicao = System.nanoTime();
+    fase = Fase.MEDICAO;
+    long anteriorEnviados = 0;
+    long anteriorEntregues = 0;
+    for (long segundo = 1; segundo * 1000 <= DURACAO_MS; segundo++) {
+      Thread.sleep(Math.max(0, inicioMedicao / 1_000_000 + segundo * 1000 - System.nanoTime() / 1_000_000));
+      long totalEnviados = enviados.sum();
+      long totalEntregues = entregues.sum();
+      System.out.println("t=" + segundo + "s enviados=" + (totalEnviados - anteriorEnviados) + "/s entregues="
+          + (totalEntregues - anteriorEntregues) + "/s erros=" + erros.sum() + " quedas=" + quedas.sum());
+      anteriorEnviados = totalEnviados;
+      anteriorEntregues = totalEntregues;
+    }
+    Thread.sleep(Math.max(0, inicioMedicao / 1_000_000 + DURACAO_MS - System.nanoTime() / 1_000_000));
+    fase = Fase.DRENAGEM;
+    Thread.sleep(DRENAGEM_MS);
+    fase = Fase.FIM;
+    for (Trabalhador trabalhador : trabalhadores) {
+      trabalhador.parar();
+    }
+    relatar();
+  }
+
+  // Soma os histogramas dos trabalhadores e mostra o resultado da medição.
+  private void relatar() {
+    Histograma entrega = new Histograma();
+    Histograma confirmacao = new Histograma();
+    Histograma login = new Histograma();
+    Histograma envioArquivo = new Histograma();
+    for (Trabalhador trabalhador : trabalhadores) {
+      entrega.somar(trabalhador.entrega);
+      confirmacao.somar(trabalhador.confirmacao);
+      login.somar(trabalhador.login);
+      envioArquivo.somar(trabalhador.envioArquivo);
+    }
+    double segundos = DURACAO_MS / 1000.0;
+    System.out.println("Resultado (" + CENARIO + ", " + (long) segundos + " s):");
+    System.out.printf("  enviados=%d (%.1f/s), entregues=%d (%.1f/s), erros=%d, quedas=%d%n", enviados.sum(),
+        enviados.sum() / segundos, entregues.sum(), entregues.sum() / segundos, erros.sum(), quedas.sum());
+    System.out.println("  entrega (envio -> destinatario): " + entrega.resumo());
+    System.out.println("  confirmacao (envio -> SUCESSO): " + confirmacao.resumo());
+    System.out.println("  login (conexao -> SUCESSO): " + login.resumo());
+    System.out.println("  arquivo (inicio -> SUCESSO): " + envioArquivo.resumo());
+  }
+
+  // Intervalo até a próxima ação de um usuário: chegadas de Poisson na taxa configurada.
+  private static long intervaloNs(double taxa) {
+    return (long) (-Math.log(1 - ThreadLocalRandom.current().nextDouble()) / taxa * 1e9);
+  }
+
+  // Thread com um Selector e uma roda de temporizadores, dona de uma fatia dos usuários simulados.
+  private static final class Trabalhador implements Runnable {
+    private final GeradorCarga gerador;
+    private final int id;
+    private final Selector seletor;
+    private final RodaTemporizadores roda;
+    private final List<Simulado> simulados = new ArrayList<>();
+    private Thread thread;
+    private long agora; // Momento (ms) da volta atual do loop.
+    private boolean medindo; // Já agendou as ações da medição.
+
+    // Histogramas desta thread (ns), somados no fim.
+    private final Histograma entrega = new Histograma();
+    private final Histograma confirmacao = new Histograma();
+    private final Histograma login = new Histograma();
+    private final Histograma envioArquivo = new Histograma();
+
+    Trabalhador(GeradorCarga gerador, int id) throws IOException {
+      this.gerador = gerador;
+      this.id = id;
+      this.seletor = Selector.open();
+      this.agora = relogio();
+      this.roda = new RodaTemporizadores(agora, TICK_MS);
+    }
+
+    void adicionar(int indice) {
+      simulados.add(new Simulado(this, indice));
+    }
+
+    void iniciar() {
+      thread = new Thread(this, "carga-" + id);
+      thread.start();
+    }
+
+    void parar() throws InterruptedException {
+      seletor.wakeup();
+      thread.join();
+    }
+
+    @Override
+    public void run() {
+      for (Simulado simulado : simulados) {
+        conectar(simulado);
+      }
+      while (gerador.fase != Fase.FIM) {
+        try {
+          seletor.select(roda.esperaMs(agora));
+        } catch (IOException e) {
+          System.err.println("Erro no trabalhador " + id + ": " + e.getMessage());
+          break;
+        }
+        agora = relogio();
+        if (!medindo && gerador.fase == Fase.MEDICAO) {
+          medindo = true;
+          for (Simulado simulado : simulados) {
+            agendarPrimeiraAcao(simulado);
+          }
+        }
+
+        for (SelectionKey chave : seletor.selectedKeys()) {
+          Simulado simulado = (Simulado) chave.attachment();
+          try {
+            if (chave.isConnectable()) {
+              simulado.canal.finishConnect();
+              chave.interestOps(SelectionKey.OP_READ);
+              aoConectar(simulado);
+            }
+            if (chave.isValid() && chave.isReadable()) {
+              ler(simulado);
+            }
+            if (chave.isValid() && chave.isWritable()) {
+              escrever(simulado);
+            }
+          } catch (IOException e) {
+            cair(simulado);
+          }
+        }
+        seletor.selectedKeys().clear();
+        roda.avancar(agora);
+      }
+      encerrar();
+    }
+
+    // Abre a conexão do usuário sem bloquear; o LOGIN sai quando ela completar.
+    private void conectar(Simulado simulado) {
+      simulado.limpar();
+      simulado.inicioLogin = System.nanoTime();
+      try {
+        simulado.canal = SocketChannel.open();
+        simulado.canal.configureBlocking(false);
+        simulado.canal.socket().setTcpNoDelay(true);
+        int interesse = simulado.canal.connect(new InetSocketAddress(Cliente.ENDERECO_SERVIDOR,
+            Cliente.PORTA_SERVIDOR)) ? SelectionKey.OP_READ : SelectionKey.OP_CONNECT;
+        simulado.chave = simulado.canal.register(seletor, interesse, simulado);
+        if (interesse == SelectionKey.OP_READ) {
+          aoConectar(simulado);
+        }
+      } catch (IOException e) {
+        cair(simulado);
+      }
+    }
+
+    private void aoConectar(Simulado simulado) throws IOException {
+      enviar(simulado, new Mensagem(Mensagem.TipoMensagem.LOGIN, simulado.nome));
+    }
+
+    // A conexão caiu ou não abriu: tenta de novo daqui a pouco.
+    private void cair(Simulado simulado) {
+      gerador.quedas.increment();
+      fechar(simulado);
+      if (gerador.fase == Fase.PREPARO || gerador.fase == Fase.MEDICAO) {
+        simulado.reconectar = true;
+        roda.agendar(simulado.temporizador, agora, 500);
+      }
+    }
+
+    private void fechar(Simulado simulado) {
+      simulado.logado = false;
+      if (simulado.canal != null) {
+        try {
+          simulado.canal.close();
+        } catch (IOException e) {
+          // Canal já está inválido.
+        }
+      }
+      roda.cancelar(simulado.temporizador);
+    }
+
+    // Primeira ação da medição, sorteada dentro de um intervalo para os usuários não agirem juntos.
+    private void agendarPrimeiraAcao(Simulado simulado) {
+      if (CENARIO == Cenario.ROTATIVIDADE) {
+        if (simulado.logado) {
+          roda.agendar(simulado.temporizador, agora, ThreadLocalRandom.current().nextLong(2 * PERMANENCIA_MS + 1));
+        }
+        return;
+      }
+      simulado.proximaAcao = gerador.inicioMedicao + ThreadLocalRandom.current().nextLong((long) (1e9 / TAXA) + 1);
+      agendarProximaAcao(simulado);
+    }
+
+    private void agendarProximaAcao(Simulado simulado) {
+      roda.agendar(simulado.temporizador, agora, Math.max(0, (simulado.proximaAcao - System.nanoTime()) / 1_000_000));
+    }
+
+    // Temporizador do usuário venceu: reconectar, enviar uma mensagem, começar um arquivo ou sair.
+    private void agir(Simulado simulado) {
+      if (simulado.reconectar) {
+        simulado.reconectar = false;
+        conectar(simulado);
+        return;
+      }
+      if (gerador.fase != Fase.MEDICAO || !simulado.logado) {
+        return;
+      }
+      try {
+        switch (CENARIO) {
+          case PRIVADO:
+          case GRUPO:
+            // Enviar tudo o que já devia ter saído: atrasos do gerador aparecem na latência.
+            long agoraNs = System.nanoTime();
+            while (simulado.proximaAcao <= agoraNs) {
+              enviarMensagem(simulado, simulado.proximaAcao);
+              simulado.proximaAcao += intervaloNs(TAXA);
+            }
+            agendarProximaAcao(simulado);
+            break;
+          case ARQUIVO:
+            if (simulado.inicioArquivo == 0) {
+              enviarArquivo(simulado, simulado.proximaAcao);
+            }
+            break;
+          case ROTATIVIDADE:
+            enviar(simulado, new Mensagem(Mensagem.TipoMensagem.LOGOUT, simulado.nome));
+            fechar(simulado);
+            simulado.reconectar = true;
+            roda.agendar(simulado.temporizador, agora, ThreadLocalRandom.current().nextLong(PERMANENCIA_MS / 4 + 1));
+            break;
+        }
+      } catch (IOException e) {
+        cair(simulado);
+      }
+    }
+
+    // Mensagem privada para um usuário sorteado ou para o grupo, levando o momento planejado do envio.
+    private void enviarMensagem(Simulado simulado, long planejado) throws IOException {
+      Mensagem mensagem;
+      if (CENARIO == Cenario.GRUPO) {
+        mensagem = new Mensagem(Mensagem.TipoMensagem.MENSAGEM_GRUPO, simulado.nome);
+        mensagem.setNomeGrupo(simulado.grupo);
+      } else {
+        int destino = ThreadLocalRandom.current().nextInt(USUARIOS - 1);
+        mensagem = new Mensagem(Mensagem.TipoMensagem.MENSAGEM_PRIVADA, simulado.nome);
+        mensagem.setDestinatario(nome(destino >= simulado.indice ? destino + 1 : destino));
+      }
+      mensagem.setConteudo("#" + planejado + "#" + gerador.preenchimento);
+      simulado.confirmacoes.addLast(planejado);
+      enviar(simulado, mensagem);
+      gerador.enviados.increment();
+    }
+
+    // Envia um arquivo ao usuário seguinte: ARQUIVO_INICIO, as partes (cabeçalho e bytes brutos) e ARQUIVO_FIM.
+    private void enviarArquivo(Simulado simulado, long planejado) throws IOException {
+      long id = ++simulado.transferencias;
+      simulado.inicioArquivo = planejado;
+      Mensagem inicio = new Mensagem(Mensagem.TipoMensagem.ARQUIVO_INICIO, simulado.nome);
+      inicio.setIdTransferencia(id);
+      inicio.setDestinatario(nome((simulado.indice + 1) % USUARIOS));
+      inicio.setNomeArquivo("carga-" + id + ".bin");
+      inicio.setTamanhoArquivo(ARQUIVO_BYTES);
+      enviar(simulado, inicio);
+      for (int deslocamento = 0; deslocamento < ARQUIVO_BYTES; deslocamento += Transferencia.TAMANHO_PARTE) {
+        int tamanho = Math.min(Transferencia.TAMANHO_PARTE, ARQUIVO_BYTES - deslocamento);
+        Mensagem parte = new Mensagem(Mensagem.TipoMensagem.ARQUIVO_PARTE, simulado.nome);
+        parte.setIdTransferencia(id);
+        parte.setDeslocamento(deslocamento);
+        parte.setTamanhoDados(tamanho);
+        simulado.saida.addLast(CodecMensagem.codificarQuadro(parte, CodecMensagem.Formato.BINARIO));
+        simulado.saida.addLast(gerador.dadosArquivo.duplicate().position(deslocamento).limit(deslocamento + tamanho));
+      }
+      Mensagem fim = new Mensagem(Mensagem.TipoMensagem.ARQUIVO_FIM, simulado.nome);
+      fim.setIdTransferencia(id);
+      fim.setTamanhoArquivo(ARQUIVO_BYTES);
+      fim.setChecksum(gerador.checksumArquivo);
+      enviar(simulado, fim);
+      gerador.enviados.increment();
+    }
+
+    // Coloca o quadro na fila de saída do usuário e tenta escrever na hora.
+    private void enviar(Simulado simulado, Mensagem mensagem) throws IOException {
+      simulado.saida.addLast(CodecMensagem.codificarQuadro(mensagem, CodecMensagem.Formato.BINARIO));
+      escrever(simulado);
+    }
+
+    // Escreve a fila de saída até esvaziar ou o socket encher; aí espera o OP_WRITE.
+    private void escrever(Simulado simulado) throws IOException {
+      if (simulado.canal == null || !simulado.canal.isConnected()) {
+        return; // O LOGIN e o resto saem quando a conexão completar.
+      }
+      ByteBuffer buffer;
+      while ((buffer = simulado.saida.peekFirst()) != null) {
+        simulado.canal.write(buffer);
+        if (buffer.hasRemaining()) {
+          simulado.chave.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+          return;
+        }
+        simulado.saida.pollFirst();
+      }
+      simulado.chave.interestOps(SelectionKey.OP_READ);
+    }
+
+    // Lê o que chegou e trata os quadros completos; os bytes brutos das partes de arquivo são pulados.
+    private void ler(Simulado simulado) throws IOException {
+      ByteBuffer leitura = simulado.leitura;
+      if (simulado.canal.read(leitura) < 0) {
+        throw new EOFException();
+      }
+      leitura.flip();
+      while (simulado.canal.isOpen()) { // Um login recusado fecha a conexão no meio do lote.
+        if (simulado.ignorar > 0) {
+          int pular = (int) Math.min(simulado.ignorar, leitura.remaining());
+          leitura.position(leitura.position() + pular);
+          simulado.ignorar -= pular;
+          if (simulado.ignorar > 0) {
+            break;
+          }
+        }
+        if (simulado.tamanhoEsperado < 0) {
+          if (leitura.remaining() < 4) {
+            break;
+          }
+          simulado.tamanhoEsperado = leitura.getInt();
+        }
+        if (leitura.remaining() < simulado.tamanhoEsperado) {
+          break;
+        }
+        ByteBuffer payload = leitura.slice();
+        payload.limit(simulado.tamanhoEsperado);
+        leitura.position(leitura.position() + simulado.tamanhoEsperado);
+        simulado.tamanhoEsperado = -1;
+        tratar(simulado, CodecMensagem.decodificar(payload));
+      }
+      leitura.compact();
+      if (simulado.tamanhoEsperado > leitura.capacity()) {
+        // Quadro maior que o buffer: crescer como o Cliente faz.
+        ByteBuffer maior = ByteBuffer.allocate(simulado.tamanhoEsperado);
+        leitura.flip();
+        simulado.leitura = maior.put(leitura);
+      }
+    }
+
+    private void tratar(Simulado simulado, Mensagem mensagem) throws IOException {
+      long agoraNs = System.nanoTime();
+      switch (mensagem.getTipo()) {
+        case SUCESSO:
+        case ERRO:
+          if (!simulado.logado) {
+            if (mensagem.getSessao() != 0) {
+              aoLogar(simulado, agoraNs);
+            } else {
+              gerador.erros.increment();
+              cair(simulado); // Login recusado: tentar de novo.
+            }
+            break;
+          }
+          if (simulado.preparo > 0) {
+            // No GRUPO, a criação falha para todos os membros menos o primeiro: não conta como erro.
+            if (--simulado.preparo == 0) {
+              ficarPronto(simulado);
+            }
+            break;
+          }
+          if (mensagem.getTipo() == Mensagem.TipoMensagem.ERRO) {
+            gerador.erros.increment();
+          }
+          if (CENARIO == Cenario.ARQUIVO && simulado.inicioArquivo != 0) {
+            if (mensagem.isSucesso() && simulado.inicioArquivo >= gerador.inicioMedicao) {
+              envioArquivo.registrar(agoraNs - simulado.inicioArquivo);
+            }
+            simulado.inicioArquivo = 0;
+            simulado.proximaAcao = Math.max(simulado.proximaAcao + intervaloNs(TAXA), agoraNs);
+            agendarProximaAcao(simulado);
+          } else if (!simulado.confirmacoes.isEmpty()) {
+            confirmacao.registrar(agoraNs - simulado.confirmacoes.pollFirst());
+          }
+          break;
+        case MENSAGEM_PRIVADA:
+        case MENSAGEM_GRUPO:
+          String conteudo = mensagem.getConteudo();
+          int fim = conteudo != null && conteudo.startsWith("#") ? conteudo.indexOf('#', 1) : -1;
+          if (fim > 0) {
+            long planejado = Long.parseLong(conteudo, 1, fim, 10);
+            if (planejado >= gerador.inicioMedicao && gerador.fase != Fase.PREPARO) {
+              entrega.registrar(agoraNs - planejado);
+              gerador.entregues.increment();
+            }
+          }
+          break;
+        case ARQUIVO_PARTE:
+          simulado.ignorar = mensagem.getTamanhoDados();
+          break;
+        case ARQUIVO_FIM:
+          if (mensagem.isSucesso() && gerador.fase != Fase.PREPARO) {
+            gerador.entregues.increment();
+          }
+          break;
+        case PING:
+          enviar(simulado, new Mensagem(Mensagem.TipoMensagem.PONG, simulado.nome));
+          break;
+        default:
+          break; // Presenças, avisos e quadros de arquivo não interessam à medição.
+      }
+    }
+
+    // Login aceito. No primeiro, o cenário GRUPO cria e entra no grupo do usuário; nos seguintes (depois de
+    // uma queda ou na ROTATIVIDADE) as participações já existem.
+    private void aoLogar(Simulado simulado, long agoraNs) throws IOException {
+      simulado.logado = true;
+      login.registrar(agoraNs - simulado.inicioLogin);
+      if (simulado.pronto) {
+        if (CENARIO == Cenario.ROTATIVIDADE && gerador.fase == Fase.MEDICAO) {
+          gerador.enviados.increment();
+          roda.agendar(simulado.temporizador, agora, (long) (-Math.log(1 - ThreadLocalRandom.current().nextDouble())
+              * PERMANENCIA_MS));
+        } else if (medindo && CENARIO != Cenario.ROTATIVIDADE) {
+          simulado.inicioArquivo = 0;
+          simulado.confirmacoes.clear();
+          simulado.proximaAcao = Math.max(simulado.proximaAcao, agoraNs);
+          agendarProximaAcao(simulado);
+        }
+        return;
+      }
+      if (CENARIO == Cenario.GRUPO) {
+        // Cada membro tenta criar o grupo (só o primeiro consegue) e depois entra: na mesma conexão, a
+        // criação é atendida antes da entrada.
+        Mensagem criar = new Mensagem(Mensagem.TipoMensagem.CRIAR_GRUPO, simulado.nome);
+        criar.setNomeGrupo(simulado.grupo);
+        Mensagem entrar = new Mensagem(Mensagem.TipoMensagem.ENTRAR_GRUPO, simulado.nome);
+        entrar.setNomeGrupo(simulado.grupo);
+        simulado.preparo = 2;
+        enviar(simulado, criar);
+        enviar(simulado, entrar);
+        return;
+      }
+      ficarPronto(simulado);
+    }
+
+    private void ficarPronto(Simulado simulado) {
+      simulado.pronto = true;
+      gerador.prontos.incrementAndGet();
+      if (medindo) {
+        agendarPrimeiraAcao(simulado);
+      }
+    }
+
+    // Fim da execução: LOGOUT de quem está conectado, sem esperar, e fecha tudo.
+    private void encerrar() {
+      for (Simulado simulado : simulados) {
+        if (simulado.logado) {
+          try {
+            simulado.canal.write(CodecMensagem.codificarQuadro(new Mensagem(Mensagem.TipoMensagem.LOGOUT,
+                simulado.nome), CodecMensagem.Formato.BINARIO));
+          } catch (IOException e) {
+            // A conexão já caiu.
+          }
+        }
+        fechar(simulado);
+      }
+      try {
+        seletor.close();
+      } catch (IOException e) {
+        System.err.println("Erro ao fechar o trabalhador " + id + ": " + e.getMessage());
+      }
+    }
+
+    private static long relogio() {
+      return System.nanoTime() / 1_000_000;
+    }
+  }
+
+  // Estado de um usuário simulado; usado só pela thread do seu trabalhador.
+  private static final class Simulado {
+    private final int indice;
+    private final String nome;
+    private final String grupo;
+    private final RodaTemporizadores.Temporizador temporizador;
+    private SocketChannel canal;
+    private SelectionKey chave;
+    private final ArrayDeque<ByteBuffer> saida = new ArrayDeque<>(); // Quadros esperando o socket.
+    private ByteBuffer leitura = ByteBuffer.allocate(4096);
+    private int tamanhoEsperado = -1; // Tamanho do quadro sendo lido, ou -1.
+    private long ignorar; // Bytes brutos de uma parte de arquivo ainda a pular.
+    private final ArrayDeque<Long> confirmacoes = new ArrayDeque<>(); // Envios esperando SUCESSO ou ERRO.
+    private boolean logado;
+    private boolean pronto; // Já fez o preparo (conta uma única vez em prontos).
+    private boolean reconectar; // O temporizador vai reabrir a conexão.
+    private int preparo; // Respostas do preparo que faltam.
+    private long inicioLogin; // Início da conexão (ns).
+    private long proximaAcao; // Momento planejado da próxima ação (ns).
+    private long inicioArquivo; // Momento planejado do arquivo em andamento (ns), ou 0.
+    private long transferencias; // Gerador dos ids das transferências.
+
+    Simulado(Trabalhador trabalhador, int indice) {
+      this.indice = indice;
+      this.nome = nome(indice);
+      this.grupo = PREFIXO + "-g" + indice / Math.max(1, TAMANHO_GRUPO);
+      this.temporizador = new RodaTemporizadores.Temporizador(() -> trabalhador.agir(this));
+    }
+
+    // Descarta o estado da conexão anterior.
+    void limpar() {
+      saida.clear();
+      leitura.clear();
+      tamanhoEsperado = -1;
+      ignorar = 0;
+    }
+  }
+
+  private static String nome(int indice) {
+    return PREFIXO + "-" + indice;
+  }
+
+  // Ponto de entrada do gerador (também usado por Cliente --carga).
+  public static void main(String[] args) {
+    try {
+      new GeradorCarga().executar();
+    } catch (IOException e) {
+      System.err.println("Erro no gerador de carga: " + e.getMessage());
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+}
@@ -1,44 +1,91 @@
-import java.util.HashSet;
-import java.util.Set;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.Arrays;
 
-// Classe para representar um grupo de chat.
+// Classe para representar um grupo de chat. Os membros são guardados pelo id do usuário e continuam
+// membros quando desconectam; cada Usuario mantém o conjunto inverso (os grupos de que participa).
+//
+// Os ids ficam num vetor ordenado que nunca é alterado: cada entrada ou saída publica um vetor novo
+// (copy-on-write). A difusão, bem mais frequente que as alterações, percorre o vetor atual sem trava
+// e sem alocar nada.
 public class Grupo {
-  private String nome;
-  private Set<String> membros;
+  private static final int[] VAZIO = new int[0];
+
+  private final String nome;
+  private volatile int[] membros = VAZIO; // Ids em ordem crescente.
 
   // Construtor da classe Grupo.
   public Grupo(String nome) {
     this.nome = nome;
-    this.membros = ConcurrentHashMap.newKeySet();
   }
 
   // Adiciona um membro ao grupo.
-  public synchronized boolean adicionarMembro(String usuario) {
-    return membros.add(usuario);
+  public synchronized boolean adicionarMembro(Usuario usuario) {
+    int[] atuais = membros;
+    int posicao = Arrays.binarySearch(atuais, usuario.getId());
+    if (posicao >= 0) {
+      return false;
+    }
+    posicao = -posicao - 1;
+    int[] novos = new int[atuais.length + 1];
+    System.arraycopy(atuais, 0, novos, 0, posicao);
+    novos[posicao] = usuario.getId();
+    System.arraycopy(atuais, posicao, novos, posicao + 1, atuais.length - posicao);
+    membros = novos;
+    usuario.entrouEm(this);
+    return true;
+  }
+
+  // Adiciona vários membros de uma vez, ordenando só uma vez (usado ao carregar uma fotografia).
+  public synchronized void adicionarMembros(Usuario[] usuarios) {
+    int[] novos = Arrays.copyOf(membros, membros.length + usuarios.length);
+    for (int i = 0; i < usuarios.length; i++) {
+      novos[membros.length + i] = usuarios[i].getId();
+    }
+    Arrays.sort(novos);
+    int distintos = 0;
+    for (int i = 0; i < novos.length; i++) {
+      if (i == 0 || novos[i] != novos[i - 1]) {
+        novos[distintos++] = novos[i];
+      }
+    }
+    membros = distintos == novos.length ? novos : Arrays.copyOf(novos, distintos);
+    for (Usuario usuario : usuarios) {
+      usuario.entrouEm(this);
+    }
   }
 
   // Remove um membro do grupo.
-  public synchronized boolean removerMembro(String usuario) {
-    return membros.remove(usuario);
+  public synchronized boolean removerMembro(Usuario usuario) {
+    int[] atuais = membros;
+    int posicao = Arrays.binarySearch(atuais, usuario.getId());
+    if (posicao < 0) {
+      return false;
+    }
+    int[] novos = new int[atuais.length - 1];
+    System.arraycopy(atuais, 0, novos, 0, posicao);
+    System.arraycopy(atuais, posicao + 1, novos, posicao, novos.length - posicao);
+    membros = novos;
+    usuario.saiuDe(this);
+    return true;
   }
 
-  // Verifica se um usuário é membro do grupo.
-  public synchronized boolean eMembro(String usuario) {
-    return membros.contains(usuario);
+  // Verifica se um usuário é membro do grupo (false para usuário desconhecido).
+  public boolean eMembro(Usuario usuario) {
+    return usuario != null && Arrays.binarySearch(membros, usuario.getId()) >= 0;
   }
 
   // Getters
-  public synchronized Set<String> getMembros() {
-    return new HashSet<>(membros);
+  // Ids dos membros em ordem crescente. O vetor é compartilhado e não deve ser alterado; uma entrada ou
+  // saída posterior não o muda, só publica outro.
+  public int[] getMembros() {
+    return membros;
   }
 
   public String getNome() {
     return nome;
   }
 
-  public synchronized int getTamanho() {
-    return membros.size();
+  public int getTamanho() {
+    return membros.length;
   }
 }
 
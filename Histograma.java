@@ -0,0 +1,108 @@
+import java.util.Locale;
+
+// Histograma de latências no estilo do HdrHistogram: faixas log-lineares com erro relativo máximo de
+// 1/METADE (menos de 1%), em memória fixa e sem alocação ao registrar. Os valores de 0 a SUB_FAIXAS - 1
+// têm uma faixa cada; daí em diante, cada potência de 2 é dividida em METADE faixas iguais. Os valores
+// são em nanossegundos, limitados a MAXIMO (cerca de 18 minutos).
+//
+// Não é sincronizado: cada thread registra no seu histograma, e os histogramas são somados no fim.
+public class Histograma {
+  private static final int BITS = 8;
+  private static final int SUB_FAIXAS = 1 << BITS;
+  private static final int METADE = SUB_FAIXAS / 2;
+  private static final int MAIOR_EXPOENTE = 40;
+  private static final long MAXIMO = (1L << MAIOR_EXPOENTE) - 1;
+
+  private final long[] contagens = new long[SUB_FAIXAS + (MAIOR_EXPOENTE - BITS) * METADE];
+  private long total;
+  private long soma;
+  private long minimo = Long.MAX_VALUE;
+  private long maximo;
+
+  // Registra um valor; negativos contam como 0 e os acima de MAXIMO, como MAXIMO.
+  public void registrar(long valor) {
+    valor = Math.max(0, Math.min(valor, MAXIMO));
+    contagens[indice(valor)]++;
+    total++;
+    soma += valor;
+    minimo = Math.min(minimo, valor);
+    maximo = Math.max(maximo, valor);
+  }
+
+  // Soma as contagens de outro histograma a este.
+  public void somar(Histograma outro) {
+    for (int i = 0; i < contagens.length; i++) {
+      contagens[i] += outro.contagens[i];
+    }
+    total += outro.total;
+    soma += outro.soma;
+    minimo = Math.min(minimo, outro.minimo);
+    maximo = Math.max(maximo, outro.maximo);
+  }
+
+  // Faixa do valor: as SUB_FAIXAS primeiras são exatas; depois, METADE faixas por potência de 2.
+  private static int indice(long valor) {
+    if (valor < SUB_FAIXAS) {
+      return (int) valor;
+    }
+    int expoente = 63 - Long.numberOfLeadingZeros(valor) - (BITS - 1); // Bits descartados (>= 1).
+    return SUB_FAIXAS + (expoente - 1) * METADE + (int) (valor >>> expoente) - METADE;
+  }
+
+  // Maior valor que cai na faixa (o valor equivalente mais alto, como no HdrHistogram).
+  private static long maiorDaFaixa(int indice) {
+    if (indice < SUB_FAIXAS) {
+      return indice;
+    }
+    int expoente = (indice - SUB_FAIXAS) / METADE + 1;
+    long mantissa = (indice - SUB_FAIXAS) % METADE + METADE;
+    return ((mantissa + 1) << expoente) - 1;
+  }
+
+  // Valor abaixo do qual (ou igual) estão pelo menos p% dos registros; 0 se o histograma está vazio.
+  public long percentil(double p) {
+    if (total == 0) {
+      return 0;
+    }
+    long alvo = Math.max(1, (long) Math.ceil(p / 100 * total));
+    long acumulado = 0;
+    for (int i = 0; i < contagens.length; i++) {
+      acumulado += contagens[i];
+      if (acumulado >= alvo) {
+        return Math.min(maiorDaFaixa(i), maximo);
+      }
+    }
+    return maximo;
+  }
+
+  // Resumo em milissegundos: quantidade, média, percentis e máximo.
+  public String resumo() {
+    if (total == 0) {
+      return "n=0";
+    }
+    return "n=" + total + ", media=" + ms(soma / total) + ", p50=" + ms(percentil(50)) + ", p90="
+        + ms(percentil(90)) + ", p99=" + ms(percentil(99)) + ", p99.9=" + ms(percentil(99.9)) + ", max="
+        + ms(maximo) + " ms";
+  }
+
+  private static String ms(long nanos) {
+    return String.format(Locale.ROOT, "%.3f", nanos / 1e6);
+  }
+
+  // Getters
+  public long getTotal() {
+    return total;
+  }
+
+  public long getMinimo() {
+    return total == 0 ? 0 : minimo;
+  }
+
+  public long getMaximo() {
+    return maximo;
+  }
+
+  public long getMedia() {
+    return total == 0 ? 0 : soma / total;
+  }
+}
@@ -0,0 +1,519 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.file.*;
+import java.text.Normalizer;
+import java.util.*;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+
+// Índice invertido para a busca de texto nas mensagens privadas e de grupo. O log entrega cada mensagem
+// gravada a uma fila; uma thread própria separa os termos e os acrescenta a um segmento em memória, que é
+// gravado em disco como um SegmentoBusca imutável quando cresce ou fica velho. Segmentos vizinhos são
+// juntados para manter poucos segmentos abertos. Nada disso roda nas threads dos reatores.
+//
+// Cada postagem guarda a posição da mensagem no log e a conversa (grupo ou par de usuários), de modo que a
+// busca filtra pelas conversas que o usuário pode ver sem ler as mensagens. Uma busca com vários termos
+// percorre a menor lista de trás para frente e procura cada posição nas demais por busca binária.
+// Na partida, o fim do log ainda não gravado em segmentos é indexado de novo.
+public class IndiceBusca implements LogMensagens.Ouvinte {
+  public static final int LIMITE_PADRAO = 20; // Resultados por página quando o pedido não informa.
+  public static final int LIMITE_MAXIMO = 100; // Maior página aceita.
+  private static final int POSTAGENS_POR_SEGMENTO =
+      Integer.getInteger("chat.busca.postagensPorSegmento", 500000); // Tamanho do segmento em memória.
+  private static final long INTERVALO_GRAVACAO_MS = 60000; // Idade máxima do segmento em memória.
+  private static final int MAXIMO_SEGMENTOS = 8; // Acima disso, segmentos vizinhos são juntados.
+  private static final int SEGMENTOS_POR_JUNCAO = 4;
+  private static final int TAMANHO_MINIMO_TERMO = 2;
+  private static final int TAMANHO_MAXIMO_TERMO = 40;
+  private static final Pattern SEPARADORES = Pattern.compile("[^\\p{L}\\p{N}]+");
+  private static final Pattern ACENTOS = Pattern.compile("\\p{M}+");
+  private static final String NOME_CONVERSAS = "conversas.dat";
+
+  // Mensagem esperando para ser indexada.
+  private static final class Indexacao {
+    final long posicao;
+    final Mensagem mensagem;
+
+    Indexacao(long posicao, Mensagem mensagem) {
+      this.posicao = posicao;
+      this.mensagem = mensagem;
+    }
+  }
+
+  // Postagens de um termo no segmento em memória. Só a thread de indexação acrescenta, e nunca altera
+  // as entradas já existentes: uma busca lê com segurança até o tamanho que viu sob o lock.
+  private static final class ListaPostagens {
+    long[] posicoes = new long[4];
+    int[] conversas = new int[4];
+    int tamanho;
+
+    void adicionar(long posicao, int conversa) {
+      if (tamanho == posicoes.length) {
+        posicoes = Arrays.copyOf(posicoes, tamanho * 2);
+        conversas = Arrays.copyOf(conversas, tamanho * 2);
+      }
+      posicoes[tamanho] = posicao;
+      conversas[tamanho] = conversa;
+      tamanho++;
+    }
+
+    // Visão das postagens existentes agora.
+    SegmentoBusca.Postagens fatia() {
+      long[] p = posicoes;
+      int[] c = conversas;
+      int t = tamanho;
+      return new SegmentoBusca.Postagens() {
+        @Override
+        public int tamanho() {
+          return t;
+        }
+
+        @Override
+        public long posicao(int i) {
+          return p[i];
+        }
+
+        @Override
+        public int conversa(int i) {
+          return c[i];
+        }
+      };
+    }
+  }
+
+  private final Path diretorio;
+  private final LogMensagens log;
+  private final BlockingQueue<Indexacao> fila;
+  private final Map<String, Integer> idsConversas; // Chave da conversa (IndiceHistorico) -> id.
+  private final Map<String, List<Integer>> privadasPorUsuario; // Usuário -> ids das suas conversas privadas.
+  private final List<SegmentoBusca> segmentos; // Em ordem de posição no log.
+  private Map<String, ListaPostagens> memoria; // Segmento em memória: termo -> postagens.
+  private int postagensEmMemoria;
+  private long primeiraEmMemoria = -1;
+  private long ultimaEmMemoria = -1;
+  private long ultimaGravacao;
+  private long proximoSegmento; // Número do próximo arquivo de segmento.
+  private long indexadoAte = -1; // Maior posição do log presente nos segmentos na partida.
+  private DataOutputStream arquivoConversas;
+  private final Thread threadIndexacao;
+  private volatile boolean executando;
+
+  private final LongAdder mensagensIndexadas = new LongAdder();
+  private final LongAdder buscas = new LongAdder();
+  private final LongAdder nanosBusca = new LongAdder();
+
+  // Construtor da classe IndiceBusca; abre os segmentos e a tabela de conversas do diretório.
+  public IndiceBusca(Path diretorio, LogMensagens log) throws IOException {
+    this.diretorio = diretorio;
+    this.log = log;
+    this.fila = new LinkedBlockingQueue<>();
+    this.idsConversas = new HashMap<>();
+    this.privadasPorUsuario = new HashMap<>();
+    this.segmentos = new ArrayList<>();
+    this.memoria = new HashMap<>();
+    Files.createDirectories(diretorio);
+    carregarConversas();
+    carregarSegmentos();
+    ultimaGravacao = System.currentTimeMillis();
+
+    executando = true;
+    threadIndexacao = new Thread(this::executarIndexacao, "busca-indice");
+    threadIndexacao.setDaemon(true);
+    threadIndexacao.start();
+  }
+
+  // Separa o texto em termos: sem acentos, em minúsculas, só letras e dígitos.
+  public static Set<String> termos(String texto) {
+    Set<String> termos = new LinkedHashSet<>();
+    if (texto == null) {
+      return termos;
+    }
+    String normalizado = ACENTOS.matcher(Normalizer.normalize(texto, Normalizer.Form.NFD)).replaceAll("")
+        .toLowerCase(Locale.ROOT);
+    for (String termo : SEPARADORES.split(normalizado)) {
+      if (termo.length() >= TAMANHO_MINIMO_TERMO && termo.length() <= TAMANHO_MAXIMO_TERMO) {
+        termos.add(termo);
+      }
+    }
+    return termos;
+  }
+
+  // Recebe a mensagem gravada no log (na thread de quem gravou) e só a coloca na fila de indexação.
+  @Override
+  public void mensagemRegistrada(long posicao, Mensagem mensagem) {
+    if (mensagem.getConteudo() != null && IndiceHistorico.chaveDe(mensagem) != null) {
+      fila.add(new Indexacao(posicao, mensagem));
+    }
+  }
+
+  // Loop da thread de indexação.
+  private void executarIndexacao() {
+    while (executando || !fila.isEmpty()) {
+      try {
+        Indexacao item = fila.poll(1, TimeUnit.SECONDS);
+        if (item != null) {
+          indexar(item);
+        }
+      } catch (InterruptedException e) {
+        break;
+      } catch (IOException e) {
+        LogConsole.erro("Erro ao indexar mensagem para busca: ", e.getMessage());
+      }
+      if (postagensEmMemoria >= POSTAGENS_POR_SEGMENTO || (postagensEmMemoria > 0
+          && System.currentTimeMillis() - ultimaGravacao >= INTERVALO_GRAVACAO_MS)) {
+        gravarMemoria();
+      }
+    }
+    gravarMemoria();
+  }
+
+  // Acrescenta os termos da mensagem ao segmento em memória.
+  private void indexar(Indexacao item) throws IOException {
+    if (item.posicao <= indexadoAte) {
+      return;
+    }
+    Set<String> termos = termos(item.mensagem.getConteudo());
+    if (termos.isEmpty()) {
+      return;
+    }
+    int conversa = idConversa(IndiceHistorico.chaveDe(item.mensagem));
+    synchronized (this) {
+      for (String termo : termos) {
+        memoria.computeIfAbsent(termo, t -> new ListaPostagens()).adicionar(item.posicao, conversa);
+      }
+      postagensEmMemoria += termos.size();
+      if (primeiraEmMemoria < 0) {
+        primeiraEmMemoria = item.posicao;
+      }
+      ultimaEmMemoria = item.posicao;
+    }
+    mensagensIndexadas.increment();
+  }
+
+  // Id da conversa, criado e gravado na tabela de conversas na primeira vez.
+  private int idConversa(String chave) throws IOException {
+    synchronized (this) {
+      Integer id = idsConversas.get(chave);
+      if (id != null) {
+        return id;
+      }
+    }
+    arquivoConversas.writeUTF(chave);
+    arquivoConversas.flush();
+    synchronized (this) {
+      return registrarConversa(chave);
+    }
+  }
+
+  // Registra a conversa em memória e retorna o seu id.
+  private int registrarConversa(String chave) {
+    int id = idsConversas.size();
+    idsConversas.put(chave, id);
+    String[] partes = chave.split("\t");
+    if (partes.length == 3 && partes[0].equals("p")) {
+      privadasPorUsuario.computeIfAbsent(partes[1], u -> new ArrayList<>()).add(id);
+      if (!partes[2].equals(partes[1])) {
+        privadasPorUsuario.computeIfAbsent(partes[2], u -> new ArrayList<>()).add(id);
+      }
+    }
+    return id;
+  }
+
+  // Grava o segmento em memória como um segmento em disco e junta segmentos se houver muitos.
+  private void gravarMemoria() {
+    ultimaGravacao = System.currentTimeMillis();
+    if (postagensEmMemoria == 0) {
+      return;
+    }
+    Map<String, ListaPostagens> atual = memoria;
+    List<String> termos = new ArrayList<>(atual.keySet());
+    Collections.sort(termos);
+    SegmentoBusca.FontePostagens fonte = new SegmentoBusca.FontePostagens() {
+      @Override
+      public int quantidade(String termo) {
+        return atual.get(termo).tamanho;
+      }
+
+      @Override
+      public void escrever(String termo, ByteBuffer destino) {
+        ListaPostagens lista = atual.get(termo);
+        for (int i = 0; i < lista.tamanho; i++) {
+          destino.putLong(lista.posicoes[i]);
+          destino.putInt(lista.conversas[i]);
+        }
+      }
+    };
+    try {
+      SegmentoBusca novo = SegmentoBusca.gravar(proximoCaminho(), termos, fonte, primeiraEmMemoria, ultimaEmMemoria);
+      synchronized (this) {
+        segmentos.add(novo);
+        memoria = new HashMap<>();
+        postagensEmMemoria = 0;
+        primeiraEmMemoria = -1;
+        ultimaEmMemoria = -1;
+      }
+      juntarSegmentos();
+    } catch (IOException e) {
+      LogConsole.erro("Erro ao gravar segmento de busca: ", e.getMessage());
+    }
+  }
+
+  // Enquanto houver segmentos demais, junta a sequência de vizinhos com menos bytes.
+  private void juntarSegmentos() throws IOException {
+    while (segmentos.size() > MAXIMO_SEGMENTOS) {
+      int melhor = 0;
+      long menorTamanho = Long.MAX_VALUE;
+      for (int i = 0; i + SEGMENTOS_POR_JUNCAO <= segmentos.size(); i++) {
+        long tamanho = 0;
+        for (int j = i; j < i + SEGMENTOS_POR_JUNCAO; j++) {
+          tamanho += segmentos.get(j).getTamanho();
+        }
+        if (tamanho < menorTamanho) {
+          menorTamanho = tamanho;
+          melhor = i;
+        }
+      }
+      List<SegmentoBusca> juntar = new ArrayList<>(segmentos.subList(melhor, melhor + SEGMENTOS_POR_JUNCAO));
+      TreeSet<String> termos = new TreeSet<>();
+      for (SegmentoBusca segmento : juntar) {
+        Collections.addAll(termos, segmento.getTermos());
+      }
+      // Os segmentos cobrem trechos do log em ordem, então concatenar as postagens mantém a ordem.
+      SegmentoBusca.FontePostagens fonte = new SegmentoBusca.FontePostagens() {
+        @Override
+        public int quantidade(String termo) {
+          int quantidade = 0;
+          for (SegmentoBusca segmento : juntar) {
+            quantidade += segmento.quantidade(termo);
+          }
+          return quantidade;
+        }
+
+        @Override
+        public void escrever(String termo, ByteBuffer destino) {
+          for (SegmentoBusca segmento : juntar) {
+            segmento.copiar(termo, destino);
+          }
+        }
+      };
+      SegmentoBusca juntado = SegmentoBusca.gravar(proximoCaminho(), new ArrayList<>(termos), fonte,
+          juntar.get(0).getPrimeiraPosicao(), juntar.get(juntar.size() - 1).getUltimaPosicao());
+      synchronized (this) {
+        segmentos.subList(melhor, melhor + SEGMENTOS_POR_JUNCAO).clear();
+        segmentos.add(melhor, juntado);
+      }
+      for (SegmentoBusca segmento : juntar) {
+        segmento.apagar();
+      }
+    }
+  }
+
+  // Caminho do próximo arquivo de segmento.
+  private Path proximoCaminho() {
+    return diretorio.resolve(String.format("%020d.seg", proximoSegmento++));
+  }
+
+  // Busca as mensagens com todos os termos do texto, anteriores ao cursor, nas conversas que o usuário
+  // pode ver: os grupos indicados e as suas conversas privadas. Resultados da mais recente para a mais antiga.
+  public IndiceHistorico.Pagina buscar(String usuario, Collection<String> grupos, String texto, long cursor,
+      int limite) throws IOException {
+    long inicio = System.nanoTime();
+    Set<String> termos = termos(texto);
+    long antesDe = cursor > 0 ? cursor : Long.MAX_VALUE;
+    BitSet permitidas = new BitSet();
+    List<List<SegmentoBusca.Postagens>> fontes = new ArrayList<>();
+    synchronized (this) {
+      for (String grupo : grupos) {
+        Integer id = idsConversas.get(IndiceHistorico.chaveGrupo(grupo));
+        if (id != null) {
+          permitidas.set(id);
+        }
+      }
+      for (int id : privadasPorUsuario.getOrDefault(usuario, Collections.emptyList())) {
+        permitidas.set(id);
+      }
+      if (!termos.isEmpty() && !permitidas.isEmpty()) {
+        List<SegmentoBusca.Postagens> daMemoria = new ArrayList<>();
+        for (String termo : termos) {
+          ListaPostagens lista = memoria.get(termo);
+          daMemoria.add(lista == null ? null : lista.fatia());
+        }
+        fontes.add(daMemoria);
+        for (SegmentoBusca segmento : segmentos) {
+          List<SegmentoBusca.Postagens> doSegmento = new ArrayList<>();
+          for (String termo : termos) {
+            doSegmento.add(segmento.postagens(termo));
+          }
+          fontes.add(doSegmento);
+        }
+      }
+    }
+
+    List<Long> encontradas = new ArrayList<>();
+    for (List<SegmentoBusca.Postagens> fonte : fontes) {
+      if (!fonte.contains(null)) {
+        encontrar(fonte, antesDe, permitidas, limite, encontradas);
+      }
+    }
+    encontradas.sort(Collections.reverseOrder());
+    if (encontradas.size() > limite) {
+      encontradas = encontradas.subList(0, limite);
+    }
+
+    // Posições anteriores ao início do log foram apagadas pela retenção e encerram a busca.
+    long inicioLog = log.getInicio();
+    while (!encontradas.isEmpty() && encontradas.get(encontradas.size() - 1) < inicioLog) {
+      encontradas.remove(encontradas.size() - 1);
+    }
+
+    List<Mensagem> itens = new ArrayList<>(encontradas.size());
+    for (long posicao : encontradas) {
+      itens.add(IndiceHistorico.item(Mensagem.TipoMensagem.BUSCA, posicao, log.lerMensagem(posicao)));
+    }
+    buscas.increment();
+    nanosBusca.add(System.nanoTime() - inicio);
+    return new IndiceHistorico.Pagina(itens,
+        encontradas.size() == limite ? encontradas.get(encontradas.size() - 1) : 0);
+  }
+
+  // Percorre a menor lista de trás para frente e guarda até limite posições presentes em todas as listas,
+  // anteriores a antesDe e de conversas permitidas.
+  private static void encontrar(List<SegmentoBusca.Postagens> listas, long antesDe, BitSet permitidas, int limite,
+      List<Long> destino) {
+    listas.sort(Comparator.comparingInt(SegmentoBusca.Postagens::tamanho));
+    SegmentoBusca.Postagens guia = listas.get(0);
+    int[] fins = new int[listas.size()]; // Nas outras listas, só interessam posições antes do fim.
+    for (int k = 0; k < listas.size(); k++) {
+      fins[k] = listas.get(k).tamanho();
+    }
+    int encontradas = 0;
+    for (int i = primeiraNaoAnterior(guia, antesDe, guia.tamanho()) - 1; i >= 0 && encontradas < limite; i--) {
+      if (!permitidas.get(guia.conversa(i))) {
+        continue;
+      }
+      long posicao = guia.posicao(i);
+      boolean emTodas = true;
+      for (int k = 1; k < listas.size() && emTodas; k++) {
+        SegmentoBusca.Postagens lista = listas.get(k);
+        int j = primeiraNaoAnterior(lista, posicao, fins[k]);
+        emTodas = j < fins[k] && lista.posicao(j) == posicao;
+        fins[k] = j;
+      }
+      if (emTodas) {
+        destino.add(posicao);
+        encontradas++;
+      }
+    }
+  }
+
+  // Busca binária: índice da primeira postagem em [0, fim) com posição >= valor.
+  private static int primeiraNaoAnterior(SegmentoBusca.Postagens lista, long valor, int fim) {
+    int baixo = 0;
+    int alto = fim;
+    while (baixo < alto) {
+      int meio = (baixo + alto) >>> 1;
+      if (lista.posicao(meio) < valor) {
+        baixo = meio + 1;
+      } else {
+        alto = meio;
+      }
+    }
+    return baixo;
+  }
+
+  // Lê a tabela de conversas (um writeUTF por conversa, na ordem dos ids) e a reescreve sem sobras.
+  private void carregarConversas() throws IOException {
+    Path caminho = diretorio.resolve(NOME_CONVERSAS);
+    if (Files.exists(caminho)) {
+      try (DataInputStream entrada = new DataInputStream(new BufferedInputStream(Files.newInputStream(caminho)))) {
+        while (true) {
+          registrarConversa(entrada.readUTF());
+        }
+      } catch (EOFException e) {
+        // Fim da tabela (ou uma entrada incompleta de uma queda durante a escrita).
+      }
+    }
+    Path temporario = diretorio.resolve(NOME_CONVERSAS + ".novo");
+    String[] chaves = new String[idsConversas.size()];
+    for (Map.Entry<String, Integer> conversa : idsConversas.entrySet()) {
+      chaves[conversa.getValue()] = conversa.getKey();
+    }
+    try (DataOutputStream saida = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temporario)))) {
+      for (String chave : chaves) {
+        saida.writeUTF(chave);
+      }
+    }
+    Files.move(temporario, caminho, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    arquivoConversas = new DataOutputStream(new BufferedOutputStream(
+        Files.newOutputStream(caminho, StandardOpenOption.APPEND)));
+  }
+
+  // Abre os segmentos em ordem de posição. Segmentos contidos em outro (sobras de uma junção
+  // interrompida) e arquivos temporários são apagados.
+  private void carregarSegmentos() throws IOException {
+    List<SegmentoBusca> encontrados = new ArrayList<>();
+    try (Stream<Path> lista = Files.list(diretorio)) {
+      for (Path arquivo : (Iterable<Path>) lista::iterator) {
+        String nome = arquivo.getFileName().toString();
+        if (nome.endsWith(".seg.novo")) {
+          Files.deleteIfExists(arquivo);
+        } else if (nome.matches("\\d{20}\\.seg")) {
+          proximoSegmento = Math.max(proximoSegmento, Long.parseLong(nome.substring(0, 20)) + 1);
+          try {
+            encontrados.add(SegmentoBusca.abrir(arquivo));
+          } catch (IOException e) {
+            LogConsole.erro(e.getMessage(), " (descartado; sera reindexado a partir do log)");
+            Files.deleteIfExists(arquivo);
+          }
+        }
+      }
+    }
+    encontrados.sort(Comparator.comparingLong(SegmentoBusca::getPrimeiraPosicao)
+        .thenComparing(Comparator.comparingLong(SegmentoBusca::getUltimaPosicao).reversed()));
+    for (SegmentoBusca segmento : encontrados) {
+      if (segmento.getPrimeiraPosicao() <= indexadoAte) {
+        segmento.apagar();
+        continue;
+      }
+      segmentos.add(segmento);
+      indexadoAte = segmento.getUltimaPosicao();
+    }
+  }
+
+  // Getters
+  public synchronized long getIndexadoAte() {
+    return indexadoAte;
+  }
+
+  // Resumo do índice para o relatório do servidor.
+  public synchronized String resumo() {
+    long total = buscas.sum();
+    long mediaMicros = total == 0 ? 0 : nanosBusca.sum() / total / 1000;
+    long bytes = 0;
+    for (SegmentoBusca segmento : segmentos) {
+      bytes += segmento.getTamanho();
+    }
+    return "fila=" + fila.size() + ", indexadas=" + mensagensIndexadas.sum() + ", postagensEmMemoria="
+        + postagensEmMemoria + ", segmentos=" + segmentos.size() + " (" + bytes + " bytes), buscas=" + total
+        + " (media " + mediaMicros + "us)";
+  }
+
+  // Indexa o que resta na fila, grava o segmento em memória e fecha a tabela de conversas.
+  public void fechar() {
+    executando = false;
+    try {
+      threadIndexacao.join(10000);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    try {
+      arquivoConversas.close();
+    } catch (IOException e) {
+      LogConsole.erro("Erro ao fechar tabela de conversas da busca: ", e.getMessage());
+    }
+  }
+}
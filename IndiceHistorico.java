@@ -0,0 +1,437 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.stream.Stream;
+
+// Índice do histórico das conversas: para cada grupo e cada par de usuários, um arquivo com as posições
+// no log das suas mensagens, em ordem (a ordem do log é a ordem de chegada). A caixa de entrada de cada
+// usuário (as privadas que ele recebeu) tem um arquivo igual, usado na entrega das pendências. Uma página
+// "anteriores ao cursor, no máximo N" custa uma busca binária no arquivo e a leitura de N entradas, não
+// uma varredura.
+//
+// As posições novas ficam numa cauda em memória e são gravadas no arquivo por uma thread própria, fora
+// dos reatores. As páginas lidas ficam numa cache LRU: como uma página é identificada pela posição da
+// mensagem mais recente que ela pode conter, o conteúdo dela nunca muda e a cache não precisa ser
+// invalidada. Muitos membros abrindo o mesmo grupo ao mesmo tempo leem a página uma única vez.
+public class IndiceHistorico implements LogMensagens.Ouvinte {
+  public static final int LIMITE_PADRAO = 50; // Mensagens por página quando o pedido não informa.
+  public static final int LIMITE_MAXIMO = 200; // Maior página aceita.
+  private static final int TAMANHO_ENTRADA = 8; // Uma posição do log por entrada.
+  private static final int PAGINAS_EM_CACHE = Integer.getInteger("chat.historico.paginasEmCache", 256);
+  private static final long INTERVALO_GRAVACAO_MS = 200; // Intervalo entre gravações das caudas.
+
+  // Página do histórico: as mensagens, da mais antiga para a mais recente, e o cursor da página anterior.
+  public static final class Pagina {
+    private final List<Mensagem> itens;
+    private final long proximoCursor; // 0 quando não há mensagens mais antigas.
+
+    Pagina(List<Mensagem> itens, long proximoCursor) {
+      this.itens = Collections.unmodifiableList(itens);
+      this.proximoCursor = proximoCursor;
+    }
+
+    public List<Mensagem> getItens() {
+      return itens;
+    }
+
+    public long getProximoCursor() {
+      return proximoCursor;
+    }
+  }
+
+  // Índice de uma conversa: entradas já gravadas no arquivo mais a cauda ainda em memória.
+  private static final class Conversa {
+    final Path caminho;
+    long noDisco; // Entradas gravadas no arquivo.
+    long ultimaNoDisco = -1; // Posição da última entrada gravada.
+    long[] cauda = new long[16]; // Posições ainda não gravadas, em ordem.
+    int tamanhoCauda;
+    long ultimaPosicao = -1; // Posição da mensagem mais recente da conversa.
+
+    Conversa(Path caminho) {
+      this.caminho = caminho;
+    }
+  }
+
+  private final Path diretorio;
+  private final LogMensagens log;
+  private final Map<String, Conversa> conversas; // Nome do arquivo -> conversa.
+  private final Set<Conversa> sujas; // Conversas com cauda a gravar.
+  private final LinkedHashMap<String, Pagina> cache; // Páginas lidas, em ordem de acesso.
+  private final Object travaGravacao = new Object(); // Uma gravação das caudas por vez.
+  private final Thread threadGravacao;
+  private volatile boolean executando;
+  private long indexadoAte = -1; // Maior posição do log presente nos arquivos na partida.
+  private long acertos;
+  private long faltas;
+
+  // Construtor da classe IndiceHistorico; carrega os arquivos existentes no diretório.
+  public IndiceHistorico(Path diretorio, LogMensagens log) throws IOException {
+    this.diretorio = diretorio;
+    this.log = log;
+    this.conversas = new HashMap<>();
+    this.sujas = new LinkedHashSet<>();
+    this.cache = new LinkedHashMap<String, Pagina>(16, 0.75f, true) {
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<String, Pagina> maisAntiga) {
+        return size() > PAGINAS_EM_CACHE;
+      }
+    };
+    Files.createDirectories(diretorio);
+    carregar();
+
+    executando = true;
+    threadGravacao = new Thread(this::executarGravacao, "historico-indice");
+    threadGravacao.setDaemon(true);
+    threadGravacao.start();
+  }
+
+  // Chave do histórico de um grupo.
+  public static String chaveGrupo(String nomeGrupo) {
+    return "g\t" + nomeGrupo;
+  }
+
+  // Chave da conversa privada entre dois usuários (a mesma nos dois sentidos).
+  public static String chavePrivada(String usuario, String outro) {
+    return usuario.compareTo(outro) <= 0 ? "p\t" + usuario + "\t" + outro : "p\t" + outro + "\t" + usuario;
+  }
+
+  // Chave da caixa de entrada de um usuário: as mensagens privadas que ele recebeu. Não é uma conversa do
+  // histórico; serve à entrega das pendências dele.
+  public static String chaveCaixa(String usuario) {
+    return "c\t" + usuario;
+  }
+
+  // Chave da conversa a que a mensagem pertence, ou null se ela não entra no histórico.
+  public static String chaveDe(Mensagem mensagem) {
+    if (mensagem.getTipo() == Mensagem.TipoMensagem.MENSAGEM_GRUPO && mensagem.getNomeGrupo() != null) {
+      return chaveGrupo(mensagem.getNomeGrupo());
+    }
+    if (mensagem.getTipo() == Mensagem.TipoMensagem.MENSAGEM_PRIVADA && mensagem.getRemetente() != null
+        && mensagem.getDestinatario() != null) {
+      return chavePrivada(mensagem.getRemetente(), mensagem.getDestinatario());
+    }
+    return null;
+  }
+
+  // Nome do arquivo de índice de uma chave (o SHA-256 da chave, que pode ter qualquer caractere).
+  private static String nomeArquivo(String chave) {
+    return ArmazemArquivos.hexadecimal(ArmazemArquivos.novoSha256().digest(chave.getBytes(StandardCharsets.UTF_8)))
+        + ".idx";
+  }
+
+  // Lê o tamanho e a última entrada de cada arquivo; uma entrada incompleta no fim é descartada.
+  private void carregar() throws IOException {
+    List<Path> arquivos = new ArrayList<>();
+    try (Stream<Path> lista = Files.list(diretorio)) {
+      lista.filter(caminho -> caminho.getFileName().toString().endsWith(".idx")).forEach(arquivos::add);
+    }
+    ByteBuffer ultima = ByteBuffer.allocate(TAMANHO_ENTRADA);
+    for (Path arquivo : arquivos) {
+      Conversa conversa = new Conversa(arquivo);
+      try (FileChannel canal = FileChannel.open(arquivo, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+        long tamanho = canal.size() - canal.size() % TAMANHO_ENTRADA;
+        canal.truncate(tamanho);
+        conversa.noDisco = tamanho / TAMANHO_ENTRADA;
+        if (conversa.noDisco > 0) {
+          ultima.clear();
+          lerCompleto(canal, ultima, tamanho - TAMANHO_ENTRADA);
+          conversa.ultimaNoDisco = ultima.getLong(0);
+          conversa.ultimaPosicao = conversa.ultimaNoDisco;
+          indexadoAte = Math.max(indexadoAte, conversa.ultimaPosicao);
+        }
+      }
+      conversas.put(arquivo.getFileName().toString(), conversa);
+    }
+  }
+
+  // Acrescenta a mensagem ao índice da sua conversa e, se for privada, ao da caixa de entrada do
+  // destinatário (chamado pelo log, na ordem do log).
+  @Override
+  public synchronized void mensagemRegistrada(long posicao, Mensagem mensagem) {
+    String chave = chaveDe(mensagem);
+    if (chave == null) {
+      return;
+    }
+    indexar(chave, posicao);
+    if (mensagem.getTipo() == Mensagem.TipoMensagem.MENSAGEM_PRIVADA) {
+      indexar(chaveCaixa(mensagem.getDestinatario()), posicao);
+    }
+  }
+
+  // Acrescenta a posição à cauda da conversa. Posições já indexadas são ignoradas, o que torna seguro
+  // reprocessar o fim do log na partida.
+  private void indexar(String chave, long posicao) {
+    Conversa conversa = conversas.computeIfAbsent(nomeArquivo(chave), nome -> new Conversa(diretorio.resolve(nome)));
+    if (posicao <= conversa.ultimaPosicao) {
+      return;
+    }
+    if (conversa.tamanhoCauda == conversa.cauda.length) {
+      conversa.cauda = Arrays.copyOf(conversa.cauda, conversa.cauda.length * 2);
+    }
+    conversa.cauda[conversa.tamanhoCauda++] = posicao;
+    conversa.ultimaPosicao = posicao;
+    sujas.add(conversa);
+  }
+
+  // Retorna a página da cache, ou null se ela ainda não foi lida. Um cursor 0 pede as mensagens mais recentes.
+  public synchronized Pagina emCache(String chave, long cursor, int limite) {
+    String chaveCache = chaveCache(chave, cursor, limite);
+    Pagina pagina = chaveCache == null ? null : cache.get(chaveCache);
+    if (pagina != null) {
+      acertos++;
+    }
+    return pagina;
+  }
+
+  // Lê a página com até limite mensagens anteriores ao cursor (executado no estágio de disco).
+  public Pagina consultar(String chave, long cursor, int limite) throws IOException {
+    String chaveCache;
+    Conversa conversa;
+    long antesDe;
+    long noDisco;
+    long ultimaNoDisco;
+    long[] cauda;
+    synchronized (this) {
+      chaveCache = chaveCache(chave, cursor, limite);
+      if (chaveCache == null) {
+        return new Pagina(new ArrayList<>(), 0);
+      }
+      Pagina pagina = cache.get(chaveCache);
+      if (pagina != null) {
+        acertos++;
+        return pagina;
+      }
+      faltas++;
+      conversa = conversas.get(nomeArquivo(chave));
+      antesDe = cursor > 0 ? cursor : conversa.ultimaPosicao + 1;
+      noDisco = conversa.noDisco;
+      ultimaNoDisco = conversa.ultimaNoDisco;
+      cauda = Arrays.copyOf(conversa.cauda, conversa.tamanhoCauda);
+    }
+
+    // Posições da mais recente para a mais antiga: primeiro a cauda, depois o arquivo.
+    long[] posicoes = new long[limite];
+    int quantidade = 0;
+    for (int i = cauda.length - 1; i >= 0 && quantidade < limite; i--) {
+      if (cauda[i] < antesDe) {
+        posicoes[quantidade++] = cauda[i];
+      }
+    }
+    if (quantidade < limite && noDisco > 0) {
+      try (FileChannel canal = FileChannel.open(conversa.caminho, StandardOpenOption.READ)) {
+        long fim = ultimaNoDisco < antesDe ? noDisco : primeiraNaoAnterior(canal, noDisco, antesDe);
+        long inicio = Math.max(0, fim - (limite - quantidade));
+        ByteBuffer entradas = ByteBuffer.allocate((int) (fim - inicio) * TAMANHO_ENTRADA);
+        lerCompleto(canal, entradas, inicio * TAMANHO_ENTRADA);
+        for (int i = entradas.capacity() - TAMANHO_ENTRADA; i >= 0; i -= TAMANHO_ENTRADA) {
+          posicoes[quantidade++] = entradas.getLong(i);
+        }
+      }
+    }
+
+    // Posições anteriores ao início do log foram apagadas pela retenção e encerram o histórico.
+    long inicioLog = log.getInicio();
+    while (quantidade > 0 && posicoes[quantidade - 1] < inicioLog) {
+      quantidade--;
+    }
+    List<Mensagem> itens = new ArrayList<>(quantidade);
+    for (int i = quantidade - 1; i >= 0; i--) {
+      itens.add(item(Mensagem.TipoMensagem.HISTORICO, posicoes[i], log.lerMensagem(posicoes[i])));
+    }
+    Pagina pagina = new Pagina(itens, quantidade == limite ? posicoes[quantidade - 1] : 0);
+    synchronized (this) {
+      cache.put(chaveCache, pagina);
+    }
+    return pagina;
+  }
+
+  // Posições da conversa em [desde, antesDe), da mais antiga para a mais recente, no máximo limite
+  // (executado no estágio de disco). Usado pela entrega de pendências.
+  public long[] posicoes(String chave, long desde, long antesDe, int limite) throws IOException {
+    Conversa conversa;
+    long noDisco;
+    long ultimaNoDisco;
+    long[] cauda;
+    synchronized (this) {
+      conversa = conversas.get(nomeArquivo(chave));
+      if (conversa == null || desde >= antesDe) {
+        return new long[0];
+      }
+      noDisco = conversa.noDisco;
+      ultimaNoDisco = conversa.ultimaNoDisco;
+      cauda = Arrays.copyOf(conversa.cauda, conversa.tamanhoCauda);
+    }
+
+    // Primeiro o arquivo, a partir da primeira entrada não anterior a desde; depois a cauda.
+    long[] posicoes = new long[limite];
+    int quantidade = 0;
+    if (noDisco > 0 && ultimaNoDisco >= desde) {
+      try (FileChannel canal = FileChannel.open(conversa.caminho, StandardOpenOption.READ)) {
+        long primeira = primeiraNaoAnterior(canal, noDisco, desde);
+        ByteBuffer entradas = ByteBuffer.allocate((int) (Math.min(noDisco, primeira + limite) - primeira)
+            * TAMANHO_ENTRADA);
+        lerCompleto(canal, entradas, primeira * TAMANHO_ENTRADA);
+        for (int i = 0; i < entradas.capacity(); i += TAMANHO_ENTRADA) {
+          long posicao = entradas.getLong(i);
+          if (posicao >= antesDe) {
+            return Arrays.copyOf(posicoes, quantidade);
+          }
+          posicoes[quantidade++] = posicao;
+        }
+      }
+    }
+    for (int i = 0; i < cauda.length && quantidade < limite; i++) {
+      if (cauda[i] >= desde && cauda[i] < antesDe) {
+        posicoes[quantidade++] = cauda[i];
+      }
+    }
+    return Arrays.copyOf(posicoes, quantidade);
+  }
+
+  // Chave da página na cache, com o cursor resolvido; null se a conversa não tem mensagens.
+  private String chaveCache(String chave, long cursor, int limite) {
+    Conversa conversa = conversas.get(nomeArquivo(chave));
+    if (conversa == null || conversa.ultimaPosicao < 0) {
+      return null;
+    }
+    long antesDe = cursor > 0 ? cursor : conversa.ultimaPosicao + 1;
+    return chave + "\t" + antesDe + "\t" + limite;
+  }
+
+  // Busca binária no arquivo: índice da primeira entrada com posição >= antesDe.
+  private static long primeiraNaoAnterior(FileChannel canal, long entradas, long antesDe) throws IOException {
+    ByteBuffer entrada = ByteBuffer.allocate(TAMANHO_ENTRADA);
+    long baixo = 0;
+    long alto = entradas;
+    while (baixo < alto) {
+      long meio = (baixo + alto) >>> 1;
+      entrada.clear();
+      lerCompleto(canal, entrada, meio * TAMANHO_ENTRADA);
+      if (entrada.getLong(0) < antesDe) {
+        baixo = meio + 1;
+      } else {
+        alto = meio;
+      }
+    }
+    return baixo;
+  }
+
+  // Converte a mensagem gravada no item de página (histórico ou busca) enviado ao cliente.
+  public static Mensagem item(Mensagem.TipoMensagem tipo, long posicao, Mensagem original) {
+    Mensagem item = new Mensagem(tipo, original.getRemetente());
+    item.setDestinatario(original.getDestinatario());
+    item.setNomeGrupo(original.getNomeGrupo());
+    item.setConteudo(original.getConteudo());
+    item.setCarimboTempo(original.getCarimboTempo());
+    item.setCursor(posicao);
+    return item;
+  }
+
+  // Lê do canal até encher o buffer, a partir da posição indicada.
+  private static void lerCompleto(FileChannel canal, ByteBuffer destino, long posicao) throws IOException {
+    while (destino.hasRemaining()) {
+      int lidos = canal.read(destino, posicao);
+      if (lidos < 0) {
+        throw new IOException("Indice de historico truncado");
+      }
+      posicao += lidos;
+    }
+  }
+
+  // Loop da thread de gravação.
+  private void executarGravacao() {
+    while (executando) {
+      synchronized (this) {
+        try {
+          wait(INTERVALO_GRAVACAO_MS);
+        } catch (InterruptedException e) {
+          return;
+        }
+      }
+      try {
+        gravarCaudas();
+      } catch (RuntimeException e) {
+        // Uma conversa com problema não pode parar a gravação das outras.
+        LogConsole.erro("Erro inesperado ao gravar indice de historico: ", e.toString());
+      }
+    }
+  }
+
+  // Grava no fim de cada arquivo as posições que estavam na cauda em memória. Uma conversa pode voltar a
+  // sujas depois da cópia da lista e ter a cauda já gravada nesta passada; na seguinte ela chega vazia e é
+  // ignorada.
+  private void gravarCaudas() {
+    synchronized (travaGravacao) {
+      List<Conversa> pendentes;
+      synchronized (this) {
+        pendentes = new ArrayList<>(sujas);
+        sujas.clear();
+      }
+      for (Conversa conversa : pendentes) {
+        long[] entradas;
+        synchronized (this) {
+          if (conversa.tamanhoCauda == 0) {
+            continue;
+          }
+          entradas = Arrays.copyOf(conversa.cauda, conversa.tamanhoCauda);
+        }
+        ByteBuffer dados = ByteBuffer.allocate(entradas.length * TAMANHO_ENTRADA);
+        for (long posicao : entradas) {
+          dados.putLong(posicao);
+        }
+        dados.flip();
+        try (FileChannel canal = FileChannel.open(conversa.caminho, StandardOpenOption.CREATE,
+            StandardOpenOption.WRITE)) {
+          long posicaoArquivo = conversa.noDisco * TAMANHO_ENTRADA;
+          while (dados.hasRemaining()) {
+            posicaoArquivo += canal.write(dados, posicaoArquivo);
+          }
+        } catch (IOException e) {
+          LogConsole.erro("Erro ao gravar indice de historico: ", e.getMessage());
+          synchronized (this) {
+            sujas.add(conversa);
+          }
+          continue;
+        }
+        synchronized (this) {
+          int restantes = conversa.tamanhoCauda - entradas.length;
+          System.arraycopy(conversa.cauda, entradas.length, conversa.cauda, 0, restantes);
+          conversa.tamanhoCauda = restantes;
+          conversa.noDisco += entradas.length;
+          conversa.ultimaNoDisco = entradas[entradas.length - 1];
+        }
+      }
+    }
+  }
+
+  // Getters
+  public synchronized long getIndexadoAte() {
+    return indexadoAte;
+  }
+
+  // Resumo do índice para o relatório do servidor.
+  public synchronized String resumo() {
+    return "conversas=" + conversas.size() + ", paginasEmCache=" + cache.size() + ", acertos=" + acertos
+        + ", faltas=" + faltas;
+  }
+
+  // Grava o que falta e para a thread de gravação.
+  public void fechar() {
+    executando = false;
+    synchronized (this) {
+      notifyAll();
+    }
+    try {
+      threadGravacao.join(2000);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    gravarCaudas();
+  }
+}
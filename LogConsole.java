@@ -0,0 +1,209 @@
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.util.TimeZone;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+// Log assíncrono do console do servidor. Quem registra (reatores, disco, cluster) só reserva uma entrada
+// de um anel pré-alocado e guarda nela as partes do texto, sem concatenar nem bloquear; uma thread
+// própria monta as linhas e escreve na saída em blocos, só dando flush quando o anel esvazia. Com o anel
+// cheio a linha é descartada (e contada): um console lento nunca atrasa o loop de um reator.
+//
+// As partes são guardadas por referência e só convertidas em texto depois, na thread do log: passe
+// apenas valores imutáveis (String, números, endereços).
+public final class LogConsole {
+  private static final int CAPACIDADE = 8192; // Entradas do anel (potência de 2).
+  private static final int MAX_PARTES = 7;
+
+  private static final Entrada[] ANEL = new Entrada[CAPACIDADE];
+  private static final AtomicLong proxima = new AtomicLong(); // Próxima posição a reservar.
+  private static volatile long consumidas; // Posições já escritas pela thread do log.
+  private static volatile boolean dormindo; // A thread do log está (ou vai ficar) parada esperando.
+  private static final LongAdder descartadas = new LongAdder();
+  private static final Thread thread;
+
+  // Uma linha do log; sequencia publica a entrada para a thread do log.
+  private static final class Entrada {
+    private volatile long sequencia = -1;
+    private boolean erro;
+    private long momento;
+    private int quantidade;
+    private final Object[] partes = new Object[MAX_PARTES];
+  }
+
+  static {
+    for (int i = 0; i < CAPACIDADE; i++) {
+      ANEL[i] = new Entrada();
+    }
+    thread = new Thread(LogConsole::executar, "log-console");
+    thread.setDaemon(true);
+    thread.start();
+  }
+
+  private LogConsole() {
+  }
+
+  public static void info(Object a) {
+    registrar(false, 1, a, null, null, null, null, null, null);
+  }
+
+  public static void info(Object a, Object b) {
+    registrar(false, 2, a, b, null, null, null, null, null);
+  }
+
+  public static void info(Object a, Object b, Object c) {
+    registrar(false, 3, a, b, c, null, null, null, null);
+  }
+
+  public static void info(Object a, Object b, Object c, Object d) {
+    registrar(false, 4, a, b, c, d, null, null, null);
+  }
+
+  public static void info(Object a, Object b, Object c, Object d, Object e) {
+    registrar(false, 5, a, b, c, d, e, null, null);
+  }
+
+  public static void info(Object a, Object b, Object c, Object d, Object e, Object f) {
+    registrar(false, 6, a, b, c, d, e, f, null);
+  }
+
+  public static void info(Object a, Object b, Object c, Object d, Object e, Object f, Object g) {
+    registrar(false, 7, a, b, c, d, e, f, g);
+  }
+
+  public static void erro(Object a) {
+    registrar(true, 1, a, null, null, null, null, null, null);
+  }
+
+  public static void erro(Object a, Object b) {
+    registrar(true, 2, a, b, null, null, null, null, null);
+  }
+
+  public static void erro(Object a, Object b, Object c) {
+    registrar(true, 3, a, b, c, null, null, null, null);
+  }
+
+  public static void erro(Object a, Object b, Object c, Object d) {
+    registrar(true, 4, a, b, c, d, null, null, null);
+  }
+
+  // Reserva uma entrada do anel (ou descarta a linha se ele está cheio), preenche e publica.
+  private static void registrar(boolean erro, int quantidade, Object a, Object b, Object c, Object d, Object e,
+      Object f, Object g) {
+    long posicao;
+    do {
+      posicao = proxima.get();
+      if (posicao - consumidas >= CAPACIDADE) {
+        descartadas.increment();
+        return;
+      }
+    } while (!proxima.compareAndSet(posicao, posicao + 1));
+
+    Entrada entrada = ANEL[(int) posicao & (CAPACIDADE - 1)];
+    entrada.erro = erro;
+    entrada.momento = System.currentTimeMillis();
+    entrada.quantidade = quantidade;
+    Object[] partes = entrada.partes;
+    partes[0] = a;
+    partes[1] = b;
+    partes[2] = c;
+    partes[3] = d;
+    partes[4] = e;
+    partes[5] = f;
+    partes[6] = g;
+    entrada.sequencia = posicao;
+    if (dormindo) {
+      LockSupport.unpark(thread);
+    }
+  }
+
+  // Espera até a thread do log escrever tudo o que já foi registrado (ou o prazo acabar).
+  public static void esvaziar(long prazoMs) {
+    long alvo = proxima.get();
+    long limite = System.nanoTime() + prazoMs * 1000000;
+    while (consumidas < alvo && System.nanoTime() < limite) {
+      LockSupport.unpark(thread);
+      LockSupport.parkNanos(1000000);
+    }
+  }
+
+  // Loop da thread do log.
+  private static void executar() {
+    Charset charset = Charset.defaultCharset();
+    Writer saida = new BufferedWriter(new OutputStreamWriter(System.out, charset), 1 << 16);
+    Writer saidaErro = new BufferedWriter(new OutputStreamWriter(System.err, charset), 1 << 16);
+    StringBuilder linha = new StringBuilder(256);
+    TimeZone fuso = TimeZone.getDefault();
+    long relatadas = 0;
+    long posicao = 0;
+    while (true) {
+      Entrada entrada = ANEL[(int) posicao & (CAPACIDADE - 1)];
+      if (entrada.sequencia == posicao) {
+        linha.setLength(0);
+        formatar(entrada, fuso, linha);
+        escrever(entrada.erro ? saidaErro : saida, linha);
+        consumidas = ++posicao;
+        continue;
+      }
+
+      // Anel vazio: relatar descartes, descarregar a saída e dormir até alguém registrar.
+      long total = descartadas.sum();
+      if (total > relatadas) {
+        linha.setLength(0);
+        linha.append('(').append(total - relatadas).append(" linhas de log descartadas)\n");
+        escrever(saidaErro, linha);
+        relatadas = total;
+      }
+      descarregar(saida);
+      descarregar(saidaErro);
+      dormindo = true;
+      if (entrada.sequencia != posicao) {
+        LockSupport.park();
+      }
+      dormindo = false;
+    }
+  }
+
+  // Um erro do console não tem para onde ser relatado: a linha se perde.
+  private static void escrever(Writer saida, StringBuilder linha) {
+    try {
+      saida.append(linha);
+    } catch (IOException e) {
+      // Ignorado.
+    }
+  }
+
+  private static void descarregar(Writer saida) {
+    try {
+      saida.flush();
+    } catch (IOException e) {
+      // Ignorado.
+    }
+  }
+
+  // Monta a linha "hh:mm:ss.mmm texto" e solta as referências das partes.
+  private static void formatar(Entrada entrada, TimeZone fuso, StringBuilder linha) {
+    long local = entrada.momento + fuso.getOffset(entrada.momento);
+    long noDia = Math.floorMod(local, 86400000L);
+    doisDigitos(linha, noDia / 3600000).append(':');
+    doisDigitos(linha, noDia / 60000 % 60).append(':');
+    doisDigitos(linha, noDia / 1000 % 60).append('.');
+    long milissegundos = noDia % 1000;
+    linha.append(milissegundos < 100 ? "0" : "").append(milissegundos < 10 ? "0" : "").append(milissegundos);
+    linha.append(' ');
+    Object[] partes = entrada.partes;
+    for (int i = 0; i < entrada.quantidade; i++) {
+      linha.append(partes[i]);
+      partes[i] = null;
+    }
+    linha.append('\n');
+  }
+
+  private static StringBuilder doisDigitos(StringBuilder linha, long valor) {
+    return linha.append(valor < 10 ? "0" : "").append(valor);
+  }
+}
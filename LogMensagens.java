@@ -0,0 +1,806 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+
+// Log durável, somente de acréscimo, das mensagens privadas e de grupo, dividido em segmentos
+// mapeados em memória (SegmentoLog). Cada mensagem é gravada uma única vez, qualquer que seja o número
+// de destinatários. O que falta entregar não é gravado por mensagem: para cada usuário o log guarda só
+// os intervalos em que ele esteve fora do alcance deste nó e ainda não recebeu as mensagens, e as
+// pendências são as mensagens das suas conversas (caixa de entrada e grupos, no IndiceHistorico) que
+// caem nesses intervalos. Esse estado é pequeno e é reconstruído na partida a partir da fotografia mais
+// recente e dos registros seguintes.
+//
+// Um acréscimo é só uma cópia para o mapa sob o lock; a persistência no disco (force) é feita por
+// uma thread própria que junta todos os registros acumulados numa única chamada (group commit).
+// No modo SEMPRE, as confirmações ao remetente esperam essa persistência sem bloquear o reator.
+//
+// Um segmento fechado é apagado quando passa do prazo de retenção e nenhum intervalo pendente começa
+// antes do fim dele, ou quando passa do prazo das pendências, para que um usuário que não volta não
+// segure o disco para sempre.
+public class LogMensagens {
+  // Quando os registros são persistidos no disco.
+  public enum ModoFsync {
+    NUNCA, // Fica a cargo do sistema operacional.
+    INTERVALO, // A cada INTERVALO_FSYNC_MS; uma queda perde no máximo esse intervalo.
+    SEMPRE // Antes de confirmar a mensagem ao remetente.
+  }
+
+  public static final ModoFsync MODO_FSYNC =
+      ModoFsync.valueOf(System.getProperty("chat.log.fsync", ModoFsync.INTERVALO.name()));
+  private static final long INTERVALO_FSYNC_MS = Long.getLong("chat.log.intervaloFsyncMs", 50);
+  private static final int TAMANHO_SEGMENTO = Integer.getInteger("chat.log.tamanhoSegmento", 64 * 1024 * 1024);
+  // Idade mínima de um segmento apagado (0 guarda tudo) e idade a partir da qual as pendências nele expiram.
+  private static final long RETENCAO_MS = TimeUnit.DAYS.toMillis(Long.getLong("chat.log.retencaoDias", 30));
+  private static final long PRAZO_PENDENTES_MS =
+      TimeUnit.DAYS.toMillis(Long.getLong("chat.log.prazoPendentesDias", 90));
+  private static final long INTERVALO_RETENCAO_MS = 60000;
+  private static final int MAXIMO_INTERVALOS = 32; // Por usuário; acima disso, os mais antigos se juntam.
+  private static final long ABERTO = Long.MAX_VALUE; // Fim de um intervalo ainda aberto.
+  private static final int MAGICO = 0x50454e44; // "PEND"
+  private static final String FOTOGRAFIA = "pendencias.snap";
+
+  // Tipos de registro.
+  private static final byte REGISTRO_MENSAGEM = 1; // Payload binário da Mensagem (CodecMensagem).
+  private static final byte REGISTRO_AUSENCIA = 2; // usuário + posição a partir da qual ficou fora do alcance.
+  private static final byte REGISTRO_RETORNO = 3; // usuário + posição a partir da qual voltou a ser alcançável.
+  private static final byte REGISTRO_ENTRADA = 4; // usuário + grupo + posição em que ele entrou no grupo.
+  private static final byte REGISTRO_ENTREGA = 5; // usuário + posição até onde as pendências foram entregues.
+  private static final byte REGISTRO_PARTIDA = 6; // posição da partida do servidor: ninguém é alcançável.
+
+  // Recebe cada mensagem acrescentada ao log, na ordem do log e ainda sob o lock do log,
+  // por isso deve ser rápido e não pode chamar o log de volta.
+  public interface Ouvinte {
+    void mensagemRegistrada(long posicao, Mensagem mensagem);
+  }
+
+  // Ação que espera a persistência de um registro.
+  private static final class Aguardando {
+    final long posicao;
+    final Reator reator;
+    final Runnable acao;
+
+    Aguardando(long posicao, Reator reator, Runnable acao) {
+      this.posicao = posicao;
+      this.reator = reator;
+      this.acao = acao;
+    }
+  }
+
+  // Mensagem que uma thread gravou e ainda está roteando (ABERTO quando nenhuma).
+  private static final class Roteamento {
+    final Thread thread = Thread.currentThread();
+    volatile long posicao = ABERTO;
+  }
+
+  // Pendências de um usuário: intervalos [início, fim) de posições do log em que ele esteve fora do
+  // alcance deste nó e cujas mensagens ainda não recebeu, em ordem; o último pode estar aberto. Guarda
+  // também em que posição ele entrou em cada grupo durante esses intervalos, para que a entrega não
+  // inclua mensagens do grupo anteriores à entrada. Um usuário sem pendências ocupa só o objeto.
+  public static final class Pendencias {
+    private static final long[] SEM_POSICOES = new long[0];
+    private static final String[] SEM_GRUPOS = new String[0];
+
+    private long[] intervalos = SEM_POSICOES; // Pares início, fim.
+    private int quantidade; // Intervalos em uso.
+    private String[] grupos = SEM_GRUPOS;
+    private long[] entradas = SEM_POSICOES;
+
+    // Verifica se o último intervalo ainda está aberto (o usuário continua fora do alcance).
+    public boolean isAberta() {
+      return quantidade > 0 && intervalos[2 * quantidade - 1] == ABERTO;
+    }
+
+    // Abre um intervalo a partir da posição indicada. Acima de MAXIMO_INTERVALOS, os dois mais antigos
+    // viram um só: as mensagens entre eles, que o usuário já recebeu, são entregues de novo.
+    void abrir(long inicio) {
+      if (isAberta()) {
+        return;
+      }
+      if (quantidade > 0 && intervalos[2 * quantidade - 1] >= inicio) {
+        intervalos[2 * quantidade - 1] = ABERTO;
+        return;
+      }
+      if (quantidade == MAXIMO_INTERVALOS) {
+        intervalos[1] = intervalos[3];
+        System.arraycopy(intervalos, 4, intervalos, 2, 2 * quantidade - 4);
+        quantidade--;
+      }
+      if (2 * quantidade == intervalos.length) {
+        intervalos = Arrays.copyOf(intervalos, Math.max(4, intervalos.length * 2));
+      }
+      intervalos[2 * quantidade] = inicio;
+      intervalos[2 * quantidade + 1] = ABERTO;
+      quantidade++;
+    }
+
+    // Fecha o intervalo aberto na posição indicada; um intervalo vazio é descartado.
+    void fechar(long fim) {
+      if (!isAberta()) {
+        return;
+      }
+      if (fim <= intervalos[2 * quantidade - 2]) {
+        quantidade--;
+      } else {
+        intervalos[2 * quantidade - 1] = fim;
+      }
+      limparEntradas();
+    }
+
+    // Retira das pendências as posições até a indicada, que já foram entregues.
+    void entregue(long posicao) {
+      int removidos = 0;
+      while (removidos < quantidade && intervalos[2 * removidos + 1] <= posicao + 1) {
+        removidos++;
+      }
+      System.arraycopy(intervalos, 2 * removidos, intervalos, 0, 2 * (quantidade - removidos));
+      quantidade -= removidos;
+      if (quantidade > 0 && intervalos[0] <= posicao) {
+        intervalos[0] = posicao + 1;
+      }
+      limparEntradas();
+    }
+
+    // Guarda a primeira entrada no grupo.
+    void entrou(String grupo, long posicao) {
+      if (getEntrada(grupo) >= 0) {
+        return;
+      }
+      grupos = Arrays.copyOf(grupos, grupos.length + 1);
+      entradas = Arrays.copyOf(entradas, entradas.length + 1);
+      grupos[grupos.length - 1] = grupo;
+      entradas[entradas.length - 1] = posicao;
+    }
+
+    // Sem intervalos pendentes, as entradas não filtram mais nada.
+    private void limparEntradas() {
+      if (quantidade == 0) {
+        grupos = SEM_GRUPOS;
+        entradas = SEM_POSICOES;
+      }
+    }
+
+    long primeiroInicio() {
+      return quantidade == 0 ? ABERTO : intervalos[0];
+    }
+
+    Pendencias copia() {
+      Pendencias copia = new Pendencias();
+      copia.intervalos = Arrays.copyOf(intervalos, 2 * quantidade);
+      copia.quantidade = quantidade;
+      copia.grupos = grupos;
+      copia.entradas = entradas;
+      return copia;
+    }
+
+    // Getters
+    public int getQuantidade() {
+      return quantidade;
+    }
+
+    public long getInicio(int intervalo) {
+      return intervalos[2 * intervalo];
+    }
+
+    public long getFim(int intervalo) {
+      return intervalos[2 * intervalo + 1];
+    }
+
+    // Posição em que o usuário entrou no grupo durante os intervalos, ou -1.
+    public long getEntrada(String grupo) {
+      for (int i = 0; i < grupos.length; i++) {
+        if (grupos[i].equals(grupo)) {
+          return entradas[i];
+        }
+      }
+      return -1;
+    }
+  }
+
+  private final Path diretorio;
+  private final TreeMap<Long, SegmentoLog> segmentos; // Base -> segmento.
+  private final Set<SegmentoLog> sujos; // Segmentos com registros ainda não persistidos.
+  private final Map<String, Pendencias> pendencias; // Usuários que já foram alcançáveis ou entraram em grupos.
+  private final ArrayDeque<Aguardando> aguardando;
+  private final List<Ouvinte> ouvintes;
+  private final List<Roteamento> roteamentos = new CopyOnWriteArrayList<>();
+  private final ThreadLocal<Roteamento> roteamento = ThreadLocal.withInitial(() -> {
+    Roteamento novo = new Roteamento();
+    roteamentos.add(novo);
+    return novo;
+  });
+  private SegmentoLog atual;
+  private long inicio; // Posição do primeiro segmento que não foi apagado.
+  private long persistido; // Posição global até onde o log já está no disco.
+  private Thread threadFsync;
+  private Thread threadRetencao;
+  private volatile boolean executando;
+
+  private final LongAdder registros = new LongAdder();
+  private final LongAdder fsyncs = new LongAdder();
+  private final LongAdder nanosFsync = new LongAdder();
+
+  // Construtor da classe LogMensagens; recupera os segmentos existentes no diretório.
+  public LogMensagens(Path diretorio) throws IOException {
+    this.diretorio = diretorio;
+    this.segmentos = new TreeMap<>();
+    this.sujos = new LinkedHashSet<>();
+    this.pendencias = new HashMap<>();
+    this.aguardando = new ArrayDeque<>();
+    this.ouvintes = new ArrayList<>();
+    Files.createDirectories(diretorio);
+    recuperar();
+    persistido = atual.getFim();
+
+    executando = true;
+    if (MODO_FSYNC != ModoFsync.NUNCA) {
+      threadFsync = new Thread(this::executarFsync, "log-fsync");
+      threadFsync.setDaemon(true);
+      threadFsync.start();
+    }
+    if (RETENCAO_MS > 0) {
+      threadRetencao = new Thread(this::executarRetencao, "log-retencao");
+      threadRetencao.setDaemon(true);
+      threadRetencao.start();
+    }
+  }
+
+  // Carrega a fotografia das pendências, reabre os segmentos em ordem e reaplica os registros de controle
+  // posteriores a ela. Depois de uma partida ninguém está alcançável, o que fica registrado no log.
+  private void recuperar() throws IOException {
+    long fotografada = lerFotografia();
+    List<Path> arquivos = new ArrayList<>();
+    try (Stream<Path> lista = Files.list(diretorio)) {
+      lista.filter(caminho -> caminho.getFileName().toString().matches("\\d{20}\\.log")).forEach(arquivos::add);
+    }
+    Collections.sort(arquivos);
+    for (Path arquivo : arquivos) {
+      long base = Long.parseLong(arquivo.getFileName().toString().substring(0, 20));
+      int capacidade = (int) Math.max(Files.size(arquivo), TAMANHO_SEGMENTO);
+      SegmentoLog segmento = new SegmentoLog(arquivo, base, capacidade);
+      segmento.recuperar((posicao, tipo, dados) -> {
+        if (posicao >= fotografada) {
+          aplicar(tipo, dados);
+        }
+      });
+      segmentos.put(base, segmento);
+      atual = segmento;
+    }
+    if (atual == null) {
+      atual = novoSegmento(0);
+    }
+    inicio = segmentos.firstKey();
+
+    ByteBuffer partida = ByteBuffer.allocate(8);
+    partida.putLong(0, atual.getFim());
+    anexar(REGISTRO_PARTIDA, partida);
+    aplicar(REGISTRO_PARTIDA, partida);
+  }
+
+  // Aplica um registro de controle ao estado em memória (na recuperação e logo após cada acréscimo).
+  private void aplicar(byte tipo, ByteBuffer dados) {
+    switch (tipo) {
+      case REGISTRO_AUSENCIA:
+        pendenciasDoUsuario(lerTexto(dados)).abrir(dados.getLong());
+        break;
+      case REGISTRO_RETORNO:
+        pendenciasDoUsuario(lerTexto(dados)).fechar(dados.getLong());
+        break;
+      case REGISTRO_ENTRADA:
+        String usuario = lerTexto(dados);
+        boolean novo = !pendencias.containsKey(usuario);
+        Pendencias doUsuario = pendenciasDoUsuario(usuario);
+        String grupo = lerTexto(dados);
+        long entrada = dados.getLong();
+        if (novo) {
+          doUsuario.abrir(entrada); // Nunca foi alcançável por este nó: fica fora do alcance desde a entrada.
+        }
+        doUsuario.entrou(grupo, entrada);
+        break;
+      case REGISTRO_ENTREGA:
+        pendenciasDoUsuario(lerTexto(dados)).entregue(dados.getLong());
+        break;
+      case REGISTRO_PARTIDA:
+        long posicao = dados.getLong();
+        for (Pendencias deCadaUm : pendencias.values()) {
+          deCadaUm.abrir(posicao);
+        }
+        break;
+      default:
+        break;
+    }
+  }
+
+  // Pendências do usuário. Quem ainda não tem registro nunca foi visto por este nó e não tem nada pendente:
+  // as mensagens anteriores a isso não eram para ele.
+  private Pendencias pendenciasDoUsuario(String usuario) {
+    return pendencias.computeIfAbsent(usuario, u -> new Pendencias());
+  }
+
+  // Acrescenta uma mensagem de chat ao log e retorna a sua posição. A thread que grava deve chamar
+  // concluirRoteamento depois de decidir quem recebe a mensagem ao vivo: até lá, uma ausência registrada
+  // por outra thread começa no máximo nesta posição, e a mensagem não escapa de quem saiu no meio tempo.
+  public synchronized long registrarMensagem(Mensagem mensagem) throws IOException {
+    ByteBuffer dados = ByteBuffer.allocate(CodecMensagem.tamanhoCodificado(mensagem));
+    CodecMensagem.codificar(mensagem, dados);
+    dados.flip();
+    long posicao = anexar(REGISTRO_MENSAGEM, dados);
+    Roteamento emAndamento = roteamento.get();
+    if (emAndamento.posicao == ABERTO) {
+      emAndamento.posicao = posicao;
+    }
+    for (Ouvinte ouvinte : ouvintes) {
+      ouvinte.mensagemRegistrada(posicao, mensagem);
+    }
+    return posicao;
+  }
+
+  // A thread terminou de rotear as mensagens que gravou.
+  public void concluirRoteamento() {
+    roteamento.get().posicao = ABERTO;
+  }
+
+  // Passa ao ouvinte as mensagens já gravadas a partir da posição indicada e o registra para as próximas.
+  // Serve para um índice alcançar o log na partida sem perder as mensagens gravadas no meio tempo.
+  public synchronized void adicionarOuvinte(Ouvinte ouvinte, long aPartirDe) {
+    Map.Entry<Long, SegmentoLog> primeiro = segmentos.floorEntry(aPartirDe);
+    Collection<SegmentoLog> percorrer = primeiro == null ? segmentos.values()
+        : segmentos.tailMap(primeiro.getKey(), true).values();
+    for (SegmentoLog segmento : percorrer) {
+      segmento.percorrer((posicao, tipo, dados) -> {
+        if (tipo != REGISTRO_MENSAGEM || posicao < aPartirDe) {
+          return;
+        }
+        try {
+          ouvinte.mensagemRegistrada(posicao, CodecMensagem.decodificar(dados));
+        } catch (IOException e) {
+          LogConsole.erro("Mensagem ilegivel no log na posicao ", posicao, ": ", e.getMessage());
+        }
+      });
+    }
+    ouvintes.add(ouvinte);
+  }
+
+  // O usuário ficou fora do alcance deste nó (saiu daqui, ou do nó do cluster onde estava). Chamado depois
+  // de desligar a presença: as mensagens a partir da posição segura ficam pendentes para ele.
+  public synchronized void registrarAusencia(String usuario) throws IOException {
+    Pendencias doUsuario = pendencias.get(usuario);
+    if (doUsuario != null && !doUsuario.isAberta()) {
+      anexarEAplicar(REGISTRO_AUSENCIA, textoELong(usuario, posicaoSegura()));
+    }
+  }
+
+  // O usuário voltou a ser alcançável (login aqui ou em outro nó). Chamado depois de ligar a presença:
+  // as mensagens gravadas daqui em diante chegam ao vivo, e as do intervalo que se fecha continuam
+  // pendentes até serem entregues num login neste nó.
+  public synchronized void registrarRetorno(String usuario) throws IOException {
+    Pendencias doUsuario = pendencias.get(usuario);
+    if (doUsuario == null || doUsuario.isAberta()) {
+      anexarEAplicar(REGISTRO_RETORNO, textoELong(usuario, atual.getFim()));
+    }
+  }
+
+  // O usuário entrou num grupo. Só é gravado se ele tem pendências, que não devem incluir as mensagens
+  // do grupo anteriores à entrada.
+  public synchronized void registrarEntrada(String usuario, String grupo) throws IOException {
+    Pendencias doUsuario = pendencias.get(usuario);
+    if (doUsuario == null || doUsuario.getQuantidade() > 0) {
+      ByteBuffer dados = ByteBuffer.allocate(4 + (usuario.length() + grupo.length()) * 3 + 8);
+      escreverTexto(dados, usuario);
+      escreverTexto(dados, grupo);
+      dados.putLong(atual.getFim());
+      dados.flip();
+      anexarEAplicar(REGISTRO_ENTRADA, dados);
+    }
+  }
+
+  // Avança o cursor de entrega do usuário: as pendências até a posição indicada foram entregues.
+  public synchronized void registrarEntrega(String usuario, long posicaoMensagem) throws IOException {
+    anexarEAplicar(REGISTRO_ENTREGA, textoELong(usuario, posicaoMensagem));
+  }
+
+  // Verifica se o usuário já foi alcançável por este nó ou entrou em algum grupo.
+  public synchronized boolean conheceUsuario(String usuario) {
+    return pendencias.containsKey(usuario);
+  }
+
+  // Cópia das pendências do usuário, para a entrega percorrê-las fora do lock.
+  public synchronized Pendencias pendenciasDe(String usuario) {
+    Pendencias doUsuario = pendencias.get(usuario);
+    return doUsuario == null ? new Pendencias() : doUsuario.copia();
+  }
+
+  // Lê a mensagem gravada na posição indicada. A leitura segura o segmento: se a retenção o retira no
+  // meio tempo, o arquivo só é fechado e apagado quando ela termina.
+  public Mensagem lerMensagem(long posicao) throws IOException {
+    SegmentoLog segmento;
+    synchronized (this) {
+      Map.Entry<Long, SegmentoLog> entrada = segmentos.floorEntry(posicao);
+      if (entrada == null || posicao >= entrada.getValue().getFim()) {
+        throw new IOException("Posicao fora do log: " + posicao);
+      }
+      segmento = entrada.getValue();
+      segmento.adquirir();
+    }
+    try {
+      if (segmento.tipo(posicao) != REGISTRO_MENSAGEM) {
+        throw new IOException("Registro nao e uma mensagem: " + posicao);
+      }
+      return CodecMensagem.decodificar(segmento.ler(posicao));
+    } finally {
+      segmento.liberar();
+    }
+  }
+
+  // Executa a ação na thread do reator quando o registro na posição indicada estiver persistido.
+  // Fora do modo SEMPRE a ação é executada logo.
+  public void aoPersistir(long posicao, Reator reator, Runnable acao) {
+    if (MODO_FSYNC == ModoFsync.SEMPRE) {
+      synchronized (this) {
+        if (posicao >= persistido) {
+          aguardando.addLast(new Aguardando(posicao, reator, acao));
+          notifyAll();
+          return;
+        }
+      }
+    }
+    reator.executar(acao);
+  }
+
+  // Grava um registro de controle e o aplica ao estado em memória.
+  private void anexarEAplicar(byte tipo, ByteBuffer dados) throws IOException {
+    anexar(tipo, dados);
+    aplicar(tipo, dados);
+  }
+
+  // Menor posição que pode ter sido roteada sem ver uma mudança de presença feita agora: o fim do log, ou
+  // a mensagem mais antiga que alguma thread gravou e ainda está roteando (chamado com o lock).
+  private long posicaoSegura() {
+    long segura = atual.getFim();
+    for (Roteamento emAndamento : roteamentos) {
+      if (!emAndamento.thread.isAlive()) {
+        roteamentos.remove(emAndamento);
+      } else {
+        segura = Math.min(segura, emAndamento.posicao);
+      }
+    }
+    return segura;
+  }
+
+  // Escreve o registro no segmento atual, abrindo um novo quando não cabe mais.
+  private long anexar(byte tipo, ByteBuffer dados) throws IOException {
+    if (!atual.cabe(dados.remaining())) {
+      if (SegmentoLog.CABECALHO + dados.remaining() > TAMANHO_SEGMENTO) {
+        throw new IOException("Registro maior que o segmento do log: " + dados.remaining() + " bytes");
+      }
+      atual = novoSegmento(atual.getBase() + atual.getCapacidade());
+    }
+    long posicao = atual.escrever(tipo, dados);
+    sujos.add(atual);
+    registros.increment();
+    return posicao;
+  }
+
+  // Cria um novo segmento com a base indicada.
+  private SegmentoLog novoSegmento(long base) throws IOException {
+    SegmentoLog segmento = new SegmentoLog(diretorio.resolve(String.format("%020d.log", base)), base,
+        TAMANHO_SEGMENTO);
+    segmentos.put(base, segmento);
+    return segmento;
+  }
+
+  // Loop da thread de persistência: junta os registros acumulados num único force por segmento.
+  private void executarFsync() {
+    while (executando) {
+      List<SegmentoLog> segmentosSujos = new ArrayList<>();
+      List<int[]> trechos = new ArrayList<>();
+      long alvo;
+      synchronized (this) {
+        try {
+          if (MODO_FSYNC == ModoFsync.SEMPRE) {
+            while (executando && aguardando.isEmpty()) {
+              wait(INTERVALO_FSYNC_MS);
+              if (!sujos.isEmpty()) {
+                break;
+              }
+            }
+          } else {
+            wait(INTERVALO_FSYNC_MS);
+          }
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          return;
+        }
+        alvo = atual.getFim();
+        for (SegmentoLog segmento : sujos) {
+          segmentosSujos.add(segmento);
+          trechos.add(segmento.retirarSujo());
+        }
+        sujos.clear();
+      }
+
+      persistir(segmentosSujos, trechos);
+
+      List<Aguardando> prontos = new ArrayList<>();
+      synchronized (this) {
+        persistido = alvo;
+        while (!aguardando.isEmpty() && aguardando.peekFirst().posicao < alvo) {
+          prontos.add(aguardando.pollFirst());
+        }
+      }
+      for (Aguardando pronto : prontos) {
+        pronto.reator.executar(pronto.acao);
+      }
+    }
+  }
+
+  // Força no disco os trechos sujos dos segmentos.
+  private void persistir(List<SegmentoLog> segmentosSujos, List<int[]> trechos) {
+    if (segmentosSujos.isEmpty()) {
+      return;
+    }
+    long inicio = System.nanoTime();
+    for (int i = 0; i < segmentosSujos.size(); i++) {
+      int[] trecho = trechos.get(i);
+      if (trecho != null) {
+        segmentosSujos.get(i).forcar(trecho[0], trecho[1]);
+      }
+    }
+    fsyncs.increment();
+    nanosFsync.add(System.nanoTime() - inicio);
+  }
+
+  // Loop da thread de retenção.
+  private void executarRetencao() {
+    while (executando) {
+      aplicarRetencao();
+      try {
+        Thread.sleep(INTERVALO_RETENCAO_MS);
+      } catch (InterruptedException e) {
+        return;
+      }
+    }
+  }
+
+  // Apaga os segmentos fechados, do mais antigo em diante, que passaram da retenção e que nenhum intervalo
+  // pendente ainda usa (ou que passaram do prazo das pendências). Antes, grava a fotografia das pendências,
+  // pois parte dos registros que as reconstroem estava nesses segmentos.
+  private void aplicarRetencao() {
+    long agora = System.currentTimeMillis();
+    List<SegmentoLog> fechados;
+    synchronized (this) {
+      fechados = new ArrayList<>(segmentos.headMap(atual.getBase()).values());
+    }
+    List<SegmentoLog> apagar = new ArrayList<>();
+    for (SegmentoLog segmento : fechados) {
+      long idade;
+      try {
+        idade = agora - Files.getLastModifiedTime(segmento.getCaminho()).toMillis();
+      } catch (IOException e) {
+        break;
+      }
+      if (idade < RETENCAO_MS) {
+        break;
+      }
+      synchronized (this) {
+        if (segmento.getFim() > menorPendente() && idade < PRAZO_PENDENTES_MS) {
+          break;
+        }
+      }
+      apagar.add(segmento);
+    }
+    if (apagar.isEmpty()) {
+      return;
+    }
+
+    byte[] fotografia;
+    synchronized (this) {
+      try {
+        fotografia = fotografar();
+      } catch (IOException e) {
+        LogConsole.erro("Erro ao preparar fotografia das pendencias: ", e.getMessage());
+        return;
+      }
+      for (SegmentoLog segmento : apagar) {
+        segmentos.remove(segmento.getBase());
+        sujos.remove(segmento);
+      }
+      inicio = segmentos.firstKey();
+    }
+    try {
+      gravarFotografia(fotografia);
+      for (SegmentoLog segmento : apagar) {
+        segmento.retirar();
+      }
+      LogConsole.info("Log: ", apagar.size(), " segmento(s) apagado(s) pela retencao");
+    } catch (IOException e) {
+      LogConsole.erro("Erro ao apagar segmentos do log: ", e.getMessage());
+    }
+  }
+
+  // Início do intervalo pendente mais antigo entre todos os usuários (chamado com o lock).
+  private long menorPendente() {
+    long menor = ABERTO;
+    for (Pendencias doUsuario : pendencias.values()) {
+      menor = Math.min(menor, doUsuario.primeiroInicio());
+    }
+    return menor;
+  }
+
+  // Fotografia das pendências na posição atual do log: [int MAGICO][long posição][int usuários], para cada
+  // usuário [texto nome][int intervalos][long início, long fim...][int grupos][texto grupo, long entrada...],
+  // e no fim o CRC32 de tudo o que vem antes (chamado com o lock).
+  private byte[] fotografar() throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    CRC32 crc = new CRC32();
+    DataOutputStream saida = new DataOutputStream(new CheckedOutputStream(bytes, crc));
+    saida.writeInt(MAGICO);
+    saida.writeLong(atual.getFim());
+    saida.writeInt(pendencias.size());
+    for (Map.Entry<String, Pendencias> entrada : pendencias.entrySet()) {
+      Pendencias doUsuario = entrada.getValue();
+      escreverTexto(saida, entrada.getKey());
+      saida.writeInt(doUsuario.quantidade);
+      for (int i = 0; i < 2 * doUsuario.quantidade; i++) {
+        saida.writeLong(doUsuario.intervalos[i]);
+      }
+      saida.writeInt(doUsuario.grupos.length);
+      for (int i = 0; i < doUsuario.grupos.length; i++) {
+        escreverTexto(saida, doUsuario.grupos[i]);
+        saida.writeLong(doUsuario.entradas[i]);
+      }
+    }
+    saida.flush();
+    new DataOutputStream(bytes).writeInt((int) crc.getValue());
+    return bytes.toByteArray();
+  }
+
+  // Grava a fotografia num arquivo temporário e o troca pelo anterior de uma vez.
+  private void gravarFotografia(byte[] fotografia) throws IOException {
+    Path caminho = diretorio.resolve(FOTOGRAFIA);
+    Path temporario = diretorio.resolve(FOTOGRAFIA + ".novo");
+    try (FileChannel canal = FileChannel.open(temporario, StandardOpenOption.CREATE,
+        StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+      ByteBuffer dados = ByteBuffer.wrap(fotografia);
+      while (dados.hasRemaining()) {
+        canal.write(dados);
+      }
+      canal.force(true);
+    }
+    Files.move(temporario, caminho, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+  }
+
+  // Carrega a fotografia das pendências, se existe, e retorna a posição do log em que foi tirada (0 se não).
+  private long lerFotografia() throws IOException {
+    Path caminho = diretorio.resolve(FOTOGRAFIA);
+    if (!Files.exists(caminho)) {
+      return 0;
+    }
+    ByteBuffer dados = ByteBuffer.wrap(Files.readAllBytes(caminho));
+    int fimDados = dados.capacity() - 4;
+    CRC32 crc = new CRC32();
+    if (fimDados >= 16) {
+      crc.update(dados.slice(0, fimDados));
+    }
+    if (fimDados < 16 || (int) crc.getValue() != dados.getInt(fimDados) || dados.getInt(0) != MAGICO) {
+      throw new IOException("fotografia das pendencias corrompida: " + caminho);
+    }
+    dados.position(4);
+    long posicao = dados.getLong();
+    int usuarios = dados.getInt();
+    for (int i = 0; i < usuarios; i++) {
+      Pendencias doUsuario = new Pendencias();
+      pendencias.put(lerTexto(dados), doUsuario);
+      doUsuario.quantidade = dados.getInt();
+      doUsuario.intervalos = new long[2 * doUsuario.quantidade];
+      for (int j = 0; j < doUsuario.intervalos.length; j++) {
+        doUsuario.intervalos[j] = dados.getLong();
+      }
+      int grupos = dados.getInt();
+      for (int j = 0; j < grupos; j++) {
+        doUsuario.entrou(lerTexto(dados), dados.getLong());
+      }
+    }
+    return posicao;
+  }
+
+  // Codifica usuário + posição.
+  private static ByteBuffer textoELong(String texto, long valor) {
+    ByteBuffer dados = ByteBuffer.allocate(2 + texto.length() * 3 + 8);
+    escreverTexto(dados, texto);
+    dados.putLong(valor);
+    dados.flip();
+    return dados;
+  }
+
+  // Escreve um texto curto como short(tamanho) + UTF-8.
+  private static void escreverTexto(ByteBuffer destino, String texto) {
+    byte[] bytes = texto.getBytes(StandardCharsets.UTF_8);
+    destino.putShort((short) bytes.length);
+    destino.put(bytes);
+  }
+
+  // Igual ao anterior, para a fotografia.
+  private static void escreverTexto(DataOutputStream saida, String texto) throws IOException {
+    byte[] bytes = texto.getBytes(StandardCharsets.UTF_8);
+    saida.writeShort(bytes.length);
+    saida.write(bytes);
+  }
+
+  // Lê um texto escrito por escreverTexto.
+  private static String lerTexto(ByteBuffer origem) {
+    byte[] bytes = new byte[origem.getShort() & 0xFFFF];
+    origem.get(bytes);
+    return new String(bytes, StandardCharsets.UTF_8);
+  }
+
+  // Resumo do log para o relatório do servidor.
+  public synchronized String resumo() {
+    long quantidadeFsyncs = fsyncs.sum();
+    long mediaMicros = quantidadeFsyncs == 0 ? 0 : nanosFsync.sum() / quantidadeFsyncs / 1000;
+    int comPendencias = 0;
+    for (Pendencias doUsuario : pendencias.values()) {
+      if (doUsuario.getQuantidade() > 0) {
+        comPendencias++;
+      }
+    }
+    return "fsync=" + MODO_FSYNC + ", segmentos=" + segmentos.size() + ", registros=" + registros.sum()
+        + ", fsyncs=" + quantidadeFsyncs + " (media " + mediaMicros + "us), usuariosComPendencias=" + comPendencias;
+  }
+
+  // Getters
+  public synchronized long getInicio() {
+    return inicio;
+  }
+
+  // Persiste o que falta e fecha os segmentos. As ações que esperavam a persistência rodam depois, fora do
+  // lock, como na thread de persistência.
+  public void fechar() {
+    executando = false;
+    if (threadRetencao != null) {
+      threadRetencao.interrupt();
+    }
+    if (threadFsync != null) {
+      synchronized (this) {
+        notifyAll();
+      }
+      try {
+        threadFsync.join(2000);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    }
+    List<Aguardando> prontos;
+    synchronized (this) {
+      List<SegmentoLog> segmentosSujos = new ArrayList<>(sujos);
+      List<int[]> trechos = new ArrayList<>();
+      for (SegmentoLog segmento : segmentosSujos) {
+        trechos.add(segmento.retirarSujo());
+      }
+      sujos.clear();
+      persistir(segmentosSujos, trechos);
+      for (SegmentoLog segmento : segmentos.values()) {
+        try {
+          segmento.fechar();
+        } catch (IOException e) {
+          LogConsole.erro("Erro ao fechar segmento do log: ", e.getMessage());
+        }
+      }
+      persistido = atual.getFim();
+      prontos = new ArrayList<>(aguardando);
+      aguardando.clear();
+    }
+    for (Aguardando pronto : prontos) {
+      pronto.reator.executar(pronto.acao);
+    }
+  }
+}
@@ -0,0 +1,87 @@
+import java.io.IOException;
+import java.util.concurrent.atomic.LongAdder;
+
+// Prazos das conexões, verificados pela roda de temporizadores do reator de cada uma: quem não faz LOGIN
+// a tempo é desconectado; uma conexão sem leituras por OCIOSO_MS recebe um PING e cai se nada chegar em
+// PRAZO_PONG_MS; e uma conexão com bytes na fila de saída sem nenhuma escrita avançar há ESCRITA_PARADA_MS
+// também cai. Cada conexão tem um único temporizador, reagendado a cada verificação; leituras e escritas
+// só anotam o momento.
+public class ManutencaoConexoes {
+  public static final long PRAZO_LOGIN_MS = Long.getLong("chat.conexao.prazoLoginMs", 10000);
+  public static final long OCIOSO_MS = Long.getLong("chat.conexao.ociosoMs", 30000);
+  public static final long PRAZO_PONG_MS = Long.getLong("chat.conexao.prazoPongMs", 10000);
+  public static final long ESCRITA_PARADA_MS = Long.getLong("chat.conexao.escritaParadaMs", 30000);
+
+  private final QuadroCodificado ping; // PING já codificado, compartilhado por todas as conexões.
+
+  // Contadores globais das desconexões e dos PINGs.
+  private final LongAdder semLogin = new LongAdder();
+  private final LongAdder pings = new LongAdder();
+  private final LongAdder semResposta = new LongAdder();
+  private final LongAdder escritasParadas = new LongAdder();
+
+  // Construtor da classe ManutencaoConexoes.
+  public ManutencaoConexoes() {
+    try {
+      ping = QuadroCodificado.codificar(new Mensagem(Mensagem.TipoMensagem.PING), CodecMensagem.Formato.BINARIO);
+    } catch (IOException e) {
+      throw new IllegalStateException("Erro ao codificar o PING", e);
+    }
+  }
+
+  // Conexão recém-aceita: o primeiro prazo é o do LOGIN.
+  public void aoAceitar(ClienteService clienteService, long agora) {
+    clienteService.registrarLeitura(agora);
+    clienteService.getReator().agendar(clienteService.getTemporizador(), PRAZO_LOGIN_MS);
+  }
+
+  // Login feito: a partir daqui a conexão é vigiada por ociosidade e por escrita parada.
+  public void aposLogin(ClienteService clienteService) {
+    clienteService.getReator().agendar(clienteService.getTemporizador(), proximaVerificacao(OCIOSO_MS));
+  }
+
+  // Chamado pela roda quando o temporizador da conexão vence (thread do reator).
+  public void verificar(ClienteService clienteService, long agora) {
+    Reator reator = clienteService.getReator();
+    if (!clienteService.isConectado()) {
+      return;
+    }
+    if (clienteService.getUsuario() == null) {
+      semLogin.increment();
+      reator.fecharConexao(clienteService);
+      return;
+    }
+    if (clienteService.isEscritaParada(agora, ESCRITA_PARADA_MS)) {
+      escritasParadas.increment();
+      reator.fecharConexao(clienteService);
+      return;
+    }
+    long ocioso = agora - clienteService.getUltimaLeitura();
+    if (ocioso < OCIOSO_MS || clienteService.isLeituraPausada()
+        || clienteService.getFormato() != CodecMensagem.Formato.BINARIO) {
+      // Houve leitura, a leitura está pausada pelo controle de fluxo ou o cliente é antigo (não conhece
+      // PING): só conferir de novo mais tarde.
+      reator.agendar(clienteService.getTemporizador(), proximaVerificacao(Math.max(OCIOSO_MS - ocioso, 1)));
+    } else if (!clienteService.isPingPendente()) {
+      pings.increment();
+      clienteService.setPingPendente(true);
+      clienteService.adicionarParaEscrita(ping);
+      reator.solicitarEscrita(clienteService);
+      reator.agendar(clienteService.getTemporizador(), proximaVerificacao(PRAZO_PONG_MS));
+    } else {
+      semResposta.increment();
+      reator.fecharConexao(clienteService);
+    }
+  }
+
+  // A escrita parada é conferida pelo menos a cada ESCRITA_PARADA_MS, mesmo numa conexão ativa.
+  private static long proximaVerificacao(long atrasoMs) {
+    return Math.min(atrasoMs, ESCRITA_PARADA_MS);
+  }
+
+  // Resumo dos contadores para o relatório periódico.
+  public String resumo() {
+    return "semLogin=" + semLogin.sum() + ", pings=" + pings.sum() + ", semResposta=" + semResposta.sum()
+        + ", escritasParadas=" + escritasParadas.sum();
+  }
+}
@@ -9,7 +9,17 @@ public class Mensagem implements Serializable {
   // Tipos de mensagens suportados.
   public enum TipoMensagem {
     LOGIN, LOGOUT, MENSAGEM_PRIVADA, MENSAGEM_GRUPO, TRANSFERENCIA_ARQUIVO,
-    CRIAR_GRUPO, ENTRAR_GRUPO, STATUS, SUCESSO, ERRO
+    CRIAR_GRUPO, ENTRAR_GRUPO, STATUS, SUCESSO, ERRO,
+    ARQUIVO_INICIO, ARQUIVO_PARTE, ARQUIVO_FIM, // Transferência de arquivo em partes.
+    ARQUIVO_CONSULTA, // Pergunta se o servidor já tem o conteúdo do arquivo (pelo SHA-256).
+    HISTORICO, // Página do histórico de um grupo ou de uma conversa privada.
+    BUSCA, // Busca de texto nas mensagens das conversas do usuário.
+    NO_OLA, NO_PRESENCA, // Só entre nós do cluster: apresentação da ligação e login/logout de um usuário.
+    NO_MENSAGEM_GRUPO, NO_CRIAR_GRUPO, NO_ENTRAR_GRUPO, // Pedidos de clientes repassados ao nó dono do grupo.
+    NO_SINCRONIZADO, NO_PRONTO, // Fim da cópia dos grupos para um nó; nó pronto para entrar no anel.
+    NO_PEDIR_GRUPO, // Pede ao nó os grupos em que a cópia local tem menos membros que a dele.
+    NO_PENDENTE, NO_ENTREGUE, // Mensagem pendente entregue pelo nó do usuário; lote dela escrito no socket.
+    PING, PONG // Verificação de uma conexão ociosa; quem recebe um PING responde com PONG.
   }
 
   private TipoMensagem tipo;
@@ -20,6 +30,18 @@ public class Mensagem implements Serializable {
   private byte[] dadosArquivo;
   private String nomeArquivo;
   private boolean sucesso;
+  private long idTransferencia; // Identifica a transferência em partes (único por remetente).
+  private long deslocamento; // Posição da parte dentro do arquivo.
+  private long tamanhoArquivo; // Tamanho total do arquivo (ARQUIVO_INICIO e ARQUIVO_FIM).
+  private long checksum; // CRC32 do arquivo completo (ARQUIVO_FIM).
+  private long tamanhoDados; // Bytes brutos do arquivo que seguem o quadro (ARQUIVO_PARTE).
+  private String hashArquivo; // SHA-256 do conteúdo em hexadecimal (ARQUIVO_CONSULTA).
+  private long carimboTempo; // Momento em que o servidor recebeu a mensagem (ms desde a época).
+  private long cursor; // Posição no histórico: pedir mensagens anteriores a ela (HISTORICO e BUSCA).
+  private int limite; // Quantidade máxima de mensagens pedidas, ou enviadas, numa página do histórico.
+  private long sessao; // Token da sessão retomável (resposta do LOGIN e LOGIN de retomada).
+  private long sequencia; // Quadros já recebidos pelo lado que envia (retomada da sessão).
+  private transient Rastreamento.Rastro rastro; // Marcas do rastreamento no servidor (só se amostrada).
 
   // Construtor principal.
   public Mensagem(TipoMensagem tipo, String remetente) {
@@ -38,6 +60,10 @@ public class Mensagem implements Serializable {
     return tipo;
   }
 
+  public void setTipo(TipoMensagem tipo) {
+    this.tipo = tipo;
+  }
+
   public String getRemetente() {
     return remetente;
   }
@@ -82,8 +108,108 @@ public class Mensagem implements Serializable {
     this.nomeArquivo = nomeArquivo;
   }
 
+  public long getIdTransferencia() {
+    return idTransferencia;
+  }
+
+  public void setIdTransferencia(long idTransferencia) {
+    this.idTransferencia = idTransferencia;
+  }
+
+  public long getDeslocamento() {
+    return deslocamento;
+  }
+
+  public void setDeslocamento(long deslocamento) {
+    this.deslocamento = deslocamento;
+  }
+
+  public long getTamanhoArquivo() {
+    return tamanhoArquivo;
+  }
+
+  public void setTamanhoArquivo(long tamanhoArquivo) {
+    this.tamanhoArquivo = tamanhoArquivo;
+  }
+
+  public long getChecksum() {
+    return checksum;
+  }
+
+  public void setChecksum(long checksum) {
+    this.checksum = checksum;
+  }
+
+  public long getTamanhoDados() {
+    return tamanhoDados;
+  }
+
+  public void setTamanhoDados(long tamanhoDados) {
+    this.tamanhoDados = tamanhoDados;
+  }
+
+  public String getHashArquivo() {
+    return hashArquivo;
+  }
+
+  public void setHashArquivo(String hashArquivo) {
+    this.hashArquivo = hashArquivo;
+  }
+
+  public long getCarimboTempo() {
+    return carimboTempo;
+  }
+
+  public void setCarimboTempo(long carimboTempo) {
+    this.carimboTempo = carimboTempo;
+  }
+
+  public long getCursor() {
+    return cursor;
+  }
+
+  public void setCursor(long cursor) {
+    this.cursor = cursor;
+  }
+
+  public int getLimite() {
+    return limite;
+  }
+
+  public void setLimite(int limite) {
+    this.limite = limite;
+  }
+
+  public long getSessao() {
+    return sessao;
+  }
+
+  public void setSessao(long sessao) {
+    this.sessao = sessao;
+  }
+
+  public long getSequencia() {
+    return sequencia;
+  }
+
+  public void setSequencia(long sequencia) {
+    this.sequencia = sequencia;
+  }
+
+  public boolean isSucesso() {
+    return sucesso;
+  }
+
   public void setSucesso(boolean sucesso) {
     this.sucesso = sucesso;
   }
+
+  public Rastreamento.Rastro getRastro() {
+    return rastro;
+  }
+
+  public void setRastro(Rastreamento.Rastro rastro) {
+    this.rastro = rastro;
+  }
 }
 
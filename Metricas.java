@@ -0,0 +1,262 @@
+import java.util.Collection;
+import java.util.concurrent.atomic.LongAdder;
+
+// Métricas do servidor, registradas sem trava a partir de qualquer thread (reatores, cluster, disco):
+// conexões, quadros e bytes recebidos e enviados por tipo de mensagem, largura das difusões para grupos,
+// tempo de cada volta do loop dos reatores e latência do roteamento (da mensagem decodificada até ela
+// estar nas filas de saída dos destinos). Os contadores são LongAdder e as distribuições têm faixas de
+// potências de 2, também em LongAdder; registrar não aloca nada.
+//
+// A profundidade das filas de saída não é registrada: ela é lida das conexões na hora da exportação.
+// O texto segue o formato de exposição do Prometheus.
+public class Metricas {
+  private static final Mensagem.TipoMensagem[] TIPOS = Mensagem.TipoMensagem.values();
+  private static final long[] LIMITES_FILA = {0, 1024, 16 * 1024, 256 * 1024, 1024 * 1024, 4 * 1024 * 1024,
+      16 * 1024 * 1024}; // Faixas (bytes) da contagem de conexões por profundidade da fila de saída.
+
+  // Distribuição com faixas de potências de 2: a faixa i guarda os valores em (2^(i-1), 2^i].
+  public static final class Distribuicao {
+    private final LongAdder[] faixas = new LongAdder[64];
+    private final LongAdder soma = new LongAdder();
+    private final int menorFaixa; // Faixas exportadas (limites 2^menorFaixa até 2^maiorFaixa).
+    private final int maiorFaixa;
+
+    public Distribuicao(int menorFaixa, int maiorFaixa) {
+      this.menorFaixa = menorFaixa;
+      this.maiorFaixa = maiorFaixa;
+      for (int i = 0; i < faixas.length; i++) {
+        faixas[i] = new LongAdder();
+      }
+    }
+
+    public void registrar(long valor) {
+      faixas[valor <= 1 ? 0 : 64 - Long.numberOfLeadingZeros(valor - 1)].increment();
+      soma.add(Math.max(0, valor));
+    }
+
+    // Escreve as faixas acumuladas, a soma e a contagem; divisor converte a unidade (1e9 de ns para s).
+    void escrever(StringBuilder saida, String nome, String rotulos, double divisor) {
+      long acumulado = 0;
+      for (int i = 0; i < faixas.length; i++) {
+        acumulado += faixas[i].sum();
+        if (i >= menorFaixa && i <= maiorFaixa) {
+          saida.append(nome).append("_bucket{").append(rotulos).append(rotulos.isEmpty() ? "" : ",")
+              .append("le=\"").append((1L << i) / divisor).append("\"} ").append(acumulado).append('\n');
+        }
+      }
+      saida.append(nome).append("_bucket{").append(rotulos).append(rotulos.isEmpty() ? "" : ",")
+          .append("le=\"+Inf\"} ").append(acumulado).append('\n');
+      saida.append(nome).append("_sum").append(chaves(rotulos)).append(' ').append(soma.sum() / divisor)
+          .append('\n');
+      saida.append(nome).append("_count").append(chaves(rotulos)).append(' ').append(acumulado).append('\n');
+    }
+
+    public long getContagem() {
+      long total = 0;
+      for (LongAdder faixa : faixas) {
+        total += faixa.sum();
+      }
+      return total;
+    }
+
+    // Limite superior (2^i) da faixa que contém o quantil indicado; 0 sem registros.
+    public long percentil(double quantil) {
+      long total = getContagem();
+      if (total == 0) {
+        return 0;
+      }
+      long alvo = (long) Math.ceil(total * quantil);
+      long acumulado = 0;
+      for (int i = 0; i < faixas.length - 1; i++) {
+        acumulado += faixas[i].sum();
+        if (acumulado >= alvo) {
+          return 1L << i;
+        }
+      }
+      return Long.MAX_VALUE;
+    }
+  }
+
+  private final LongAdder conexoesAceitas = new LongAdder();
+  private final LongAdder conexoesFechadas = new LongAdder();
+  private final LongAdder[] quadrosRecebidos = contadores(TIPOS.length);
+  private final LongAdder[] bytesRecebidos = contadores(TIPOS.length);
+  private final LongAdder[] quadrosEnviados = contadores(TIPOS.length);
+  private final LongAdder[] bytesEnviados = contadores(TIPOS.length);
+  private final Distribuicao[] roteamento = new Distribuicao[TIPOS.length]; // Nanossegundos, por tipo.
+  private final Distribuicao larguraDifusao = new Distribuicao(0, 17); // Destinos locais por difusão.
+  private final Distribuicao[] voltasReator; // Nanossegundos de trabalho por volta, por reator.
+  private final Distribuicao[] etapas; // Nanossegundos por etapa das mensagens rastreadas (só se ATIVO).
+
+  // Construtor da classe Metricas.
+  public Metricas(int reatores) {
+    for (int i = 0; i < roteamento.length; i++) {
+      roteamento[i] = new Distribuicao(10, 34); // De ~1 us a ~17 s.
+    }
+    voltasReator = new Distribuicao[reatores];
+    for (int i = 0; i < reatores; i++) {
+      voltasReator[i] = new Distribuicao(10, 34);
+    }
+    etapas = new Distribuicao[Rastreamento.ATIVO ? Rastreamento.Etapa.values().length : 0];
+    for (int i = 0; i < etapas.length; i++) {
+      etapas[i] = new Distribuicao(7, 34); // De ~128 ns a ~17 s.
+    }
+  }
+
+  private static LongAdder[] contadores(int quantidade) {
+    LongAdder[] contadores = new LongAdder[quantidade];
+    for (int i = 0; i < quantidade; i++) {
+      contadores[i] = new LongAdder();
+    }
+    return contadores;
+  }
+
+  public void conexaoAceita() {
+    conexoesAceitas.increment();
+  }
+
+  public void conexaoFechada() {
+    conexoesFechadas.increment();
+  }
+
+  // Quadro lido de uma conexão; bytes inclui o cabeçalho de tamanho e os bytes brutos de uma parte.
+  public void quadroRecebido(Mensagem.TipoMensagem tipo, long bytes) {
+    quadrosRecebidos[tipo.ordinal()].increment();
+    bytesRecebidos[tipo.ordinal()].add(bytes);
+  }
+
+  // Quadro escrito por inteiro numa conexão; bytes inclui o trecho de arquivo enviado logo após ele.
+  public void quadroEnviado(Mensagem.TipoMensagem tipo, long bytes) {
+    quadrosEnviados[tipo.ordinal()].increment();
+    bytesEnviados[tipo.ordinal()].add(bytes);
+  }
+
+  // Tempo entre a mensagem decodificada e o fim do seu processamento (quadros já nas filas dos destinos).
+  public void roteamento(Mensagem.TipoMensagem tipo, long nanos) {
+    roteamento[tipo.ordinal()].registrar(nanos);
+  }
+
+  // Quantos destinos conectados neste nó receberam uma mensagem de grupo.
+  public void difusao(int destinos) {
+    larguraDifusao.registrar(destinos);
+  }
+
+  // Tempo de trabalho de uma volta do loop do reator (sem a espera no select).
+  public void voltaReator(int reator, long nanos) {
+    voltasReator[reator].registrar(nanos);
+  }
+
+  // Duração de uma etapa de uma mensagem amostrada pelo rastreamento.
+  public void etapa(Rastreamento.Etapa etapa, long nanos) {
+    etapas[etapa.ordinal()].registrar(nanos);
+  }
+
+  // Resumo das etapas rastreadas (contagem, p50 e p99 em microssegundos, pelo limite da faixa).
+  public String resumoRastreio() {
+    StringBuilder resumo = new StringBuilder();
+    for (Rastreamento.Etapa etapa : Rastreamento.Etapa.values()) {
+      Distribuicao distribuicao = etapas[etapa.ordinal()];
+      resumo.append(resumo.length() == 0 ? "" : ", ").append(etapa.name().toLowerCase()).append(' ')
+          .append(distribuicao.percentil(0.5) / 1000).append('/').append(distribuicao.percentil(0.99) / 1000);
+    }
+    return resumo.append(" us (p50/p99), ").append(etapas[Rastreamento.Etapa.TOTAL.ordinal()].getContagem())
+        .append(" entregas").toString();
+  }
+
+  // Escreve todas as métricas; as filas de saída são lidas das conexões indicadas.
+  public void escrever(StringBuilder saida, Collection<ClienteService> conexoes) {
+    long aceitas = conexoesAceitas.sum();
+    long fechadas = conexoesFechadas.sum();
+    cabecalho(saida, "chat_conexoes_aceitas_total", "counter", "Conexoes aceitas");
+    saida.append("chat_conexoes_aceitas_total ").append(aceitas).append('\n');
+    cabecalho(saida, "chat_conexoes_fechadas_total", "counter", "Conexoes fechadas");
+    saida.append("chat_conexoes_fechadas_total ").append(fechadas).append('\n');
+    cabecalho(saida, "chat_conexoes_abertas", "gauge", "Conexoes abertas");
+    saida.append("chat_conexoes_abertas ").append(aceitas - fechadas).append('\n');
+
+    porTipo(saida, "chat_quadros_recebidos_total", "Quadros recebidos dos clientes", quadrosRecebidos);
+    porTipo(saida, "chat_bytes_recebidos_total", "Bytes recebidos dos clientes", bytesRecebidos);
+    porTipo(saida, "chat_quadros_enviados_total", "Quadros escritos para os clientes", quadrosEnviados);
+    porTipo(saida, "chat_bytes_enviados_total", "Bytes escritos para os clientes", bytesEnviados);
+
+    cabecalho(saida, "chat_roteamento_segundos", "histogram",
+        "Da mensagem decodificada ate os quadros estarem nas filas de saida");
+    for (int i = 0; i < TIPOS.length; i++) {
+      if (roteamento[i].getContagem() > 0) {
+        roteamento[i].escrever(saida, "chat_roteamento_segundos", "tipo=\"" + TIPOS[i] + "\"", 1e9);
+      }
+    }
+    cabecalho(saida, "chat_difusao_destinos", "histogram", "Destinos conectados por mensagem de grupo");
+    larguraDifusao.escrever(saida, "chat_difusao_destinos", "", 1);
+    cabecalho(saida, "chat_reator_volta_segundos", "histogram", "Trabalho de cada volta do loop do reator");
+    for (int i = 0; i < voltasReator.length; i++) {
+      voltasReator[i].escrever(saida, "chat_reator_volta_segundos", "reator=\"" + i + "\"", 1e9);
+    }
+    if (Rastreamento.ATIVO) {
+      cabecalho(saida, "chat_rastreio_segundos", "histogram",
+          "Etapas das mensagens amostradas, da leitura do socket a escrita para cada destino");
+      for (Rastreamento.Etapa etapa : Rastreamento.Etapa.values()) {
+        etapas[etapa.ordinal()].escrever(saida, "chat_rastreio_segundos",
+            "etapa=\"" + etapa.name().toLowerCase() + "\"", 1e9);
+      }
+    }
+
+    escreverFilas(saida, conexoes);
+  }
+
+  // Profundidade das filas de saída: total e maior fila por reator, e conexões por faixa de profundidade.
+  private void escreverFilas(StringBuilder saida, Collection<ClienteService> conexoes) {
+    long[] pendentes = new long[voltasReator.length];
+    long[] maiores = new long[voltasReator.length];
+    long[] conexoesPorReator = new long[voltasReator.length];
+    long[] porFaixa = new long[LIMITES_FILA.length];
+    for (ClienteService conexao : conexoes) {
+      int reator = conexao.getReator().getId();
+      long bytes = conexao.getBytesPendentes();
+      pendentes[reator] += bytes;
+      maiores[reator] = Math.max(maiores[reator], bytes);
+      conexoesPorReator[reator]++;
+      for (int i = 0; i < LIMITES_FILA.length; i++) {
+        if (bytes <= LIMITES_FILA[i]) {
+          porFaixa[i]++;
+        }
+      }
+    }
+    cabecalho(saida, "chat_reator_clientes", "gauge", "Clientes com login feito em cada reator");
+    porReator(saida, "chat_reator_clientes", conexoesPorReator);
+    cabecalho(saida, "chat_fila_saida_bytes", "gauge", "Bytes nas filas de saida dos clientes de cada reator");
+    porReator(saida, "chat_fila_saida_bytes", pendentes);
+    cabecalho(saida, "chat_fila_saida_maior_bytes", "gauge", "Maior fila de saida de um cliente de cada reator");
+    porReator(saida, "chat_fila_saida_maior_bytes", maiores);
+    cabecalho(saida, "chat_fila_saida_clientes", "gauge", "Clientes com a fila de saida ate le bytes");
+    for (int i = 0; i < LIMITES_FILA.length; i++) {
+      saida.append("chat_fila_saida_clientes{le=\"").append(LIMITES_FILA[i]).append("\"} ").append(porFaixa[i])
+          .append('\n');
+    }
+  }
+
+  static void cabecalho(StringBuilder saida, String nome, String tipo, String ajuda) {
+    saida.append("# HELP ").append(nome).append(' ').append(ajuda).append('\n');
+    saida.append("# TYPE ").append(nome).append(' ').append(tipo).append('\n');
+  }
+
+  private static void porTipo(StringBuilder saida, String nome, String ajuda, LongAdder[] contadores) {
+    cabecalho(saida, nome, "counter", ajuda);
+    for (int i = 0; i < TIPOS.length; i++) {
+      long valor = contadores[i].sum();
+      if (valor > 0) {
+        saida.append(nome).append("{tipo=\"").append(TIPOS[i]).append("\"} ").append(valor).append('\n');
+      }
+    }
+  }
+
+  private static void porReator(StringBuilder saida, String nome, long[] valores) {
+    for (int i = 0; i < valores.length; i++) {
+      saida.append(nome).append("{reator=\"").append(i).append("\"} ").append(valores[i]).append('\n');
+    }
+  }
+
+  private static String chaves(String rotulos) {
+    return rotulos.isEmpty() ? "" : "{" + rotulos + "}";
+  }
+}
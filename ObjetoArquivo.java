@@ -0,0 +1,45 @@
+import java.nio.file.Path;
+
+// Conteúdo de arquivo guardado uma única vez no armazém, identificado pelo SHA-256.
+// O contador de referências é o número de nomes de arquivo que apontam para ele e só é
+// alterado pelo ArmazemArquivos, sob o seu lock.
+public class ObjetoArquivo {
+  private final String hash;
+  private final long tamanho;
+  private final long checksum; // CRC32, enviado no ARQUIVO_FIM para o destinatário conferir.
+  private final Path caminho;
+  private int referencias;
+
+  // Construtor da classe ObjetoArquivo.
+  public ObjetoArquivo(String hash, long tamanho, long checksum, Path caminho) {
+    this.hash = hash;
+    this.tamanho = tamanho;
+    this.checksum = checksum;
+    this.caminho = caminho;
+  }
+
+  // Getters e Setters
+  public String getHash() {
+    return hash;
+  }
+
+  public long getTamanho() {
+    return tamanho;
+  }
+
+  public long getChecksum() {
+    return checksum;
+  }
+
+  public Path getCaminho() {
+    return caminho;
+  }
+
+  public int getReferencias() {
+    return referencias;
+  }
+
+  public void setReferencias(int referencias) {
+    this.referencias = referencias;
+  }
+}
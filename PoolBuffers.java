@@ -0,0 +1,70 @@
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+
+// Pool de ByteBuffers diretos para o caminho de leitura. Cada reator tem o seu, usado
+// apenas pela thread do reator, por isso não há sincronização.
+public class PoolBuffers {
+  public static final int TAMANHO_INICIAL = 8192; // Menor classe de tamanho (8 KB).
+  private static final int NUM_CLASSES = 8; // Classes de 8 KB a 1 MB, em potências de 2.
+  // Bytes guardados em cada classe: 256 buffers de 8 KB, mas só 2 de 1 MB.
+  private static final int BYTES_POR_CLASSE = Integer.getInteger("chat.pool.bytesPorClasse", 2 * 1024 * 1024);
+
+  private final ArrayDeque<ByteBuffer>[] livres;
+  private final int[] maxPorClasse; // Buffers livres guardados em cada classe (ao menos um).
+
+  // Construtor da classe PoolBuffers.
+  @SuppressWarnings({"unchecked", "rawtypes"})
+  public PoolBuffers() {
+    livres = new ArrayDeque[NUM_CLASSES];
+    maxPorClasse = new int[NUM_CLASSES];
+    for (int i = 0; i < NUM_CLASSES; i++) {
+      livres[i] = new ArrayDeque<>();
+      maxPorClasse[i] = Math.max(1, BYTES_POR_CLASSE / (TAMANHO_INICIAL << i));
+    }
+  }
+
+  // Obtém um buffer limpo com pelo menos a capacidade pedida.
+  // Acima da maior classe o buffer é alocado no heap no tamanho exato e não volta ao pool.
+  public ByteBuffer obter(int capacidadeMinima) {
+    int classe = classeDe(capacidadeMinima);
+    if (classe >= NUM_CLASSES) {
+      return ByteBuffer.allocate(capacidadeMinima);
+    }
+    ByteBuffer buffer = livres[classe].pollFirst();
+    if (buffer == null) {
+      buffer = ByteBuffer.allocateDirect(TAMANHO_INICIAL << classe);
+    }
+    return buffer;
+  }
+
+  // Devolve um buffer ao pool; buffers fora das classes ou excedentes são descartados.
+  public void devolver(ByteBuffer buffer) {
+    if (buffer == null || !buffer.isDirect()) {
+      return;
+    }
+    int classe = classeDe(buffer.capacity());
+    if (classe < NUM_CLASSES && (TAMANHO_INICIAL << classe) == buffer.capacity()
+        && livres[classe].size() < maxPorClasse[classe]) {
+      buffer.clear();
+      livres[classe].addFirst(buffer);
+    }
+  }
+
+  // Quantidade de buffers livres no pool.
+  public int getLivres() {
+    int total = 0;
+    for (ArrayDeque<ByteBuffer> fila : livres) {
+      total += fila.size();
+    }
+    return total;
+  }
+
+  // Índice da menor classe que comporta a capacidade pedida.
+  private static int classeDe(int capacidade) {
+    int classe = 0;
+    while (classe < NUM_CLASSES && (TAMANHO_INICIAL << classe) < capacidade) {
+      classe++;
+    }
+    return classe;
+  }
+}
@@ -0,0 +1,60 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+// Quadro já codificado (tamanho + payload), imutável e compartilhado entre vários destinatários.
+// Cada fila de escrita guarda apenas uma visão (duplicate) do mesmo buffer. O buffer é do heap e não
+// volta a nenhum pool: quando as filas e a sessão soltam o quadro, o coletor o recolhe, por isso não há
+// contagem de referências.
+public class QuadroCodificado {
+  private final ByteBuffer dados; // Buffer somente leitura com o quadro completo.
+  private final Mensagem.TipoMensagem tipo;
+
+  // Construtor da classe QuadroCodificado.
+  public QuadroCodificado(ByteBuffer dados, Mensagem.TipoMensagem tipo) {
+    this.dados = dados.asReadOnlyBuffer();
+    this.tipo = tipo;
+  }
+
+  // Quadro de uma mensagem amostrada pelo rastreamento: leva as marcas dela até as escritas dos destinos.
+  private static final class Rastreado extends QuadroCodificado {
+    private final Rastreamento.Rastro rastro;
+
+    Rastreado(ByteBuffer dados, Mensagem.TipoMensagem tipo, Rastreamento.Rastro rastro) {
+      super(dados, tipo);
+      this.rastro = rastro;
+    }
+
+    @Override
+    public Rastreamento.Rastro getRastro() {
+      return rastro;
+    }
+  }
+
+  // Codifica a mensagem uma única vez no formato indicado; o quadro herda o rastro da mensagem.
+  public static QuadroCodificado codificar(Mensagem mensagem, CodecMensagem.Formato formato) throws IOException {
+    ByteBuffer dados = CodecMensagem.codificarQuadro(mensagem, formato);
+    if (Rastreamento.ATIVO && mensagem.getRastro() != null) {
+      return new Rastreado(dados, mensagem.getTipo(), mensagem.getRastro());
+    }
+    return new QuadroCodificado(dados, mensagem.getTipo());
+  }
+
+  // Cria uma visão independente (posição e limite próprios) do quadro.
+  public ByteBuffer novaVisao() {
+    return dados.duplicate();
+  }
+
+  // Getters
+  public Mensagem.TipoMensagem getTipo() {
+    return tipo;
+  }
+
+  public int getTamanho() {
+    return dados.limit();
+  }
+
+  // Marcas da mensagem amostrada que originou o quadro; null se não foi amostrada.
+  public Rastreamento.Rastro getRastro() {
+    return null;
+  }
+}
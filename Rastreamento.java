@@ -0,0 +1,53 @@
+import java.util.concurrent.ThreadLocalRandom;
+
+// Rastreamento amostrado das mensagens dentro do servidor, para saber onde foi o tempo de uma entrega:
+// uma a cada -Dchat.rastreio.amostra mensagens recebidas leva as marcas (System.nanoTime) da leitura do
+// socket e do despacho para processarMensagem. A marca vai da Mensagem para o quadro codificado a partir
+// dela, e cada destino guarda na sua escrita pendente o momento em que entrou na fila e em que começou a
+// ser escrita. Quando o quadro termina de ser escrito, as etapas vão para as distribuições das Metricas.
+//
+// Com a amostragem desligada (padrão), ATIVO é uma constante falsa e o JIT elimina todos os trechos de
+// rastreamento; nenhum campo a mais é alocado por quadro ou por escrita.
+public final class Rastreamento {
+  public static final int AMOSTRA = Integer.getInteger("chat.rastreio.amostra", 0); // 1 a cada N; 0 desliga.
+  public static final boolean ATIVO = AMOSTRA > 0;
+
+  // Etapas medidas de cada destino de uma mensagem amostrada.
+  public enum Etapa {
+    LEITURA, // Leitura do socket até o despacho: decodificação e espera atrás dos quadros do mesmo read.
+    ROTEAMENTO, // Despacho até o quadro entrar na fila de saída do destino.
+    FILA, // Espera na fila de saída até o reator do destino começar a escrevê-lo.
+    ESCRITA, // Do início da escrita até o último byte aceito pelo socket.
+    TOTAL // Leitura do socket até o último byte escrito.
+  }
+
+  // Marcas de uma mensagem amostrada, compartilhadas por todos os seus destinos.
+  public static final class Rastro {
+    private final long leitura;
+    private final long despacho;
+
+    Rastro(long leitura, long despacho) {
+      this.leitura = leitura;
+      this.despacho = despacho;
+    }
+
+    public long getLeitura() {
+      return leitura;
+    }
+
+    public long getDespacho() {
+      return despacho;
+    }
+  }
+
+  private Rastreamento() {
+  }
+
+  // Sorteia se a mensagem será rastreada; se sim, marca-a e registra a etapa de leitura.
+  public static void amostrar(Mensagem mensagem, long leitura, long despacho, Metricas metricas) {
+    if (ThreadLocalRandom.current().nextInt(AMOSTRA) == 0) {
+      mensagem.setRastro(new Rastro(leitura, despacho));
+      metricas.etapa(Etapa.LEITURA, despacho - leitura);
+    }
+  }
+}
@@ -0,0 +1,258 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+// Classe que representa um reator: uma thread com Selector próprio responsável por uma fatia das conexões.
+public class Reator implements Runnable {
+  private static final int TAMANHO_LOTE_ESCRITA = 64; // Buffers por chamada de escrita em lote.
+
+  private final int id;
+  private final Servidor servidor;
+  private final ManutencaoConexoes manutencao; // Prazos de login, ociosidade e escrita das conexões.
+  private final Metricas metricas;
+  private final Selector selector;
+  private final Queue<Runnable> tarefas; // Tarefas enviadas por outras threads.
+  private final Queue<ClienteService> pendentesEscrita; // Conexões com dados enfileirados por outras threads.
+  private final AtomicBoolean acordado; // Evita chamadas redundantes de selector.wakeup().
+  private final PoolBuffers poolBuffers; // Buffers de leitura das conexões deste reator.
+  private final ByteBuffer[] loteEscrita; // Vetor reutilizado nas escritas em lote (gathering).
+  private final RodaTemporizadores roda; // Temporizadores das conexões deste reator.
+  private long agora; // Momento (ms, relógio monotônico) da volta atual do loop.
+  private Thread thread;
+  private volatile boolean executando;
+
+  // Construtor da classe Reator.
+  public Reator(int id, Servidor servidor, ManutencaoConexoes manutencao, Metricas metricas) throws IOException {
+    this.id = id;
+    this.servidor = servidor;
+    this.manutencao = manutencao;
+    this.metricas = metricas;
+    this.selector = Selector.open();
+    this.tarefas = new ConcurrentLinkedQueue<>();
+    this.pendentesEscrita = new ConcurrentLinkedQueue<>();
+    this.acordado = new AtomicBoolean(false);
+    this.poolBuffers = new PoolBuffers();
+    this.loteEscrita = new ByteBuffer[TAMANHO_LOTE_ESCRITA];
+    this.agora = relogio();
+    this.roda = new RodaTemporizadores(agora);
+  }
+
+  // Relógio monotônico em milissegundos.
+  private static long relogio() {
+    return System.nanoTime() / 1000000;
+  }
+
+  // Inicia a thread do reator.
+  public void iniciar() {
+    executando = true;
+    thread = new Thread(this, "reator-" + id);
+    thread.start();
+  }
+
+  // Loop principal do reator.
+  @Override
+  public void run() {
+    while (executando) {
+      try {
+        selector.select(roda.esperaMs(agora)); // Acorda pelo menos a cada tick da roda.
+        acordado.set(false);
+        long inicioVolta = System.nanoTime();
+        agora = inicioVolta / 1000000;
+
+        executarTarefas();
+
+        Set<SelectionKey> selectedKeys = selector.selectedKeys();
+        Iterator<SelectionKey> keyIterator = selectedKeys.iterator();
+
+        while (keyIterator.hasNext()) {
+          SelectionKey key = keyIterator.next();
+          keyIterator.remove();
+
+          try {
+            if (key.isReadable()) {
+              servidor.lerDados(key);
+            }
+            if (key.isValid() && key.isWritable()) {
+              servidor.escreverDados(key);
+            }
+          } catch (Exception e) {
+            LogConsole.erro("Erro ao processar key: ", e.getMessage());
+            servidor.fecharConexao(key);
+          }
+        }
+
+        roda.avancar(agora);
+        metricas.voltaReator(id, System.nanoTime() - inicioVolta);
+      } catch (IOException | ClosedSelectorException e) {
+        if (executando) {
+          LogConsole.erro("Erro no reator ", id, ": ", e.getMessage());
+        }
+        break;
+      }
+    }
+  }
+
+  // Registra um canal recém-aceito neste reator.
+  public void registrar(SocketChannel channel) {
+    executar(() -> {
+      try {
+        SelectionKey clientKey = channel.register(selector, SelectionKey.OP_READ);
+        ClienteService clienteService = new ClienteService(channel, this);
+        clientKey.attach(clienteService);
+        metricas.conexaoAceita();
+        manutencao.aoAceitar(clienteService, agora);
+      } catch (IOException e) {
+        LogConsole.erro("Erro ao registrar conexão: ", e.getMessage());
+        try {
+          channel.close();
+        } catch (IOException ignorada) {
+          // Canal já está inválido.
+        }
+      }
+    });
+  }
+
+  // Executa a tarefa na thread do reator, repassando-a pela fila se chamada de outra thread.
+  public void executar(Runnable tarefa) {
+    if (naThreadDoReator()) {
+      tarefa.run();
+      return;
+    }
+    tarefas.offer(tarefa);
+    acordar();
+  }
+
+  // Marca a conexão para escrita, de forma segura a partir de qualquer thread.
+  public void solicitarEscrita(ClienteService clienteService) {
+    if (naThreadDoReator()) {
+      ativarEscrita(clienteService);
+    } else if (clienteService.marcarEscritaPendente()) {
+      pendentesEscrita.offer(clienteService);
+      acordar();
+    }
+  }
+
+  // Ajusta o interesse em leitura conforme o estado de pausa da conexão (seguro a partir de qualquer thread).
+  public void atualizarLeitura(ClienteService clienteService) {
+    executar(() -> {
+      SelectionKey key = clienteService.getChannel().keyFor(selector);
+      if (key != null && key.isValid()) {
+        if (clienteService.isLeituraPausada()) {
+          key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+        } else {
+          key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+        }
+      }
+    });
+  }
+
+  // Fecha a conexão pela thread deste reator (seguro a partir de qualquer thread).
+  public void fecharConexao(ClienteService clienteService) {
+    executar(() -> {
+      SelectionKey key = clienteService.getChannel().keyFor(selector);
+      if (key != null) {
+        servidor.fecharConexao(key);
+      }
+    });
+  }
+
+  // Agenda (ou reagenda) um temporizador deste reator. Chamado só pela thread do reator.
+  public void agendar(RodaTemporizadores.Temporizador temporizador, long atrasoMs) {
+    roda.agendar(temporizador, agora, atrasoMs);
+  }
+
+  // Cancela um temporizador deste reator. Chamado só pela thread do reator.
+  public void cancelar(RodaTemporizadores.Temporizador temporizador) {
+    roda.cancelar(temporizador);
+  }
+
+  // Verificação periódica de uma conexão, quando o temporizador dela vence.
+  void verificarConexao(ClienteService clienteService) {
+    manutencao.verificar(clienteService, agora);
+  }
+
+  // Verifica se a thread atual é a thread deste reator.
+  public boolean naThreadDoReator() {
+    return Thread.currentThread() == thread;
+  }
+
+  // Acorda o selector apenas se ainda não houver um wakeup pendente.
+  private void acordar() {
+    if (acordado.compareAndSet(false, true)) {
+      selector.wakeup();
+    }
+  }
+
+  // Executa as tarefas e pedidos de escrita repassados por outras threads.
+  private void executarTarefas() {
+    Runnable tarefa;
+    while ((tarefa = tarefas.poll()) != null) {
+      try {
+        tarefa.run();
+      } catch (Exception e) {
+        LogConsole.erro("Erro ao executar tarefa no reator ", id, ": ", e.getMessage());
+      }
+    }
+
+    ClienteService clienteService;
+    while ((clienteService = pendentesEscrita.poll()) != null) {
+      clienteService.limparEscritaPendente();
+      ativarEscrita(clienteService);
+    }
+  }
+
+  // Adiciona o interesse em escrita na key da conexão e começa a contar o prazo da escrita parada.
+  private void ativarEscrita(ClienteService clienteService) {
+    SelectionKey key = clienteService.getChannel().keyFor(selector);
+    if (key != null && key.isValid()) {
+      key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+      clienteService.iniciarEscrita(agora);
+    }
+  }
+
+  // Para o reator e fecha todas as conexões sob sua responsabilidade.
+  public void parar() {
+    executando = false;
+    selector.wakeup();
+    if (thread != null && !naThreadDoReator()) {
+      try {
+        thread.join(2000);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    }
+    try {
+      for (SelectionKey key : selector.keys()) {
+        key.channel().close();
+      }
+      selector.close();
+    } catch (IOException | ClosedSelectorException e) {
+      LogConsole.erro("Erro ao parar reator ", id, ": ", e.getMessage());
+    }
+  }
+
+  public int getId() {
+    return id;
+  }
+
+  public PoolBuffers getPoolBuffers() {
+    return poolBuffers;
+  }
+
+  public Metricas getMetricas() {
+    return metricas;
+  }
+
+  public ByteBuffer[] getLoteEscrita() {
+    return loteEscrita;
+  }
+
+  public long getAgora() {
+    return agora;
+  }
+}
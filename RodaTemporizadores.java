@@ -0,0 +1,116 @@
+// Roda de temporizadores (hashed timing wheel) de um reator. O tempo é dividido em ticks (TICK_MS nos
+// reatores do servidor) e a roda tem SLOTS posições; um temporizador fica na lista da posição do tick em
+// que vence, e cada volta da roda examina só a posição do tick atual. Agendar e cancelar são O(1), sem
+// alocação: cada conexão reusa o seu Temporizador. Usada só pela thread dona da roda, então não há
+// sincronização.
+public class RodaTemporizadores {
+  public static final long TICK_MS = Long.getLong("chat.roda.tickMs", 100);
+  private static final int SLOTS = 512; // Potência de 2: uma volta cobre SLOTS ticks.
+
+  private final Temporizador[] slots = new Temporizador[SLOTS]; // Início da lista de cada posição.
+  private final long inicio; // Momento do tick 0 (ms).
+  private final long tickMs;
+  private long tickAtual; // Último tick já processado.
+  private int quantidade; // Temporizadores agendados.
+
+  // Construtor da classe RodaTemporizadores, começando no momento indicado (ms), com ticks de TICK_MS.
+  public RodaTemporizadores(long agora) {
+    this(agora, TICK_MS);
+  }
+
+  // Construtor com a duração do tick (ms).
+  public RodaTemporizadores(long agora, long tickMs) {
+    this.inicio = agora;
+    this.tickMs = tickMs;
+  }
+
+  // Temporizador reutilizável: a ação roda na thread do reator quando ele vence.
+  public static final class Temporizador {
+    private final Runnable acao;
+    private Temporizador anterior;
+    private Temporizador proximo;
+    private long alvo; // Tick em que vence.
+    private int slot = -1; // Posição na roda, ou -1 se não está agendado.
+
+    public Temporizador(Runnable acao) {
+      this.acao = acao;
+    }
+
+    public boolean isAgendado() {
+      return slot >= 0;
+    }
+  }
+
+  // Agenda (ou reagenda) o temporizador para vencer depois de atrasoMs, arredondado para cima em ticks.
+  public void agendar(Temporizador temporizador, long agora, long atrasoMs) {
+    cancelar(temporizador);
+    long ticks = Math.max(1, (agora - inicio + atrasoMs + tickMs - 1) / tickMs - tickAtual);
+    temporizador.alvo = tickAtual + ticks;
+    int slot = (int) (temporizador.alvo & (SLOTS - 1));
+    temporizador.slot = slot;
+    temporizador.anterior = null;
+    temporizador.proximo = slots[slot];
+    if (slots[slot] != null) {
+      slots[slot].anterior = temporizador;
+    }
+    slots[slot] = temporizador;
+    quantidade++;
+  }
+
+  // Tira o temporizador da roda; não faz nada se ele não está agendado.
+  public void cancelar(Temporizador temporizador) {
+    if (temporizador.slot < 0) {
+      return;
+    }
+    if (temporizador.anterior != null) {
+      temporizador.anterior.proximo = temporizador.proximo;
+    } else {
+      slots[temporizador.slot] = temporizador.proximo;
+    }
+    if (temporizador.proximo != null) {
+      temporizador.proximo.anterior = temporizador.anterior;
+    }
+    temporizador.anterior = null;
+    temporizador.proximo = null;
+    temporizador.slot = -1;
+    quantidade--;
+  }
+
+  // Processa os ticks até o momento atual e executa as ações dos temporizadores vencidos. Depois de uma
+  // pausa longa do reator, basta uma volta da roda: quem venceu antes é pego pelo alvo já passado.
+  public void avancar(long agora) {
+    long ultimo = (agora - inicio) / tickMs;
+    if (ultimo - tickAtual > SLOTS) {
+      tickAtual = ultimo - SLOTS;
+    }
+    while (tickAtual < ultimo) {
+      tickAtual++;
+      processar((int) (tickAtual & (SLOTS - 1)));
+    }
+  }
+
+  // Executa os temporizadores vencidos de uma posição; os que vencem em voltas futuras ficam.
+  private void processar(int slot) {
+    Temporizador temporizador = slots[slot];
+    while (temporizador != null) {
+      Temporizador proximo = temporizador.proximo;
+      if (temporizador.alvo <= tickAtual) {
+        cancelar(temporizador);
+        temporizador.acao.run();
+        if (proximo != null && proximo.slot != slot) {
+          proximo = slots[slot]; // A ação mexeu na lista: recomeçar a posição.
+        }
+      }
+      temporizador = proximo;
+    }
+  }
+
+  // Tempo até o próximo tick, usado como espera máxima do select (pelo menos 1 ms).
+  public long esperaMs(long agora) {
+    return Math.max(1, inicio + (tickAtual + 1) * tickMs - agora);
+  }
+
+  public int getQuantidade() {
+    return quantidade;
+  }
+}
@@ -0,0 +1,194 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.List;
+
+// Segmento imutável do índice de busca, mapeado em memória. Layout:
+// [int MAGICO][long primeiraPosicao][long ultimaPosicao][int termos],
+// para cada termo em ordem: [short tamanho][UTF-8][int quantidade][int início das postagens],
+// e depois as postagens de cada termo: [long posição no log][int conversa], em ordem de posição.
+// Os termos ficam num vetor ordenado em memória; as postagens são lidas direto do mapa.
+public class SegmentoBusca {
+  public static final int TAMANHO_POSTAGEM = 12;
+  private static final int MAGICO = 0x42555331; // "BUS1"
+  private static final int CABECALHO = 24;
+
+  // Postagens de um termo, em ordem crescente de posição.
+  public interface Postagens {
+    int tamanho();
+
+    long posicao(int indice);
+
+    int conversa(int indice);
+  }
+
+  // Origem das postagens gravadas num segmento novo.
+  public interface FontePostagens {
+    int quantidade(String termo);
+
+    // Escreve as postagens do termo no destino, em ordem de posição.
+    void escrever(String termo, ByteBuffer destino);
+  }
+
+  private final Path caminho;
+  private final MappedByteBuffer mapa;
+  private final long primeiraPosicao;
+  private final long ultimaPosicao;
+  private final String[] termos;
+  private final int[] quantidades;
+  private final int[] inicios;
+
+  // Construtor da classe SegmentoBusca; lê o dicionário de termos do arquivo.
+  private SegmentoBusca(Path caminho) throws IOException {
+    this.caminho = caminho;
+    try (FileChannel canal = FileChannel.open(caminho, StandardOpenOption.READ)) {
+      if (canal.size() < CABECALHO || canal.size() > Integer.MAX_VALUE) {
+        throw new IOException("Segmento de busca com tamanho invalido: " + caminho);
+      }
+      this.mapa = canal.map(FileChannel.MapMode.READ_ONLY, 0, canal.size());
+    }
+    try {
+      if (mapa.getInt(0) != MAGICO) {
+        throw new IOException("Segmento de busca invalido: " + caminho);
+      }
+      this.primeiraPosicao = mapa.getLong(4);
+      this.ultimaPosicao = mapa.getLong(12);
+      int quantidadeTermos = mapa.getInt(20);
+      this.termos = new String[quantidadeTermos];
+      this.quantidades = new int[quantidadeTermos];
+      this.inicios = new int[quantidadeTermos];
+      ByteBuffer leitura = mapa.duplicate().position(CABECALHO);
+      for (int i = 0; i < quantidadeTermos; i++) {
+        byte[] bytes = new byte[leitura.getShort() & 0xFFFF];
+        leitura.get(bytes);
+        termos[i] = new String(bytes, StandardCharsets.UTF_8);
+        quantidades[i] = leitura.getInt();
+        inicios[i] = leitura.getInt();
+      }
+    } catch (RuntimeException e) {
+      throw new IOException("Segmento de busca corrompido: " + caminho);
+    }
+  }
+
+  // Abre um segmento existente.
+  public static SegmentoBusca abrir(Path caminho) throws IOException {
+    return new SegmentoBusca(caminho);
+  }
+
+  // Grava um segmento com os termos (já ordenados) e as postagens da fonte, e o abre.
+  // O arquivo é escrito ao lado com outro nome e só então movido para o caminho final.
+  public static SegmentoBusca gravar(Path caminho, List<String> termosOrdenados, FontePostagens fonte,
+      long primeiraPosicao, long ultimaPosicao) throws IOException {
+    long tamanho = CABECALHO;
+    byte[][] bytesTermos = new byte[termosOrdenados.size()][];
+    for (int i = 0; i < bytesTermos.length; i++) {
+      bytesTermos[i] = termosOrdenados.get(i).getBytes(StandardCharsets.UTF_8);
+      tamanho += 2 + bytesTermos[i].length + 8;
+    }
+    long inicioPostagens = tamanho;
+    for (String termo : termosOrdenados) {
+      tamanho += (long) fonte.quantidade(termo) * TAMANHO_POSTAGEM;
+    }
+    if (tamanho > Integer.MAX_VALUE) {
+      throw new IOException("Segmento de busca grande demais: " + tamanho + " bytes");
+    }
+
+    Path temporario = caminho.resolveSibling(caminho.getFileName() + ".novo");
+    try (FileChannel canal = FileChannel.open(temporario, StandardOpenOption.CREATE,
+        StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+      MappedByteBuffer destino = canal.map(FileChannel.MapMode.READ_WRITE, 0, tamanho);
+      destino.putInt(MAGICO);
+      destino.putLong(primeiraPosicao);
+      destino.putLong(ultimaPosicao);
+      destino.putInt(bytesTermos.length);
+      int proximoInicio = (int) inicioPostagens;
+      for (int i = 0; i < bytesTermos.length; i++) {
+        int quantidade = fonte.quantidade(termosOrdenados.get(i));
+        destino.putShort((short) bytesTermos[i].length);
+        destino.put(bytesTermos[i]);
+        destino.putInt(quantidade);
+        destino.putInt(proximoInicio);
+        proximoInicio += quantidade * TAMANHO_POSTAGEM;
+      }
+      for (String termo : termosOrdenados) {
+        fonte.escrever(termo, destino);
+      }
+      destino.force();
+    }
+    Files.move(temporario, caminho, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    return new SegmentoBusca(caminho);
+  }
+
+  // Postagens do termo, ou null se ele não aparece no segmento.
+  public Postagens postagens(String termo) {
+    int indice = Arrays.binarySearch(termos, termo);
+    if (indice < 0) {
+      return null;
+    }
+    int inicio = inicios[indice];
+    int quantidade = quantidades[indice];
+    return new Postagens() {
+      @Override
+      public int tamanho() {
+        return quantidade;
+      }
+
+      @Override
+      public long posicao(int i) {
+        return mapa.getLong(inicio + i * TAMANHO_POSTAGEM);
+      }
+
+      @Override
+      public int conversa(int i) {
+        return mapa.getInt(inicio + i * TAMANHO_POSTAGEM + 8);
+      }
+    };
+  }
+
+  // Quantidade de postagens do termo (0 se ele não aparece).
+  public int quantidade(String termo) {
+    int indice = Arrays.binarySearch(termos, termo);
+    return indice < 0 ? 0 : quantidades[indice];
+  }
+
+  // Copia as postagens do termo para o destino (usado ao juntar segmentos).
+  public void copiar(String termo, ByteBuffer destino) {
+    int indice = Arrays.binarySearch(termos, termo);
+    if (indice >= 0) {
+      destino.put(mapa.slice(inicios[indice], quantidades[indice] * TAMANHO_POSTAGEM));
+    }
+  }
+
+  // Apaga o arquivo do segmento; buscas em andamento continuam lendo o mapa.
+  public void apagar() throws IOException {
+    Files.deleteIfExists(caminho);
+  }
+
+  // Getters
+  public Path getCaminho() {
+    return caminho;
+  }
+
+  public long getPrimeiraPosicao() {
+    return primeiraPosicao;
+  }
+
+  public long getUltimaPosicao() {
+    return ultimaPosicao;
+  }
+
+  public String[] getTermos() {
+    return termos;
+  }
+
+  public long getTamanho() {
+    return mapa.capacity();
+  }
+}
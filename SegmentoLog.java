@@ -0,0 +1,180 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.CRC32;
+
+// Segmento do log de mensagens: um arquivo de tamanho fixo mapeado em memória, com registros
+// [int tamanho][int crc32][byte tipo][dados]. Um tamanho zero marca o fim dos registros.
+// A escrita é feita pelo LogMensagens sob o seu lock; a leitura de registros já escritos é livre, mas
+// as leituras fora do lock seguram o segmento (adquirir/liberar) para a retenção não apagá-lo embaixo delas.
+public class SegmentoLog {
+  public static final int CABECALHO = 9; // tamanho + crc + tipo.
+
+  // Recebe cada registro válido durante a recuperação.
+  public interface LeitorRegistros {
+    void registro(long posicao, byte tipo, ByteBuffer dados);
+  }
+
+  private final long base; // Posição global do primeiro byte do segmento.
+  private final Path caminho;
+  private final FileChannel canal;
+  private final MappedByteBuffer mapa;
+  private int posicao; // Próxima posição livre dentro do segmento.
+  private int inicioSujo = -1; // Trecho escrito e ainda não persistido com force().
+  private int fimSujo;
+  private int leitores; // Leituras em andamento fora do lock do log.
+  private boolean retirado; // Saiu do log pela retenção: apagar quando não houver leitores.
+
+  // Abre (ou cria) o segmento com a capacidade indicada.
+  public SegmentoLog(Path caminho, long base, int capacidade) throws IOException {
+    this.base = base;
+    this.caminho = caminho;
+    this.canal = FileChannel.open(caminho, StandardOpenOption.CREATE, StandardOpenOption.READ,
+        StandardOpenOption.WRITE);
+    this.mapa = canal.map(FileChannel.MapMode.READ_WRITE, 0, capacidade);
+  }
+
+  // Percorre os registros válidos a partir do início, chamando o leitor para cada um, e posiciona
+  // a escrita logo após o último. Um registro incompleto (queda no meio da escrita) e o que vier
+  // depois dele são apagados.
+  public void recuperar(LeitorRegistros leitor) {
+    int atual = percorrer(mapa.capacity(), leitor);
+    posicao = atual;
+    if (atual + 4 <= mapa.capacity() && mapa.getInt(atual) != 0) {
+      for (int i = atual; i < mapa.capacity(); i++) {
+        mapa.put(i, (byte) 0);
+      }
+    }
+  }
+
+  // Percorre os registros já escritos, em ordem, sem alterar o segmento.
+  public void percorrer(LeitorRegistros leitor) {
+    percorrer(posicao, leitor);
+  }
+
+  // Chama o leitor para cada registro válido antes do limite; retorna a posição após o último.
+  private int percorrer(int limite, LeitorRegistros leitor) {
+    int atual = 0;
+    while (atual + CABECALHO <= limite) {
+      int tamanho = mapa.getInt(atual);
+      if (tamanho <= 0 || atual + CABECALHO + tamanho > limite) {
+        break;
+      }
+      ByteBuffer dados = mapa.slice(atual + CABECALHO, tamanho);
+      CRC32 crc = new CRC32();
+      crc.update(mapa.get(atual + 8));
+      crc.update(dados.duplicate());
+      if ((int) crc.getValue() != mapa.getInt(atual + 4)) {
+        break;
+      }
+      leitor.registro(base + atual, mapa.get(atual + 8), dados);
+      atual += CABECALHO + tamanho;
+    }
+    return atual;
+  }
+
+  // Verifica se um registro com os dados indicados cabe no espaço restante.
+  public boolean cabe(int tamanhoDados) {
+    return posicao + CABECALHO + tamanhoDados <= mapa.capacity();
+  }
+
+  // Escreve um registro e retorna a sua posição global.
+  public long escrever(byte tipo, ByteBuffer dados) {
+    int inicio = posicao;
+    int tamanho = dados.remaining();
+    CRC32 crc = new CRC32();
+    crc.update(tipo);
+    crc.update(dados.duplicate());
+    mapa.put(inicio + 8, tipo);
+    mapa.put(inicio + CABECALHO, dados, dados.position(), tamanho);
+    mapa.putInt(inicio + 4, (int) crc.getValue());
+    mapa.putInt(inicio, tamanho); // Por último: só então o registro passa a existir.
+    posicao = inicio + CABECALHO + tamanho;
+    if (inicioSujo < 0) {
+      inicioSujo = inicio;
+    }
+    fimSujo = posicao;
+    return base + inicio;
+  }
+
+  // Retorna o tipo do registro na posição global indicada.
+  public byte tipo(long posicaoGlobal) {
+    return mapa.get((int) (posicaoGlobal - base) + 8);
+  }
+
+  // Retorna uma visão dos dados do registro na posição global indicada.
+  public ByteBuffer ler(long posicaoGlobal) {
+    int inicio = (int) (posicaoGlobal - base);
+    return mapa.slice(inicio + CABECALHO, mapa.getInt(inicio));
+  }
+
+  // Retira o trecho sujo para ser persistido; retorna {inicio, fim} ou null se não há nada.
+  public int[] retirarSujo() {
+    if (inicioSujo < 0) {
+      return null;
+    }
+    int[] trecho = {inicioSujo, fimSujo};
+    inicioSujo = -1;
+    return trecho;
+  }
+
+  // Persiste no disco o trecho indicado do mapa.
+  public void forcar(int inicio, int fim) {
+    mapa.force(inicio, fim - inicio);
+  }
+
+  // Marca uma leitura em andamento; chamado sob o lock do log, enquanto o segmento ainda está nele.
+  public synchronized void adquirir() {
+    leitores++;
+  }
+
+  // Termina uma leitura; a última depois da retirada fecha e apaga o arquivo.
+  public synchronized void liberar() {
+    if (--leitores == 0 && retirado) {
+      try {
+        apagar();
+      } catch (IOException e) {
+        LogConsole.erro("Erro ao apagar segmento do log: ", e.getMessage());
+      }
+    }
+  }
+
+  // Retira o segmento apagado pela retenção: fecha e apaga o arquivo agora, ou ao fim da última leitura.
+  public synchronized void retirar() throws IOException {
+    retirado = true;
+    if (leitores == 0) {
+      apagar();
+    }
+  }
+
+  private void apagar() throws IOException {
+    canal.close();
+    Files.deleteIfExists(caminho);
+  }
+
+  // Fecha o canal do segmento (o mapa continua válido até ser coletado).
+  public void fechar() throws IOException {
+    canal.close();
+  }
+
+  // Getters
+  public long getBase() {
+    return base;
+  }
+
+  public long getFim() {
+    return base + posicao;
+  }
+
+  public int getCapacidade() {
+    return mapa.capacity();
+  }
+
+  public Path getCaminho() {
+    return caminho;
+  }
+}
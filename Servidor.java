@@ -2,30 +2,170 @@ import java.io.*;
 import java.net.InetSocketAddress;
 import java.nio.ByteBuffer;
 import java.nio.channels.*;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 
 // Classe principal do servidor de chat.
 public class Servidor {
-  private static final int PORTA = 8080;
-  private static final int BUFFER_SIZE = 8192; // Tamanho do buffer de leitura/escrita.
-
-  private Selector selector; // Selector para multiplexação de canais.
+  private static final int PORTA = Integer.getInteger("chat.porta", 8080); // Porta dos clientes.
+  private static final int NUM_REATORES = Integer.getInteger("chat.reatores",
+      Runtime.getRuntime().availableProcessors()); // Quantidade de threads de reator.
+  private static final Path DIRETORIO_ARQUIVOS = Paths.get("arquivos_servidor");
+  private static final Path DIRETORIO_OBJETOS = DIRETORIO_ARQUIVOS.resolve("objetos"); // Armazém por conteúdo.
+  private static final Path DIRETORIO_LOG = Paths.get("dados_servidor", "log"); // Log de mensagens.
+  private static final Path DIRETORIO_HISTORICO = Paths.get("dados_servidor", "historico"); // Índice do histórico.
+  private static final Path DIRETORIO_BUSCA = Paths.get("dados_servidor", "busca"); // Índice invertido da busca.
+  private static final Path DIRETORIO_ESTADO = Paths.get("dados_servidor", "estado"); // Grupos e participações.
+  private static final long ESPERA_PRONTO_MS = 2000; // Espera pela cópia dos grupos de outro nó na partida.
+  private static final int TAMANHO_MAXIMO_NOME = 64; // Maior nome de usuário (LOGIN) ou de grupo aceito.
+  private static final int MAX_TRANSFERENCIAS_POR_CLIENTE = 4; // Transferências em partes simultâneas.
+  private static final long INTERVALO_RELATORIO_MS = 10000; // Intervalo do relatório de controle de fluxo.
+  private static final int PORTA_METRICAS = Integer.getInteger("chat.metricas.porta", 9180); // 0 desliga.
+
+  private Selector selector; // Selector do aceitador de conexões.
   private ServerSocketChannel serverChannel; // Canal do servidor.
+  private Reator[] reatores; // Reatores que atendem as conexões aceitas.
+  private int proximoReator; // Índice do próximo reator (round-robin).
   private Map<String, ClienteService> clientes; // Mapa de clientes conectados (nome -> info).
   private Map<String, Grupo> grupos; // Mapa de grupos (nome -> grupo).
-  private boolean executando; // Flag para controle do loop principal.
+  private Usuarios usuarios; // Ids dos usuários, grupos de cada um e mapa de presença.
+  private Map<String, Sessao> sessoes; // Sessão retomável de cada usuário (nome -> sessão).
+  private ControleFluxo controleFluxo; // Limites e política das filas de saída.
+  private ManutencaoConexoes manutencao; // Prazos de login, PING das conexões ociosas e escrita parada.
+  private Metricas metricas; // Contadores e distribuições exportados em /metrics.
+  private ExportadorMetricas exportador; // Endpoint HTTP local das métricas (null se desligado).
+  private DiscoIO discoIO; // Estágio que grava arquivos fora das threads dos reatores.
+  private ArmazemArquivos armazem; // Arquivos guardados uma única vez, pelo SHA-256 do conteúdo.
+  private LogMensagens log; // Log durável das mensagens e das entregas pendentes.
+  private IndiceHistorico historico; // Índice das mensagens de cada conversa, para as páginas do histórico.
+  private IndiceBusca busca; // Índice invertido do texto das mensagens.
+  private EstadoGrupos estado; // Diário e fotografias dos grupos e das participações.
+  private Cluster cluster; // Ligações com os outros nós (null quando o servidor roda sozinho).
+  private volatile AnelHash anel; // Dono de cada grupo entre os nós prontos (só no cluster).
+  private volatile boolean pronto; // Este nó já está no anel (tem o estado completo dos grupos).
+  private volatile boolean esperaEsgotada; // Passou ESPERA_PRONTO_MS: os nós sem ligação não são mais esperados.
+  private Set<Integer> sincronizados; // Nós que já mandaram a este nó a cópia dos seus grupos.
+  private Map<Integer, List<String>> gruposDesatualizados; // Grupos a pedir a cada nó no fim da cópia dele.
+  private Map<String, EntregaRemota> entregasRemotas; // Pendências daqui indo a usuários de outros nós.
+  private final AtomicLong proximaEntregaRemota = new AtomicLong(); // Id das entregas remotas.
+  private volatile boolean executando; // Flag para controle do loop principal.
+  private long ultimoRelatorio; // Momento do último relatório do controle de fluxo.
+  private long ultimaExpiracao; // Momento da última busca por sessões expiradas.
+  private String ultimoResumo; // Último resumo mostrado do controle de fluxo.
+  private String ultimoResumoConexoes; // Último resumo mostrado dos prazos das conexões.
+  private String ultimoResumoDisco; // Último resumo mostrado do estágio de disco.
+  private String ultimoResumoArmazem; // Último resumo mostrado do armazém de arquivos.
+  private String ultimoResumoLog; // Último resumo mostrado do log de mensagens.
+  private String ultimoResumoHistorico; // Último resumo mostrado do índice do histórico.
+  private String ultimoResumoBusca; // Último resumo mostrado do índice de busca.
+  private String ultimoResumoCluster; // Último resumo mostrado das ligações entre nós.
+  private String ultimoResumoRastreio; // Último resumo mostrado do rastreamento amostrado.
 
   // Construtor da classe Servidor.
   public Servidor() {
     clientes = new ConcurrentHashMap<>();
     grupos = new ConcurrentHashMap<>();
+    usuarios = new Usuarios();
+    sessoes = new ConcurrentHashMap<>();
+    sincronizados = ConcurrentHashMap.newKeySet();
+    gruposDesatualizados = new ConcurrentHashMap<>();
+    entregasRemotas = new ConcurrentHashMap<>();
+    controleFluxo = new ControleFluxo();
+    ultimoResumo = controleFluxo.resumo();
+    manutencao = new ManutencaoConexoes();
+    ultimoResumoConexoes = manutencao.resumo();
+    metricas = new Metricas(Math.max(1, NUM_REATORES));
+    ultimoResumoRastreio = Rastreamento.ATIVO ? metricas.resumoRastreio() : null;
+    discoIO = new DiscoIO();
+    ultimoResumoDisco = discoIO.resumo();
     executando = false;
   }
 
   // Inicia o servidor.
   public void iniciar() {
     try {
+      armazem = new ArmazemArquivos(DIRETORIO_OBJETOS);
+      ultimoResumoArmazem = armazem.resumo();
+      LogConsole.info("Armazem de arquivos: ", ultimoResumoArmazem);
+    } catch (IOException e) {
+      LogConsole.erro("Erro ao carregar armazem de arquivos: ", e.getMessage());
+      return;
+    }
+
+    try {
+      log = new LogMensagens(DIRETORIO_LOG);
+      ultimoResumoLog = log.resumo();
+      LogConsole.info("Log de mensagens: ", ultimoResumoLog);
+    } catch (IOException e) {
+      LogConsole.erro("Erro ao carregar log de mensagens: ", e.getMessage());
+      return;
+    }
+
+    try {
+      historico = new IndiceHistorico(DIRETORIO_HISTORICO, log);
+      log.adicionarOuvinte(historico, historico.getIndexadoAte() + 1);
+      ultimoResumoHistorico = historico.resumo();
+      LogConsole.info("Indice do historico: ", ultimoResumoHistorico);
+    } catch (IOException e) {
+      LogConsole.erro("Erro ao carregar indice do historico: ", e.getMessage());
+      return;
+    }
+
+    try {
+      busca = new IndiceBusca(DIRETORIO_BUSCA, log);
+      log.adicionarOuvinte(busca, busca.getIndexadoAte() + 1);
+      ultimoResumoBusca = busca.resumo();
+      LogConsole.info("Indice de busca: ", ultimoResumoBusca);
+    } catch (IOException e) {
+      LogConsole.erro("Erro ao carregar indice de busca: ", e.getMessage());
+      return;
+    }
+
+    try {
+      long inicio = System.nanoTime();
+      estado = new EstadoGrupos(DIRETORIO_ESTADO, grupos, usuarios);
+      int reaplicados = estado.carregar();
+      long milissegundos = (System.nanoTime() - inicio) / 1000000;
+      LogConsole.info("Grupos: ", grupos.size(), " recuperados em ", milissegundos, " ms (",
+          reaplicados, " registros do diario)");
+    } catch (IOException e) {
+      LogConsole.erro("Erro ao carregar grupos: ", e.getMessage());
+      return;
+    }
+
+    try {
+      reatores = new Reator[Math.max(1, NUM_REATORES)];
+      for (int i = 0; i < reatores.length; i++) {
+        reatores[i] = new Reator(i, this, manutencao, metricas);
+        reatores[i].iniciar();
+      }
+      iniciarExportador();
+
+      // O cluster começa depois dos reatores: pedidos de outros nós podem chegar assim que a ligação abre.
+      cluster = Cluster.configurado();
+      if (cluster != null) {
+        anel = new AnelHash(0);
+        cluster.iniciar(new OuvinteCluster());
+        Thread partida = new Thread(() -> {
+          try {
+            Thread.sleep(ESPERA_PRONTO_MS);
+            esperaEsgotada = true;
+            verificarPronto(); // Os nós que não responderam a tempo não são mais esperados.
+          } catch (InterruptedException e) {
+            // Servidor parando.
+          }
+        }, "cluster-partida");
+        partida.setDaemon(true);
+        partida.start();
+        ultimoResumoCluster = cluster.resumo();
+        LogConsole.info("Cluster: ", ultimoResumoCluster);
+      }
+
       selector = Selector.open();
       serverChannel = ServerSocketChannel.open();
       serverChannel.configureBlocking(false);
@@ -33,12 +173,14 @@ public class Servidor {
       serverChannel.register(selector, SelectionKey.OP_ACCEPT);
 
       executando = true;
-      System.out.println("Servidor iniciado na porta " + PORTA);
-      System.out.println("Aguardando conexoes\n");
+      LogConsole.info("Servidor iniciado na porta ", PORTA, " com ", reatores.length, " reatores");
+      LogConsole.info("Aguardando conexoes");
 
-      // Loop principal - single thread.
+      // Loop do aceitador - as conexões são distribuídas entre os reatores.
       while (executando) {
         int readyChannels = selector.select(1000); // timeout de 1 segundo
+        relatarMetricas();
+        expirarSessoes();
 
         if (readyChannels == 0) {
           continue;
@@ -53,45 +195,141 @@ public class Servidor {
           try {
             if (key.isAcceptable()) {
               aceitarConexao(key);
-            } else if (key.isReadable()) {
-              lerDados(key);
-            } else if (key.isWritable()) {
-              escreverDados(key);
             }
-          } catch (Exception e) {
-            System.err.println("Erro ao processar key: " + e.getMessage());
-            fecharConexao(key);
+          } catch (IOException e) {
+            LogConsole.erro("Erro ao aceitar conexão: ", e.getMessage());
           }
 
           keyIterator.remove();
         }
       }
 
-    } catch (IOException e) {
-      System.err.println("Erro ao iniciar servidor: " + e.getMessage());
+    } catch (IOException | ClosedSelectorException | IllegalArgumentException e) {
+      if (executando) {
+        LogConsole.erro("Erro ao iniciar servidor: ", e.getMessage());
+      }
     } finally {
       parar();
     }
   }
 
-  // Aceita uma nova conexão de cliente.
+  // Abre o endpoint das métricas; sem ele o servidor funciona normalmente.
+  private void iniciarExportador() {
+    if (PORTA_METRICAS <= 0) {
+      return;
+    }
+    try {
+      exportador = new ExportadorMetricas(PORTA_METRICAS, this::escreverMetricas);
+      exportador.iniciar();
+      LogConsole.info("Metricas em http://127.0.0.1:", exportador.getPorta(), "/metrics");
+    } catch (IOException e) {
+      LogConsole.erro("Erro ao abrir o endpoint de metricas: ", e.getMessage());
+    }
+  }
+
+  // Texto das métricas: as do registro, as filas dos clientes conectados e os contadores do controle de fluxo.
+  private void escreverMetricas(StringBuilder saida) {
+    metricas.escrever(saida, clientes.values());
+    Metricas.cabecalho(saida, "chat_fluxo_quadros_descartados_total", "counter",
+        "Quadros descartados por filas de saida cheias");
+    saida.append("chat_fluxo_quadros_descartados_total ").append(controleFluxo.getQuadrosDescartados())
+        .append('\n');
+    Metricas.cabecalho(saida, "chat_fluxo_pausas_total", "counter", "Remetentes pausados por destinos lentos");
+    saida.append("chat_fluxo_pausas_total ").append(controleFluxo.getPausas()).append('\n');
+    Metricas.cabecalho(saida, "chat_fluxo_desconexoes_total", "counter", "Clientes desconectados por atraso");
+    saida.append("chat_fluxo_desconexoes_total ").append(controleFluxo.getDesconexoes()).append('\n');
+  }
+
+  // Mostra os contadores do controle de fluxo, do disco, do armazém, do log, dos índices e do rastreamento
+  // quando mudaram desde o último relatório.
+  private void relatarMetricas() {
+    long agora = System.currentTimeMillis();
+    if (agora - ultimoRelatorio < INTERVALO_RELATORIO_MS) {
+      return;
+    }
+    ultimoRelatorio = agora;
+    String resumo = controleFluxo.resumo();
+    if (!resumo.equals(ultimoResumo)) {
+      ultimoResumo = resumo;
+      LogConsole.info("Controle de fluxo: ", resumo);
+      for (String atrasado : controleFluxo.clientesAtrasados(clientes.values())) {
+        LogConsole.info("  Cliente atrasado: ", atrasado);
+      }
+    }
+    String resumoConexoes = manutencao.resumo();
+    if (!resumoConexoes.equals(ultimoResumoConexoes)) {
+      ultimoResumoConexoes = resumoConexoes;
+      LogConsole.info("Conexoes: ", resumoConexoes);
+    }
+    String resumoDisco = discoIO.resumo();
+    if (!resumoDisco.equals(ultimoResumoDisco)) {
+      ultimoResumoDisco = resumoDisco;
+      LogConsole.info("Disco: ", resumoDisco);
+    }
+    String resumoArmazem = armazem.resumo();
+    if (!resumoArmazem.equals(ultimoResumoArmazem)) {
+      ultimoResumoArmazem = resumoArmazem;
+      LogConsole.info("Armazem de arquivos: ", resumoArmazem);
+    }
+    String resumoLog = log.resumo();
+    if (!resumoLog.equals(ultimoResumoLog)) {
+      ultimoResumoLog = resumoLog;
+      LogConsole.info("Log de mensagens: ", resumoLog);
+    }
+    String resumoHistorico = historico.resumo();
+    if (!resumoHistorico.equals(ultimoResumoHistorico)) {
+      ultimoResumoHistorico = resumoHistorico;
+      LogConsole.info("Indice do historico: ", resumoHistorico);
+    }
+    String resumoBusca = busca.resumo();
+    if (!resumoBusca.equals(ultimoResumoBusca)) {
+      ultimoResumoBusca = resumoBusca;
+      LogConsole.info("Indice de busca: ", resumoBusca);
+    }
+    if (cluster != null) {
+      String resumoCluster = cluster.resumo();
+      if (!resumoCluster.equals(ultimoResumoCluster)) {
+        ultimoResumoCluster = resumoCluster;
+        LogConsole.info("Cluster: ", resumoCluster);
+      }
+    }
+    if (Rastreamento.ATIVO) {
+      String resumoRastreio = metricas.resumoRastreio();
+      if (!resumoRastreio.equals(ultimoResumoRastreio)) {
+        ultimoResumoRastreio = resumoRastreio;
+        LogConsole.info("Rastreio: ", resumoRastreio);
+      }
+    }
+  }
+
+  // Encerra as sessões desligadas cujo prazo de retomada passou, liberando os quadros guardados nelas.
+  private void expirarSessoes() {
+    long agora = System.currentTimeMillis();
+    if (agora - ultimaExpiracao < 1000) {
+      return;
+    }
+    ultimaExpiracao = agora;
+    sessoes.values().removeIf(sessao -> sessao.encerrarSeExpirou(agora));
+  }
+
+  // Aceita uma nova conexão de cliente e a entrega a um reator.
   private void aceitarConexao(SelectionKey key) throws IOException {
     ServerSocketChannel serverChannel = (ServerSocketChannel) key.channel();
-    SocketChannel clientChannel = serverChannel.accept();
+    SocketChannel clientChannel;
 
-    if (clientChannel != null) {
+    while ((clientChannel = serverChannel.accept()) != null) {
       clientChannel.configureBlocking(false);
-      SelectionKey clientKey = clientChannel.register(selector, SelectionKey.OP_READ);
 
-      ClienteService clienteService = new ClienteService(clientChannel);
-      clientKey.attach(clienteService);
+      Reator reator = reatores[proximoReator];
+      proximoReator = (proximoReator + 1) % reatores.length;
+      reator.registrar(clientChannel);
 
-      System.out.println("Nova conexão aceita de: " + clientChannel.getRemoteAddress());
+      LogConsole.info("Nova conexão aceita de: ", clientChannel.getRemoteAddress());
     }
   }
 
-  // Lê dados do canal do cliente.
-  private void lerDados(SelectionKey key) throws IOException {
+  // Lê dados do canal do cliente (executado na thread do reator dono da key).
+  void lerDados(SelectionKey key) throws IOException {
     SocketChannel clientChannel = (SocketChannel) key.channel();
     ClienteService clienteService = (ClienteService) key.attachment();
 
@@ -100,29 +338,64 @@ public class Servidor {
       return;
     }
 
-    ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
-    int bytesRead = clientChannel.read(buffer);
+    // Parte de arquivo em andamento e nada no buffer: copiar direto do socket para o arquivo.
+    Transferencia parte = clienteService.getParteEmAndamento();
+    if (parte != null && !clienteService.temDadosLidos() && parte.receberDoCanal(clientChannel) > 0) {
+      clienteService.registrarLeitura(clienteService.getReator().getAgora());
+      if (parte.isParteEmAndamento()) {
+        return;
+      }
+      repassarParte(clienteService, parte);
+    }
+
+    // Ler direto no buffer de acumulação da conexão (emprestado do pool do reator).
+    int bytesRead = clientChannel.read(clienteService.prepararBufferLeitura());
+    long leitura = Rastreamento.ATIVO ? System.nanoTime() : 0; // Marca do rastreamento para os quadros lidos.
 
     if (bytesRead == -1) {
       // Cliente desconectou.
       fecharConexao(key);
       return;
     }
-
     if (bytesRead > 0) {
-      buffer.flip();
-      clienteService.adicionarDados(buffer);
+      clienteService.registrarLeitura(clienteService.getReator().getAgora());
+    }
 
-      // Tentar processar mensagens completas.
-      Mensagem mensagem;
-      while ((mensagem = clienteService.lerMensagem()) != null) {
+    // Tentar processar mensagens completas e bytes brutos de partes de arquivo.
+    while (key.isValid()) {
+      parte = clienteService.getParteEmAndamento();
+      if (parte != null) {
+        if (!clienteService.temDadosLidos()) {
+          break;
+        }
+        clienteService.consumirParteDoBuffer();
+        if (parte.isParteEmAndamento()) {
+          break;
+        }
+        repassarParte(clienteService, parte);
+      } else {
+        Mensagem mensagem = clienteService.lerMensagem();
+        if (mensagem == null) {
+          break;
+        }
+        // Os bytes brutos de uma parte de arquivo seguem o quadro e contam junto com ele.
+        metricas.quadroRecebido(mensagem.getTipo(), clienteService.getTamanhoQuadroLido() + mensagem.getTamanhoDados());
+        long inicio = System.nanoTime();
+        if (Rastreamento.ATIVO) {
+          Rastreamento.amostrar(mensagem, leitura, inicio, metricas);
+        }
         processarMensagem(mensagem, clienteService, key);
+        metricas.roteamento(mensagem.getTipo(), System.nanoTime() - inicio);
       }
     }
+
+    if (key.isValid()) {
+      clienteService.ajustarBufferLeitura();
+    }
   }
 
-  // Escreve dados no canal do cliente.
-  private void escreverDados(SelectionKey key) throws IOException {
+  // Escreve dados no canal do cliente (executado na thread do reator dono da key).
+  void escreverDados(SelectionKey key) throws IOException {
     SocketChannel clientChannel = (SocketChannel) key.channel();
     ClienteService clienteService = (ClienteService) key.attachment();
 
@@ -131,23 +404,63 @@ public class Servidor {
       return;
     }
 
-    ByteBuffer buffer = clienteService.getBufferEscrita();
-    if (buffer != null && buffer.hasRemaining()) {
-      clientChannel.write(buffer);
-
-      if (!buffer.hasRemaining()) {
-        // Escrita completa, remover interesse em escrita.
-        key.interestOps(SelectionKey.OP_READ);
-        clienteService.limparBufferEscrita();
+    // Escrever em lote (gathering) até esvaziar a fila ou o socket não aceitar mais bytes.
+    // Cada escrita que avança é anotada para a detecção de escrita parada.
+    ByteBuffer[] lote = clienteService.getReator().getLoteEscrita();
+    long agora = clienteService.getReator().getAgora();
+    int quantidade;
+    try {
+      while (true) {
+        EscritaPendente regiao = clienteService.getRegiaoPendente();
+        if (regiao != null) {
+          // Trecho de arquivo logo após o seu quadro: enviar do page cache com transferTo.
+          long escritos = regiao.escreverRegiao(clientChannel);
+          if (regiao.temRegiaoPendente()) {
+            if (escritos > 0) {
+              clienteService.registrarEscrita(agora, false);
+            }
+            return;
+          }
+          clienteService.concluirEscritos();
+          continue;
+        }
+        if ((quantidade = clienteService.prepararLote(lote)) == 0) {
+          clienteService.registrarEscrita(agora, true);
+          break;
+        }
+        long escritos = clientChannel.write(lote, 0, quantidade);
+        boolean bloqueado = lote[quantidade - 1].hasRemaining();
+        clienteService.concluirEscritos();
+        if (escritos > 0) {
+          clienteService.registrarEscrita(agora, false);
+        }
+        if (bloqueado) {
+          // O socket não aceita mais bytes agora; continuar no próximo OP_WRITE.
+          return;
+        }
       }
-    } else {
-      // Nada para escrever
-      key.interestOps(SelectionKey.OP_READ);
+    } finally {
+      Arrays.fill(lote, null);
+      if (clienteService.temRemetentesPausados()) {
+        controleFluxo.aposEscrita(clienteService);
+      }
+    }
+
+    // Fila vazia: remover interesse em escrita e conferir de novo para não perder um envio concorrente.
+    key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+    if (clienteService.temEscritaPendente()) {
+      key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+      clienteService.iniciarEscrita(agora);
     }
   }
 
   // Processa uma mensagem recebida do cliente.
-  private void processarMensagem(Mensagem mensagem, ClienteService clienteService, SelectionKey key) {
+  private void processarMensagem(Mensagem mensagem, ClienteService clienteService, SelectionKey key)
+      throws IOException {
+    Sessao sessao = clienteService.getSessao();
+    if (sessao != null && Sessao.repetivel(mensagem.getTipo())) {
+      sessao.registrarRecebido(); // Um quadro a menos para o cliente reenviar numa retomada.
+    }
     switch (mensagem.getTipo()) {
       case LOGIN:
         login(mensagem, clienteService, key);
@@ -162,7 +475,25 @@ public class Servidor {
         mensagemGrupo(mensagem);
         break;
       case TRANSFERENCIA_ARQUIVO:
-        transferenciaArquivo(mensagem);
+        transferenciaArquivo(mensagem, clienteService);
+        break;
+      case ARQUIVO_INICIO:
+        iniciarArquivo(mensagem, clienteService);
+        break;
+      case ARQUIVO_PARTE:
+        parteArquivo(mensagem, clienteService);
+        break;
+      case ARQUIVO_FIM:
+        fimArquivo(mensagem, clienteService);
+        break;
+      case ARQUIVO_CONSULTA:
+        consultarArquivo(mensagem, clienteService);
+        break;
+      case HISTORICO:
+        historico(mensagem, clienteService);
+        break;
+      case BUSCA:
+        buscar(mensagem, clienteService);
         break;
       case CRIAR_GRUPO:
         criarGrupo(mensagem, clienteService);
@@ -170,15 +501,27 @@ public class Servidor {
       case ENTRAR_GRUPO:
         entrarGrupo(mensagem, clienteService);
         break;
+      case PING:
+        enviarMensagem(new Mensagem(Mensagem.TipoMensagem.PONG), clienteService);
+        break;
+      case PONG:
+        break; // A leitura já marcou a conexão como ativa.
     }
   }
 
   // Realiza o login do cliente.
   private void login(Mensagem mensagem, ClienteService clienteService, SelectionKey key) {
+    if (mensagem.getSessao() != 0) {
+      retomarSessao(mensagem, clienteService, true);
+      return;
+    }
     String usuarioSolicitado = mensagem.getRemetente();
+    Usuario existente = usuarios.buscar(usuarioSolicitado);
 
-    if (usuarioSolicitado == null || usuarioSolicitado.trim().isEmpty() ||
-        clientes.containsKey(usuarioSolicitado)) {
+    if (usuarioSolicitado == null || usuarioSolicitado.trim().isEmpty()
+        || usuarioSolicitado.length() > TAMANHO_MAXIMO_NOME
+        || (existente != null && existente.getNo() >= 0) // Conectado em outro nó do cluster.
+        || clientes.putIfAbsent(usuarioSolicitado, clienteService) != null) {
 
       Mensagem resposta = new Mensagem(Mensagem.TipoMensagem.ERRO);
       resposta.setConteudo("ERRO: Nome de usuario já está sendo usado ou é inválido.");
@@ -188,219 +531,911 @@ public class Servidor {
       return;
     }
 
-    clienteService.setNomeUsuario(usuarioSolicitado);
-    clientes.put(usuarioSolicitado, clienteService);
+    Usuario usuario = usuarios.registrar(usuarioSolicitado);
+    clienteService.setUsuario(usuario);
+    usuarios.conectar(usuario, clienteService);
+    anunciarPresenca(usuarioSolicitado, true);
+    // O formato do quadro de LOGIN define o formato das respostas (clientes antigos usam serialização Java).
+    clienteService.setFormato(clienteService.getFormatoRecebido());
+
+    // Uma sessão nova substitui a anterior do usuário, que não pode mais ser retomada.
+    Sessao sessao = new Sessao(usuario, clienteService);
+    Sessao anterior = sessoes.put(usuarioSolicitado, sessao);
+    if (anterior != null) {
+      anterior.encerrar();
+    }
+    clienteService.setSessao(sessao);
 
     Mensagem resposta = new Mensagem(Mensagem.TipoMensagem.SUCESSO);
     resposta.setConteudo("Login realizado com sucesso como: " + usuarioSolicitado);
+    resposta.setSessao(sessao.getToken());
     enviarMensagem(resposta, clienteService);
 
-    System.out.println("Cliente conectado: " + usuarioSolicitado);
+    LogConsole.info("Cliente conectado: ", usuarioSolicitado);
+    manutencao.aposLogin(clienteService);
+    entregarPendentes(usuarioSolicitado, clienteService);
+  }
+
+  // Retoma a sessão de um cliente que reconectou dentro da janela: os quadros que ele não recebeu vão num
+  // único item da fila, antes da resposta, que diz quantos quadros dele o servidor já tinha processado.
+  // Se a sessão não pode ser retomada, responde ERRO e a conexão continua aberta para um LOGIN normal.
+  private void retomarSessao(Mensagem mensagem, ClienteService clienteService, boolean tentarDeNovo) {
+    clienteService.setFormato(clienteService.getFormatoRecebido());
+    String usuarioSolicitado = mensagem.getRemetente();
+    Sessao sessao = usuarioSolicitado == null ? null : sessoes.get(usuarioSolicitado);
+    if (sessao != null && sessao.getToken() == mensagem.getSessao()) {
+      ClienteService antiga = sessao.getConexao();
+      if (antiga != null && tentarDeNovo) {
+        // A ligação antiga ainda não caiu deste lado: fechá-la pelo reator dela e tentar de novo aqui.
+        Reator reatorAntigo = antiga.getReator();
+        reatorAntigo.fecharConexao(antiga);
+        reatorAntigo.executar(() -> clienteService.getReator().executar(
+            () -> retomarSessao(mensagem, clienteService, false)));
+        return;
+      }
+      Usuario usuario = sessao.getUsuario();
+      if (usuario.getNo() < 0 && clientes.putIfAbsent(usuarioSolicitado, clienteService) == null) {
+        ByteBuffer repeticao = sessao.retomar(clienteService, mensagem.getSequencia(), System.currentTimeMillis());
+        if (repeticao != null) {
+          clienteService.setUsuario(usuario);
+          clienteService.setSessao(sessao);
+          usuarios.conectar(usuario, clienteService);
+          anunciarPresenca(usuarioSolicitado, true);
+          registrarRetorno(usuarioSolicitado);
+          // As ações de envio dos quadros guardados na sessão (o avanço do cursor de entrega) só rodam
+          // depois que a repetição é escrita; a entrega das pendências recomeça depois delas.
+          List<Runnable> acoes = sessao.retirarAcoesDeEnvio();
+          Runnable aposRepeticao = () -> {
+            for (Runnable acao : acoes) {
+              acao.run();
+            }
+            iniciarEntrega(clienteService);
+          };
+          int reenviados = repeticao.remaining();
+          if (reenviados > 0) {
+            clienteService.adicionarRepeticao(new QuadroCodificado(repeticao, Mensagem.TipoMensagem.STATUS),
+                aposRepeticao);
+          }
+
+          Mensagem resposta = new Mensagem(Mensagem.TipoMensagem.SUCESSO);
+          resposta.setConteudo("Sessao retomada como: " + usuarioSolicitado);
+          resposta.setSessao(sessao.getToken());
+          resposta.setSequencia(sessao.getRecebidos());
+          enviarMensagem(resposta, clienteService);
+
+          LogConsole.info("Sessao retomada: ", usuarioSolicitado, " (", reenviados, " bytes reenviados)");
+          manutencao.aposLogin(clienteService);
+          if (reenviados == 0) {
+            aposRepeticao.run();
+          }
+          return;
+        }
+        clientes.remove(usuarioSolicitado, clienteService);
+      }
+    }
+
+    Mensagem resposta = new Mensagem(Mensagem.TipoMensagem.ERRO);
+    resposta.setConteudo("Sessao expirada; faca login de novo.");
+    resposta.setSessao(mensagem.getSessao());
+    resposta.setSucesso(false);
+    enviarMensagem(resposta, clienteService);
+  }
+
+  // Registra no log que o usuário voltou e começa a entregar as mensagens recebidas enquanto ele estava
+  // offline.
+  private void entregarPendentes(String usuarioSolicitado, ClienteService clienteService) {
+    registrarRetorno(usuarioSolicitado);
+    iniciarEntrega(clienteService);
+  }
+
+  // Começa a entregar as mensagens pendentes do log: as privadas e as dos grupos de que este nó é dono. As
+  // dos outros grupos, e as privadas enviadas em outros nós, são entregues pelos outros nós, que começam
+  // ao receber a presença do usuário (iniciarEntregaRemota).
+  private void iniciarEntrega(ClienteService clienteService) {
+    new EntregaPendentes(log, historico, discoIO, clienteService, gruposComoDono(clienteService.getUsuario()))
+        .iniciar();
   }
 
-  // Realiza o logout do cliente.
+  // Começa a entregar ao nó onde o usuário acabou de entrar as pendências dele guardadas neste nó.
+  private void iniciarEntregaRemota(Usuario usuario, int no) {
+    EntregaRemota destino = new EntregaRemota(usuario, no);
+    entregasRemotas.put(usuario.getNome(), destino);
+    if (!new EntregaPendentes(log, historico, discoIO, usuario.getNome(), destino, gruposComoDono(usuario))
+        .iniciar()) {
+      entregasRemotas.remove(usuario.getNome(), destino);
+    }
+  }
+
+  // Grupos do usuário de que este nó é dono: as pendências deles estão no log daqui.
+  private List<String> gruposComoDono(Usuario usuario) {
+    List<String> gruposDoUsuario = new ArrayList<>();
+    for (Grupo grupo : usuario.getGrupos()) {
+      if (donoRemoto(grupo.getNome()) < 0) {
+        gruposDoUsuario.add(grupo.getNome());
+      }
+    }
+    return gruposDoUsuario;
+  }
+
+  // Realiza o logout do cliente; a sessão termina e não pode mais ser retomada.
   private void logout(ClienteService clienteService, SelectionKey key) {
+    Sessao sessao = clienteService.getSessao();
+    if (sessao != null) {
+      clienteService.setSessao(null);
+      sessoes.remove(clienteService.getNomeUsuario(), sessao);
+      sessao.encerrar();
+    }
     fecharConexao(key);
   }
 
-  // Envia uma mensagem privada de um cliente para outro.
+  // Envia uma mensagem privada de um cliente para outro. A mensagem é gravada no log; se o destinatário
+  // estiver offline, ela cai no intervalo em que ele está fora e é entregue no próximo login dele.
   private void mensagemPrivada(Mensagem mensagem) {
     ClienteService destinatario = clientes.get(mensagem.getDestinatario());
     ClienteService remetente = clientes.get(mensagem.getRemetente());
+    boolean online = destinatario != null && destinatario.isConectado();
+    int noRemoto = online ? -1 : noRemoto(mensagem.getDestinatario());
 
-    if (destinatario != null && destinatario.isConectado()) {
-      enviarMensagem(mensagem, destinatario);
-
+    if (!online && noRemoto < 0 && (mensagem.getDestinatario() == null
+        || (!log.conheceUsuario(mensagem.getDestinatario()) && usuarios.buscar(mensagem.getDestinatario()) == null))) {
       if (remetente != null) {
-        Mensagem confirmacao = new Mensagem(Mensagem.TipoMensagem.SUCESSO);
-        confirmacao.setConteudo("Mensagem enviada para " + mensagem.getDestinatario());
-        enviarMensagem(confirmacao, remetente);
+        enviarErro(remetente, "Usuario não encontrado: " + mensagem.getDestinatario());
       }
-    } else {
-      if (remetente != null) {
-        Mensagem erro = new Mensagem(Mensagem.TipoMensagem.ERRO);
-        erro.setConteudo("Usuario não encontrado ou offline: " + mensagem.getDestinatario());
-        erro.setSucesso(false);
-        enviarMensagem(erro, remetente);
+      return;
+    }
+
+    mensagem.setCarimboTempo(System.currentTimeMillis());
+    long posicao = registrarNoLog(mensagem);
+    try {
+      if (online) {
+        enviarMensagem(mensagem, destinatario, remetente);
+      } else if (noRemoto >= 0 && repassar(noRemoto, mensagem)) {
+        online = true; // O nó do destinatário entrega a mensagem (ou a guarda, se ele acabou de sair).
+      } else if (posicao < 0) {
+        if (remetente != null) {
+          enviarErro(remetente, "Usuario offline e a mensagem não pôde ser guardada: " + mensagem.getDestinatario());
+        }
+        return;
+      } else if (noRemoto >= 0) {
+        registrarAusencia(mensagem.getDestinatario()); // O nó dele não responde: a mensagem fica pendente aqui.
       }
+    } finally {
+      log.concluirRoteamento();
+    }
+
+    if (remetente != null) {
+      Mensagem confirmacao = new Mensagem(Mensagem.TipoMensagem.SUCESSO);
+      confirmacao.setConteudo(online ? "Mensagem enviada para " + mensagem.getDestinatario()
+          : "Usuario " + mensagem.getDestinatario() + " offline: mensagem guardada para o proximo login");
+      confirmarAposPersistir(posicao, confirmacao, remetente);
     }
   }
 
-  // Envia uma mensagem para todos os membros de um grupo.
+  // Envia uma mensagem para todos os membros de um grupo; os membros offline a recebem no próximo login.
+  // No cluster, a mensagem vai ao nó dono do grupo, que confere a participação e faz a difusão.
   private void mensagemGrupo(Mensagem mensagem) {
-    Grupo grupo = grupos.get(mensagem.getNomeGrupo());
-    ClienteService remetente = clientes.get(mensagem.getRemetente());
+    int dono = donoRemoto(mensagem.getNomeGrupo());
+    if (dono >= 0 && repassarPedido(dono, Mensagem.TipoMensagem.NO_MENSAGEM_GRUPO, mensagem)) {
+      return;
+    }
+    mensagemGrupoComoDono(mensagem, -1);
+  }
 
-    if (grupo != null && grupo.eMembro(mensagem.getRemetente())) {
-      // Enviar para todos os membros do grupo (exceto o remetente).
-      for (String membro : grupo.getMembros()) {
-        if (!membro.equals(mensagem.getRemetente())) {
-          ClienteService membroInfo = clientes.get(membro);
-          if (membroInfo != null && membroInfo.isConectado()) {
-            enviarMensagem(mensagem, membroInfo);
-          }
-        }
+  // Trata a mensagem de grupo como dono do grupo. noOrigem é o nó do remetente quando o pedido foi
+  // repassado por outro nó (-1 se ele está conectado aqui); as respostas voltam por esse nó.
+  private void mensagemGrupoComoDono(Mensagem mensagem, int noOrigem) {
+    Grupo grupo = grupos.get(mensagem.getNomeGrupo());
+    ClienteService remetente = noOrigem < 0 ? clientes.get(mensagem.getRemetente()) : null;
+
+    if (grupo != null && grupo.eMembro(usuarios.buscar(mensagem.getRemetente()))) {
+      mensagem.setCarimboTempo(System.currentTimeMillis());
+      long posicao = registrarNoLog(mensagem);
+
+      // Enviar para todos os membros do grupo (exceto o remetente); para os offline, a mensagem cai no
+      // intervalo em que estão fora, e cada nó com membros conectados recebe um único repasse.
+      try {
+        repassarAosNos(mensagem, difundirParaGrupo(mensagem, grupo, remetente));
+      } finally {
+        log.concluirRoteamento();
       }
 
-      if (remetente != null) {
-        Mensagem confirmacao = new Mensagem(Mensagem.TipoMensagem.SUCESSO);
-        confirmacao.setConteudo("Mensagem enviada para o grupo " + mensagem.getNomeGrupo());
-        enviarMensagem(confirmacao, remetente);
+      Mensagem confirmacao = new Mensagem(Mensagem.TipoMensagem.SUCESSO);
+      confirmacao.setConteudo("Mensagem enviada para o grupo " + mensagem.getNomeGrupo());
+      if (noOrigem >= 0) {
+        confirmarAposPersistir(posicao, confirmacao, mensagem.getRemetente(), noOrigem);
+      } else if (remetente != null) {
+        confirmarAposPersistir(posicao, confirmacao, remetente);
       }
     } else {
-      if (remetente != null) {
-        Mensagem erro = new Mensagem(Mensagem.TipoMensagem.ERRO);
-        erro.setConteudo("Grupo não encontrado ou você não é membro: " + mensagem.getNomeGrupo());
-        erro.setSucesso(false);
-        enviarMensagem(erro, remetente);
-      }
+      Mensagem erro = new Mensagem(Mensagem.TipoMensagem.ERRO);
+      erro.setConteudo("Grupo não encontrado ou você não é membro: " + mensagem.getNomeGrupo());
+      erro.setSucesso(false);
+      responder(erro, mensagem.getRemetente(), remetente, noOrigem);
     }
   }
 
-  // Realiza a transferência de arquivo entre clientes.
-  private void transferenciaArquivo(Mensagem mensagem) {
-    // Salvar arquivo no servidor.
+  // Grava a mensagem no log; retorna a posição ou -1 se não foi possível gravar.
+  private long registrarNoLog(Mensagem mensagem) {
     try {
-      String nomeArquivo = mensagem.getNomeArquivo();
-      String caminhoArquivo = "arquivos_servidor/" + nomeArquivo;
-      java.nio.file.Files.createDirectories(java.nio.file.Paths.get("arquivos_servidor"));
-      java.nio.file.Files.write(java.nio.file.Paths.get(caminhoArquivo), mensagem.getDadosArquivo());
+      return log.registrarMensagem(mensagem);
+    } catch (IOException e) {
+      LogConsole.erro("Erro ao gravar mensagem no log: ", e.getMessage());
+      return -1;
+    }
+  }
 
-      ClienteService remetente = clientes.get(mensagem.getRemetente());
+  // Registra no log que o usuário ficou fora do alcance deste nó (depois de desligar a presença dele).
+  private void registrarAusencia(String usuario) {
+    try {
+      log.registrarAusencia(usuario);
+    } catch (IOException e) {
+      LogConsole.erro("Erro ao registrar ausencia de ", usuario, ": ", e.getMessage());
+    }
+  }
+
+  // Registra no log que o usuário voltou a ser alcançável (depois de ligar a presença dele).
+  private void registrarRetorno(String usuario) {
+    try {
+      log.registrarRetorno(usuario);
+    } catch (IOException e) {
+      LogConsole.erro("Erro ao registrar retorno de ", usuario, ": ", e.getMessage());
+    }
+  }
+
+  // Registra no log a entrada do usuário no grupo, para as pendências dele não incluírem mensagens anteriores.
+  private void registrarEntrada(String usuario, String nomeGrupo) {
+    try {
+      log.registrarEntrada(usuario, nomeGrupo);
+    } catch (IOException e) {
+      LogConsole.erro("Erro ao registrar entrada de ", usuario, " no log: ", e.getMessage());
+    }
+  }
+
+  // Envia a confirmação ao remetente quando o registro estiver persistido (conforme o modo de fsync do log).
+  private void confirmarAposPersistir(long posicao, Mensagem confirmacao, ClienteService remetente) {
+    if (posicao < 0) {
+      enviarMensagem(confirmacao, remetente);
+    } else {
+      log.aoPersistir(posicao, remetente.getReator(), () -> enviarMensagem(confirmacao, remetente));
+    }
+  }
+
+  // Como acima, para um remetente conectado em outro nó: a confirmação volta pela ligação com ele.
+  private void confirmarAposPersistir(long posicao, Mensagem confirmacao, String usuario, int noOrigem) {
+    if (posicao < 0) {
+      responder(confirmacao, usuario, null, noOrigem);
+    } else {
+      log.aoPersistir(posicao, reatores[0], () -> responder(confirmacao, usuario, null, noOrigem));
+    }
+  }
+
+  // Envia a resposta de um pedido: direto à conexão, ou ao nó de origem quando o pedido foi repassado.
+  private void responder(Mensagem resposta, String usuario, ClienteService conexao, int noOrigem) {
+    if (noOrigem >= 0) {
+      resposta.setDestinatario(usuario);
+      repassar(noOrigem, resposta);
+    } else if (conexao != null) {
+      enviarMensagem(resposta, conexao);
+    }
+  }
+
+  // Responde um pedido de histórico de um grupo (do qual o usuário é membro) ou da conversa privada com
+  // outro usuário. Páginas já lidas saem da cache no próprio reator; as demais são lidas no estágio de disco.
+  private void historico(Mensagem mensagem, ClienteService clienteService) {
+    String usuario = clienteService.getNomeUsuario();
+    String chave;
+    if (usuario == null) {
+      enviarErro(clienteService, "ERRO: Faça login antes de pedir o historico.");
+      return;
+    } else if (mensagem.getNomeGrupo() != null) {
+      Grupo grupo = grupos.get(mensagem.getNomeGrupo());
+      if (grupo == null || !grupo.eMembro(clienteService.getUsuario())) {
+        enviarErro(clienteService, "Grupo não encontrado ou você não é membro: " + mensagem.getNomeGrupo());
+        return;
+      }
+      chave = IndiceHistorico.chaveGrupo(mensagem.getNomeGrupo());
+    } else if (mensagem.getDestinatario() != null) {
+      chave = IndiceHistorico.chavePrivada(usuario, mensagem.getDestinatario());
+    } else {
+      enviarErro(clienteService, "ERRO: Informe o grupo ou o usuario do historico.");
+      return;
+    }
+    int limite = mensagem.getLimite() <= 0 ? IndiceHistorico.LIMITE_PADRAO
+        : Math.min(mensagem.getLimite(), IndiceHistorico.LIMITE_MAXIMO);
+    long cursor = Math.max(0, mensagem.getCursor());
+
+    IndiceHistorico.Pagina pagina = historico.emCache(chave, cursor, limite);
+    if (pagina != null) {
+      enviarPagina(mensagem, pagina, clienteService);
+      return;
+    }
+    discoIO.executar(() -> historico.consultar(chave, cursor, limite), clienteService.getReator(),
+        (lida, erro) -> {
+          if (erro != null) {
+            enviarErro(clienteService, "ERRO: Não foi possível ler o historico: " + erro.getMessage());
+          } else {
+            enviarPagina(mensagem, lida, clienteService);
+          }
+        });
+  }
+
+  // Busca o texto nas mensagens dos grupos de que o usuário é membro e nas suas conversas privadas.
+  // A busca roda no estágio de disco; o resultado volta ao reator do cliente.
+  private void buscar(Mensagem mensagem, ClienteService clienteService) {
+    String usuario = clienteService.getNomeUsuario();
+    if (usuario == null) {
+      enviarErro(clienteService, "ERRO: Faça login antes de buscar.");
+      return;
+    }
+    if (IndiceBusca.termos(mensagem.getConteudo()).isEmpty()) {
+      enviarErro(clienteService, "ERRO: Informe ao menos uma palavra com 2 ou mais letras.");
+      return;
+    }
+    List<String> gruposDoUsuario = new ArrayList<>();
+    for (Grupo grupo : clienteService.getUsuario().getGrupos()) {
+      gruposDoUsuario.add(grupo.getNome());
+    }
+    int limite = mensagem.getLimite() <= 0 ? IndiceBusca.LIMITE_PADRAO
+        : Math.min(mensagem.getLimite(), IndiceBusca.LIMITE_MAXIMO);
+    long cursor = Math.max(0, mensagem.getCursor());
+
+    discoIO.executar(() -> busca.buscar(usuario, gruposDoUsuario, mensagem.getConteudo(), cursor, limite),
+        clienteService.getReator(), (pagina, erro) -> {
+          if (erro != null) {
+            enviarErro(clienteService, "ERRO: Não foi possível buscar: " + erro.getMessage());
+          } else {
+            enviarPagina(mensagem, pagina, clienteService);
+          }
+        });
+  }
+
+  // Envia os itens da página e um STATUS final com o cursor da próxima página (0 quando não há mais).
+  // O histórico vai da mensagem mais antiga para a mais recente; a busca, da mais recente para a mais antiga.
+  private void enviarPagina(Mensagem pedido, IndiceHistorico.Pagina pagina, ClienteService clienteService) {
+    for (Mensagem item : pagina.getItens()) {
+      enviarMensagem(item, clienteService);
+    }
+    String titulo = pedido.getTipo() == Mensagem.TipoMensagem.BUSCA ? "Busca: " + pagina.getItens().size()
+        + " resultado(s)" : "Historico: " + pagina.getItens().size() + " mensagem(ns)";
+    Mensagem fim = new Mensagem(Mensagem.TipoMensagem.STATUS);
+    fim.setNomeGrupo(pedido.getNomeGrupo());
+    fim.setDestinatario(pedido.getDestinatario());
+    fim.setCursor(pagina.getProximoCursor());
+    fim.setLimite(pagina.getItens().size());
+    fim.setConteudo(titulo + (pagina.getProximoCursor() > 0
+        ? ". Para ver os anteriores, use o cursor " + pagina.getProximoCursor() : ". Não há anteriores."));
+    enviarMensagem(fim, clienteService);
+  }
+
+  // Guarda no armazém um arquivo enviado numa única mensagem (clientes antigos) e o repassa aos destinatários.
+  // A gravação roda no estágio de disco; a resposta e o repasse voltam para o reator do remetente.
+  private void transferenciaArquivo(Mensagem mensagem, ClienteService clienteService) {
+    discoIO.executar(() -> {
+      String nomeArquivo = Transferencia.nomeSeguro(mensagem.getNomeArquivo());
+      armazem.guardar(mensagem.getDadosArquivo(), mensagem.getRemetente(), nomeArquivo);
+      return nomeArquivo;
+    }, clienteService.getReator(), (nomeArquivo, erro) -> {
+      if (erro != null) {
+        enviarErro(clienteService, "ERRO: Falha ao processar arquivo - " + erro.getMessage());
+        return;
+      }
 
       // Enviar arquivo para destinatário ou grupo.
       if (mensagem.getDestinatario() != null) {
         ClienteService destinatario = clientes.get(mensagem.getDestinatario());
         if (destinatario != null && destinatario.isConectado()) {
-          enviarMensagem(mensagem, destinatario);
+          enviarMensagem(mensagem, destinatario, clienteService);
         }
       } else if (mensagem.getNomeGrupo() != null) {
         Grupo grupo = grupos.get(mensagem.getNomeGrupo());
-        if (grupo != null && grupo.eMembro(mensagem.getRemetente())) {
-          for (String membro : grupo.getMembros()) {
-            if (!membro.equals(mensagem.getRemetente())) {
-              ClienteService membroInfo = clientes.get(membro);
-              if (membroInfo != null && membroInfo.isConectado()) {
-                enviarMensagem(mensagem, membroInfo);
-              }
-            }
-          }
+        if (grupo != null && grupo.eMembro(usuarios.buscar(mensagem.getRemetente()))) {
+          difundirParaGrupo(mensagem, grupo, clienteService);
         }
       }
 
-      if (remetente != null) {
-        Mensagem resposta = new Mensagem(Mensagem.TipoMensagem.SUCESSO);
-        resposta.setConteudo("Arquivo enviado com sucesso: " + nomeArquivo);
-        enviarMensagem(resposta, remetente);
+      Mensagem resposta = new Mensagem(Mensagem.TipoMensagem.SUCESSO);
+      resposta.setConteudo("Arquivo enviado com sucesso: " + nomeArquivo);
+      enviarMensagem(resposta, clienteService);
+    });
+  }
+
+  // Inicia uma transferência de arquivo em partes: abre o arquivo parcial no servidor e avisa os destinatários.
+  private void iniciarArquivo(Mensagem mensagem, ClienteService clienteService) {
+    Map<Long, Transferencia> transferencias = clienteService.getTransferencias();
+    if (transferencias.containsKey(mensagem.getIdTransferencia())
+        || transferencias.size() >= MAX_TRANSFERENCIAS_POR_CLIENTE) {
+      enviarErro(clienteService, "ERRO: Transferencia duplicada ou limite de envios simultaneos atingido.");
+      return;
+    }
+
+    List<ClienteService> destinos = resolverDestinos(mensagem, clienteService);
+    if (destinos == null) {
+      return;
+    }
+
+    try {
+      Transferencia transferencia = Transferencia.abrir(mensagem, DIRETORIO_ARQUIVOS);
+      transferencia.setDestinos(destinos);
+      transferencias.put(transferencia.getId(), transferencia);
+      difundir(mensagem, destinos, clienteService);
+    } catch (IOException e) {
+      enviarErro(clienteService, "ERRO: Falha ao processar arquivo - " + e.getMessage());
+    }
+  }
+
+  // Lista os destinatários conectados de um arquivo (usuário ou membros do grupo, exceto o remetente).
+  // Retorna null, avisando o remetente, se o destino não existe.
+  private List<ClienteService> resolverDestinos(Mensagem mensagem, ClienteService clienteService) {
+    List<ClienteService> destinos = new ArrayList<>();
+    if (mensagem.getDestinatario() != null) {
+      ClienteService destinatario = clientes.get(mensagem.getDestinatario());
+      if (destinatario == null || !destinatario.isConectado()) {
+        enviarErro(clienteService, "Usuario não encontrado ou offline: " + mensagem.getDestinatario());
+        return null;
+      }
+      destinos.add(destinatario);
+    } else {
+      Grupo grupo = mensagem.getNomeGrupo() != null ? grupos.get(mensagem.getNomeGrupo()) : null;
+      Usuario autor = usuarios.buscar(mensagem.getRemetente());
+      if (grupo == null || !grupo.eMembro(autor)) {
+        enviarErro(clienteService, "Grupo não encontrado ou você não é membro: " + mensagem.getNomeGrupo());
+        return null;
       }
+      for (int membro : grupo.getMembros()) {
+        ClienteService membroInfo = usuarios.conexao(membro);
+        if (membro != autor.getId() && membroInfo != null && membroInfo.isConectado()) {
+          destinos.add(membroInfo);
+        }
+      }
+    }
+    return destinos;
+  }
+
+  // Começa a receber uma parte: os bytes brutos que seguem o quadro vão direto para o arquivo.
+  // Uma parte inválida deixa o fluxo dessincronizado, então a conexão é encerrada.
+  private void parteArquivo(Mensagem mensagem, ClienteService clienteService) throws IOException {
+    Transferencia transferencia = clienteService.getTransferencias().get(mensagem.getIdTransferencia());
+    if (transferencia == null) {
+      throw new IOException("Transferencia desconhecida: " + mensagem.getIdTransferencia());
+    }
+    transferencia.iniciarParte(mensagem);
+    clienteService.setParteEmAndamento(transferencia);
+  }
 
+  // Repassa a parte recém-gravada aos destinatários: um quadro de cabeçalho seguido do trecho do arquivo.
+  private void repassarParte(ClienteService clienteService, Transferencia transferencia) {
+    clienteService.setParteEmAndamento(null);
+    long tamanhoParte = transferencia.getRecebidos() - transferencia.getInicioParte();
+    Mensagem parte = new Mensagem(Mensagem.TipoMensagem.ARQUIVO_PARTE, transferencia.getRemetente());
+    parte.setIdTransferencia(transferencia.getId());
+    parte.setDeslocamento(transferencia.getInicioParte());
+    parte.setTamanhoDados(tamanhoParte);
+
+    QuadroCodificado[] quadros = new QuadroCodificado[CodecMensagem.Formato.values().length];
+    try {
+      for (ClienteService destino : transferencia.getDestinos()) {
+        if (destino.isConectado()) {
+          enviarQuadro(quadroPara(destino, parte, quadros), transferencia.getArquivo(),
+              transferencia.getInicioParte(), tamanhoParte, destino, clienteService);
+        }
+      }
     } catch (IOException e) {
-      ClienteService remetente = clientes.get(mensagem.getRemetente());
-      if (remetente != null) {
-        Mensagem resposta = new Mensagem(Mensagem.TipoMensagem.ERRO);
-        resposta.setConteudo("ERRO: Falha ao processar arquivo - " + e.getMessage());
-        resposta.setSucesso(false);
-        enviarMensagem(resposta, remetente);
+      LogConsole.erro("Erro ao preparar mensagem para envio: ", e.getMessage());
+    }
+  }
+
+  // Conclui a transferência conferindo tamanho e checksum, e avisa remetente e destinatários.
+  private void fimArquivo(Mensagem mensagem, ClienteService clienteService) {
+    Transferencia transferencia = clienteService.getTransferencias().remove(mensagem.getIdTransferencia());
+    if (transferencia == null) {
+      enviarErro(clienteService, "ERRO: Transferencia desconhecida: " + mensagem.getIdTransferencia());
+      return;
+    }
+
+    // Conferir o CRC32 e guardar o conteúdo no armazém no estágio de disco; o resultado volta para este reator.
+    discoIO.executar(() -> transferencia.guardar(armazem, mensagem.getChecksum()), clienteService.getReator(),
+        (objeto, erro) -> {
+          boolean sucesso = erro == null && objeto != null;
+          mensagem.setSucesso(sucesso);
+          difundir(mensagem, transferencia.getDestinos(), clienteService);
+
+          if (sucesso) {
+            Mensagem resposta = new Mensagem(Mensagem.TipoMensagem.SUCESSO);
+            resposta.setConteudo("Arquivo enviado com sucesso: " + transferencia.getNomeArquivo());
+            enviarMensagem(resposta, clienteService);
+          } else {
+            enviarErro(clienteService, "ERRO: Arquivo corrompido ou incompleto: " + transferencia.getNomeArquivo());
+          }
+        });
+  }
+
+  // Responde se o conteúdo do arquivo já está no armazém. Se estiver, o servidor o envia aos destinatários
+  // e o cliente não precisa transmiti-lo; a resposta ARQUIVO_CONSULTA com sucesso=false pede o envio.
+  // Um destino inválido gera ERRO e uma resposta com sucesso=true, pois não há nada a transmitir.
+  private void consultarArquivo(Mensagem mensagem, ClienteService clienteService) {
+    List<ClienteService> destinos = resolverDestinos(mensagem, clienteService);
+    if (destinos == null) {
+      responderConsulta(mensagem, clienteService, true);
+      return;
+    }
+    if (!ArmazemArquivos.hashValido(mensagem.getHashArquivo())) {
+      responderConsulta(mensagem, clienteService, false);
+      return;
+    }
+
+    discoIO.executar(() -> enviarDoArmazem(mensagem, destinos), clienteService.getReator(), (enviado, erro) -> {
+      boolean reutilizado = erro == null && enviado;
+      responderConsulta(mensagem, clienteService, reutilizado);
+      if (reutilizado) {
+        Mensagem resposta = new Mensagem(Mensagem.TipoMensagem.SUCESSO);
+        resposta.setConteudo("Arquivo enviado com sucesso: " + mensagem.getNomeArquivo() + " (ja estava no servidor)");
+        enviarMensagem(resposta, clienteService);
+      }
+    });
+  }
+
+  // Envia aos destinos o conteúdo já guardado no armazém (executado no estágio de disco).
+  // Retorna false se o armazém não tem o conteúdo.
+  private boolean enviarDoArmazem(Mensagem consulta, List<ClienteService> destinos) throws IOException {
+    String nomeArquivo = Transferencia.nomeSeguro(consulta.getNomeArquivo());
+    ObjetoArquivo objeto = armazem.reutilizar(consulta.getHashArquivo(), consulta.getTamanhoArquivo(),
+        consulta.getRemetente(), nomeArquivo);
+    if (objeto == null) {
+      return false;
+    }
+    ArquivoCompartilhado arquivo;
+    try {
+      arquivo = new ArquivoCompartilhado(FileChannel.open(objeto.getCaminho(), StandardOpenOption.READ));
+    } catch (NoSuchFileException e) {
+      return false; // Objeto apagado depois da consulta ao índice.
+    }
+
+    Mensagem inicio = new Mensagem(Mensagem.TipoMensagem.ARQUIVO_INICIO, consulta.getRemetente());
+    inicio.setIdTransferencia(consulta.getIdTransferencia());
+    inicio.setDestinatario(consulta.getDestinatario());
+    inicio.setNomeGrupo(consulta.getNomeGrupo());
+    inicio.setNomeArquivo(nomeArquivo);
+    inicio.setTamanhoArquivo(objeto.getTamanho());
+    try {
+      for (ClienteService destino : destinos) {
+        EnvioArmazenado envio = new EnvioArmazenado(destino, arquivo.reter(), objeto, inicio);
+        destino.getReator().executar(envio::iniciar);
       }
+    } finally {
+      arquivo.liberar();
     }
+    return true;
+  }
+
+  // Responde uma consulta de arquivo.
+  private void responderConsulta(Mensagem consulta, ClienteService clienteService, boolean sucesso) {
+    Mensagem resposta = new Mensagem(Mensagem.TipoMensagem.ARQUIVO_CONSULTA);
+    resposta.setIdTransferencia(consulta.getIdTransferencia());
+    resposta.setHashArquivo(consulta.getHashArquivo());
+    resposta.setSucesso(sucesso);
+    enviarMensagem(resposta, clienteService);
+  }
+
+  // Cancela uma transferência e avisa os destinatários que o arquivo não será concluído.
+  private void abortarTransferencia(Transferencia transferencia) {
+    transferencia.abortar();
+    Mensagem fim = new Mensagem(Mensagem.TipoMensagem.ARQUIVO_FIM, transferencia.getRemetente());
+    fim.setIdTransferencia(transferencia.getId());
+    fim.setNomeArquivo(transferencia.getNomeArquivo());
+    fim.setSucesso(false);
+    difundir(fim, transferencia.getDestinos(), null);
+  }
+
+  // Envia uma mensagem de erro ao cliente.
+  private void enviarErro(ClienteService clienteService, String conteudo) {
+    Mensagem erro = new Mensagem(Mensagem.TipoMensagem.ERRO);
+    erro.setConteudo(conteudo);
+    erro.setSucesso(false);
+    enviarMensagem(erro, clienteService);
   }
 
   // Cria um novo grupo de chat.
+  // No cluster, o pedido vai ao nó dono do grupo.
   private void criarGrupo(Mensagem mensagem, ClienteService clienteService) {
     String nomeGrupo = mensagem.getNomeGrupo();
+    String usuario = clienteService.getNomeUsuario();
 
-    if (nomeGrupo == null || nomeGrupo.trim().isEmpty() || grupos.containsKey(nomeGrupo)) {
+    int dono = usuario != null ? donoRemoto(nomeGrupo) : -1;
+    if (dono >= 0 && repassar(dono, operacaoGrupo(Mensagem.TipoMensagem.NO_CRIAR_GRUPO, nomeGrupo, usuario))) {
+      return;
+    }
+    enviarMensagem(criarGrupoComoDono(nomeGrupo, usuario), clienteService);
+  }
+
+  // Cria o grupo neste nó, como dono dele, e replica a criação nos outros nós; retorna a resposta.
+  private Mensagem criarGrupoComoDono(String nomeGrupo, String usuario) {
+    if (nomeGrupo == null || nomeGrupo.trim().isEmpty() || nomeGrupo.length() > TAMANHO_MAXIMO_NOME ||
+        grupos.putIfAbsent(nomeGrupo, new Grupo(nomeGrupo)) != null) {
       Mensagem resposta = new Mensagem(Mensagem.TipoMensagem.ERRO);
       resposta.setConteudo("ERRO: Grupo já existe ou nome inválido: " + nomeGrupo);
       resposta.setSucesso(false);
-      enviarMensagem(resposta, clienteService);
-      return;
+      return resposta;
     }
-
-    grupos.put(nomeGrupo, new Grupo(nomeGrupo));
+    estado.registrarCriacao(nomeGrupo);
+    replicarGrupo(Mensagem.TipoMensagem.CRIAR_GRUPO, nomeGrupo, usuario);
 
     Mensagem resposta = new Mensagem(Mensagem.TipoMensagem.SUCESSO);
     resposta.setConteudo("Grupo criado com sucesso: " + nomeGrupo);
-    enviarMensagem(resposta, clienteService);
+    return resposta;
   }
 
-  // Adiciona o cliente a um grupo existente.
+  // Adiciona o cliente a um grupo existente. No cluster, o pedido vai ao nó dono do grupo.
   private void entrarGrupo(Mensagem mensagem, ClienteService clienteService) {
     String nomeGrupo = mensagem.getNomeGrupo();
-    String usuario = clienteService.getNomeUsuario();
+    Usuario usuario = clienteService.getUsuario();
 
-    Grupo grupo = grupos.get(nomeGrupo);
-    if (grupo != null && grupo.adicionarMembro(usuario)) {
+    int dono = usuario != null ? donoRemoto(nomeGrupo) : -1;
+    if (dono >= 0 && repassar(dono, operacaoGrupo(Mensagem.TipoMensagem.NO_ENTRAR_GRUPO, nomeGrupo,
+        usuario.getNome()))) {
+      return;
+    }
+    enviarMensagem(entrarGrupoComoDono(nomeGrupo, usuario), clienteService);
+  }
+
+  // Adiciona o usuário ao grupo neste nó, como dono dele, e replica a entrada; retorna a resposta.
+  private Mensagem entrarGrupoComoDono(String nomeGrupo, Usuario usuario) {
+    Grupo grupo = nomeGrupo == null ? null : grupos.get(nomeGrupo);
+    if (grupo != null && usuario != null && grupo.adicionarMembro(usuario)) {
+      estado.registrarEntrada(nomeGrupo, usuario.getNome());
+      registrarEntrada(usuario.getNome(), nomeGrupo);
+      replicarGrupo(Mensagem.TipoMensagem.ENTRAR_GRUPO, nomeGrupo, usuario.getNome());
       Mensagem resposta = new Mensagem(Mensagem.TipoMensagem.SUCESSO);
       resposta.setConteudo("Você entrou no grupo: " + nomeGrupo);
-      enviarMensagem(resposta, clienteService);
-    } else {
-      Mensagem resposta = new Mensagem(Mensagem.TipoMensagem.ERRO);
-      resposta.setConteudo("ERRO: Não foi possível entrar no grupo: " + nomeGrupo);
-      resposta.setSucesso(false);
-      enviarMensagem(resposta, clienteService);
+      return resposta;
     }
+    Mensagem resposta = new Mensagem(Mensagem.TipoMensagem.ERRO);
+    resposta.setConteudo("ERRO: Não foi possível entrar no grupo: " + nomeGrupo);
+    resposta.setSucesso(false);
+    return resposta;
   }
 
   // Envia uma mensagem para o cliente.
   private void enviarMensagem(Mensagem mensagem, ClienteService clienteService) {
-    try {
-      ByteArrayOutputStream baos = new ByteArrayOutputStream();
-      ObjectOutputStream oos = new ObjectOutputStream(baos);
-      oos.writeObject(mensagem);
-      oos.flush();
+    enviarMensagem(mensagem, clienteService, null);
+  }
 
-      byte[] dados = baos.toByteArray();
-      ByteBuffer buffer = ByteBuffer.allocate(4 + dados.length);
-      buffer.putInt(dados.length);
-      buffer.put(dados);
-      buffer.flip();
+  // Envia uma mensagem para o cliente, indicando a conexão que originou o envio (para controle de fluxo).
+  private void enviarMensagem(Mensagem mensagem, ClienteService clienteService, ClienteService origem) {
+    try {
+      enviarQuadro(QuadroCodificado.codificar(mensagem, clienteService.getFormato()), clienteService, origem);
+    } catch (IOException e) {
+      LogConsole.erro("Erro ao preparar mensagem para envio: ", e.getMessage());
+    }
+  }
 
-      clienteService.adicionarParaEscrita(buffer);
+  // Envia a mensagem aos membros conectados do grupo (exceto o remetente), codificando uma única vez
+  // por formato; cada membro recebe apenas uma visão do mesmo quadro. Quem está online sai do mapa de
+  // presença; os offline não custam nada aqui, pois a mensagem já cai no intervalo em que estão fora.
+  // Retorna os nós do cluster (um bit por nó) onde há membros conectados.
+  private long difundirParaGrupo(Mensagem mensagem, Grupo grupo, ClienteService origem) {
+    QuadroCodificado[] quadros = new QuadroCodificado[CodecMensagem.Formato.values().length];
+    Usuario autor = usuarios.buscar(mensagem.getRemetente());
+    int idAutor = autor == null ? -1 : autor.getId();
+    long nosRemotos = 0;
+    int destinos = 0;
+    try {
+      for (int membro : grupo.getMembros()) {
+        if (membro == idAutor) {
+          continue;
+        }
+        ClienteService membroInfo = usuarios.conexao(membro);
+        int noRemoto;
+        if (membroInfo != null && membroInfo.isConectado()) {
+          enviarQuadro(quadroPara(membroInfo, mensagem, quadros), membroInfo, origem);
+          destinos++;
+        } else if (cluster != null && (noRemoto = usuarios.porId(membro).getNo()) >= 0) {
+          nosRemotos |= 1L << noRemoto; // O Cluster recusa mais de 64 nós.
+        }
+      }
+    } catch (IOException e) {
+      LogConsole.erro("Erro ao preparar mensagem para envio: ", e.getMessage());
+    } finally {
+      metricas.difusao(destinos);
+    }
+    return nosRemotos;
+  }
 
-      // Marcar canal para escrita.
-      SelectionKey key = clienteService.getChannel().keyFor(selector);
-      if (key != null && key.isValid()) {
-        key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+  // Repassa a mensagem de grupo uma única vez a cada nó indicado; cada nó a entrega aos seus membros.
+  private void repassarAosNos(Mensagem mensagem, long nos) {
+    if (nos == 0) {
+      return;
+    }
+    try {
+      ByteBuffer quadro = Cluster.quadro(mensagem);
+      for (int no = 0; nos != 0; no++, nos >>>= 1) {
+        if ((nos & 1) != 0) {
+          cluster.enviar(no, quadro);
+        }
       }
+    } catch (IOException e) {
+      LogConsole.erro("Erro ao repassar mensagem aos nos: ", e.getMessage());
+    }
+  }
+
+  // Nó do cluster onde o usuário está conectado, ou -1 se não está em outro nó.
+  private int noRemoto(String nomeUsuario) {
+    Usuario usuario = cluster == null ? null : usuarios.buscar(nomeUsuario);
+    return usuario == null ? -1 : usuario.getNo();
+  }
+
+  // Nó dono do grupo, ou -1 se é este nó (ou se o servidor roda sozinho, ou nenhum nó está pronto).
+  private int donoRemoto(String nomeGrupo) {
+    if (cluster == null || nomeGrupo == null) {
+      return -1;
+    }
+    int dono = anel.dono(nomeGrupo);
+    return dono == cluster.getId() ? -1 : dono;
+  }
 
+  // Repassa o pedido de um cliente ao nó dono do grupo, com o tipo de pedido entre nós.
+  private boolean repassarPedido(int dono, Mensagem.TipoMensagem tipo, Mensagem pedido) {
+    Mensagem.TipoMensagem original = pedido.getTipo();
+    pedido.setTipo(tipo);
+    boolean repassado = repassar(dono, pedido); // O quadro é codificado aqui mesmo.
+    pedido.setTipo(original);
+    return repassado;
+  }
+
+  // Repassa a mensagem a outro nó; retorna false se não há ligação com ele.
+  private boolean repassar(int no, Mensagem mensagem) {
+    try {
+      return cluster.enviar(no, Cluster.quadro(mensagem));
     } catch (IOException e) {
-      System.err.println("Erro ao preparar mensagem para envio: " + e.getMessage());
+      LogConsole.erro("Erro ao repassar mensagem ao no ", no, ": ", e.getMessage());
+      return false;
     }
   }
 
+  // Avisa os outros nós que o usuário entrou ou saiu deste nó (diretório de localização).
+  private void anunciarPresenca(String nomeUsuario, boolean online) {
+    if (cluster != null) {
+      cluster.enviarParaTodos(presenca(nomeUsuario, online));
+    }
+  }
+
+  private static Mensagem presenca(String nomeUsuario, boolean online) {
+    Mensagem presenca = new Mensagem(Mensagem.TipoMensagem.NO_PRESENCA, nomeUsuario);
+    presenca.setSucesso(online);
+    return presenca;
+  }
+
+  // Replica nos outros nós a criação de um grupo ou a entrada de um usuário.
+  private void replicarGrupo(Mensagem.TipoMensagem tipo, String nomeGrupo, String usuario) {
+    if (cluster != null) {
+      cluster.enviarParaTodos(operacaoGrupo(tipo, nomeGrupo, usuario));
+    }
+  }
+
+  private static Mensagem operacaoGrupo(Mensagem.TipoMensagem tipo, String nomeGrupo, String usuario) {
+    Mensagem operacao = new Mensagem(tipo, usuario);
+    operacao.setNomeGrupo(nomeGrupo);
+    return operacao;
+  }
+
+  // Envia a mesma mensagem a uma lista de destinos, codificando uma única vez por formato.
+  private void difundir(Mensagem mensagem, List<ClienteService> destinos, ClienteService origem) {
+    QuadroCodificado[] quadros = new QuadroCodificado[CodecMensagem.Formato.values().length];
+    try {
+      for (ClienteService destino : destinos) {
+        if (destino.isConectado()) {
+          enviarQuadro(quadroPara(destino, mensagem, quadros), destino, origem);
+        }
+      }
+    } catch (IOException e) {
+      LogConsole.erro("Erro ao preparar mensagem para envio: ", e.getMessage());
+    }
+  }
+
+  // Obtém o quadro no formato do destino, codificando-o na primeira vez.
+  private QuadroCodificado quadroPara(ClienteService destino, Mensagem mensagem, QuadroCodificado[] quadros)
+      throws IOException {
+    int indice = destino.getFormato().ordinal();
+    if (quadros[indice] == null) {
+      quadros[indice] = QuadroCodificado.codificar(mensagem, destino.getFormato());
+    }
+    return quadros[indice];
+  }
+
+  // Enfileira um quadro já codificado para o cliente, respeitando o limite da fila de saída.
+  private void enviarQuadro(QuadroCodificado quadro, ClienteService clienteService, ClienteService origem) {
+    if (!controleFluxo.admitir(quadro, clienteService, origem)) {
+      return;
+    }
+    clienteService.adicionarParaEscrita(quadro);
+
+    // Marcar canal para escrita pelo reator dono da conexão.
+    clienteService.getReator().solicitarEscrita(clienteService);
+  }
+
+  // Enfileira um quadro seguido de um trecho de arquivo, que o reator envia com transferTo.
+  private void enviarQuadro(QuadroCodificado quadro, ArquivoCompartilhado arquivo, long posicao, long tamanho,
+      ClienteService clienteService, ClienteService origem) {
+    if (!controleFluxo.admitir(quadro, quadro.getTamanho() + tamanho, clienteService, origem)) {
+      return;
+    }
+    clienteService.adicionarParaEscrita(quadro, arquivo, posicao, tamanho);
+    clienteService.getReator().solicitarEscrita(clienteService);
+  }
+
   // Fecha a conexão com o cliente e limpa recursos.
-  private void fecharConexao(SelectionKey key) {
+  void fecharConexao(SelectionKey key) {
     try {
       ClienteService clienteService = (ClienteService) key.attachment();
 
       if (clienteService != null) {
+        if (key.isValid()) {
+          metricas.conexaoFechada(); // Só no primeiro fechamento da key.
+        }
+        clienteService.getReator().cancelar(clienteService.getTemporizador());
         String nomeUsuario = clienteService.getNomeUsuario();
-        if (nomeUsuario != null) {
-          clientes.remove(nomeUsuario);
-
-          // Remover usuario de todos os grupos.
-          for (Grupo grupo : grupos.values()) {
-            grupo.removerMembro(nomeUsuario);
-          }
+        if (nomeUsuario != null && clientes.remove(nomeUsuario, clienteService)) {
+          // As participações nos grupos continuam; só a presença é desligada.
+          usuarios.desconectar(clienteService.getUsuario(), clienteService);
+          registrarAusencia(nomeUsuario);
+          anunciarPresenca(nomeUsuario, false);
+          LogConsole.info("Cliente desconectado: ", nomeUsuario);
+        }
 
-          System.out.println("Cliente desconectado: " + nomeUsuario);
+        // Cancelar os envios de arquivo em andamento deste cliente.
+        for (Transferencia transferencia : clienteService.getTransferencias().values()) {
+          abortarTransferencia(transferencia);
         }
+        clienteService.getTransferencias().clear();
 
+        // Os quadros ainda na fila passam para a sessão, que fica esperando a retomada.
         clienteService.fechar();
+        Sessao sessao = clienteService.getSessao();
+        if (sessao != null) {
+          sessao.desligar(clienteService, System.currentTimeMillis());
+        }
+        controleFluxo.retomarRemetentes(clienteService);
       }
 
       key.cancel();
       key.channel().close();
 
     } catch (IOException e) {
-      System.err.println("Erro ao fechar conexão: " + e.getMessage());
+      LogConsole.erro("Erro ao fechar conexão: ", e.getMessage());
     }
   }
 
   // Para o servidor e libera recursos.
   public void parar() {
     executando = false;
+    if (exportador != null) {
+      exportador.parar();
+    }
+    if (cluster != null) {
+      cluster.fechar();
+    }
+    discoIO.parar();
+    if (armazem != null) {
+      armazem.fechar();
+    }
+    if (busca != null) {
+      busca.fechar();
+    }
+    if (historico != null) {
+      historico.fechar();
+    }
+    if (log != null) {
+      log.fechar();
+    }
+    if (reatores != null) {
+      for (Reator reator : reatores) {
+        if (reator != null) {
+          reator.parar();
+        }
+      }
+    }
+    if (estado != null) {
+      estado.fechar(); // Depois dos reatores: nenhuma alteração de grupo chega após a fotografia final.
+    }
     try {
       if (selector != null) {
         selector.close();
@@ -409,7 +1444,378 @@ public class Servidor {
         serverChannel.close();
       }
     } catch (IOException e) {
-      System.err.println("Erro ao parar servidor: " + e.getMessage());
+      LogConsole.erro("Erro ao parar servidor: ", e.getMessage());
+    }
+    LogConsole.esvaziar(1000);
+  }
+
+  // Trata os quadros que chegam dos outros nós do cluster, nas threads de leitura das ligações.
+  private class OuvinteCluster implements Cluster.Ouvinte {
+    @Override
+    public void noConectado(int no) {
+      // A sincronização pode encher a fila da ligação; ela roda à parte para não travar a leitura.
+      Thread sincronizar = new Thread(() -> sincronizarNo(no), "cluster-sincronizar-" + no);
+      sincronizar.setDaemon(true);
+      sincronizar.start();
+    }
+
+    @Override
+    public void noDesconectado(int no) {
+      sincronizados.remove(no);
+      gruposDesatualizados.remove(no);
+      atualizarAnel(no, false);
+      verificarPronto(); // Se só faltava a cópia deste nó, ela não é mais esperada.
+      for (Usuario usuario : usuarios.desconectarNo(no)) {
+        registrarAusencia(usuario.getNome());
+      }
+    }
+
+    @Override
+    public void recebida(int no, Mensagem mensagem) {
+      switch (mensagem.getTipo()) {
+        case NO_PRESENCA:
+          Usuario usuario = usuarios.registrar(mensagem.getRemetente());
+          if (mensagem.isSucesso()) {
+            usuarios.conectarRemoto(usuario, no);
+            registrarRetorno(usuario.getNome());
+            iniciarEntregaRemota(usuario, no);
+          } else if (usuarios.desconectarRemoto(usuario, no)) {
+            registrarAusencia(usuario.getNome());
+            entregasRemotas.remove(usuario.getNome());
+          }
+          break;
+        case MENSAGEM_PRIVADA:
+          privadaRepassada(mensagem);
+          break;
+        case MENSAGEM_GRUPO:
+          grupoRepassada(mensagem);
+          break;
+        case CRIAR_GRUPO:
+        case ENTRAR_GRUPO:
+          Grupo grupo = aplicarGrupoRemoto(mensagem);
+          if (grupo != null && grupo.getTamanho() < mensagem.getLimite()) {
+            // Resumo de um grupo com membros que este nó não conhece: pedido no fim da cópia.
+            gruposDesatualizados.computeIfAbsent(no, n -> new ArrayList<>()).add(grupo.getNome());
+          }
+          break;
+        case NO_MENSAGEM_GRUPO:
+          mensagem.setTipo(Mensagem.TipoMensagem.MENSAGEM_GRUPO);
+          mensagemGrupoComoDono(mensagem, no);
+          break;
+        case NO_CRIAR_GRUPO:
+          responder(criarGrupoComoDono(mensagem.getNomeGrupo(), mensagem.getRemetente()), mensagem.getRemetente(),
+              null, no);
+          break;
+        case NO_ENTRAR_GRUPO:
+          Usuario membro = mensagem.getRemetente() == null ? null : usuarios.registrar(mensagem.getRemetente());
+          responder(entrarGrupoComoDono(mensagem.getNomeGrupo(), membro), mensagem.getRemetente(), null, no);
+          break;
+        case NO_SINCRONIZADO:
+          pedirGrupos(no);
+          sincronizados.add(no);
+          verificarPronto();
+          break;
+        case NO_PRONTO:
+          atualizarAnel(no, true);
+          break;
+        case NO_PEDIR_GRUPO:
+          // A cópia pode encher a fila da ligação; ela roda à parte, como a sincronização.
+          Thread copiar = new Thread(() -> enviarGrupos(no, mensagem.getDadosArquivo()), "cluster-grupos-" + no);
+          copiar.setDaemon(true);
+          copiar.start();
+          break;
+        case NO_PENDENTE:
+          pendenteRepassada(no, mensagem);
+          break;
+        case NO_ENTREGUE:
+          EntregaRemota entrega = entregasRemotas.get(mensagem.getRemetente());
+          if (entrega != null && entrega.no == no) {
+            reatores[0].executar(() -> entrega.loteEntregue(mensagem.getCursor()));
+          }
+          break;
+        case SUCESSO:
+        case ERRO:
+          ClienteService destino = clientes.get(mensagem.getDestinatario());
+          if (destino != null) {
+            enviarMensagem(mensagem, destino);
+          }
+          break;
+        default:
+          break;
+      }
+    }
+  }
+
+  // Troca o anel quando um nó fica pronto ou cai. A troca é uma só escrita: os grupos que não mudaram de
+  // dono continuam sendo atendidos normalmente, e só os pedidos dos que mudaram passam a ir para o novo dono.
+  // Pedidos que já estavam a caminho do dono anterior ainda são atendidos por ele, que tem o estado.
+  private synchronized void atualizarAnel(int no, boolean ligado) {
+    AnelHash anterior = anel;
+    anel = ligado ? anterior.com(no) : anterior.sem(no);
+    if (anel == anterior) {
+      return;
+    }
+    int movidos = 0;
+    for (String nomeGrupo : grupos.keySet()) {
+      if (anterior.dono(nomeGrupo) != anel.dono(nomeGrupo)) {
+        movidos++;
+      }
+    }
+    LogConsole.info("Anel: ", anel.getQuantidadeNos(), " no(s); ", movidos, " de ",
+        grupos.size(), " grupos mudaram de dono");
+  }
+
+  // Fica pronto quando todos os nós ligados já mandaram a cópia dos seus grupos (NO_SINCRONIZADO). Os
+  // nós sem ligação também são esperados até passar ESPERA_PRONTO_MS da partida.
+  private synchronized void verificarPronto() {
+    if (pronto) {
+      return;
+    }
+    for (int no = 0; no < cluster.getQuantidadeNos(); no++) {
+      if (no != cluster.getId() && !sincronizados.contains(no) && (cluster.ligado(no) || !esperaEsgotada)) {
+        return;
+      }
+    }
+    ficarPronto();
+  }
+
+  // Este nó passa a ser dono da sua parte do anel e avisa os outros com NO_PRONTO. Isso acontece depois
+  // de receber a cópia dos grupos dos outros nós, ou sozinho se nenhum nó responde na partida.
+  private synchronized void ficarPronto() {
+    if (pronto) {
+      return;
+    }
+    pronto = true;
+    atualizarAnel(cluster.getId(), true);
+    cluster.enviarParaTodos(new Mensagem(Mensagem.TipoMensagem.NO_PRONTO));
+  }
+
+  // Envia a um nó recém-ligado os usuários conectados aqui e a cópia dos grupos, e no fim NO_SINCRONIZADO;
+  // se este nó já é dono de uma parte do anel, manda também NO_PRONTO. Só os grupos que passam deste nó
+  // para o nó novo vão completos, com os membros. Dos outros grupos de que este nó é dono vai só um resumo
+  // (o nome e a quantidade de membros), e o nó novo pede os que ele tem desatualizados (NO_PEDIR_GRUPO);
+  // antes de ficar pronto, este nó não é dono de nenhum grupo e manda o resumo de todos. Os outros nós só
+  // põem um nó no anel depois do NO_PRONTO dele, então um nó novo recebe o estado dos grupos que passam
+  // para ele antes de receber pedidos. Reaplicar o que ele já tinha não muda nada, pois os grupos e as
+  // participações só crescem; pelo mesmo motivo, a mesma quantidade de membros indica a mesma cópia.
+  private void sincronizarNo(int no) {
+    try {
+      for (String nomeUsuario : clientes.keySet()) {
+        cluster.enviarAguardando(no, Cluster.quadro(presenca(nomeUsuario, true)));
+      }
+      boolean donoDeGrupos = pronto;
+      AnelHash atual = anel;
+      AnelHash comNo = atual.com(no);
+      for (Grupo grupo : grupos.values()) {
+        if (!donoDeGrupos) {
+          enviarResumo(no, grupo);
+        } else if (atual.dono(grupo.getNome()) == cluster.getId()) {
+          if (comNo.dono(grupo.getNome()) == no) {
+            enviarGrupo(no, grupo);
+          } else {
+            enviarResumo(no, grupo);
+          }
+        }
+      }
+      cluster.enviarAguardando(no, Cluster.quadro(new Mensagem(Mensagem.TipoMensagem.NO_SINCRONIZADO)));
+      if (donoDeGrupos) {
+        cluster.enviarAguardando(no, Cluster.quadro(new Mensagem(Mensagem.TipoMensagem.NO_PRONTO)));
+      }
+    } catch (IOException | InterruptedException e) {
+      LogConsole.erro("Erro ao sincronizar o no ", no, ": ", e.getMessage());
+    }
+  }
+
+  // Envia o resumo de um grupo a um nó: a criação, com a quantidade de membros no limite.
+  private void enviarResumo(int no, Grupo grupo) throws IOException, InterruptedException {
+    Mensagem resumo = operacaoGrupo(Mensagem.TipoMensagem.CRIAR_GRUPO, grupo.getNome(), null);
+    resumo.setLimite(grupo.getTamanho());
+    cluster.enviarAguardando(no, Cluster.quadro(resumo));
+  }
+
+  // Pede ao nó, no fim da cópia dele, os grupos cujo resumo mostrou membros que este nó não conhece.
+  private void pedirGrupos(int no) {
+    List<String> nomes = gruposDesatualizados.remove(no);
+    if (nomes == null) {
+      return;
+    }
+    try {
+      ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+      DataOutputStream saida = new DataOutputStream(bytes);
+      saida.writeInt(nomes.size());
+      for (String nome : nomes) {
+        saida.writeUTF(nome);
+      }
+      Mensagem pedido = new Mensagem(Mensagem.TipoMensagem.NO_PEDIR_GRUPO);
+      pedido.setDadosArquivo(bytes.toByteArray());
+      cluster.enviar(no, Cluster.quadro(pedido));
+    } catch (IOException e) {
+      LogConsole.erro("Erro ao pedir grupos ao no ", no, ": ", e.getMessage());
+    }
+  }
+
+  // Envia completos ao nó os grupos pedidos por ele (os nomes vêm como em pedirGrupos).
+  private void enviarGrupos(int no, byte[] pedido) {
+    if (pedido == null) {
+      return;
+    }
+    try {
+      DataInputStream entrada = new DataInputStream(new ByteArrayInputStream(pedido));
+      for (int i = entrada.readInt(); i > 0; i--) {
+        Grupo grupo = grupos.get(entrada.readUTF());
+        if (grupo != null) {
+          enviarGrupo(no, grupo);
+        }
+      }
+    } catch (IOException | InterruptedException e) {
+      LogConsole.erro("Erro ao enviar grupos ao no ", no, ": ", e.getMessage());
+    }
+  }
+
+  // Envia um grupo e os seus membros a um nó, como criação e entradas.
+  private void enviarGrupo(int no, Grupo grupo) throws IOException, InterruptedException {
+    cluster.enviarAguardando(no, Cluster.quadro(operacaoGrupo(Mensagem.TipoMensagem.CRIAR_GRUPO,
+        grupo.getNome(), null)));
+    for (int membro : grupo.getMembros()) {
+      cluster.enviarAguardando(no, Cluster.quadro(operacaoGrupo(Mensagem.TipoMensagem.ENTRAR_GRUPO,
+          grupo.getNome(), usuarios.porId(membro).getNome())));
+    }
+  }
+
+  // Entrega uma mensagem privada repassada por outro nó, que já a confirmou ao remetente. Ela também é
+  // gravada no log deste nó, para o histórico e a busca; se o destinatário acabou de sair, fica pendente.
+  private void privadaRepassada(Mensagem mensagem) {
+    ClienteService destinatario = clientes.get(mensagem.getDestinatario());
+    registrarNoLog(mensagem);
+    try {
+      if (destinatario != null && destinatario.isConectado()) {
+        enviarMensagem(mensagem, destinatario);
+      }
+    } finally {
+      log.concluirRoteamento();
+    }
+  }
+
+  // Entrega uma mensagem de grupo repassada por outro nó aos membros conectados aqui. As pendências dos
+  // membros offline ficam no nó de origem.
+  private void grupoRepassada(Mensagem mensagem) {
+    Grupo grupo = grupos.get(mensagem.getNomeGrupo());
+    if (grupo != null) {
+      registrarNoLog(mensagem);
+      try {
+        difundirParaGrupo(mensagem, grupo, null);
+      } finally {
+        log.concluirRoteamento();
+      }
+    }
+  }
+
+  // Aplica a criação de um grupo ou a entrada de um usuário feita em outro nó; retorna o grupo.
+  private Grupo aplicarGrupoRemoto(Mensagem mensagem) {
+    String nomeGrupo = mensagem.getNomeGrupo();
+    if (nomeGrupo == null) {
+      return null;
+    }
+    Grupo grupo = grupos.get(nomeGrupo);
+    if (grupo == null) {
+      Grupo novo = new Grupo(nomeGrupo);
+      grupo = grupos.putIfAbsent(nomeGrupo, novo);
+      if (grupo == null) {
+        grupo = novo;
+        estado.registrarCriacao(nomeGrupo);
+      }
+    }
+    if (mensagem.getTipo() == Mensagem.TipoMensagem.ENTRAR_GRUPO && mensagem.getRemetente() != null
+        && grupo.adicionarMembro(usuarios.registrar(mensagem.getRemetente()))) {
+      estado.registrarEntrada(nomeGrupo, mensagem.getRemetente());
+      registrarEntrada(mensagem.getRemetente(), nomeGrupo);
+    }
+    return grupo;
+  }
+
+  // Enfileira na conexão do usuário uma mensagem pendente que estava no log de outro nó. O último quadro
+  // do lote avisa aquele nó, com NO_ENTREGUE, quando foi escrito no socket. Se a conexão caiu, nada é
+  // avisado, e o lote é entregue de novo no próximo login.
+  private void pendenteRepassada(int no, Mensagem pendente) {
+    ClienteService destino = clientes.get(pendente.getRemetente());
+    if (destino == null || !destino.isConectado() || pendente.getDadosArquivo() == null) {
+      return;
+    }
+    Mensagem mensagem;
+    try {
+      mensagem = CodecMensagem.decodificar(ByteBuffer.wrap(pendente.getDadosArquivo()));
+    } catch (IOException e) {
+      LogConsole.erro("Mensagem pendente invalida do no ", no, ": ", e.getMessage());
+      return;
+    }
+    Runnable aposLote = null;
+    if (pendente.isSucesso()) {
+      Mensagem entregue = new Mensagem(Mensagem.TipoMensagem.NO_ENTREGUE, pendente.getRemetente());
+      entregue.setCursor(pendente.getCursor());
+      aposLote = () -> repassar(no, entregue);
+    }
+    Runnable ultimo = aposLote;
+    destino.getReator().executar(() -> {
+      try {
+        destino.adicionarEntregaDuravel(QuadroCodificado.codificar(mensagem, destino.getFormato()), ultimo);
+        destino.getReator().solicitarEscrita(destino);
+      } catch (IOException e) {
+        LogConsole.erro("Erro ao preparar mensagem pendente para ", pendente.getRemetente(), ": ", e.getMessage());
+      }
+    });
+  }
+
+  // Destino das pendências guardadas aqui para um usuário conectado em outro nó: cada mensagem vai ao nó
+  // dele num NO_PENDENTE, com o quadro binário original, e o nó responde NO_ENTREGUE quando o último
+  // quadro do lote é escrito. Os métodos rodam no primeiro reator. Se a fila da ligação enche, a entrega
+  // para até o próximo login do usuário.
+  private final class EntregaRemota implements EntregaPendentes.Destino {
+    private final Usuario usuario;
+    private final int no;
+    private final long id = proximaEntregaRemota.incrementAndGet(); // Distingue de entregas anteriores.
+    private Runnable aposLote; // Do lote enviado ao nó, até o NO_ENTREGUE dele.
+
+    EntregaRemota(Usuario usuario, int no) {
+      this.usuario = usuario;
+      this.no = no;
+    }
+
+    @Override
+    public boolean isAlcancavel() {
+      return entregasRemotas.get(usuario.getNome()) == this && usuario.getNo() == no && cluster.ligado(no);
+    }
+
+    @Override
+    public Reator getReator() {
+      return reatores[0];
+    }
+
+    @Override
+    public void entregar(List<Mensagem> mensagens, Runnable aposLote) throws IOException {
+      this.aposLote = aposLote;
+      for (int i = 0; i < mensagens.size(); i++) {
+        ByteBuffer original = CodecMensagem.codificarQuadro(mensagens.get(i), CodecMensagem.Formato.BINARIO);
+        original.position(original.position() + 4); // Sem o tamanho: o nó de destino decodifica o payload.
+        byte[] payload = new byte[original.remaining()];
+        original.get(payload);
+        Mensagem pendente = new Mensagem(Mensagem.TipoMensagem.NO_PENDENTE, usuario.getNome());
+        pendente.setDadosArquivo(payload);
+        pendente.setSucesso(i == mensagens.size() - 1);
+        pendente.setCursor(id);
+        if (!cluster.enviar(no, Cluster.quadro(pendente))) {
+          LogConsole.erro("Fila do no ", no, " cheia; entrega de pendencias parada: ", usuario.getNome());
+          return;
+        }
+      }
+    }
+
+    // Chamado com o NO_ENTREGUE do nó: o lote foi escrito para o usuário.
+    void loteEntregue(long idEntrega) {
+      Runnable acao = aposLote;
+      if (idEntrega == id && acao != null) {
+        aposLote = null;
+        acao.run();
+      }
     }
   }
 
@@ -418,7 +1824,7 @@ public class Servidor {
     Servidor servidor = new Servidor();
 
     Runtime.getRuntime().addShutdownHook(new Thread(() -> {
-      System.out.println("\nParando servidor...");
+      LogConsole.info("Parando servidor...");
       servidor.parar();
     }));
 
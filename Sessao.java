@@ -0,0 +1,193 @@
+import java.nio.ByteBuffer;
+import java.security.SecureRandom;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+// Sessão retomável de um usuário. Cada lado numera os quadros que envia (só os tipos repetíveis), sem
+// escrever o número no quadro: o servidor conta os quadros escritos no socket e guarda os últimos num
+// buffer limitado, e o cliente conta os que recebeu. Se a ligação cai, a sessão fica desligada por
+// JANELA_MS; o cliente volta com LOGIN levando o token e quantos quadros recebeu, e o servidor reenvia
+// numa única escrita só os quadros que faltaram. A resposta diz quantos quadros do cliente o servidor
+// processou, para o cliente reenviar os que se perderam no caminho.
+//
+// Os quadros de arquivo não entram na contagem: as transferências em andamento são canceladas quando a
+// ligação cai. Os quadros ainda na fila de saída quando a ligação cai entram no buffer, para serem
+// entregues na retomada. A ação de envio de um desses quadros (como o avanço do cursor de entrega das
+// pendências) só roda depois da retomada; se ele sai do buffer ou a sessão termina, a ação se perde e
+// as pendências continuam no log.
+public class Sessao {
+  public static final long JANELA_MS = Long.getLong("chat.sessao.janelaMs", 30000);
+  private static final int MAX_QUADROS = Integer.getInteger("chat.sessao.quadros", 128);
+  private static final long MAX_BYTES = Long.getLong("chat.sessao.bytes", 256 * 1024);
+  private static final SecureRandom ALEATORIO = new SecureRandom();
+  private static final Runnable ESCRITO = () -> { }; // Quadro já escrito no socket.
+  private static final Runnable NAO_ESCRITO = () -> { }; // Quadro não escrito e sem ação de envio.
+
+  private final long token;
+  private final Usuario usuario;
+  private final CodecMensagem.Formato formato; // Formato dos quadros guardados.
+  private final ArrayDeque<QuadroCodificado> quadros = new ArrayDeque<>(); // Últimos quadros escritos.
+  private final ArrayDeque<Runnable> aposEnvio = new ArrayDeque<>(); // Ação de envio de cada quadro guardado.
+  private boolean perdeuNaoEscritos; // Algum quadro não escrito saiu do buffer antes da retomada.
+  private long bytes; // Bytes dos quadros guardados.
+  private long enviados; // Quadros repetíveis escritos para o cliente (o último guardado tem este número).
+  private long recebidos; // Quadros repetíveis do cliente já processados.
+  private ClienteService conexao; // Conexão atual, ou null enquanto a sessão está desligada.
+  private long prazo; // Momento em que a sessão desligada expira.
+  private boolean encerrada;
+
+  // Construtor da classe Sessao, ligada à conexão do login.
+  public Sessao(Usuario usuario, ClienteService conexao) {
+    this.token = (ALEATORIO.nextLong() & Long.MAX_VALUE) | 1;
+    this.usuario = usuario;
+    this.formato = conexao.getFormato();
+    this.conexao = conexao;
+  }
+
+  // Tipos contados e guardados. Os mesmos valem nos dois sentidos.
+  public static boolean repetivel(Mensagem.TipoMensagem tipo) {
+    switch (tipo) {
+      case LOGIN:
+      case LOGOUT:
+      case TRANSFERENCIA_ARQUIVO:
+      case ARQUIVO_INICIO:
+      case ARQUIVO_PARTE:
+      case ARQUIVO_FIM:
+      case ARQUIVO_CONSULTA:
+      case PING:
+      case PONG:
+        return false;
+      default:
+        return true;
+    }
+  }
+
+  // Guarda um quadro escrito para o cliente (ou que estava na fila quando a ligação caiu); retorna false
+  // se a sessão já foi encerrada. Os mais antigos saem quando o buffer passa do limite de quadros ou de bytes.
+  public synchronized boolean registrarEnviado(QuadroCodificado quadro) {
+    return guardar(quadro, ESCRITO);
+  }
+
+  // Guarda um quadro que não chegou a ser escrito; acao (opcional) é a ação de envio dele, que espera a
+  // retomada.
+  public synchronized boolean registrarNaoEscrito(QuadroCodificado quadro, Runnable acao) {
+    return guardar(quadro, acao == null ? NAO_ESCRITO : acao);
+  }
+
+  private boolean guardar(QuadroCodificado quadro, Runnable acao) {
+    if (encerrada) {
+      return false;
+    }
+    quadros.addLast(quadro);
+    aposEnvio.addLast(acao);
+    bytes += quadro.getTamanho();
+    enviados++;
+    while (quadros.size() > MAX_QUADROS || (bytes > MAX_BYTES && quadros.size() > 1)) {
+      bytes -= quadros.pollFirst().getTamanho();
+      if (aposEnvio.pollFirst() != ESCRITO) {
+        perdeuNaoEscritos = true;
+      }
+    }
+    return true;
+  }
+
+  // Conta um quadro do cliente já processado.
+  public synchronized void registrarRecebido() {
+    recebidos++;
+  }
+
+  // Desliga a sessão da conexão que caiu; ela expira depois de JANELA_MS.
+  public synchronized void desligar(ClienteService antiga, long agora) {
+    if (conexao == antiga) {
+      conexao = null;
+      prazo = agora + JANELA_MS;
+    }
+  }
+
+  // Liga a sessão à nova conexão e retorna os quadros depois de recebidosCliente num único buffer
+  // (vazio se não falta nada), ou null se a sessão não pode ser retomada: expirou, está ligada a outra
+  // conexão, o formato mudou ou parte do que falta já saiu do buffer.
+  public synchronized ByteBuffer retomar(ClienteService nova, long recebidosCliente, long agora) {
+    long primeiro = enviados - quadros.size() + 1; // Número do quadro mais antigo guardado.
+    if (encerrada || conexao != null || agora > prazo || nova.getFormato() != formato
+        || recebidosCliente < primeiro - 1 || recebidosCliente > enviados) {
+      return null;
+    }
+    int tamanho = 0;
+    int pular = (int) (recebidosCliente - primeiro + 1);
+    Iterator<QuadroCodificado> iterator = quadros.iterator();
+    for (int i = 0; iterator.hasNext(); i++) {
+      QuadroCodificado quadro = iterator.next();
+      if (i >= pular) {
+        tamanho += quadro.getTamanho();
+      }
+    }
+    ByteBuffer repeticao = ByteBuffer.allocate(tamanho);
+    iterator = quadros.iterator();
+    for (int i = 0; iterator.hasNext(); i++) {
+      QuadroCodificado quadro = iterator.next();
+      if (i >= pular) {
+        repeticao.put(quadro.novaVisao());
+      }
+    }
+    repeticao.flip();
+    conexao = nova;
+    return repeticao;
+  }
+
+  // Retira as ações de envio dos quadros guardados, para rodarem quando a repetição da retomada for
+  // escrita. Se algum quadro não escrito já saiu do buffer, nenhuma roda: a ação do fim de um lote cobriria
+  // também os quadros perdidos, que assim seguem pendentes no log e são entregues de novo.
+  public synchronized List<Runnable> retirarAcoesDeEnvio() {
+    List<Runnable> acoes = new ArrayList<>();
+    for (Runnable acao : aposEnvio) {
+      if (acao != ESCRITO && acao != NAO_ESCRITO && !perdeuNaoEscritos) {
+        acoes.add(acao);
+      }
+    }
+    aposEnvio.clear();
+    for (int i = 0; i < quadros.size(); i++) {
+      aposEnvio.addLast(ESCRITO);
+    }
+    perdeuNaoEscritos = false;
+    return acoes;
+  }
+
+  // Encerra a sessão se ela está desligada e já passou do prazo; retorna true se encerrou.
+  public synchronized boolean encerrarSeExpirou(long agora) {
+    if (encerrada || conexao != null || agora <= prazo) {
+      return false;
+    }
+    encerrar();
+    return true;
+  }
+
+  // Libera os quadros guardados; a sessão não pode mais ser retomada.
+  public synchronized void encerrar() {
+    encerrada = true;
+    conexao = null;
+    quadros.clear();
+    aposEnvio.clear();
+    perdeuNaoEscritos = false;
+    bytes = 0;
+  }
+
+  // Getters
+  public long getToken() {
+    return token;
+  }
+
+  public Usuario getUsuario() {
+    return usuario;
+  }
+
+  public synchronized ClienteService getConexao() {
+    return conexao;
+  }
+
+  public synchronized long getRecebidos() {
+    return recebidos;
+  }
+}
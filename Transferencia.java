@@ -0,0 +1,221 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.*;
+import java.security.MessageDigest;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.CRC32;
+
+// Estado de uma transferência de arquivo em partes (ARQUIVO_INICIO / ARQUIVO_PARTE / ARQUIVO_FIM).
+// Usada pelo servidor ao receber um envio e pelo cliente ao receber um arquivo. Os bytes de cada
+// parte chegam fora do quadro e vão direto para o arquivo parcial, sem passar pelo heap.
+public class Transferencia {
+  public static final int TAMANHO_PARTE = 1024 * 1024; // Tamanho das partes enviadas pelo cliente.
+  public static final long TAMANHO_MAXIMO_PARTE = 4L * 1024 * 1024; // Maior parte aceita.
+  public static final long TAMANHO_MAXIMO_ARQUIVO = Long.getLong("chat.arquivo.tamanhoMaximo", 4L << 30);
+  private static final long TAMANHO_MAPA_CHECKSUM = 64L * 1024 * 1024; // Trecho mapeado ao calcular o CRC32.
+
+  private final long id;
+  private final String remetente;
+  private final String nomeArquivo;
+  private final long tamanho;
+  private final Path caminhoParcial;
+  private final Path caminhoFinal;
+  private final ArquivoCompartilhado arquivo;
+  private long recebidos;
+  private long inicioParte; // Posição da parte em andamento.
+  private long restanteParte; // Bytes brutos que ainda faltam da parte em andamento.
+  private List<ClienteService> destinos; // Destinatários das partes (usado pelo servidor).
+
+  // Construtor da classe Transferencia.
+  private Transferencia(Mensagem inicio, String nomeArquivo, Path caminhoParcial, Path caminhoFinal,
+      FileChannel canal) {
+    this.id = inicio.getIdTransferencia();
+    this.remetente = inicio.getRemetente();
+    this.nomeArquivo = nomeArquivo;
+    this.tamanho = inicio.getTamanhoArquivo();
+    this.caminhoParcial = caminhoParcial;
+    this.caminhoFinal = caminhoFinal;
+    this.arquivo = new ArquivoCompartilhado(canal);
+    this.destinos = Collections.emptyList();
+  }
+
+  // Abre o arquivo parcial de uma nova transferência no diretório indicado.
+  public static Transferencia abrir(Mensagem inicio, Path diretorio) throws IOException {
+    String nomeArquivo = nomeSeguro(inicio.getNomeArquivo());
+    if (inicio.getTamanhoArquivo() < 0 || inicio.getTamanhoArquivo() > TAMANHO_MAXIMO_ARQUIVO) {
+      throw new IOException("Tamanho de arquivo invalido: " + inicio.getTamanhoArquivo());
+    }
+    Files.createDirectories(diretorio);
+    Path caminhoParcial = diretorio.resolve("." + nomeArquivo + "." + inicio.getRemetente() + "."
+        + inicio.getIdTransferencia() + ".parcial");
+    FileChannel canal = FileChannel.open(caminhoParcial, StandardOpenOption.CREATE, StandardOpenOption.READ,
+        StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+    return new Transferencia(inicio, nomeArquivo, caminhoParcial, diretorio.resolve(nomeArquivo), canal);
+  }
+
+  // Remove diretórios do nome enviado pelo cliente, evitando gravar fora do diretório de destino.
+  public static String nomeSeguro(String nomeArquivo) throws IOException {
+    if (nomeArquivo == null) {
+      throw new IOException("Nome de arquivo ausente");
+    }
+    Path nome = Paths.get(nomeArquivo).getFileName();
+    if (nome == null || nome.toString().isEmpty() || nome.toString().startsWith(".")) {
+      throw new IOException("Nome de arquivo invalido: " + nomeArquivo);
+    }
+    return nome.toString();
+  }
+
+  // Começa uma parte anunciada por um quadro ARQUIVO_PARTE; os bytes brutos vêm logo depois.
+  public void iniciarParte(Mensagem parte) throws IOException {
+    long tamanhoParte = parte.getTamanhoDados();
+    if (restanteParte > 0 || parte.getDeslocamento() != recebidos || tamanhoParte <= 0
+        || tamanhoParte > TAMANHO_MAXIMO_PARTE || recebidos + tamanhoParte > tamanho) {
+      throw new IOException("Parte fora de ordem ou alem do tamanho anunciado em " + nomeArquivo);
+    }
+    inicioParte = recebidos;
+    restanteParte = tamanhoParte;
+  }
+
+  // Grava bytes da parte em andamento a partir de um buffer já lido; retorna quantos consumiu.
+  public int escreverBruto(ByteBuffer origem) throws IOException {
+    int quantidade = (int) Math.min(origem.remaining(), restanteParte);
+    ByteBuffer trecho = origem.slice(origem.position(), quantidade);
+    while (trecho.hasRemaining()) {
+      arquivo.getCanal().write(trecho, recebidos + trecho.position());
+    }
+    origem.position(origem.position() + quantidade);
+    recebidos += quantidade;
+    restanteParte -= quantidade;
+    return quantidade;
+  }
+
+  // Copia bytes da parte em andamento direto do canal de origem para o arquivo (transferFrom).
+  public long receberDoCanal(ReadableByteChannel origem) throws IOException {
+    long total = 0;
+    while (restanteParte > 0) {
+      long copiados = arquivo.getCanal().transferFrom(origem, recebidos, restanteParte);
+      if (copiados <= 0) {
+        break;
+      }
+      recebidos += copiados;
+      restanteParte -= copiados;
+      total += copiados;
+    }
+    return total;
+  }
+
+  // Fecha o arquivo e, se o tamanho e o checksum conferem, move para o nome final.
+  // O CRC32 é calculado sobre o arquivo mapeado, sem copiar o conteúdo para o heap.
+  public boolean concluir(long checksumInformado) throws IOException {
+    try {
+      if (restanteParte > 0 || recebidos != tamanho || calcularChecksum() != checksumInformado) {
+        Files.deleteIfExists(caminhoParcial);
+        return false;
+      }
+      Files.move(caminhoParcial, caminhoFinal, StandardCopyOption.REPLACE_EXISTING);
+      return true;
+    } finally {
+      arquivo.liberar();
+    }
+  }
+
+  // Confere tamanho e checksum e guarda o conteúdo no armazém pelo SHA-256 (usado pelo servidor).
+  // Retorna null, descartando o arquivo parcial, se o conteúdo não confere.
+  public ObjetoArquivo guardar(ArmazemArquivos armazem, long checksumInformado) throws IOException {
+    try {
+      MessageDigest sha = ArmazemArquivos.novoSha256();
+      if (restanteParte > 0 || recebidos != tamanho || calcularChecksum(sha) != checksumInformado) {
+        Files.deleteIfExists(caminhoParcial);
+        return null;
+      }
+      return armazem.guardar(caminhoParcial, ArmazemArquivos.hexadecimal(sha.digest()), tamanho,
+          checksumInformado, remetente, nomeArquivo);
+    } finally {
+      arquivo.liberar();
+    }
+  }
+
+  // Calcula o CRC32 do conteúdo gravado.
+  private long calcularChecksum() throws IOException {
+    return calcularChecksum(null);
+  }
+
+  // Calcula o CRC32 do conteúdo gravado e, se pedido, alimenta o SHA-256 na mesma passada.
+  private long calcularChecksum(MessageDigest sha) throws IOException {
+    CRC32 crc = new CRC32();
+    FileChannel canal = arquivo.getCanal();
+    for (long posicao = 0; posicao < recebidos; posicao += TAMANHO_MAPA_CHECKSUM) {
+      long trecho = Math.min(TAMANHO_MAPA_CHECKSUM, recebidos - posicao);
+      MappedByteBuffer mapa = canal.map(FileChannel.MapMode.READ_ONLY, posicao, trecho);
+      if (sha != null) {
+        sha.update(mapa.duplicate());
+      }
+      crc.update(mapa);
+    }
+    return crc.getValue();
+  }
+
+  // Cancela a transferência, descartando o arquivo parcial.
+  public void abortar() {
+    try {
+      Files.deleteIfExists(caminhoParcial);
+    } catch (IOException e) {
+      LogConsole.erro("Erro ao descartar transferencia ", nomeArquivo, ": ", e.getMessage());
+    } finally {
+      arquivo.liberar();
+    }
+  }
+
+  // Getters e Setters
+  public long getId() {
+    return id;
+  }
+
+  public String getRemetente() {
+    return remetente;
+  }
+
+  public String getNomeArquivo() {
+    return nomeArquivo;
+  }
+
+  public long getTamanho() {
+    return tamanho;
+  }
+
+  public long getRecebidos() {
+    return recebidos;
+  }
+
+  public boolean isParteEmAndamento() {
+    return restanteParte > 0;
+  }
+
+  public long getRestanteParte() {
+    return restanteParte;
+  }
+
+  public long getInicioParte() {
+    return inicioParte;
+  }
+
+  public ArquivoCompartilhado getArquivo() {
+    return arquivo;
+  }
+
+  public Path getCaminhoFinal() {
+    return caminhoFinal;
+  }
+
+  public List<ClienteService> getDestinos() {
+    return destinos;
+  }
+
+  public void setDestinos(List<ClienteService> destinos) {
+    this.destinos = destinos;
+  }
+}
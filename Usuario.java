@@ -0,0 +1,57 @@
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+// Usuário conhecido pelo servidor: id denso, grupos de que participa e conexão atual (null se offline).
+// As participações sobrevivem à desconexão; o conjunto de grupos é mantido pelo próprio Grupo.
+public class Usuario {
+  private final int id;
+  private final String nome;
+  private final Set<Grupo> grupos = ConcurrentHashMap.newKeySet();
+  private volatile ClienteService conexao;
+  private volatile int no = -1; // Nó do cluster onde o usuário está conectado, se não for este.
+
+  // Construtor da classe Usuario.
+  Usuario(int id, String nome) {
+    this.id = id;
+    this.nome = nome;
+  }
+
+  // Chamados pelo Grupo ao adicionar ou remover este usuário.
+  void entrouEm(Grupo grupo) {
+    grupos.add(grupo);
+  }
+
+  void saiuDe(Grupo grupo) {
+    grupos.remove(grupo);
+  }
+
+  // Getters e Setters
+  public int getId() {
+    return id;
+  }
+
+  public String getNome() {
+    return nome;
+  }
+
+  public Set<Grupo> getGrupos() {
+    return Collections.unmodifiableSet(grupos);
+  }
+
+  public ClienteService getConexao() {
+    return conexao;
+  }
+
+  void setConexao(ClienteService conexao) {
+    this.conexao = conexao;
+  }
+
+  public int getNo() {
+    return no;
+  }
+
+  void setNo(int no) {
+    this.no = no;
+  }
+}
@@ -0,0 +1,120 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+// Registro dos usuários conhecidos pelo servidor. Cada nome recebe um id denso na primeira vez que aparece
+// (LOGIN ou recuperação dos grupos), e um mapa de bits de presença indica quem está conectado agora.
+// A difusão para grupos só lê (sem trava); registros, conexões e desconexões são raros e usam a trava.
+public class Usuarios {
+  private static final int CAPACIDADE_INICIAL = 1024;
+
+  private final Map<String, Usuario> porNome = new ConcurrentHashMap<>();
+  private volatile Usuario[] porId = new Usuario[CAPACIDADE_INICIAL];
+  private volatile AtomicLongArray presenca = new AtomicLongArray(CAPACIDADE_INICIAL / 64);
+  private int quantidade;
+
+  // Obtém o usuário com este nome, criando-o (com o próximo id) se ainda não existe.
+  public Usuario registrar(String nome) {
+    Usuario usuario = porNome.get(nome);
+    if (usuario != null) {
+      return usuario;
+    }
+    synchronized (this) {
+      usuario = porNome.get(nome);
+      if (usuario == null) {
+        if (quantidade == porId.length) {
+          crescer();
+        }
+        usuario = new Usuario(quantidade, nome);
+        porId[quantidade++] = usuario;
+        porNome.put(nome, usuario);
+      }
+      return usuario;
+    }
+  }
+
+  // Dobra a tabela de ids e o mapa de presença (com a trava).
+  private void crescer() {
+    porId = Arrays.copyOf(porId, porId.length * 2);
+    AtomicLongArray antiga = presenca;
+    AtomicLongArray nova = new AtomicLongArray(porId.length / 64);
+    for (int i = 0; i < antiga.length(); i++) {
+      nova.set(i, antiga.get(i));
+    }
+    presenca = nova;
+  }
+
+  // Marca o usuário como conectado por esta conexão.
+  public synchronized void conectar(Usuario usuario, ClienteService conexao) {
+    usuario.setConexao(conexao);
+    marcar(usuario.getId(), true);
+  }
+
+  // Marca o usuário como offline, se esta ainda é a conexão dele. O custo não depende dos grupos.
+  public synchronized void desconectar(Usuario usuario, ClienteService conexao) {
+    if (usuario.getConexao() != conexao) {
+      return;
+    }
+    usuario.setConexao(null);
+    marcar(usuario.getId(), false);
+  }
+
+  // Registra que o usuário está conectado em outro nó do cluster (diretório de localização).
+  public void conectarRemoto(Usuario usuario, int no) {
+    usuario.setNo(no);
+  }
+
+  // Registra que o usuário saiu do nó indicado; retorna false se ele já aparece em outro.
+  public synchronized boolean desconectarRemoto(Usuario usuario, int no) {
+    if (usuario.getNo() != no) {
+      return false;
+    }
+    usuario.setNo(-1);
+    return true;
+  }
+
+  // A ligação com o nó caiu: ninguém mais está conectado por ele. Retorna os usuários que estavam lá.
+  public synchronized List<Usuario> desconectarNo(int no) {
+    List<Usuario> desconectados = new ArrayList<>();
+    for (int i = 0; i < quantidade; i++) {
+      if (porId[i].getNo() == no) {
+        porId[i].setNo(-1);
+        desconectados.add(porId[i]);
+      }
+    }
+    return desconectados;
+  }
+
+  // Liga ou desliga o bit de presença (com a trava).
+  private void marcar(int id, boolean online) {
+    long palavra = presenca.get(id >>> 6);
+    presenca.set(id >>> 6, online ? palavra | (1L << id) : palavra & ~(1L << id));
+  }
+
+  // Usuário com este nome, ou null se ele nunca fez login nem é membro de algum grupo.
+  public Usuario buscar(String nome) {
+    return nome == null ? null : porNome.get(nome);
+  }
+
+  public Usuario porId(int id) {
+    return porId[id];
+  }
+
+  // Verifica no mapa de presença se o usuário está conectado.
+  public boolean online(int id) {
+    AtomicLongArray bits = presenca;
+    return (bits.get(id >>> 6) & (1L << id)) != 0;
+  }
+
+  // Conexão do usuário, ou null se ele está offline.
+  public ClienteService conexao(int id) {
+    return online(id) ? porId[id].getConexao() : null;
+  }
+
+  public synchronized int getQuantidade() {
+    return quantidade;
+  }
+}
@@ -0,0 +1,191 @@
+import bancada.Caminhos;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+
+// Operações das bancadas JMH (pacote bancada). Rodam sem rede: as conexões são ClienteService de um Reator
+// que não é iniciado, todas com o mesmo canal aberto e nunca conectado, e a fila de saída é esvaziada como se
+// o socket tivesse aceitado tudo. Os métodos privados do Servidor são chamados por MethodHandle estático,
+// que o JIT trata como chamada direta.
+public class CaminhosBancada implements Caminhos {
+  private static final int TAMANHO_TEXTO = 100; // Caracteres do conteúdo das mensagens.
+
+  private static final MethodHandle ENVIAR_MENSAGEM; // Servidor.enviarMensagem(Mensagem, ClienteService).
+  private static final MethodHandle DIFUNDIR_PARA_GRUPO; // Servidor.difundirParaGrupo.
+  private static final MethodHandle USUARIOS; // Campo Servidor.usuarios.
+
+  static {
+    try {
+      MethodHandles.Lookup servidor = MethodHandles.privateLookupIn(Servidor.class, MethodHandles.lookup());
+      ENVIAR_MENSAGEM = servidor.findVirtual(Servidor.class, "enviarMensagem",
+          MethodType.methodType(void.class, Mensagem.class, ClienteService.class));
+      DIFUNDIR_PARA_GRUPO = servidor.findVirtual(Servidor.class, "difundirParaGrupo",
+          MethodType.methodType(long.class, Mensagem.class, Grupo.class, ClienteService.class));
+      USUARIOS = servidor.findGetter(Servidor.class, "usuarios", Usuarios.class);
+    } catch (ReflectiveOperationException e) {
+      throw new ExceptionInInitializerError(e);
+    }
+  }
+
+  private final ByteBuffer[] loteEscrita = new ByteBuffer[64]; // Reutilizado ao esvaziar as filas.
+  private SocketChannel canal; // Canal das conexões simuladas (só precisa estar aberto).
+
+  // Leitura de um quadro como no loop de Servidor.lerDados: os bytes chegam no buffer da conexão (de uma
+  // vez ou em duas metades), lerMensagem decodifica, a chamada seguinte não acha mais nada e o buffer
+  // volta ao pool.
+  @Override
+  public Operacao lerQuadro(String formato, boolean fragmentado) throws Throwable {
+    ClienteService conexao = new ClienteService(canal(), reator(new Servidor()));
+    byte[] quadro = bytes(CodecMensagem.codificarQuadro(mensagemPrivada(), CodecMensagem.Formato.valueOf(formato)));
+    int primeiraLeitura = fragmentado ? quadro.length / 2 : quadro.length;
+    return () -> {
+      conexao.prepararBufferLeitura().put(quadro, 0, primeiraLeitura);
+      Mensagem lida = conexao.lerMensagem();
+      if (lida == null) {
+        conexao.ajustarBufferLeitura();
+        conexao.prepararBufferLeitura().put(quadro, primeiraLeitura, quadro.length - primeiraLeitura);
+        lida = conexao.lerMensagem();
+      }
+      if (lida == null || conexao.lerMensagem() != null) {
+        throw new IllegalStateException("Quadro lido incorretamente");
+      }
+      conexao.ajustarBufferLeitura();
+      return lida;
+    };
+  }
+
+  // Codificação de um quadro completo (tamanho + payload).
+  @Override
+  public Operacao codificar(String formato) {
+    Mensagem mensagem = mensagemPrivada();
+    CodecMensagem.Formato codec = CodecMensagem.Formato.valueOf(formato);
+    return () -> CodecMensagem.codificarQuadro(mensagem, codec);
+  }
+
+  // Decodificação de um payload já em memória.
+  @Override
+  public Operacao decodificar(String formato) throws Throwable {
+    ByteBuffer quadro = CodecMensagem.codificarQuadro(mensagemPrivada(), CodecMensagem.Formato.valueOf(formato));
+    quadro.position(4);
+    ByteBuffer payload = quadro.slice();
+    return () -> CodecMensagem.decodificar(payload.rewind());
+  }
+
+  // Servidor.enviarMensagem: codifica, passa pelo controle de fluxo e enfileira para uma conexão.
+  @Override
+  public Operacao enviar(String formato) throws Throwable {
+    Servidor servidor = new Servidor();
+    ClienteService conexao = conectar(servidor, reator(servidor), "destino", CodecMensagem.Formato.valueOf(formato));
+    Mensagem mensagem = mensagemPrivada();
+    return new Operacao() {
+      @Override
+      public Object executar() throws Throwable {
+        ENVIAR_MENSAGEM.invokeExact(servidor, mensagem, conexao);
+        return mensagem;
+      }
+
+      @Override
+      public void limpar() {
+        esvaziar(conexao);
+      }
+    };
+  }
+
+  // Servidor.difundirParaGrupo (a entrega local de mensagemGrupo): todos os membros conectados, cada um
+  // recebe uma visão do mesmo quadro.
+  @Override
+  public Operacao difundir(int membros) throws Throwable {
+    Servidor servidor = new Servidor();
+    Reator reator = reator(servidor);
+    ClienteService[] conexoes = new ClienteService[membros];
+    Usuario[] usuarios = new Usuario[membros];
+    for (int i = 0; i < membros; i++) {
+      conexoes[i] = conectar(servidor, reator, "membro" + i, CodecMensagem.Formato.BINARIO);
+      usuarios[i] = conexoes[i].getUsuario();
+    }
+    Grupo grupo = new Grupo("grupo" + membros);
+    grupo.adicionarMembros(usuarios);
+    Mensagem mensagem = new Mensagem(Mensagem.TipoMensagem.MENSAGEM_GRUPO, usuarios[0].getNome());
+    mensagem.setNomeGrupo(grupo.getNome());
+    mensagem.setConteudo(texto());
+    return new Operacao() {
+      @Override
+      public Object executar() throws Throwable {
+        return (long) DIFUNDIR_PARA_GRUPO.invokeExact(servidor, mensagem, grupo, conexoes[0]);
+      }
+
+      @Override
+      public void limpar() {
+        for (ClienteService conexao : conexoes) {
+          esvaziar(conexao);
+        }
+      }
+    };
+  }
+
+  @Override
+  public void fechar() throws Exception {
+    if (canal != null) {
+      canal.close();
+    }
+  }
+
+  private SocketChannel canal() throws Exception {
+    if (canal == null) {
+      canal = SocketChannel.open();
+    }
+    return canal;
+  }
+
+  private static Reator reator(Servidor servidor) throws Exception {
+    return new Reator(0, servidor, new ManutencaoConexoes(), new Metricas(1));
+  }
+
+  // Cria uma conexão sem socket, já com login feito e marcada como conectada no registro de usuários.
+  private ClienteService conectar(Servidor servidor, Reator reator, String nome, CodecMensagem.Formato formato)
+      throws Throwable {
+    Usuarios usuarios = (Usuarios) USUARIOS.invokeExact(servidor);
+    ClienteService conexao = new ClienteService(canal(), reator);
+    Usuario usuario = usuarios.registrar(nome);
+    conexao.setUsuario(usuario);
+    conexao.setFormato(formato);
+    usuarios.conectar(usuario, conexao);
+    return conexao;
+  }
+
+  // Esvazia a fila de saída como se cada escrita tivesse aceitado todos os bytes.
+  private void esvaziar(ClienteService conexao) {
+    int quantidade;
+    while ((quantidade = conexao.prepararLote(loteEscrita)) > 0) {
+      for (int i = 0; i < quantidade; i++) {
+        loteEscrita[i].position(loteEscrita[i].limit());
+      }
+      conexao.concluirEscritos();
+    }
+  }
+
+  private static Mensagem mensagemPrivada() {
+    Mensagem mensagem = new Mensagem(Mensagem.TipoMensagem.MENSAGEM_PRIVADA, "remetente");
+    mensagem.setDestinatario("destino");
+    mensagem.setConteudo(texto());
+    mensagem.setCarimboTempo(System.currentTimeMillis());
+    return mensagem;
+  }
+
+  private static String texto() {
+    StringBuilder texto = new StringBuilder(TAMANHO_TEXTO);
+    while (texto.length() < TAMANHO_TEXTO) {
+      texto.append("mensagem de teste ");
+    }
+    texto.setLength(TAMANHO_TEXTO);
+    return texto.toString();
+  }
+
+  private static byte[] bytes(ByteBuffer buffer) {
+    byte[] dados = new byte[buffer.remaining()];
+    buffer.get(dados);
+    return dados;
+  }
+}
@@ -0,0 +1,53 @@
+package bancada;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+// Codificação de um quadro completo e decodificação de um payload, nos dois formatos do CodecMensagem.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+public class BancadaCodec {
+  @Param({"BINARIO", "JAVA"})
+  private String formato;
+
+  private Caminhos caminhos;
+  private Caminhos.Operacao codificar;
+  private Caminhos.Operacao decodificar;
+
+  @Setup
+  public void preparar() throws Throwable {
+    caminhos = Caminhos.carregar();
+    codificar = caminhos.codificar(formato);
+    decodificar = caminhos.decodificar(formato);
+  }
+
+  @TearDown
+  public void encerrar() throws Exception {
+    caminhos.fechar();
+  }
+
+  @Benchmark
+  public Object codificar() throws Throwable {
+    return codificar.executar();
+  }
+
+  @Benchmark
+  public Object decodificar() throws Throwable {
+    return decodificar.executar();
+  }
+}
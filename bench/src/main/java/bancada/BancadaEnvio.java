@@ -0,0 +1,50 @@
+package bancada;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+// Servidor.enviarMensagem: codifica, passa pelo controle de fluxo e enfileira para uma conexão. A operação
+// também esvazia a fila (um quadro), para ela não crescer nem acionar o controle de fluxo; a limpeza fora
+// da medição custaria mais que o próprio envio.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+public class BancadaEnvio {
+  @Param({"BINARIO", "JAVA"})
+  private String formato;
+
+  private Caminhos caminhos;
+  private Caminhos.Operacao enviar;
+
+  @Setup
+  public void preparar() throws Throwable {
+    caminhos = Caminhos.carregar();
+    enviar = caminhos.enviar(formato);
+  }
+
+  @TearDown
+  public void encerrar() throws Exception {
+    caminhos.fechar();
+  }
+
+  @Benchmark
+  public Object enviar() throws Throwable {
+    Object resultado = enviar.executar();
+    enviar.limpar();
+    return resultado;
+  }
+}
@@ -0,0 +1,53 @@
+package bancada;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+// Difusão de uma mensagem de grupo para todos os membros conectados (Servidor.difundirParaGrupo). As filas
+// dos membros são esvaziadas antes de cada operação, fora da medição.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Xmx2g")
+public class BancadaGrupo {
+  @Param({"10", "1000", "100000"})
+  private int membros;
+
+  private Caminhos caminhos;
+  private Caminhos.Operacao difundir;
+
+  @Setup
+  public void preparar() throws Throwable {
+    caminhos = Caminhos.carregar();
+    difundir = caminhos.difundir(membros);
+  }
+
+  @Setup(Level.Invocation)
+  public void esvaziar() {
+    difundir.limpar();
+  }
+
+  @TearDown
+  public void encerrar() throws Exception {
+    caminhos.fechar();
+  }
+
+  @Benchmark
+  public Object difundir() throws Throwable {
+    return difundir.executar();
+  }
+}
@@ -0,0 +1,53 @@
+package bancada;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+// Leitura de quadros do buffer da conexão (ClienteService.lerMensagem), de uma vez e em duas leituras.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+public class BancadaQuadro {
+  @Param({"BINARIO", "JAVA"})
+  private String formato;
+
+  private Caminhos caminhos;
+  private Caminhos.Operacao inteiro;
+  private Caminhos.Operacao fragmentado;
+
+  @Setup
+  public void preparar() throws Throwable {
+    caminhos = Caminhos.carregar();
+    inteiro = caminhos.lerQuadro(formato, false);
+    fragmentado = caminhos.lerQuadro(formato, true);
+  }
+
+  @TearDown
+  public void encerrar() throws Exception {
+    caminhos.fechar();
+  }
+
+  @Benchmark
+  public Object lerInteiro() throws Throwable {
+    return inteiro.executar();
+  }
+
+  @Benchmark
+  public Object lerFragmentado() throws Throwable {
+    return fragmentado.executar();
+  }
+}
@@ -0,0 +1,37 @@
+package bancada;
+
+// Caminhos quentes do servidor medidos pelas bancadas. O JMH exige as bancadas num pacote, mas as classes do
+// chat ficam no pacote padrão, que um pacote nomeado não enxerga; a implementação (CaminhosBancada, no pacote
+// padrão) monta cada operação e é carregada pelo nome.
+public interface Caminhos {
+
+  // Operação medida; limpar desfaz entre as operações o que a medição não deve acumular.
+  interface Operacao {
+    Object executar() throws Throwable;
+
+    default void limpar() {
+    }
+  }
+
+  // ClienteService.lerMensagem de um quadro que chega de uma vez ou em duas leituras.
+  Operacao lerQuadro(String formato, boolean fragmentado) throws Throwable;
+
+  // CodecMensagem.codificarQuadro de uma mensagem privada.
+  Operacao codificar(String formato) throws Throwable;
+
+  // CodecMensagem.decodificar de um payload já em memória.
+  Operacao decodificar(String formato) throws Throwable;
+
+  // Servidor.enviarMensagem para uma conexão.
+  Operacao enviar(String formato) throws Throwable;
+
+  // Servidor.difundirParaGrupo para um grupo com todos os membros conectados.
+  Operacao difundir(int membros) throws Throwable;
+
+  // Libera o que as operações criadas abriram.
+  void fechar() throws Exception;
+
+  static Caminhos carregar() throws ReflectiveOperationException {
+    return (Caminhos) Class.forName("CaminhosBancada").getDeclaredConstructor().newInstance();
+  }
+}